@@ -1,6 +1,5 @@
 package com.sas.unravl;
 
-import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -10,14 +9,16 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.sas.unravl.assertions.BaseUnRAVLAssertion;
+import com.sas.unravl.assertions.DigestAssertion;
 import com.sas.unravl.assertions.StatusAssertion;
 import com.sas.unravl.assertions.UnRAVLAssertion;
 import com.sas.unravl.assertions.UnRAVLAssertion.Stage;
 import com.sas.unravl.assertions.UnRAVLAssertionException;
+import com.sas.unravl.auth.AuthSession;
+import com.sas.unravl.auth.SessionAuth;
 import com.sas.unravl.auth.UnRAVLAuth;
 import com.sas.unravl.extractors.UnRAVLExtractor;
 import com.sas.unravl.generators.Binary;
-import com.sas.unravl.generators.JsonRequestBodyGenerator;
 import com.sas.unravl.generators.UnRAVLRequestBodyGenerator;
 import com.sas.unravl.util.Json;
 
@@ -25,11 +26,17 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
@@ -62,7 +69,6 @@ public class ApiCall {
     private static final String AUTHORIZATION = "Authorization";
     private static final String MASK = "************";
     private static final Logger logger = Logger.getLogger(ApiCall.class);
-    private static final String JSON_GENERATOR_KEY = "json";
 
     private UnRAVL script;
     /**
@@ -81,6 +87,26 @@ public class ApiCall {
     private Method method;
     private String uri;
     private boolean cancelled = false, skipped = false;
+    private Map<String, byte[]> responseDigests = new HashMap<String, byte[]>();
+    private List<UnauthorizedListener> unauthorizedListeners = new ArrayList<UnauthorizedListener>();
+    private long elapsedMillis = -1;
+    private long startTime;
+    private final long phaseNanos[] = new long[CallResult.Phase.values().length];
+    private CallResult.Phase phase;
+    private long phaseStart;
+
+    /**
+     * Notified when the API call is rejected with HTTP status 401
+     * Unauthorized. Auth plugins use this to discard cached credentials, such
+     * as access tokens or tickets, which the server no longer accepts.
+     */
+    public interface UnauthorizedListener {
+        /**
+         * @param call
+         *            the call which returned 401 Unauthorized
+         */
+        void unauthorized(ApiCall call);
+    }
 
     private static final ObjectNode STATUS_ASSERTION = new ObjectNode(
             JsonNodeFactory.instance);
@@ -100,20 +126,28 @@ public class ApiCall {
     }
 
     public ApiCall run() throws UnRAVLException {
+        startTime = System.currentTimeMillis();
         try {
             if (getScript().isRunnable() && conditionalExecution()) {
+                enter(CallResult.Phase.ENV);
                 defineEnv();
                 bind("unravlScript", getScript());
+                enter(CallResult.Phase.PRECONDITIONS);
                 if (runAssertions(UnRAVLAssertion.Stage.PRECONDITIONS)) {
+                    enter(CallResult.Phase.BODY);
                     defineBody();
                     executeAPI();
+                    enter(CallResult.Phase.EXTRACT);
                     extract();
+                    enter(CallResult.Phase.ASSERT);
                     runAssertions(UnRAVLAssertion.Stage.ASSERT);
                 }             }
         } catch (UnRAVLException e) {
             throwException(e);
         } catch (IOException e) {
             throwException(e);
+        } finally {
+            enter(null);
         }
         return this;
     }
@@ -146,7 +180,7 @@ public class ApiCall {
         Boolean inherited = conditionalExecution(script.getTemplate());
         if (inherited != null && !inherited.booleanValue())
             return Boolean.FALSE;
-        JsonNode cond = script.getRoot().get("if");
+        JsonNode cond = script.getPlan().getCondition();
         if (cond == null)
             return inherited;
         Object condition = null;
@@ -186,7 +220,7 @@ public class ApiCall {
         if (script == null)
             return;
 
-        JsonNode auth = script.getRoot().get("auth");
+        JsonNode auth = script.getPlan().getAuth();
         if (auth == null) {
             authenticate(script.getTemplate()); // recurse on template
             return;
@@ -200,29 +234,52 @@ public class ApiCall {
                 return;
             }
         }
-        ObjectNode spec = null;
         // If "auth" value is just a string and not an object, such as "auth" :
-        // "basic",
-        // convert to "auth" : { "basic" : true } to enable that auth type
-        if (auth.isTextual()) {
-            spec = Json.jsonNodeFactory().objectNode();
-            spec.put(auth.textValue(), true);
-        } else
-            spec = Json.object(auth);
-        String authKey = Json.firstFieldName(spec);
-        Class<? extends UnRAVLAuth> authClass = getPlugins().getAuth().get(
-                authKey);
-        try {
-            UnRAVLAuth authInstance = authClass.newInstance();
-            authInstance.authenticate(getScript(), spec, this);
-        } catch (InstantiationException e) {
+        // "basic", the plan converts it to "auth" : { "basic" : true }
+        ObjectNode spec = script.getPlan().getAuthSpec();
+        Class<? extends UnRAVLAuth> authClass = script.getPlan()
+                .getAuthClass();
+        if (authClass == null)
             throw new UnRAVLException(
-                    "Could not instantiate authentication plugin for " + auth);
-        } catch (IllegalAccessException e) {
-            throw new UnRAVLException(
-                    "Could not instantiate authentication plugin for " + auth);
-        }
+                    "No authentication plugin registered for " + auth);
+        PluginFactory<? extends UnRAVLAuth> factory = script.getPlan()
+                .getAuthFactory();
+        if (SessionAuth.class.isAssignableFrom(authClass)
+                && authenticateWithSession(authClass, factory, spec))
+            return;
+        UnRAVLAuth authInstance = factory.newInstance();
+        authInstance.authenticate(getScript(), spec, this);
+    }
 
+    // Apply the shared session for this call's session key, opening it if
+    // needed. Returns false if the plugin does not use a session for this call.
+    private boolean authenticateWithSession(
+            Class<? extends UnRAVLAuth> authClass,
+            PluginFactory<? extends UnRAVLAuth> factory, ObjectNode spec)
+            throws UnRAVLException {
+        final String key = getPlugins().getSessionAuth(authClass).sessionKey(
+                getScript(), spec, this);
+        if (key == null)
+            return false;
+        final ConcurrentMap<String, AuthSession> sessions = getPlugins()
+                .getAuthSessions();
+        AuthSession session = sessions.get(key);
+        if (session == null) {
+            SessionAuth authInstance = (SessionAuth) factory.newInstance();
+            session = authInstance.openSession(getScript(), spec, this);
+            AuthSession existing = sessions.putIfAbsent(key, session);
+            if (existing != null)
+                session = existing;
+        }
+        final AuthSession used = session;
+        addUnauthorizedListener(new UnauthorizedListener() {
+            @Override
+            public void unauthorized(ApiCall call) {
+                sessions.remove(key, used);
+            }
+        });
+        session.apply(getScript(), this);
+        return true;
     }
 
     private void defineBody() throws UnRAVLException, IOException {
@@ -232,13 +289,18 @@ public class ApiCall {
     private void defineBody(UnRAVL script) throws UnRAVLException, IOException {
         if (canceled() || script == null)
             return;
-        JsonNode body = script.getRoot().get("body");
+        ScriptPlan plan = script.getPlan();
+        JsonNode body = plan.getBody();
 
-        if (body == null || body.isNull()) {
+        if (body == null) {
             defineBody(script.getTemplate());
             return;
         }
         if (body.isTextual() && !isVariableHoldingJson(body.asText())) {
+            if (plan.getTextBody() != null) {
+                requestStream = new ByteArrayInputStream(plan.getTextBody());
+                return;
+            }
             String s = script.expand(body.asText());
             if (!s.trim().startsWith(UnRAVL.REDIRECT_PREFIX)) {
                 try {
@@ -253,35 +315,8 @@ public class ApiCall {
             }
         }
 
-        ObjectNode bodyObj = null;
-        String generatorKey = null;
-        Class<? extends UnRAVLRequestBodyGenerator> bgClass = null;
-
-        if (body.isObject() && body.fields().hasNext()) {
-            bodyObj = Json.object(body);
-            generatorKey = body.fields().next().getKey();
-            bgClass = getPlugins().getBodyGenerators().get(generatorKey);
-
-        }
-
-        if (bgClass == null || body.isArray() || body.isTextual()) {
-            bodyObj = new ObjectNode(JsonNodeFactory.instance);
-            bodyObj.set(JSON_GENERATOR_KEY, body);
-            generatorKey = JSON_GENERATOR_KEY;
-            bgClass = JsonRequestBodyGenerator.class;
-        }
-
-        try {
-            UnRAVLRequestBodyGenerator gen = bgClass.newInstance();
-            requestStream = gen.getBody(script, bodyObj, this);
-        } catch (InstantiationException e) {
-            throw new UnRAVLException(
-                    "Could not instantiate body generator plugin for " + body);
-        } catch (IllegalAccessException e) {
-            throw new UnRAVLException(
-                    "Could not instantiate body generator plugin for " + body);
-        }
-
+        UnRAVLRequestBodyGenerator gen = plan.getBodyFactory().newInstance();
+        requestStream = gen.getBody(script, plan.getBodySpec(), this);
     }
 
     private boolean isVariableHoldingJson(String value) {
@@ -303,35 +338,19 @@ public class ApiCall {
             if (canceled() || script == null)
                 return;
             extract(script.getTemplate());
-            JsonNode bind = script.getRoot().get("bind");
-            if (bind == null)
-                return;
-            if (bind.isObject()) {
-                bind = Json.wrapInArray(bind);
-            }
-            for (JsonNode j : Json.array(bind)) {
+            String language = getRuntime().getScriptLanguage();
+            for (ScriptPlan.Step<UnRAVLExtractor> step : script.getPlan()
+                    .getExtractors()) {
                 if (canceled())
                     return;
-                ObjectNode ob = Json.object(j);
-                Map.Entry<String, JsonNode> first = Json.firstField(ob);
-                String key = first.getKey();
-                Class<? extends UnRAVLExtractor> ec = getPlugins()
-                        .getExtractors().get(key);
+                ObjectNode ob = step.getScriptlet(language);
+                String key = step.getKeyword(language);
+                Class<? extends UnRAVLExtractor> ec = step.getPluginClass();
                 if (ec == null)
-                    if (!bind.isObject())
-                        throw new UnRAVLException("No defined extractor " + key);
-                UnRAVLExtractor ex;
+                    throw new UnRAVLException("No defined extractor " + key);
                 try {
-                    ex = ec.newInstance();
+                    UnRAVLExtractor ex = step.getFactory().newInstance();
                     ex.extract(script, ob, this);
-                } catch (InstantiationException e1) {
-                    throw new UnRAVLException(
-                            "Could not instantiate extractor " + key
-                                    + " using class " + ec.getName(), e1);
-                } catch (IllegalAccessException e1) {
-                    throw new UnRAVLException(
-                            "Could not instantiate extractor " + key
-                                    + " using class " + ec.getName(), e1);
                 } catch (RuntimeException e1) {
                     throw new UnRAVLException(e1.getMessage(), e1);
                 }
@@ -365,47 +384,19 @@ public class ApiCall {
         if (script == null)
             return;
         defineEnv(script.getTemplate());
-        JsonNode envNode = script.getRoot().get("env");
         if (script.getName() != null)
             script.bind("name", script.getName());
-        if (envNode != null) {
-            for (Map.Entry<String, JsonNode> e : Json.fields(envNode)) {
-                String name = e.getKey();
-                JsonNode n = e.getValue();
-                Object value = null;
-                if (n.isValueNode()) {
-                    JsonToken t = n.asToken();
-                    switch (t) {
-                    case VALUE_FALSE:
-                        value = Boolean.FALSE;
-                        break;
-                    case VALUE_TRUE:
-                        value = Boolean.TRUE;
-                        break;
-                    case VALUE_NULL:
-                        value = null;
-                        break;
-                    case VALUE_NUMBER_FLOAT:
-                        value = new Double(n.toString());
-                        break;
-                    case VALUE_NUMBER_INT:
-                        value = new Long(n.toString());
-                        break;
-                    case VALUE_STRING:
-                        value = script.expand(n.textValue());
-                        break;
-                    default:
-                        value = n;
-                        break;
-                    }
-                } else {
-                    value = Json.expand(n, script);
-                }
-                script.bind(name, value);
-            }
-
+        // constant values were converted when the script was compiled
+        for (ScriptPlan.Variable v : script.getPlan().getEnv()) {
+            Object value;
+            if (v.isConstant())
+                value = v.getValue();
+            else if (v.getNode().isTextual())
+                value = script.expand(v.getNode().textValue());
+            else
+                value = Json.expand(v.getNode(), script);
+            script.bind(v.getName(), value);
         }
-
     }
 
     /**
@@ -476,6 +467,7 @@ public class ApiCall {
         // Set the expanded URI first, since auth nodes may access it
         setURI(script.expand(script.getURI()));
         try {
+            enter(CallResult.Phase.AUTH);
             authenticate();
         } catch (IOException e) {
             throwException(e);
@@ -501,18 +493,27 @@ public class ApiCall {
                 ;
             }
         };
+        final Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+        final boolean retainBody = prepareDigests(script, digests);
         final ResponseExtractor<InternalResponse> responseExtractor = new ResponseExtractor<InternalResponse>() {
             @Override
             public InternalResponse extractData(ClientHttpResponse response)
                     throws IOException {
                 httpStatus = response.getStatusCode().value();
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                Binary.copy(response.getBody(), baos);
+                InputStream body = response.getBody();
+                // compute digests for digest assertions as the body is read
+                for (MessageDigest md : digests.values())
+                    body = new DigestInputStream(body, md);
+                Binary.copy(body, retainBody ? baos : DISCARD);
+                for (Map.Entry<String, MessageDigest> d : digests.entrySet())
+                    responseDigests.put(d.getKey(), d.getValue().digest());
                 return new InternalResponse(response.getStatusCode(),
                         baos.toByteArray(), response.getHeaders());
             }
         };
 
+        enter(CallResult.Phase.HTTP);
         long start = System.currentTimeMillis();
         try {
             logger.info(method.name() + " " + getURI());
@@ -528,6 +529,7 @@ public class ApiCall {
             responseBody.write(response.responseBody);
             responseBody.close();
             long end = System.currentTimeMillis();
+            elapsedMillis = end - start;
             logger.info(script.getMethod() + " took " + (end - start)
                     + "ms, returned HTTP status " + response.status);
             log("Response body:", responseBody, "Response headers:",
@@ -645,6 +647,104 @@ public class ApiCall {
         return responseBody;
     }
 
+    /**
+     * Release the request and response bodies, keeping the call's method,
+     * URI, status, headers and assertion results. The call history does this
+     * for completed calls if {@link CallHistory#isDropBodies()}.
+     */
+    public void releaseBodies() {
+        requestBody = null;
+        requestStream = null;
+        responseBody = null;
+    }
+
+    /**
+     * Return the message digest of the response body. Digests needed by
+     * digest assertions are computed while the response body is read;
+     * others are computed from the response body.
+     *
+     * @param algorithm
+     *            the {@link MessageDigest} algorithm name, such as "SHA-256"
+     * @return the digest of the response body
+     * @throws UnRAVLException
+     *             if the algorithm is not supported
+     */
+    public byte[] getResponseDigest(String algorithm) throws UnRAVLException {
+        String key = algorithm.toUpperCase(Locale.ENGLISH);
+        byte[] digest = responseDigests.get(key);
+        if (digest == null) {
+            digest = DigestAssertion.messageDigest(key).digest(
+                    getResponseBody().toByteArray());
+            responseDigests.put(key, digest);
+        }
+        return digest;
+    }
+
+    // Find the digest assertions of the script and its templates, adding
+    // the digests they need. Return false if any of them does not retain
+    // the response body.
+    private boolean prepareDigests(UnRAVL script,
+            Map<String, MessageDigest> digests) throws UnRAVLException {
+        if (script == null)
+            return true;
+        boolean retain = prepareDigests(script.getTemplate(), digests);
+        for (ScriptPlan.Step<UnRAVLAssertion> a : script.getPlan()
+                .getAssertions(Stage.ASSERT)) {
+            if (a.isExpression() || a.getPluginClass() != DigestAssertion.class)
+                continue;
+            ObjectNode assertion = a.getScriptlet(null);
+            String algorithm = DigestAssertion.algorithm(assertion);
+            if (!digests.containsKey(algorithm))
+                digests.put(algorithm,
+                        DigestAssertion.messageDigest(algorithm));
+            retain = retain && DigestAssertion.retainsBody(assertion);
+        }
+        return retain;
+    }
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * @return the time in milliseconds from sending the request until the
+     *         response body was read, or -1 if no response was received
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    // end the current phase, adding its time, and start the next, if any
+    private void enter(CallResult.Phase next) {
+        long now = System.nanoTime();
+        if (phase != null)
+            phaseNanos[phase.ordinal()] += now - phaseStart;
+        phase = next;
+        phaseStart = now;
+    }
+
+    /**
+     * @param phase
+     *            a phase of the call
+     * @return the time spent in the phase, in nanoseconds
+     */
+    public long getPhaseNanos(CallResult.Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return when the call started running, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
     public int getHttpStatus() {
         return httpStatus;
     }
@@ -657,12 +757,27 @@ public class ApiCall {
         this.responseHeaders = responseHeaders;
     }
 
+    /**
+     * Add a listener to notify if this call's response status is 401
+     * Unauthorized
+     *
+     * @param listener
+     *            the listener
+     */
+    public void addUnauthorizedListener(UnauthorizedListener listener) {
+        unauthorizedListeners.add(listener);
+    }
+
     // Check that the httpStatusCode matches the expected status
     // code of the API call. If no explicit status assertion exists,
     // assert the status is a 2xx code.
     private void assertStatus(int httpStatusCode)
             throws UnRAVLAssertionException, UnRAVLException {
         this.httpStatus = httpStatusCode;
+        if (httpStatusCode == HttpStatus.UNAUTHORIZED.value()) {
+            for (UnauthorizedListener listener : unauthorizedListeners)
+                listener.unauthorized(this);
+        }
         StatusAssertion sa = new StatusAssertion();
         sa.setScript(script);
         sa.setScriptlet(STATUS_ASSERTION);
@@ -727,53 +842,48 @@ public class ApiCall {
             return false;
         if (canceled())
             return true;
-        JsonNode assertionNode = unravl.getRoot().get(stage.getName());
-        if (assertionNode == null)
-            return true;
-        ArrayNode assertions = assertionArray(assertionNode, stage);
+        List<ScriptPlan.Step<UnRAVLAssertion>> assertions = unravl.getPlan()
+                .getAssertions(stage);
+        String language = getRuntime().getScriptLanguage();
         for (int i = 0; !canceled() && i < assertions.size(); i++) {
-            JsonNode s = assertions.get(i);
+            ScriptPlan.Step<UnRAVLAssertion> s = assertions.get(i);
             ObjectNode assertionScriptlet = null;
+            // the assertion recorded in the passed/failed lists; shared
+            // (stateless) assertions are recorded as a separate object
             UnRAVLAssertion a = null;
-            Class<? extends UnRAVLAssertion> aClass = null;
             try {
-                if (s.isTextual()) {
-                    ObjectNode o = new ObjectNode(JsonNodeFactory.instance);
-                    o.set(getRuntime().getScriptLanguage(), (TextNode) s);
-                    s = o;
-                }
-                String aName = Json.firstFieldName(s);
-                assertionScriptlet = Json.object(s);
-                aClass = getPlugins().getAssertions().get(aName);
+                String aName = s.getKeyword(language);
+                assertionScriptlet = s.getScriptlet(language);
+                Class<? extends UnRAVLAssertion> aClass = s.isExpression() ? getPlugins()
+                        .getAssertions().get(aName) : s.getPluginClass();
                 if (aClass == null)
                     throw new UnRAVLException(
                             "No such assertion class registered for " + stage
                                     + " keyword " + aName);
-                a = aClass.newInstance();
-                a.setAssertion(assertionScriptlet);
-                a.check(this.script, assertionScriptlet, stage, this);
+                PluginFactory<? extends UnRAVLAssertion> factory = s
+                        .isExpression() ? getPlugins().getFactory(aClass) : s
+                        .getFactory();
+                UnRAVLAssertion assertion;
+                try {
+                    assertion = factory.newInstance();
+                } catch (UnRAVLException e) {
+                    failedAssertions.add(BaseUnRAVLAssertion.of(script,
+                            assertionScriptlet));
+                    throw e;
+                }
+                if (factory.isShared())
+                    a = BaseUnRAVLAssertion.of(script, assertionScriptlet);
+                else {
+                    a = assertion;
+                    a.setAssertion(assertionScriptlet);
+                }
+                assertion.check(this.script, assertionScriptlet, stage, this);
                 passedAssertions.add(a);
-            } catch (InstantiationException e) {
-                failedAssertions.add(BaseUnRAVLAssertion.of(script,
-                        assertionScriptlet));
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                failedAssertions.add(BaseUnRAVLAssertion.of(script,
-                        assertionScriptlet));
-                logger.error(e.getMessage());
-                throw new UnRAVLException("Assertion class " + aClass.getName()
-                        + " cannot be instantiated.");
             } catch (UnRAVLAssertionException e) {
                 failedAssertions.add(a);
                 for (int j = i + 1; j < assertions.size(); j++) {
-                    JsonNode skipped = assertions.get(j);
-                    if (skipped.isTextual()) {
-                        ObjectNode g = new ObjectNode(JsonNodeFactory.instance);
-                        g.set("groovy", (TextNode) skipped);
-                        skipped = g;
-                    }
                     skippedAssertions.add(BaseUnRAVLAssertion.of(getScript(),
-                            Json.object(skipped)));
+                            assertions.get(j).getScriptlet(language)));
                 }
                 throw e;
             }
@@ -0,0 +1,381 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.assertions.UnRAVLAssertion;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.RollingNdjsonWriter;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The API calls made in an {@link UnRAVLRuntime}, which
+ * {@link UnRAVLRuntime#getApiCalls()} returns. By default every call is kept.
+ * For long runs, the history can keep only the latest calls, keep only calls
+ * which failed, and release the request and response bodies of calls once
+ * they complete. Calls which are no longer kept may be appended to a spill
+ * file, as one JSON summary per line, which {@link #readSpilled()} reads back.
+ * <p>
+ * The history keeps running totals of all calls, including those no longer
+ * kept, which {@link UnRAVLRuntime#report()} uses.
+ * <p>
+ * The initial policy comes from the system properties
+ * {@link #KEEP_PROPERTY}, {@link #FAILED_ONLY_PROPERTY},
+ * {@link #DROP_BODIES_PROPERTY} and {@link #SPILL_PROPERTY}.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class CallHistory extends AbstractList<ApiCall> {
+
+    /** System property: the number of calls to keep; 0 (the default) keeps all */
+    public static final String KEEP_PROPERTY = "unravl.calls.keep";
+
+    /** System property: if true, keep only calls which failed */
+    public static final String FAILED_ONLY_PROPERTY = "unravl.calls.failedOnly";
+
+    /** System property: if true, release bodies when calls complete */
+    public static final String DROP_BODIES_PROPERTY = "unravl.calls.dropBodies";
+
+    /** System property: the file to which calls no longer kept are appended */
+    public static final String SPILL_PROPERTY = "unravl.calls.spill";
+
+    private static final Logger logger = Logger.getLogger(CallHistory.class);
+
+    private int maxCalls;
+    private boolean failedOnly;
+    private boolean dropBodies;
+    private RollingNdjsonWriter spill;
+
+    // the kept calls, oldest first, in a ring buffer
+    private ApiCall ring[] = new ApiCall[16];
+    private int head;
+    private int size;
+
+    // totals of calls which are no longer kept
+    private int droppedCalls;
+    private int droppedFailures;
+
+    /**
+     * Create a history with the policy set by system properties
+     */
+    public CallHistory() {
+        maxCalls = Integer.getInteger(KEEP_PROPERTY, 0).intValue();
+        failedOnly = Boolean.getBoolean(FAILED_ONLY_PROPERTY);
+        dropBodies = Boolean.getBoolean(DROP_BODIES_PROPERTY);
+        String spillFile = System.getProperty(SPILL_PROPERTY);
+        if (spillFile != null)
+            setSpillFile(new File(spillFile));
+    }
+
+    /**
+     * Create an empty history with the policy (and spill file) of another
+     *
+     * @param policy
+     *            the history whose policy to copy
+     */
+    public CallHistory(CallHistory policy) {
+        maxCalls = policy.maxCalls;
+        failedOnly = policy.failedOnly;
+        dropBodies = policy.dropBodies;
+        spill = policy.spill;
+    }
+
+    /**
+     * @param maxCalls
+     *            the number of calls to keep; 0 to keep all
+     */
+    public void setMaxCalls(int maxCalls) {
+        this.maxCalls = maxCalls;
+        while (maxCalls > 0 && size > maxCalls)
+            drop(0);
+    }
+
+    public int getMaxCalls() {
+        return maxCalls;
+    }
+
+    /**
+     * @param failedOnly
+     *            if true, calls which pass are not kept once they complete
+     */
+    public void setFailedOnly(boolean failedOnly) {
+        this.failedOnly = failedOnly;
+    }
+
+    public boolean isFailedOnly() {
+        return failedOnly;
+    }
+
+    /**
+     * @param dropBodies
+     *            if true, release the request and response bodies of calls
+     *            once they complete
+     */
+    public void setDropBodies(boolean dropBodies) {
+        this.dropBodies = dropBodies;
+    }
+
+    public boolean isDropBodies() {
+        return dropBodies;
+    }
+
+    /**
+     * @param file
+     *            the file to which summaries of calls which are no longer kept
+     *            are appended, or null to discard them
+     */
+    public void setSpillFile(File file) {
+        spill = file == null ? null : new RollingNdjsonWriter(file, 0L, 0);
+    }
+
+    public File getSpillFile() {
+        return spill == null ? null : spill.getFile();
+    }
+
+    @Override
+    public ApiCall get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + size);
+        return ring[(head + index) % ring.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(ApiCall call) {
+        if (maxCalls > 0 && size >= maxCalls)
+            drop(0);
+        if (size == ring.length) {
+            ApiCall grown[] = new ApiCall[ring.length * 2];
+            for (int i = 0; i < size; i++)
+                grown[i] = get(i);
+            ring = grown;
+            head = 0;
+        }
+        ring[(head + size) % ring.length] = call;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public ApiCall remove(int index) {
+        ApiCall call = get(index);
+        if (index == 0) {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        } else {
+            for (int i = index; i < size - 1; i++)
+                ring[(head + i) % ring.length] = ring[(head + i + 1)
+                        % ring.length];
+            ring[(head + size - 1) % ring.length] = null;
+        }
+        size--;
+        modCount++;
+        return call;
+    }
+
+    /**
+     * Remove all calls and reset the totals. Calls already spilled remain in
+     * the spill file.
+     */
+    @Override
+    public void clear() {
+        ring = new ApiCall[16];
+        head = 0;
+        size = 0;
+        droppedCalls = 0;
+        droppedFailures = 0;
+        modCount++;
+    }
+
+    /**
+     * @return the number of calls made, including those no longer kept
+     */
+    public int getTotalCalls() {
+        return droppedCalls + size;
+    }
+
+    /**
+     * @return the number of failed assertions in all calls, including those
+     *         no longer kept
+     */
+    public int getFailedAssertionCount() {
+        int failed = droppedFailures;
+        for (int i = 0; i < size; i++)
+            failed += get(i).getFailedAssertions().size();
+        return failed;
+    }
+
+    /**
+     * Apply the policy to a call which has completed
+     *
+     * @param call
+     *            the call
+     */
+    void completed(ApiCall call) {
+        if (dropBodies)
+            call.releaseBodies();
+        if (failedOnly && passed(call)) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (get(i) == call) {
+                    drop(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean passed(ApiCall call) {
+        return call.getFailedAssertions().isEmpty()
+                && call.getException() == null;
+    }
+
+    private void drop(int index) {
+        ApiCall call = remove(index);
+        droppedCalls++;
+        droppedFailures += call.getFailedAssertions().size();
+        if (spill != null) {
+            try {
+                spill.write(summary(call));
+            } catch (IOException e) {
+                logger.error("Could not write to " + spill.getFile() + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Summarize a call as a JSON object with the script name, method, URI,
+     * status, elapsed time, assertion counts, failed assertions and error, as
+     * written to the spill file
+     *
+     * @param call
+     *            the call
+     * @return the summary
+     */
+    public static ObjectNode summary(ApiCall call) {
+        ObjectNode c = Json.jsonNodeFactory().objectNode();
+        c.put("name", call.getScript().getName());
+        if (call.getMethod() != null)
+            c.put("method", call.getMethod().name());
+        if (call.getURI() != null)
+            c.put("uri", call.getURI());
+        c.put("status", call.getHttpStatus());
+        c.put("millis", call.getElapsedMillis());
+        c.put("passed", call.getPassedAssertions().size());
+        c.put("failed", call.getFailedAssertions().size());
+        c.put("skipped", call.getSkippedAssertions().size());
+        if (!call.getFailedAssertions().isEmpty()) {
+            ArrayNode failures = c.putArray("failures");
+            for (UnRAVLAssertion a : call.getFailedAssertions())
+                failures.add(String.valueOf(a.getAssertion()));
+        }
+        if (call.getException() != null)
+            c.put("error", call.getException().getMessage());
+        return c;
+    }
+
+    /**
+     * Read the spill file lazily, one call summary at a time. Close the
+     * returned reader when done, such as with try-with-resources:
+     *
+     * <pre>
+     * try (CallHistory.SpillReader spilled = history.readSpilled()) {
+     *     while (spilled.hasNext())
+     *         ...
+     * }
+     * </pre>
+     *
+     * @return the spilled call summaries, oldest first; empty if there is no
+     *         spill file
+     * @throws IOException
+     *             if the spill file cannot be opened
+     */
+    public SpillReader readSpilled() throws IOException {
+        File file = getSpillFile();
+        if (file == null || !file.exists())
+            return new SpillReader(null);
+        return new SpillReader(Files.newBufferedReader(file.toPath(),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Iterates over the call summaries in a spill file, which it reads one
+     * line at a time. Reading to the end closes the file, but a reader which
+     * stops early must be {@link #close() closed}.
+     */
+    public static class SpillReader implements Iterator<JsonNode>, Closeable {
+        private final BufferedReader reader;
+        private final ObjectMapper mapper = new ObjectMapper();
+        private String line;
+
+        SpillReader(BufferedReader reader) {
+            this.reader = reader;
+            line = readLine();
+        }
+
+        // the next non-empty line, or null (closing the file) at the end
+        private String readLine() {
+            if (reader == null)
+                return null;
+            try {
+                String l;
+                while ((l = reader.readLine()) != null && l.isEmpty())
+                    ;
+                if (l == null)
+                    reader.close();
+                return l;
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return line != null;
+        }
+
+        @Override
+        public JsonNode next() {
+            if (line == null)
+                throw new NoSuchElementException();
+            try {
+                return mapper.readTree(line);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            } finally {
+                line = readLine();
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            line = null;
+            if (reader != null)
+                reader.close();
+        }
+    }
+}
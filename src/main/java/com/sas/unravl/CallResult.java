@@ -0,0 +1,355 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.sas.unravl.assertions.UnRAVLAssertion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A compact, immutable summary of a completed {@link ApiCall}: the script
+ * name, method, URI template (before variables are expanded), status, the time
+ * spent in each {@link Phase}, and the assertion counts and the ids of the
+ * failed assertions. The strings are shared with the compiled script, so a
+ * result costs little more than its arrays. A {@link ResultsWriter} writes
+ * results as newline delimited JSON, which {@link #fromJson(JsonNode)} reads
+ * back.
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class CallResult {
+
+    /** The phases of running an API call, which are timed separately */
+    public enum Phase {
+        ENV, PRECONDITIONS, BODY, AUTH, HTTP, EXTRACT, ASSERT;
+
+        private final String key = name().toLowerCase(Locale.ENGLISH);
+
+        /**
+         * @return the phase's name in result records, such as "http"
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final String NO_STRINGS[] = new String[0];
+
+    private final long time;
+    private final String name;
+    private final String method;
+    private final String uri;
+    private final int status;
+    private final long phaseMicros[];
+    private final int passed;
+    private final int failed;
+    private final int skipped;
+    private final String failures[];
+    private final String error;
+
+    private CallResult(long time, String name, String method, String uri,
+            int status, long phaseMicros[], int passed, int failed,
+            int skipped, String failures[], String error) {
+        this.time = time;
+        this.name = name;
+        this.method = method;
+        this.uri = uri;
+        this.status = status;
+        this.phaseMicros = phaseMicros;
+        this.passed = passed;
+        this.failed = failed;
+        this.skipped = skipped;
+        this.failures = failures;
+        this.error = error;
+    }
+
+    /**
+     * Summarize a call
+     *
+     * @param call
+     *            a completed call
+     * @return the call's result
+     */
+    public static CallResult of(ApiCall call) {
+        long micros[] = new long[Phase.values().length];
+        for (Phase p : Phase.values())
+            micros[p.ordinal()] = call.getPhaseNanos(p) / 1000L;
+        List<UnRAVLAssertion> failedAssertions = call.getFailedAssertions();
+        String failures[] = NO_STRINGS;
+        if (!failedAssertions.isEmpty()) {
+            failures = new String[failedAssertions.size()];
+            for (int i = 0; i < failures.length; i++)
+                failures[i] = id(failedAssertions.get(i));
+        }
+        return new CallResult(call.getStartTime(), call.getScript().getName(),
+                call.getMethod() == null ? null : call.getMethod().name(), call
+                        .getScript().getURI(), call.getHttpStatus(), micros,
+                call.getPassedAssertions().size(), failedAssertions.size(),
+                call.getSkippedAssertions().size(), failures,
+                call.getException() == null ? null : call.getException()
+                        .getMessage());
+    }
+
+    // stage.keyword, such as "assert.status"
+    private static String id(UnRAVLAssertion a) {
+        String stage = a.getStage() == null ? "assert" : a.getStage()
+                .getName();
+        JsonNode assertion = a.getAssertion();
+        if (assertion == null || !assertion.isObject() || assertion.size() == 0)
+            return stage;
+        return stage + "." + assertion.fieldNames().next();
+    }
+
+    /**
+     * Read a result written by {@link #write(JsonGenerator)}
+     *
+     * @param json
+     *            the result record
+     * @return the result
+     */
+    public static CallResult fromJson(JsonNode json) {
+        long micros[] = new long[Phase.values().length];
+        JsonNode phases = json.path("phases");
+        for (Phase p : Phase.values())
+            micros[p.ordinal()] = phases.path(p.getKey()).asLong();
+        JsonNode f = json.path("failures");
+        String failures[] = f.size() == 0 ? NO_STRINGS : new String[f.size()];
+        for (int i = 0; i < failures.length; i++)
+            failures[i] = f.get(i).asText();
+        return new CallResult(json.path("time").asLong(), text(json, "name"),
+                text(json, "method"), text(json, "uri"), json.path("status")
+                        .asInt(), micros, json.path("passed").asInt(), json
+                        .path("failed").asInt(), json.path("skipped").asInt(),
+                failures, text(json, "error"));
+    }
+
+    /**
+     * Read a result written by {@link #write(JsonGenerator)} without building
+     * a tree. Unknown fields are skipped.
+     *
+     * @param p
+     *            a parser positioned at the start of the result object
+     * @return the result
+     * @throws IOException
+     *             if the result cannot be read
+     */
+    public static CallResult read(JsonParser p) throws IOException {
+        if (p.getCurrentToken() != JsonToken.START_OBJECT)
+            throw new JsonParseException(p, "Expected a result object");
+        long time = 0;
+        String name = null, method = null, uri = null, error = null;
+        int status = 0, passed = 0, failed = 0, skipped = 0;
+        long micros[] = new long[Phase.values().length];
+        String failures[] = NO_STRINGS;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            switch (field) {
+            case "time":
+                time = p.getValueAsLong();
+                break;
+            case "name":
+                name = p.getValueAsString();
+                break;
+            case "method":
+                method = p.getValueAsString();
+                break;
+            case "uri":
+                uri = p.getValueAsString();
+                break;
+            case "status":
+                status = p.getValueAsInt();
+                break;
+            case "passed":
+                passed = p.getValueAsInt();
+                break;
+            case "failed":
+                failed = p.getValueAsInt();
+                break;
+            case "skipped":
+                skipped = p.getValueAsInt();
+                break;
+            case "error":
+                error = p.getValueAsString();
+                break;
+            case "phases":
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    Phase phase = phase(p.getCurrentName());
+                    p.nextToken();
+                    if (phase != null)
+                        micros[phase.ordinal()] = p.getValueAsLong();
+                    else
+                        p.skipChildren();
+                }
+                break;
+            case "failures":
+                List<String> f = new ArrayList<String>();
+                while (p.nextToken() != JsonToken.END_ARRAY)
+                    f.add(p.getValueAsString());
+                failures = f.toArray(new String[f.size()]);
+                break;
+            default:
+                p.skipChildren();
+            }
+        }
+        return new CallResult(time, name, method, uri, status, micros,
+                passed, failed, skipped, failures, error);
+    }
+
+    private static Phase phase(String key) {
+        for (Phase p : Phase.values())
+            if (p.getKey().equals(key))
+                return p;
+        return null;
+    }
+
+    private static String text(JsonNode json, String field) {
+        JsonNode value = json.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    /**
+     * Write this result as one JSON object
+     *
+     * @param g
+     *            the generator
+     * @throws IOException
+     *             if the result cannot be written
+     */
+    public void write(JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeNumberField("time", time);
+        if (name != null)
+            g.writeStringField("name", name);
+        if (method != null)
+            g.writeStringField("method", method);
+        if (uri != null)
+            g.writeStringField("uri", uri);
+        g.writeNumberField("status", status);
+        g.writeObjectFieldStart("phases");
+        for (Phase p : Phase.values())
+            if (phaseMicros[p.ordinal()] != 0)
+                g.writeNumberField(p.getKey(), phaseMicros[p.ordinal()]);
+        g.writeEndObject();
+        g.writeNumberField("passed", passed);
+        g.writeNumberField("failed", failed);
+        g.writeNumberField("skipped", skipped);
+        if (failures.length > 0) {
+            g.writeArrayFieldStart("failures");
+            for (String f : failures)
+                g.writeString(f);
+            g.writeEndArray();
+        }
+        if (error != null)
+            g.writeStringField("error", error);
+        g.writeEndObject();
+    }
+
+    /**
+     * @return this result as a JSON tree, as {@link #write(JsonGenerator)}
+     *         writes it
+     */
+    public JsonNode toJson() {
+        ObjectMapper mapper = new ObjectMapper();
+        TokenBuffer buffer = new TokenBuffer(mapper, false);
+        try {
+            write(buffer);
+            return mapper.readTree(buffer.asParser());
+        } catch (IOException e) {
+            // a token buffer does no I/O
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return when the call started, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the HTTP method name, or null if the script made no request
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the URI, before variables were expanded
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @param phase
+     *            a phase
+     * @return the time spent in the phase, in microseconds
+     */
+    public long getMicros(Phase phase) {
+        return phaseMicros[phase.ordinal()];
+    }
+
+    /**
+     * @return the total time of all phases, in microseconds
+     */
+    public long getTotalMicros() {
+        long total = 0;
+        for (long m : phaseMicros)
+            total += m;
+        return total;
+    }
+
+    public int getPassed() {
+        return passed;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the ids (<em>stage</em>.<em>keyword</em>, such as
+     *         <code>assert.status</code>) of the failed assertions
+     */
+    public String[] getFailures() {
+        return failures.clone();
+    }
+
+    /**
+     * @return the error message, or null if the call did not fail with an
+     *         exception
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return true if no assertions failed and there was no error
+     */
+    public boolean isPassed() {
+        return failed == 0 && error == null;
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.sas.unravl.util.LayeredMap;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects a runtime's changes and delivers them to its
+ * {@link ChangeSetListener}s as {@link ChangeSet}s, on one thread shared by
+ * all runtimes, no more often than once per interval.
+ *
+ * @author David.Biesack@sas.com
+ */
+class ChangeDispatcher {
+
+    private static final Logger logger = Logger
+            .getLogger(ChangeDispatcher.class);
+
+    private static ScheduledExecutorService executor;
+
+    private final UnRAVLRuntime runtime;
+    private final long intervalMillis;
+    private final List<ChangeSetListener> listeners = new CopyOnWriteArrayList<ChangeSetListener>();
+
+    // the pending changes; guarded by this
+    private Map<String, Object> bindings = new LinkedHashMap<String, Object>();
+    private LayeredMap environment;
+    private boolean callsChanged;
+    private int callCount;
+    private Boolean cancelled;
+    private boolean scheduled;
+    private long lastDelivery;
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    ChangeDispatcher(UnRAVLRuntime runtime, long intervalMillis) {
+        this.runtime = runtime;
+        this.intervalMillis = intervalMillis;
+    }
+
+    private static synchronized ScheduledExecutorService executor() {
+        if (executor == null)
+            executor = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "unravl-changes");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        return executor;
+    }
+
+    boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    void add(ChangeSetListener listener) {
+        listeners.add(listener);
+    }
+
+    void remove(ChangeSetListener listener) {
+        listeners.remove(listener);
+    }
+
+    // called on the binding thread, which owns env. The first binding of
+    // each change set forks env (in constant time); the change set's later
+    // bindings are applied to that fork when it is delivered, so env is
+    // forked once per change set, not once per binding.
+    synchronized void bound(String name, Object value, LayeredMap env) {
+        bindings.put(name, value);
+        if (environment == null)
+            environment = env.fork();
+        schedule();
+    }
+
+    synchronized void callsChanged(int count) {
+        callsChanged = true;
+        callCount = count;
+        schedule();
+    }
+
+    synchronized void cancelled(boolean value) {
+        cancelled = Boolean.valueOf(value);
+        schedule();
+    }
+
+    // deliver the pending changes once the interval since the last delivery
+    // has passed; changes made before then join them
+    private void schedule() {
+        if (scheduled)
+            return;
+        scheduled = true;
+        long delay = lastDelivery + intervalMillis - System.currentTimeMillis();
+        executor().schedule(deliver, Math.max(0L, delay),
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver() {
+        ChangeSet changes;
+        synchronized (this) {
+            if (environment != null) {
+                // the fork is not shared, so it may be changed here
+                for (Map.Entry<String, Object> b : bindings.entrySet())
+                    if (SharedScope.sharedName(b.getKey()) == null)
+                        environment.put(b.getKey(), b.getValue());
+            }
+            changes = new ChangeSet(runtime, bindings, environment,
+                    callsChanged, callCount, cancelled);
+            bindings = new LinkedHashMap<String, Object>();
+            environment = null;
+            callsChanged = false;
+            cancelled = null;
+            scheduled = false;
+            lastDelivery = System.currentTimeMillis();
+        }
+        for (ChangeSetListener listener : listeners) {
+            try {
+                listener.changed(changes);
+            } catch (RuntimeException e) {
+                logger.error("Change listener " + listener + " failed", e);
+            }
+        }
+    }
+}
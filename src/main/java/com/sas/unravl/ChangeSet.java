@@ -0,0 +1,94 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The changes made to an {@link UnRAVLRuntime} since the last change set was
+ * delivered to its {@link ChangeSetListener}s. Several changes to one
+ * variable are coalesced into its latest value.
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class ChangeSet {
+
+    private final UnRAVLRuntime runtime;
+    private final Map<String, Object> bindings;
+    private final Map<String, Object> environment;
+    private final boolean callsChanged;
+    private final int callCount;
+    private final Boolean cancelled;
+
+    ChangeSet(UnRAVLRuntime runtime, Map<String, Object> bindings,
+            Map<String, Object> environment, boolean callsChanged,
+            int callCount, Boolean cancelled) {
+        this.runtime = runtime;
+        this.bindings = Collections.unmodifiableMap(bindings);
+        this.environment = environment == null ? null : Collections
+                .unmodifiableMap(environment);
+        this.callsChanged = callsChanged;
+        this.callCount = callCount;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return the runtime which changed
+     */
+    public UnRAVLRuntime getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * @return the variables which were bound, with their latest values, in
+     *         the order they were first bound
+     */
+    public Map<String, Object> getBindings() {
+        return bindings;
+    }
+
+    /**
+     * Return all of the runtime's variables, as they were when the last
+     * variable in this change set was bound. The copy is forked on the thread
+     * which bound the first variable of the change set, and the change set's
+     * other bindings are applied to it, so listeners may read it while the
+     * runtime keeps running; {@link UnRAVLRuntime#getBindings()} may not be
+     * read then. Variables unbound during the change set may still appear.
+     *
+     * @return a snapshot of the runtime's bindings, or null if no variables
+     *         were bound
+     */
+    public Map<String, Object> getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * @return true if API calls were added, or the calls were cleared
+     */
+    public boolean isCallsChanged() {
+        return callsChanged;
+    }
+
+    /**
+     * @return the number of API calls in the runtime when the last change to
+     *         the calls was made
+     */
+    public int getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * @return the latest cancelled state if the runtime was cancelled or
+     *         reset, else null
+     */
+    public Boolean getCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeSet[bindings=" + bindings.keySet() + ", callsChanged="
+                + callsChanged + ", callCount=" + callCount + ", cancelled="
+                + cancelled + "]";
+    }
+}
@@ -0,0 +1,24 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+/**
+ * Receives the changes to an {@link UnRAVLRuntime} in batches. Unlike
+ * <code>PropertyChangeListener</code>s, which the runtime calls for each
+ * change on the thread running the script, these listeners are called on a
+ * separate thread, at most once per interval (see
+ * {@link UnRAVLRuntime#CHANGE_INTERVAL_PROPERTY}), so they do not slow the
+ * script down.
+ *
+ * @see UnRAVLRuntime#addChangeSetListener(ChangeSetListener)
+ * @author David.Biesack@sas.com
+ */
+public interface ChangeSetListener {
+
+    /**
+     * Called with the changes since the previous call
+     *
+     * @param changes
+     *            the coalesced changes
+     */
+    void changed(ChangeSet changes);
+}
@@ -1,12 +1,18 @@
 package com.sas.unravl;
 
+import com.sas.unravl.auth.AuthSessionStore;
 import com.sas.unravl.ui.UnRAVLFrame;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.ConnectException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The main command-line interface for running {@link UnRAVL} scripts. You can
@@ -52,29 +58,154 @@ public final class Main {
      */
     public static void main(String argv[]) {
         argv = preProcessArgs(argv);
+        if (stopDaemon || submit) {
+            // thin client: do not initialize UnRAVL in this process
+            try {
+                if (stopDaemon) {
+                    UnRAVLDaemon.stopDaemon();
+                    System.exit(0);
+                }
+                System.exit(UnRAVLDaemon.submit(argv, System.out));
+            } catch (ConnectException e) {
+                if (stopDaemon) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+                System.err.println("UnRAVL daemon is not running ("
+                        + e.getMessage() + "); running scripts locally.");
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
         rerouteStdoutStderr(); // do this before starting Log4J!
         configureLog4j();
         UnRAVLRuntime.configure();
-        if (ui) {
+        if (analyze) {
+            List<File> files = new ArrayList<File>();
+            for (String arg : argv)
+                files.add(new File(arg));
+            System.exit(new ResultsAnalyzer().report(files, compareFiles,
+                    System.out));
+        } else if (monitor) {
+            final UnRAVLMonitor m = UnRAVLMonitor.fromSystemProperties(argv)
+                    .start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    m.stop();
+                }
+            });
+            try {
+                m.awaitStop();
+            } catch (InterruptedException e) {
+                m.stop();
+            }
+            System.exit(0);
+        } else if (watch) {
+            UnRAVLWatcher w = new UnRAVLWatcher(argv);
+            try {
+                w.watch();
+                System.exit(0);
+            } catch (IOException e) {
+                System.err.println("Could not watch script files: "
+                        + e.getMessage());
+                System.exit(1);
+            }
+        } else if (agent) {
+            try {
+                UnRAVLAgent a = new UnRAVLAgent().start();
+                System.out.println("UnRAVL agent listening on "
+                        + a.getAddress());
+                if (System.getProperty(UnRAVLAgent.TOKEN_PROPERTY) == null)
+                    System.out.println("-D" + UnRAVLAgent.TOKEN_PROPERTY + "="
+                            + a.getToken());
+                a.awaitStop();
+                System.exit(0);
+            } catch (Exception e) {
+                System.err.println("Could not run UnRAVL agent: "
+                        + e.getMessage());
+                System.exit(1);
+            }
+        } else if (coordinate != null) {
+            System.exit(UnRAVLCoordinator.coordinate(coordinate, argv,
+                    System.out));
+        } else if (daemon) {
+            try {
+                UnRAVLDaemon d = new UnRAVLDaemon().start();
+                d.awaitStop();
+                System.exit(0);
+            } catch (Exception e) {
+                System.err.println("Could not run UnRAVL daemon: "
+                        + e.getMessage());
+                System.exit(1);
+            }
+        } else if (ui) {
             javax.swing.JFrame frame = UnRAVLFrame.main(redirectOutput);
             frame.setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
+        } else if (mergeResults != null) {
+            List<File> files = new ArrayList<File>();
+            for (String arg : argv)
+                files.add(new File(arg));
+            int rc = new ResultsAnalyzer().merge(files,
+                    new File(mergeResults), System.out);
+            ScriptDurations durations = ScriptDurations.fromSystemProperties();
+            if (durations != null) {
+                try {
+                    durations.mergeShards();
+                } catch (IOException e) {
+                    System.err.println("Could not merge script durations into "
+                            + durations.getFile() + ": " + e.getMessage());
+                    rc = 1;
+                }
+            }
+            System.exit(rc);
         } else {
-            int rc = new Main().run(argv);
+            int rc;
+            try (ResultsWriter results = resultsFile == null ? null
+                    : new ResultsWriter(new File(resultsFile))) {
+                UnRAVLRuntime runtime = new UnRAVLRuntime();
+                runtime.setResultsWriter(results);
+                if (parallel > 1 || shard != null)
+                    rc = new Main().runScheduled(runtime, argv, shard,
+                            parallel);
+                else
+                    rc = new Main().run(runtime, argv);
+            } catch (IOException e) {
+                System.err.println("Could not write results to " + resultsFile
+                        + ": " + e.getMessage());
+                rc = 1;
+            }
             System.exit(rc);
         }
     }
 
     static boolean ui = false;
     static boolean redirectOutput = true;
+    static boolean daemon = false;
+    static boolean submit = false;
+    static boolean stopDaemon = false;
+    static boolean monitor = false;
+    static boolean watch = false;
+    static String resultsFile = null;
+    static boolean analyze = false;
+    static List<File> compareFiles = new ArrayList<File>();
+    static int parallel = 1;
+    static String shard = null;
+    static String mergeResults = null;
+    static boolean agent = false;
+    static String coordinate = null;
 
-    // Scan for --v | -verbose | -q | --quiet | --stdout and set the log4j configuration
+    // Scan for --v | -verbose | -q | --quiet | --stdout | --sessions | --daemon | --submit | --stop-daemon | --monitor | --watch | --results file | --analyze | --compare file
+    // | --parallel n | --shard i/n | --durations file | --merge-results file | --agent | --coordinate agents and set the log4j configuration
     // remove those args from the arg list and return the remainder
     // Print help and exit on -h | --help options.
     private static String[] preProcessArgs(String[] argv) {
         ArrayList<String> args = new ArrayList<String>();
         String log4j = null;
         ui = true;
-        for (String arg : argv) {
+        for (int i = 0; i < argv.length; i++) {
+            String arg = argv[i];
             if (arg.trim().length() == 0) // Ignore "" on command line
                 continue;
             else if (arg.matches("^--?h(elp)?"))
@@ -85,6 +216,54 @@ public final class Main {
                 log4j = "log4j-trace.properties";
             else if (arg.matches("^--?stdout"))
                 redirectOutput = false;
+            else if (arg.matches("^--?sessions"))
+                System.setProperty(AuthSessionStore.ENABLED_PROPERTY, "true");
+            else if (arg.matches("^--?daemon")) {
+                daemon = true;
+                ui = false;
+            } else if (arg.matches("^--?monitor"))
+                monitor = true;
+            else if (arg.matches("^--?watch"))
+                watch = true;
+            else if (arg.matches("^--?results") && i + 1 < argv.length)
+                resultsFile = argv[++i];
+            else if (arg.matches("^--?analyze")) {
+                analyze = true;
+                ui = false;
+            } else if (arg.matches("^--?compare") && i + 1 < argv.length)
+                compareFiles.add(new File(argv[++i]));
+            else if (arg.matches("^--?parallel") && i + 1 < argv.length) {
+                String n = argv[++i];
+                try {
+                    parallel = Integer.parseInt(n.trim());
+                } catch (NumberFormatException e) {
+                    parallel = 0;
+                }
+                if (parallel < 1) {
+                    System.err.println("Invalid --parallel " + n
+                            + "; expected a number of scripts, such as 4");
+                    System.exit(1);
+                }
+            }
+            else if (arg.matches("^--?shard") && i + 1 < argv.length)
+                shard = argv[++i];
+            else if (arg.matches("^--?durations") && i + 1 < argv.length)
+                System.setProperty(ScriptDurations.DURATIONS_PROPERTY,
+                        argv[++i]);
+            else if (arg.matches("^--?merge-results") && i + 1 < argv.length) {
+                mergeResults = argv[++i];
+                ui = false;
+            } else if (arg.matches("^--?agent")) {
+                agent = true;
+                ui = false;
+            } else if (arg.matches("^--?coordinate") && i + 1 < argv.length)
+                coordinate = argv[++i];
+            else if (arg.matches("^--?submit"))
+                submit = true;
+            else if (arg.matches("^--?stop-daemon")) {
+                stopDaemon = true;
+                ui = false;
+            }
             else {
                 args.add(arg);
                 ui = false;
@@ -101,7 +280,17 @@ public final class Main {
         System.out.println("");
         System.out.println("Synopsis:");
         System.out.println("");
-        System.out.println("    unravl.sh [-q|--quiet|-v|--verbose|-h|--help] <script-file>");
+        System.out.println("    unravl.sh [-q|--quiet|-v|--verbose|-h|--help|--sessions] [--results <file>] <script-file>");
+        System.out.println("    unravl.sh [-q|--quiet|-v|--verbose|--sessions] --daemon");
+        System.out.println("    unravl.sh --submit <script-file>");
+        System.out.println("    unravl.sh --stop-daemon");
+        System.out.println("    unravl.sh [--parallel <n>] [--shard <i>/<n>] [--durations <file>] [--results <file>] <script-file>");
+        System.out.println("    unravl.sh [--durations <file>] --merge-results <merged-results-file> <results-file>");
+        System.out.println("    unravl.sh --analyze [--compare <baseline-results-file>] <results-file>");
+        System.out.println("    unravl.sh [-q|--quiet|-v|--verbose|--sessions] --agent");
+        System.out.println("    unravl.sh --coordinate <host:port>,... <script-file>");
+        System.out.println("    unravl.sh [-q|--quiet|-v|--verbose|--sessions] --monitor <script-file>");
+        System.out.println("    unravl.sh [-q|--quiet|-v|--verbose|--sessions] --watch <script-file>");
         System.out.println("");
         System.out.println("Examples:");
         System.out.println("");
@@ -113,6 +302,30 @@ public final class Main {
         System.out.println("   -v | --verbose : increase the logging level.");
         System.out.println("   -h | --help : Display this message and exit.");
         System.out.println("   --stdout : In interactive mode, write output to the standard output, not the Output panel.");
+        System.out.println("   --sessions : Save OAuth2 tokens and CAS tickets in ~/.unravl for reuse by later runs.");
+        System.out.println("   --daemon : Keep running, and run scripts sent by --submit on this machine.");
+        System.out.println("   --submit : Run the scripts in the running daemon, or locally if there is none.");
+        System.out.println("   --stop-daemon : Stop the running daemon.");
+        System.out.println("   --monitor : Run each <script-file> every unravl.monitor.interval seconds (default 60)");
+        System.out.println("               and append the results to unravl-monitor.ndjson.");
+        System.out.println("   --watch : Run each <script-file>, then run it again when it or the files it uses change.");
+        System.out.println("   --results <file> : Append a one line JSON result for each API call to <file>.");
+        System.out.println("   --parallel <n> : Run each <script-file> in its own copy of the environment, <n> at a time,");
+        System.out.println("               longest first (see --durations).");
+        System.out.println("   --shard <i>/<n> : Run only shard <i> (1 to <n>) of the <script-file>s, which are split into");
+        System.out.println("               <n> shards of about equal expected duration. Each runs in its own environment.");
+        System.out.println("   --durations <file> : Keep the history of script durations used by --parallel and --shard in <file>.");
+        System.out.println("   --merge-results <file> : Combine the --results files <results-file> of shards into <file>,");
+        System.out.println("               print a summary, and exit with status 1 if any call failed. With --durations,");
+        System.out.println("               also merge the shards' script durations into the history.");
+        System.out.println("   --analyze : Print latency percentiles, error rates, the slowest calls and throughput");
+        System.out.println("               of the --results files <results-file>.");
+        System.out.println("   --compare <file> : With --analyze, flag scripts and endpoints which are significantly");
+        System.out.println("               slower than in the baseline results <file>.");
+        System.out.println("   --agent : Keep running, and generate load directed by a --coordinate process.");
+        System.out.println("   --coordinate <host:port>,... : Run the <script-file>s as a load test on the --agent");
+        System.out.println("               processes at <host:port>,..., started together, and print the merged");
+        System.out.println("               latency percentiles, error rates and throughput.");
         System.out.println("");
         System.out.println("If you do not specify any <script-file> options, start UnRAVL in");
         System.out.println("interactive mode, from which you can edit and execute scripts.");
@@ -129,25 +342,59 @@ public final class Main {
     private static RedirectedOutputStream err;
 
     /**
-     * An OutputStream that proxies to a PrintStream, allowing dynamic redirection
+     * An OutputStream that proxies to a PrintStream, allowing dynamic redirection.
+     * A thread may also redirect its own output, such as a daemon job's output
+     * to its client.
      */
     public static class RedirectedOutputStream extends OutputStream {
 
         private PrintStream original;
+        private final ThreadLocal<OutputStream> threadStream = new ThreadLocal<OutputStream>();
+
         public void redirect(PrintStream ps) {
             original = ps;
         }
+
+        /**
+         * Redirect the current thread's output
+         * 
+         * @param os
+         *            where to write this thread's output, or null to restore
+         *            the shared stream
+         */
+        public void redirectThread(OutputStream os) {
+            if (os == null)
+                threadStream.remove();
+            else
+                threadStream.set(os);
+        }
+
         public RedirectedOutputStream(PrintStream original) {
             this.original = original;
         }
 
         @Override
         public void write(int byt) throws IOException {
-            original.write(byt);
+            OutputStream os = threadStream.get();
+            if (os != null)
+                os.write(byt);
+            else
+                original.write(byt);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream os = threadStream.get();
+            if (os != null)
+                os.write(b, off, len);
+            else
+                original.write(b, off, len);
         }
     }
     
-    private static void rerouteStdoutStderr() {
+    static synchronized void rerouteStdoutStderr() {
+        if (out != null)
+            return;
         out = new RedirectedOutputStream(System.out);
         System.setOut(new PrintStream(out));
         err = new RedirectedOutputStream(System.err);
@@ -162,6 +409,18 @@ public final class Main {
         err.redirect(os);
     }
 
+    /**
+     * Redirect the current thread's standard output and error
+     * 
+     * @param os
+     *            where to write, or null to restore the shared streams
+     */
+    public static void setThreadOut(OutputStream os) {
+        rerouteStdoutStderr();
+        out.redirectThread(os);
+        err.redirectThread(os);
+    }
+
     private static void configureLog4j() {
         if (System.getProperty("log4j.configuration") == null) {
             try {
@@ -179,7 +438,67 @@ public final class Main {
     }
 
     public int run(String argv[]) {
-        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        return run(new UnRAVLRuntime(), argv);
+    }
+
+    /**
+     * Run script files, each in its own fork of a runtime, longest first,
+     * using the duration history named by the
+     * {@link ScriptDurations#DURATIONS_PROPERTY} system property
+     *
+     * @param initial
+     *            the runtime each script's runtime is forked from
+     * @param argv
+     *            script files or URLs
+     * @param shard
+     *            if not null, run only this shard (<em>i</em>/<em>N</em>) of
+     *            the scripts
+     * @param workers
+     *            the number of scripts to run at once
+     * @return the exit status: 0 if all assertions passed
+     */
+    public int runScheduled(final UnRAVLRuntime initial, String argv[],
+            String shard, int workers) {
+        ScriptScheduler scheduler = new ScriptScheduler(
+                ScriptDurations.fromSystemProperties());
+        List<String> files = Arrays.asList(argv);
+        if (shard != null) {
+            try {
+                files = scheduler.shard(files, shard);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return 1;
+            }
+        }
+        final AtomicInteger failed = new AtomicInteger();
+        List<Throwable> failures = scheduler.run(files, workers,
+                new ScriptScheduler.Task() {
+                    @Override
+                    public void run(String scriptFile) throws Exception {
+                        UnRAVLRuntime runtime = new UnRAVLRuntime(initial);
+                        try {
+                            runtime.execute(new String[] { scriptFile });
+                        } finally {
+                            failed.addAndGet(runtime.report());
+                        }
+                    }
+                });
+        for (Throwable t : failures)
+            System.err.println(t.getMessage());
+        int rc = failed.get();
+        return rc != 0 || failures.isEmpty() ? rc : 1;
+    }
+
+    /**
+     * Run scripts in a runtime and report the results
+     * 
+     * @param runtime
+     *            the runtime
+     * @param argv
+     *            script files or URLs
+     * @return the exit status: 0 if all assertions passed
+     */
+    public int run(UnRAVLRuntime runtime, String argv[]) {
         try {
             return runtime.execute(argv).report();
         } catch (UnRAVLException e) {
@@ -0,0 +1,158 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.sas.unravl.annotations.UnRAVLStatelessPlugin;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+
+/**
+ * Creates the plugin instances which run script elements, such as assertions
+ * and extractors. {@link UnRAVLPlugins#getFactory(Class)} returns the factory
+ * for a plugin class; {@link UnRAVLPlugins#setFactory(Class, PluginFactory)}
+ * replaces it, for example to create plugins with a dependency injection
+ * framework.
+ * <p>
+ * The default factory for a class calls its no-argument constructor through a
+ * {@link MethodHandle}, which is looked up once. A class annotated with
+ * {@link UnRAVLStatelessPlugin} is instantiated once and the instance is
+ * shared.
+ *
+ * @param <T>
+ *            the plugin type
+ * @author David.Biesack@sas.com
+ */
+public abstract class PluginFactory<T> {
+
+    /**
+     * @return a plugin instance
+     * @throws UnRAVLException
+     *             if the plugin cannot be created
+     */
+    public abstract T newInstance() throws UnRAVLException;
+
+    /**
+     * @return true if {@link #newInstance()} returns one instance which is
+     *         shared by all uses. The caller must not call its setters.
+     */
+    public boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Return the default factory for a plugin class
+     *
+     * @param pluginClass
+     *            the plugin class
+     * @param <T>
+     *            the plugin type
+     * @return a factory which shares one instance if the class is annotated
+     *         with {@link UnRAVLStatelessPlugin}, else a factory which calls
+     *         the class's no-argument constructor
+     */
+    public static <T> PluginFactory<T> forClass(Class<T> pluginClass) {
+        PluginFactory<T> constructor = new ConstructorFactory<T>(pluginClass);
+        if (pluginClass.isAnnotationPresent(UnRAVLStatelessPlugin.class))
+            return new SharedFactory<T>(constructor);
+        return constructor;
+    }
+
+    /**
+     * Return a factory which always returns the same instance
+     *
+     * @param instance
+     *            a thread-safe plugin instance
+     * @param <T>
+     *            the plugin type
+     * @return the factory
+     */
+    public static <T> PluginFactory<T> shared(final T instance) {
+        return new PluginFactory<T>() {
+            @Override
+            public T newInstance() {
+                return instance;
+            }
+
+            @Override
+            public boolean isShared() {
+                return true;
+            }
+        };
+    }
+
+    private static final class ConstructorFactory<T> extends PluginFactory<T> {
+        private final Class<T> pluginClass;
+        private volatile MethodHandle constructor;
+
+        ConstructorFactory(Class<T> pluginClass) {
+            this.pluginClass = pluginClass;
+        }
+
+        // Look up the constructor on first use, so that errors are reported
+        // when the plugin is used, as they were by Class.newInstance()
+        private MethodHandle constructor() throws UnRAVLException {
+            MethodHandle c = constructor;
+            if (c == null) {
+                if (Modifier.isAbstract(pluginClass.getModifiers()))
+                    throw new UnRAVLException(
+                            "Could not instantiate abstract plugin "
+                                    + pluginClass.getName());
+                try {
+                    Constructor<T> ctor = pluginClass.getDeclaredConstructor();
+                    ctor.setAccessible(true);
+                    c = MethodHandles.lookup().unreflectConstructor(ctor)
+                            .asType(MethodType.methodType(Object.class));
+                } catch (NoSuchMethodException | IllegalAccessException
+                        | SecurityException e) {
+                    throw new UnRAVLException("Could not instantiate plugin "
+                            + pluginClass.getName(), e);
+                }
+                constructor = c;
+            }
+            return c;
+        }
+
+        @Override
+        public T newInstance() throws UnRAVLException {
+            MethodHandle c = constructor();
+            try {
+                return pluginClass.cast(c.invokeExact());
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new UnRAVLException("Could not instantiate plugin "
+                        + pluginClass.getName(), e);
+            }
+        }
+    }
+
+    private static final class SharedFactory<T> extends PluginFactory<T> {
+        private final PluginFactory<T> factory;
+        private volatile T instance;
+
+        SharedFactory(PluginFactory<T> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public T newInstance() throws UnRAVLException {
+            T i = instance;
+            if (i == null) {
+                synchronized (this) {
+                    i = instance;
+                    if (i == null)
+                        instance = i = factory.newInstance();
+                }
+            }
+            return i;
+        }
+
+        @Override
+        public boolean isShared() {
+            return true;
+        }
+    }
+}
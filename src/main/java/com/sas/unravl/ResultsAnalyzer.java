@@ -0,0 +1,269 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.sas.unravl.util.Json;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Analyzes the result files written by {@link ResultsWriter} (see
+ * <code>--results</code>) into a {@link RunAnalysis}. Each file is split into
+ * chunks at line boundaries; the chunks are memory mapped and parsed in
+ * parallel, each into its own analysis, and the analyses are merged. Lines
+ * which are not results are skipped.
+ * <p>
+ * Run <code>unravl.sh --analyze <var>results-file</var>...</code> to print a
+ * report, and add <code>--compare <var>baseline-file</var></code> to flag
+ * scripts and endpoints which are significantly slower than in the baseline.
+ * The system properties {@link #THREADS_PROPERTY},
+ * {@link #INTERVAL_PROPERTY}, {@link #ALPHA_PROPERTY} and
+ * {@link #EFFECT_PROPERTY} configure the analysis.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ResultsAnalyzer {
+
+    /** System property: the number of parsing threads; default, one per CPU */
+    public static final String THREADS_PROPERTY = "unravl.analyze.threads";
+
+    /** System property: the throughput interval in seconds; default 60 */
+    public static final String INTERVAL_PROPERTY = "unravl.analyze.interval";
+
+    /** System property: the significance level of comparisons; default 0.01 */
+    public static final String ALPHA_PROPERTY = "unravl.analyze.alpha";
+
+    /**
+     * System property: the smallest relative increase in mean latency which
+     * is flagged as a regression; default 0.05 (5%)
+     */
+    public static final String EFFECT_PROPERTY = "unravl.analyze.effect";
+
+    // no chunk is mapped larger than this (a mapping must be under 2GB)
+    private static final long MAX_CHUNK = 256L * 1024 * 1024;
+    private static final long MIN_CHUNK = 1024L * 1024;
+
+    private static final Logger logger = Logger
+            .getLogger(ResultsAnalyzer.class);
+
+    private final int threads;
+    private final long intervalMillis;
+
+    /**
+     * Create an analyzer configured by system properties
+     */
+    public ResultsAnalyzer() {
+        this(Integer.getInteger(THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors()).intValue(), Long
+                .getLong(INTERVAL_PROPERTY, 60L).longValue() * 1000L);
+    }
+
+    /**
+     * @param threads
+     *            the number of parsing threads
+     * @param intervalMillis
+     *            the length of throughput intervals
+     */
+    public ResultsAnalyzer(int threads, long intervalMillis) {
+        this.threads = Math.max(1, threads);
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Analyze result files
+     *
+     * @param files
+     *            NDJSON result files
+     * @return the merged analysis of all the files
+     * @throws IOException
+     *             if a file cannot be read
+     */
+    public RunAnalysis analyze(List<File> files) throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        long totalBytes = 0;
+        for (File f : files)
+            totalBytes += f.length();
+        long target = Math.min(MAX_CHUNK,
+                Math.max(MIN_CHUNK, totalBytes / (threads * 4L) + 1));
+        for (File f : files)
+            split(f, target, chunks);
+
+        RunAnalysis analysis = new RunAnalysis(intervalMillis);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                threads, Math.max(1, chunks.size())));
+        try {
+            List<Future<RunAnalysis>> parts = executor.invokeAll(chunks);
+            for (Future<RunAnalysis> part : parts)
+                analysis.merge(part.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Analysis was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return analysis;
+    }
+
+    // split a file into chunks of about the target size, which end at the
+    // end of a line
+    private void split(File file, long target, List<Chunk> chunks)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            long start = 0;
+            while (start < length) {
+                long end = Math.min(length, start + target);
+                if (end < length) {
+                    raf.seek(end);
+                    int b;
+                    while ((b = raf.read()) != -1 && b != '\n')
+                        ;
+                    end = raf.getFilePointer();
+                }
+                if (end - start > Integer.MAX_VALUE)
+                    throw new IOException(file + " has a line longer than 2GB");
+                chunks.add(new Chunk(file, start, end - start));
+                start = end;
+            }
+        }
+    }
+
+    private class Chunk implements Callable<RunAnalysis> {
+        final File file;
+        final long start;
+        final long length;
+
+        Chunk(File file, long start, long length) {
+            this.file = file;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public RunAnalysis call() throws IOException {
+            RunAnalysis analysis = new RunAnalysis(intervalMillis);
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    FileChannel channel = raf.getChannel()) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        length);
+            }
+            int skipped = 0;
+            try (JsonParser p = Json.jsonFactory().createParser(
+                    new ByteBufferBackedInputStream(buffer))) {
+                JsonToken t;
+                while ((t = p.nextToken()) != null) {
+                    if (t == JsonToken.START_OBJECT)
+                        analysis.add(CallResult.read(p));
+                    else {
+                        p.skipChildren();
+                        skipped++;
+                    }
+                }
+            }
+            if (skipped > 0)
+                logger.warn("Skipped " + skipped + " values in " + file
+                        + " which are not results");
+            return analysis;
+        }
+    }
+
+    /**
+     * Combine the result files of the shards of a run into one file and print
+     * an analysis of it
+     *
+     * @param files
+     *            the shards' result files
+     * @param merged
+     *            the file to write; replaced if it exists
+     * @param out
+     *            where to print the report
+     * @return 0, or 1 if any call failed or a file cannot be read or written
+     */
+    public int merge(List<File> files, File merged, PrintStream out) {
+        try {
+            try (OutputStream o = new BufferedOutputStream(
+                    new FileOutputStream(merged))) {
+                for (File f : files) {
+                    long length = f.length();
+                    Files.copy(f.toPath(), o);
+                    if (length > 0 && lastByte(f) != '\n')
+                        o.write('\n');
+                }
+            }
+            RunAnalysis analysis = analyze(Collections.singletonList(merged));
+            analysis.print(out);
+            return analysis.getTotal().getErrors() > 0 ? 1 : 0;
+        } catch (IOException e) {
+            System.err.println("Could not merge results: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private static int lastByte(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(raf.length() - 1);
+            return raf.read();
+        }
+    }
+
+    /**
+     * Print an analysis of result files, and compare it with baseline files
+     *
+     * @param files
+     *            result files
+     * @param baselineFiles
+     *            baseline result files; if empty, there is no comparison
+     * @param out
+     *            where to print the report
+     * @return 0, or 1 if a script or endpoint is significantly slower than in
+     *         the baseline or a file cannot be read
+     */
+    public int report(List<File> files, List<File> baselineFiles,
+            PrintStream out) {
+        try {
+            long started = System.currentTimeMillis();
+            RunAnalysis analysis = analyze(files);
+            logger.info("Analyzed " + files + " in "
+                    + (System.currentTimeMillis() - started) + "ms");
+            analysis.print(out);
+            if (baselineFiles.isEmpty())
+                return 0;
+            RunAnalysis baseline = analyze(baselineFiles);
+            double alpha = Double.parseDouble(System.getProperty(
+                    ALPHA_PROPERTY, "0.01"));
+            double effect = Double.parseDouble(System.getProperty(
+                    EFFECT_PROPERTY,
+                    String.valueOf(RunAnalysis.DEFAULT_EFFECT)));
+            return analysis.compare(baseline, alpha, effect, out) > 0 ? 1 : 0;
+        } catch (IOException e) {
+            System.err.println("Could not analyze results: " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.sas.unravl.util.Json;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes {@link CallResult}s as newline delimited JSON, one result per line,
+ * on a background thread, so that running scripts does not wait for the
+ * output. Results wait in a bounded queue; when the queue is full,
+ * {@link #write(CallResult)} blocks until the writer catches up, so memory use
+ * stays bounded however fast calls complete. The writer thread takes results
+ * in batches and flushes once per batch.
+ * <p>
+ * Writers are thread-safe; runtimes forked from one runtime share its writer.
+ * Call {@link #close()} to write the remaining results.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ResultsWriter implements Closeable {
+
+    /** The default number of results which may wait to be written */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final int BATCH_SIZE = 512;
+
+    private static final Logger logger = Logger.getLogger(ResultsWriter.class);
+
+    private final BlockingQueue<CallResult> queue;
+    private final OutputStream out;
+    private final JsonGenerator generator;
+    private final Thread thread;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+    // set once close() has written the last results
+    private volatile boolean finished;
+    // set if the output fails; used by the writer thread, then close()
+    private boolean failed;
+
+    /**
+     * Create a writer which appends to a file
+     *
+     * @param file
+     *            the results file
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public ResultsWriter(File file) throws IOException {
+        this(new FileOutputStream(file, true), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a writer
+     *
+     * @param out
+     *            where to write results; closed by {@link #close()}
+     * @param capacity
+     *            the number of results which may wait to be written
+     * @throws IOException
+     *             if the output cannot be used
+     */
+    public ResultsWriter(OutputStream out, int capacity) throws IOException {
+        this.out = out;
+        queue = new ArrayBlockingQueue<CallResult>(capacity);
+        generator = Json.jsonFactory().createGenerator(
+                new BufferedOutputStream(out, 64 * 1024));
+        // separate results with newlines instead of spaces
+        generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "unravl-results");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a result to be written, waiting if the queue is full. A result
+     * written while the writer is being closed is written if it is queued
+     * before the last results are written, else it is counted as dropped.
+     *
+     * @param result
+     *            the result
+     * @throws IllegalStateException
+     *             if the writer was closed before this call
+     */
+    public void write(CallResult result) {
+        if (closed)
+            throw new IllegalStateException("Results writer is closed");
+        try {
+            while (!queue.offer(result, 100, TimeUnit.MILLISECONDS)) {
+                if (finished) {
+                    // nothing will take from the queue any more
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            dropped.incrementAndGet();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // close() may have taken the last results before this one arrived
+        if (closed) {
+            synchronized (this) {
+                if (finished && queue.remove(result))
+                    dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the number of results written
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of results which were not written, because the
+     *         calling thread was interrupted while waiting for space, the
+     *         writer was closed while they were being queued, or the output
+     *         failed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        List<CallResult> batch = new ArrayList<CallResult>(BATCH_SIZE);
+        try {
+            while (!(closed && queue.isEmpty())) {
+                CallResult first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                write(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // write and clear a batch; after the output fails, count it as dropped
+    private void write(List<CallResult> batch) {
+        if (!failed) {
+            try {
+                for (CallResult result : batch)
+                    result.write(generator);
+                generator.flush();
+                written.addAndGet(batch.size());
+            } catch (IOException e) {
+                logger.error("Could not write results: " + e.getMessage());
+                failed = true;
+            }
+        }
+        if (failed)
+            dropped.addAndGet(batch.size());
+        batch.clear();
+    }
+
+    /**
+     * Write the queued results and close the output
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // results queued by writes which raced with closing
+        List<CallResult> rest = new ArrayList<CallResult>();
+        queue.drainTo(rest);
+        write(rest);
+        finished = true;
+        try {
+            if (written.get() > 0)
+                generator.writeRaw('\n');
+            generator.close();
+        } finally {
+            out.close();
+        }
+    }
+}
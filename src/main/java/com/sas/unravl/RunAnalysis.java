@@ -0,0 +1,457 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.LatencyHistogram;
+import com.sas.unravl.util.Statistics;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Aggregate statistics of the {@link CallResult}s of a run: latency
+ * histograms and error counts per script and per endpoint (method and URI
+ * template), the slowest calls, and the number of calls per time interval.
+ * Latency is the time of the {@link CallResult.Phase#HTTP HTTP} phase, the
+ * time the endpoint took to respond; the time the script spent in its other
+ * phases, such as Groovy assertions and extractors, is reported separately.
+ * Analyses of parts of a run can be merged, which is how
+ * {@link ResultsAnalyzer} analyzes large result files in parallel.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class RunAnalysis {
+
+    /** The number of slowest calls kept */
+    public static final int SLOWEST = 10;
+    /** The default smallest relative slowdown flagged by comparisons */
+    public static final double DEFAULT_EFFECT = 0.05;
+
+    /** Statistics of a group of calls */
+    public static class Group {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long errors;
+        private long totalMicros;
+
+        void add(CallResult result) {
+            latency.record(result.getMicros(CallResult.Phase.HTTP));
+            totalMicros += result.getTotalMicros();
+            if (!result.isPassed())
+                errors++;
+        }
+
+        void merge(Group other) {
+            latency.merge(other.latency);
+            errors += other.errors;
+            totalMicros += other.totalMicros;
+        }
+
+        ObjectNode toJson() {
+            ObjectNode json = Json.jsonNodeFactory().objectNode();
+            json.put("errors", errors);
+            json.put("totalMicros", totalMicros);
+            json.set("latency", latency.toJson());
+            return json;
+        }
+
+        static Group fromJson(JsonNode json) {
+            Group g = new Group();
+            g.errors = json.path("errors").asLong();
+            g.totalMicros = json.path("totalMicros").asLong();
+            g.latency.merge(LatencyHistogram.fromJson(json.path("latency")));
+            return g;
+        }
+
+        /**
+         * @return the histogram of call latencies (the time of the HTTP
+         *         phase), in microseconds
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the mean time of the whole call, including environment,
+         *         extractors and assertions, in microseconds
+         */
+        public double getMeanTotalMicros() {
+            return getCalls() == 0 ? 0.0 : (double) totalMicros / getCalls();
+        }
+
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        /**
+         * @return the number of calls with failed assertions or errors
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getErrorRate() {
+            return getCalls() == 0 ? 0.0 : (double) errors / getCalls();
+        }
+    }
+
+    private static final Comparator<CallResult> FASTEST_FIRST = new Comparator<CallResult>() {
+        @Override
+        public int compare(CallResult a, CallResult b) {
+            return Long.compare(a.getMicros(CallResult.Phase.HTTP),
+                    b.getMicros(CallResult.Phase.HTTP));
+        }
+    };
+
+    private final long intervalMillis;
+    private final Group total = new Group();
+    private final Map<String, Group> scripts = new HashMap<String, Group>();
+    private final Map<String, Group> endpoints = new HashMap<String, Group>();
+    private final PriorityQueue<CallResult> slowest = new PriorityQueue<CallResult>(
+            SLOWEST + 1, FASTEST_FIRST);
+    private final Map<Long, long[]> throughput = new HashMap<Long, long[]>();
+    private long first = Long.MAX_VALUE;
+    private long last = Long.MIN_VALUE;
+
+    /**
+     * @param intervalMillis
+     *            the length of the intervals over which calls are counted
+     */
+    public RunAnalysis(long intervalMillis) {
+        this.intervalMillis = Math.max(1L, intervalMillis);
+    }
+
+    /**
+     * Count a result
+     *
+     * @param result
+     *            a call's result
+     */
+    public void add(CallResult result) {
+        total.add(result);
+        group(scripts, String.valueOf(result.getName())).add(result);
+        if (result.getUri() != null)
+            group(endpoints, endpoint(result)).add(result);
+        offer(result);
+        long time = result.getTime();
+        first = Math.min(first, time);
+        last = Math.max(last, time);
+        long counts[] = interval(time);
+        counts[0]++;
+        if (!result.isPassed())
+            counts[1]++;
+    }
+
+    /**
+     * Add the statistics of another analysis with the same interval to this
+     * one
+     *
+     * @param other
+     *            another analysis, which is not changed
+     * @return this analysis
+     */
+    public RunAnalysis merge(RunAnalysis other) {
+        total.merge(other.total);
+        for (Map.Entry<String, Group> e : other.scripts.entrySet())
+            group(scripts, e.getKey()).merge(e.getValue());
+        for (Map.Entry<String, Group> e : other.endpoints.entrySet())
+            group(endpoints, e.getKey()).merge(e.getValue());
+        for (CallResult r : other.slowest)
+            offer(r);
+        for (Map.Entry<Long, long[]> e : other.throughput.entrySet()) {
+            long counts[] = interval(e.getKey().longValue());
+            counts[0] += e.getValue()[0];
+            counts[1] += e.getValue()[1];
+        }
+        first = Math.min(first, other.first);
+        last = Math.max(last, other.last);
+        return this;
+    }
+
+    /**
+     * @return this analysis as JSON, which {@link #fromJson(JsonNode)} reads;
+     *         used to send analyses between processes
+     */
+    public ObjectNode toJson() {
+        ObjectNode json = Json.jsonNodeFactory().objectNode();
+        json.put("interval", intervalMillis);
+        json.set("total", total.toJson());
+        ObjectNode s = json.putObject("scripts");
+        for (Map.Entry<String, Group> e : scripts.entrySet())
+            s.set(e.getKey(), e.getValue().toJson());
+        ObjectNode ep = json.putObject("endpoints");
+        for (Map.Entry<String, Group> e : endpoints.entrySet())
+            ep.set(e.getKey(), e.getValue().toJson());
+        ArrayNode slow = json.putArray("slowest");
+        for (CallResult r : slowest)
+            slow.add(r.toJson());
+        ArrayNode t = json.putArray("throughput");
+        for (Map.Entry<Long, long[]> e : throughput.entrySet())
+            t.addArray().add(e.getKey().longValue()).add(e.getValue()[0])
+                    .add(e.getValue()[1]);
+        if (total.getCalls() > 0) {
+            json.put("first", first);
+            json.put("last", last);
+        }
+        return json;
+    }
+
+    /**
+     * @param json
+     *            an analysis written by {@link #toJson()}
+     * @return the analysis
+     */
+    public static RunAnalysis fromJson(JsonNode json) {
+        RunAnalysis a = new RunAnalysis(json.path("interval").asLong(1000L));
+        a.total.merge(Group.fromJson(json.path("total")));
+        groupsFromJson(json.path("scripts"), a.scripts);
+        groupsFromJson(json.path("endpoints"), a.endpoints);
+        for (JsonNode r : json.path("slowest"))
+            a.offer(CallResult.fromJson(r));
+        for (JsonNode t : json.path("throughput")) {
+            long counts[] = a.interval(t.path(0).asLong());
+            counts[0] += t.path(1).asLong();
+            counts[1] += t.path(2).asLong();
+        }
+        if (json.has("first")) {
+            a.first = json.path("first").asLong();
+            a.last = json.path("last").asLong();
+        }
+        return a;
+    }
+
+    private static void groupsFromJson(JsonNode json, Map<String, Group> groups) {
+        for (Iterator<Map.Entry<String, JsonNode>> i = json.fields(); i
+                .hasNext();) {
+            Map.Entry<String, JsonNode> e = i.next();
+            groups.put(e.getKey(), Group.fromJson(e.getValue()));
+        }
+    }
+
+    private static String endpoint(CallResult result) {
+        return result.getMethod() == null ? result.getUri() : result
+                .getMethod() + " " + result.getUri();
+    }
+
+    private static Group group(Map<String, Group> groups, String key) {
+        Group g = groups.get(key);
+        if (g == null) {
+            g = new Group();
+            groups.put(key, g);
+        }
+        return g;
+    }
+
+    private void offer(CallResult result) {
+        slowest.add(result);
+        if (slowest.size() > SLOWEST)
+            slowest.poll();
+    }
+
+    private long[] interval(long time) {
+        Long start = Long.valueOf(time
+                - ((time % intervalMillis) + intervalMillis) % intervalMillis);
+        long counts[] = throughput.get(start);
+        if (counts == null) {
+            counts = new long[2];
+            throughput.put(start, counts);
+        }
+        return counts;
+    }
+
+    public Group getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the statistics of each script, by script name
+     */
+    public Map<String, Group> getScripts() {
+        return Collections.unmodifiableMap(new TreeMap<String, Group>(scripts));
+    }
+
+    /**
+     * @return the statistics of each endpoint, by method and URI template
+     */
+    public Map<String, Group> getEndpoints() {
+        return Collections.unmodifiableMap(new TreeMap<String, Group>(
+                endpoints));
+    }
+
+    /**
+     * @return the calls with the slowest HTTP phase, slowest first
+     */
+    public List<CallResult> getSlowest() {
+        List<CallResult> list = new ArrayList<CallResult>(slowest);
+        Collections.sort(list, Collections.reverseOrder(FASTEST_FIRST));
+        return list;
+    }
+
+    /**
+     * @return the number of calls and of failed calls (the two elements of
+     *         each array) in each interval, by the start time of the interval
+     */
+    public Map<Long, long[]> getThroughput() {
+        return Collections.unmodifiableMap(new TreeMap<Long, long[]>(
+                throughput));
+    }
+
+    /**
+     * @return the average number of calls per second, from the start of the
+     *         first call to the start of the last
+     */
+    public double getCallsPerSecond() {
+        if (total.getCalls() < 2 || last <= first)
+            return 0.0;
+        return (total.getCalls() - 1) * 1000.0 / (last - first);
+    }
+
+    /**
+     * Print a report of this analysis
+     *
+     * @param out
+     *            where to print the report
+     */
+    public void print(PrintStream out) {
+        SimpleDateFormat iso = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        out.format("%d calls, %d failed (%.2f%%)", total.getCalls(),
+                total.getErrors(), 100.0 * total.getErrorRate());
+        if (total.getCalls() > 0)
+            out.format(", %s to %s, %.1f calls/s", iso.format(new Date(first)),
+                    iso.format(new Date(last)), getCallsPerSecond());
+        out.println();
+        out.println();
+        printGroups(out, "Script", Collections.singletonMap("(all)", total));
+        printGroups(out, "Script", getScripts());
+        printGroups(out, "Endpoint", getEndpoints());
+
+        out.println("Slowest calls (HTTP ms, total ms):");
+        for (CallResult r : getSlowest())
+            out.format("  %10.1f %10.1f  %s  %s%s%n",
+                    r.getMicros(CallResult.Phase.HTTP) / 1000.0,
+                    r.getTotalMicros() / 1000.0,
+                    iso.format(new Date(r.getTime())), r.getName(),
+                    r.getUri() == null ? "" : "  " + endpoint(r));
+        out.println();
+
+        out.format("Throughput (%d s intervals):%n", intervalMillis / 1000L);
+        for (Map.Entry<Long, long[]> e : getThroughput().entrySet())
+            out.format("  %s  %8d calls  %6d failed%n",
+                    iso.format(new Date(e.getKey().longValue())),
+                    e.getValue()[0], e.getValue()[1]);
+        out.println();
+    }
+
+    private static void printGroups(PrintStream out, String title,
+            Map<String, Group> groups) {
+        if (groups.isEmpty())
+            return;
+        out.format("%8s %7s %9s %9s %9s %9s %9s %9s  %s%n", "calls",
+                "errors", "mean ms", "p50", "p90", "p99", "max", "total ms",
+                title);
+        for (Map.Entry<String, Group> e : groups.entrySet()) {
+            Group g = e.getValue();
+            LatencyHistogram h = g.getLatency();
+            out.format(
+                    "%8d %6.2f%% %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f  %s%n",
+                    g.getCalls(), 100.0 * g.getErrorRate(),
+                    h.getMean() / 1000.0, h.getPercentile(50) / 1000.0,
+                    h.getPercentile(90) / 1000.0,
+                    h.getPercentile(99) / 1000.0, h.getMax() / 1000.0,
+                    g.getMeanTotalMicros() / 1000.0, e.getKey());
+        }
+        out.println();
+    }
+
+    /**
+     * Compare the latencies of this run with those of a baseline run, flagging
+     * mean latencies which are significantly and at least 5% slower
+     *
+     * @param baseline
+     *            the baseline run
+     * @param alpha
+     *            the significance level, such as 0.01
+     * @param out
+     *            where to print the comparison
+     * @return the number of scripts and endpoints which are slower than in
+     *         the baseline
+     * @see #compare(RunAnalysis, double, double, PrintStream)
+     */
+    public int compare(RunAnalysis baseline, double alpha, PrintStream out) {
+        return compare(baseline, alpha, DEFAULT_EFFECT, out);
+    }
+
+    /**
+     * Compare the latencies of this run with those of a baseline run, by
+     * script and by endpoint, and print the comparison. With many calls, even
+     * a tiny change in the mean is statistically significant, so a script or
+     * endpoint is flagged only if its mean latency is significantly slower
+     * (by Welch's t-test) <em>and</em> slower by at least the minimum effect.
+     *
+     * @param baseline
+     *            the baseline run
+     * @param alpha
+     *            the significance level, such as 0.01
+     * @param effect
+     *            the smallest relative increase in the mean which is flagged,
+     *            such as 0.05 for 5%
+     * @param out
+     *            where to print the comparison
+     * @return the number of scripts and endpoints which are slower than in
+     *         the baseline
+     */
+    public int compare(RunAnalysis baseline, double alpha, double effect,
+            PrintStream out) {
+        out.format(
+                "Compared with the baseline (Welch's t-test, alpha %s, minimum change %s%%):%n%n",
+                alpha, 100.0 * effect);
+        int regressions = compare("Script", baseline.scripts, getScripts(),
+                alpha, effect, out);
+        regressions += compare("Endpoint", baseline.endpoints, getEndpoints(),
+                alpha, effect, out);
+        out.format("%d significant regression%s%n", regressions,
+                regressions == 1 ? "" : "s");
+        return regressions;
+    }
+
+    private static int compare(String title, Map<String, Group> baseline,
+            Map<String, Group> current, double alpha, double effect,
+            PrintStream out) {
+        int regressions = 0;
+        out.format("%11s %11s %8s %10s  %-10s %s%n", "base mean", "mean",
+                "change", "p", "", title);
+        for (Map.Entry<String, Group> e : current.entrySet()) {
+            Group base = baseline.get(e.getKey());
+            if (base == null)
+                continue;
+            LatencyHistogram b = base.getLatency();
+            LatencyHistogram c = e.getValue().getLatency();
+            double p = Statistics.welchGreater(b, c);
+            double change = b.getMean() == 0.0 ? 0.0 : (c.getMean() - b
+                    .getMean()) / b.getMean();
+            boolean regressed = p < alpha && change >= effect;
+            if (regressed)
+                regressions++;
+            out.format("%8.1f ms %8.1f ms %+7.1f%% %10.3g  %-10s %s%n",
+                    b.getMean() / 1000.0, c.getMean() / 1000.0,
+                    100.0 * change, p, regressed ? "SLOWER" : "", e.getKey());
+        }
+        out.println();
+        return regressions;
+    }
+}
@@ -0,0 +1,297 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.util.Json;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A history of how long each script file takes to run, which
+ * {@link ScriptScheduler} uses to order and shard scripts. Each script's
+ * expected duration is an exponentially weighted moving average of its run
+ * times, so it follows gradual changes without being thrown off by one slow
+ * run. Scripts are identified by their path, relative to the current
+ * directory when they are under it, so that histories can be shared by
+ * machines which check out the scripts in different places.
+ * <p>
+ * The history is kept in a JSON file. {@link #save()} merges this history's
+ * new entries into the file under a file lock, so several processes (such as
+ * several runs on one machine) may update the same file. The shards of a
+ * suite must all be assigned from the same history, so a shard does not
+ * update it: {@link #saveShard(int, int)} writes the shard's durations to a
+ * file of its own, and {@link #mergeShards()} folds those files into the
+ * history once the whole suite has run. Histories are thread-safe.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ScriptDurations {
+
+    /** System property: the duration history file; if unset, none is kept */
+    public static final String DURATIONS_PROPERTY = "unravl.durations";
+
+    /** The weight of the latest run in the moving average */
+    public static final double WEIGHT = 0.3;
+
+    private static final Logger logger = Logger
+            .getLogger(ScriptDurations.class);
+
+    private static class Entry {
+        final double millis;
+        final int runs;
+        final long updated;
+
+        Entry(double millis, int runs, long updated) {
+            this.millis = millis;
+            this.runs = runs;
+            this.updated = updated;
+        }
+    }
+
+    // shard files are named history-file.shard-i-of-N
+    private static final String SHARD_SUFFIX = ".shard-";
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Set<String> changed = new HashSet<String>();
+
+    /**
+     * Load a history
+     *
+     * @param file
+     *            the history file, which need not exist yet
+     * @throws IOException
+     *             if the file exists but cannot be read
+     */
+    public ScriptDurations(File file) throws IOException {
+        this.file = file;
+        entries.putAll(read(file));
+    }
+
+    /**
+     * @return the history named by the {@link #DURATIONS_PROPERTY} system
+     *         property, or null if the property is not set or the history
+     *         cannot be read
+     */
+    public static ScriptDurations fromSystemProperties() {
+        String name = System.getProperty(DURATIONS_PROPERTY);
+        if (name == null)
+            return null;
+        try {
+            return new ScriptDurations(new File(name));
+        } catch (IOException e) {
+            logger.error("Could not read script durations from " + name
+                    + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param index
+     *            the shard, from 1 to count
+     * @param count
+     *            the number of shards
+     * @return the file where {@link #saveShard(int, int)} saves the durations
+     *         of that shard
+     */
+    public File getShardFile(int index, int count) {
+        return new File(file.getPath() + SHARD_SUFFIX + index + "-of-" + count);
+    }
+
+    /**
+     * @param scriptFile
+     *            a script file name or URL
+     * @return the key which identifies the script in the history
+     */
+    public static String key(String scriptFile) {
+        if (scriptFile.matches("^[a-zA-Z][a-zA-Z0-9+.-]+:.*")
+                && !new File(scriptFile).exists())
+            return scriptFile; // a URL
+        Path path = new File(scriptFile).getAbsoluteFile().toPath()
+                .normalize();
+        Path cwd = new File("").getAbsoluteFile().toPath();
+        if (path.startsWith(cwd))
+            path = cwd.relativize(path);
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @param scriptFile
+     *            a script file name or URL
+     * @return the expected duration of the script, in milliseconds, or -1 if
+     *         it has not run
+     */
+    public synchronized double getExpectedMillis(String scriptFile) {
+        Entry e = entries.get(key(scriptFile));
+        return e == null ? -1.0 : e.millis;
+    }
+
+    /**
+     * @return the number of scripts in the history
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Record a run of a script
+     *
+     * @param scriptFile
+     *            a script file name or URL
+     * @param millis
+     *            how long the script took
+     */
+    public synchronized void record(String scriptFile, long millis) {
+        String key = key(scriptFile);
+        Entry e = entries.get(key);
+        entries.put(key, e == null ? new Entry(millis, 1,
+                System.currentTimeMillis()) : new Entry(WEIGHT * millis
+                + (1.0 - WEIGHT) * e.millis, e.runs + 1,
+                System.currentTimeMillis()));
+        changed.add(key);
+    }
+
+    /**
+     * Merge the scripts recorded since the last save into the history file.
+     * Where the file has a more recent entry for a script (saved by another
+     * process), that entry is kept.
+     *
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        if (!changed.isEmpty())
+            entries.putAll(save(file));
+    }
+
+    /**
+     * Merge the scripts recorded since the last save into the file of one
+     * shard of a suite, {@link #getShardFile(int, int)}, leaving the history
+     * file itself unchanged so that later shards of the suite are assigned
+     * from the same history
+     *
+     * @param index
+     *            the shard, from 1 to count
+     * @param count
+     *            the number of shards
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public synchronized void saveShard(int index, int count)
+            throws IOException {
+        if (!changed.isEmpty())
+            save(getShardFile(index, count));
+    }
+
+    /**
+     * Merge the files saved by {@link #saveShard(int, int)} into the history
+     * file, keeping the most recent entry for each script, and delete them
+     *
+     * @return the number of shard files merged
+     * @throws IOException
+     *             if a shard file cannot be read or the history file cannot
+     *             be written
+     */
+    public synchronized int mergeShards() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        final String prefix = file.getName() + SHARD_SUFFIX;
+        File shards[] = dir == null ? null : dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                String name = f.getName();
+                return f.isFile() && name.startsWith(prefix)
+                        && !name.endsWith(".lock") && !name.endsWith(".tmp");
+            }
+        });
+        if (shards == null || shards.length == 0)
+            return 0;
+        for (File shard : shards) {
+            for (Map.Entry<String, Entry> e : read(shard).entrySet()) {
+                Entry mine = entries.get(e.getKey());
+                if (mine == null || mine.updated <= e.getValue().updated) {
+                    entries.put(e.getKey(), e.getValue());
+                    changed.add(e.getKey());
+                }
+            }
+        }
+        save();
+        for (File shard : shards) {
+            Files.deleteIfExists(shard.toPath());
+            Files.deleteIfExists(new File(shard.getPath() + ".lock").toPath());
+        }
+        return shards.length;
+    }
+
+    // merge the changed entries into a file and return its merged entries
+    private Map<String, Entry> save(File target) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        if (dir != null)
+            dir.mkdirs();
+        File lockFile = new File(target.getPath() + ".lock");
+        try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+                FileChannel channel = raf.getChannel();
+                FileLock lock = channel.lock()) {
+            Map<String, Entry> merged = read(target);
+            for (String key : changed) {
+                Entry mine = entries.get(key);
+                Entry theirs = merged.get(key);
+                if (theirs == null || theirs.updated <= mine.updated)
+                    merged.put(key, mine);
+            }
+            ObjectNode scripts = Json.jsonNodeFactory().objectNode();
+            for (Map.Entry<String, Entry> e : new TreeMap<String, Entry>(
+                    merged).entrySet()) {
+                ObjectNode s = scripts.putObject(e.getKey());
+                s.put("millis", Math.round(e.getValue().millis * 10.0) / 10.0);
+                s.put("runs", e.getValue().runs);
+                s.put("updated", e.getValue().updated);
+            }
+            ObjectNode root = Json.jsonNodeFactory().objectNode();
+            root.set("scripts", scripts);
+            File tmp = new File(target.getPath() + ".tmp");
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(
+                    tmp, root);
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            changed.clear();
+            return merged;
+        }
+    }
+
+    private static Map<String, Entry> read(File file) throws IOException {
+        Map<String, Entry> read = new HashMap<String, Entry>();
+        if (!file.exists() || file.length() == 0)
+            return read;
+        JsonNode scripts = new ObjectMapper().readTree(file).path("scripts");
+        for (Iterator<Map.Entry<String, JsonNode>> i = scripts.fields(); i
+                .hasNext();) {
+            Map.Entry<String, JsonNode> e = i.next();
+            JsonNode s = e.getValue();
+            read.put(e.getKey(), new Entry(s.path("millis").asDouble(), s
+                    .path("runs").asInt(1), s.path("updated").asLong()));
+        }
+        return read;
+    }
+}
@@ -0,0 +1,643 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.assertions.UnRAVLAssertion;
+import com.sas.unravl.assertions.UnRAVLAssertion.Stage;
+import com.sas.unravl.auth.UnRAVLAuth;
+import com.sas.unravl.extractors.UnRAVLExtractor;
+import com.sas.unravl.generators.JsonRequestBodyGenerator;
+import com.sas.unravl.generators.UnRAVLRequestBodyGenerator;
+import com.sas.unravl.util.Json;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.apache.log4j.Logger;
+
+/**
+ * The compiled form of one UnRAVL script object. Compiling a script finds its
+ * name, template name, HTTP method and URI, and request headers; converts its
+ * constant "env" values; normalizes its "auth", "body", "bind", "preconditions"
+ * and "assert" elements; and looks up their plugin classes and factories.
+ * Running the script again, in this or another runtime, then does not
+ * interpret its JSON again.
+ * <p>
+ * Plans are immutable and are shared by all {@link UnRAVL} instances created
+ * from the same JSON node with the same {@link UnRAVLPlugins} (see
+ * {@link UnRAVLPlugins#plan(ObjectNode)}), so the node must not be modified
+ * after it is compiled. A plan describes only its own script object; templates
+ * are found by name when the script runs.
+ * <p>
+ * Errors in the parts of a script that are only used when it runs, such as an
+ * invalid assertion, are reported when that part is used, as before.
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class ScriptPlan {
+
+    private static final Logger logger = Logger.getLogger(ScriptPlan.class);
+
+    private static final String TEMPLATE_KEY = "template";
+    private static final String NAME_KEY = "name";
+    private static final String JSON_GENERATOR_KEY = "json";
+
+    private static final Map<String, Method> METHODS = new HashMap<String, Method>();
+    static {
+        for (Method m : Method.values())
+            METHODS.put(m.name(), m);
+    }
+
+    /**
+     * One normalized element of a "bind", "preconditions" or "assert" list,
+     * and the plugin class which implements it.
+     *
+     * @param <T>
+     *            the plugin type
+     */
+    public static final class Step<T> {
+        private final JsonNode node;
+        private final ObjectNode scriptlet;
+        private final String keyword;
+        private final Class<? extends T> pluginClass;
+        private final PluginFactory<? extends T> factory;
+        private final String error;
+
+        private Step(JsonNode node, ObjectNode scriptlet, String keyword,
+                Class<? extends T> pluginClass, UnRAVLPlugins plugins,
+                String error) {
+            this.node = node;
+            this.scriptlet = scriptlet;
+            this.keyword = keyword;
+            this.pluginClass = pluginClass;
+            this.factory = pluginClass == null ? null : plugins
+                    .getFactory(pluginClass);
+            this.error = error;
+        }
+
+        /**
+         * @return true if this step is a bare script language expression, such
+         *         as the assertion <code>"x == 1"</code>
+         */
+        public boolean isExpression() {
+            return node.isTextual();
+        }
+
+        /**
+         * @param language
+         *            the runtime's script language, used for expressions
+         * @return the plugin keyword, such as "status" or "json"
+         */
+        public String getKeyword(String language) {
+            return isExpression() ? language : keyword;
+        }
+
+        /**
+         * @param language
+         *            the runtime's script language, used for expressions
+         * @return the step as an object, such as
+         *         <code>{ "groovy" : "x == 1" }</code>
+         * @throws UnRAVLException
+         *             if the step is not valid
+         */
+        public ObjectNode getScriptlet(String language) throws UnRAVLException {
+            if (isExpression()) {
+                ObjectNode o = new ObjectNode(JsonNodeFactory.instance);
+                o.set(language, node);
+                return o;
+            }
+            if (error != null)
+                throw new UnRAVLException(error);
+            return scriptlet;
+        }
+
+        /**
+         * @return the plugin class registered for the keyword, or null if there
+         *         is none or if this step is an expression, whose plugin
+         *         depends on the runtime's script language
+         */
+        public Class<? extends T> getPluginClass() {
+            return pluginClass;
+        }
+
+        /**
+         * @return the factory for {@link #getPluginClass()}, or null
+         */
+        public PluginFactory<? extends T> getFactory() {
+            return factory;
+        }
+    }
+
+    /** One "env" binding */
+    public static final class Variable {
+        private final String name;
+        private final JsonNode node;
+        private final Object value;
+        private final boolean constant;
+
+        private Variable(String name, JsonNode node, Object value,
+                boolean constant) {
+            this.name = name;
+            this.node = node;
+            this.value = value;
+            this.constant = constant;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the unexpanded JSON value
+         */
+        public JsonNode getNode() {
+            return node;
+        }
+
+        /**
+         * @return true if {@link #getValue()} needs no variable expansion
+         */
+        public boolean isConstant() {
+            return constant;
+        }
+
+        /**
+         * @return the value to bind, if {@link #isConstant()}
+         */
+        public Object getValue() {
+            return value;
+        }
+    }
+
+    private final ObjectNode root;
+    private final String name;
+    private final String templateName;
+    private final Method method;
+    private final String uri;
+    private final List<Header> headers;
+    private final List<Variable> env;
+    private final String envError;
+    private final JsonNode condition;
+    private final JsonNode auth;
+    private final ObjectNode authSpec;
+    private final Class<? extends UnRAVLAuth> authClass;
+    private final PluginFactory<? extends UnRAVLAuth> authFactory;
+    private final JsonNode body;
+    private final ObjectNode bodySpec;
+    private final Class<? extends UnRAVLRequestBodyGenerator> bodyGenerator;
+    private final PluginFactory<? extends UnRAVLRequestBodyGenerator> bodyFactory;
+    private final byte textBody[];
+    private final List<Step<UnRAVLExtractor>> extractors;
+    private final String extractorsError;
+    private final Map<Stage, List<Step<UnRAVLAssertion>>> assertions = new EnumMap<Stage, List<Step<UnRAVLAssertion>>>(
+            Stage.class);
+    private final Map<Stage, String> assertionErrors = new EnumMap<Stage, String>(
+            Stage.class);
+    private final ObjectNode statusAssertion;
+
+    /**
+     * Compile a script. Use {@link UnRAVLPlugins#plan(ObjectNode)} to share
+     * plans.
+     *
+     * @param script
+     *            the script object
+     * @param plugins
+     *            the plugins used to find assertion, extractor, body generator
+     *            and authentication classes
+     * @throws UnRAVLException
+     *             if the script's name, template or method is invalid
+     */
+    public ScriptPlan(ObjectNode script, UnRAVLPlugins plugins)
+            throws UnRAVLException {
+        this(script, plugins, plugins.getRegistry());
+    }
+
+    // compile with one snapshot of the plugins, so that a concurrent
+    // registration cannot leave the plan half old and half new
+    ScriptPlan(ObjectNode script, UnRAVLPlugins plugins,
+            UnRAVLPlugins.Registry registry) throws UnRAVLException {
+        this.root = script;
+
+        JsonNode nameNode = script.get(NAME_KEY);
+        name = nameNode == null ? null : nameNode.textValue();
+
+        JsonNode tempNode = script.get(TEMPLATE_KEY);
+        if (tempNode != null) {
+            if (tempNode.isArray())
+                throw new UnRAVLException(
+                        "array template values are not yet supported.");
+            if (!tempNode.isTextual())
+                throw new UnRAVLException("template value must be a text node.");
+            templateName = tempNode.textValue();
+        } else
+            templateName = null;
+
+        Map.Entry<String, JsonNode> m = findMethod(script);
+        method = m == null ? null : METHODS.get(m.getKey().toUpperCase());
+        uri = m == null ? null : m.getValue().textValue();
+        headers = defineHeaders(script.get("headers"));
+
+        List<Variable> vars = null;
+        String error = null;
+        try {
+            vars = defineEnv(script.get("env"));
+        } catch (UnRAVLException e) {
+            error = e.getMessage();
+        }
+        env = vars;
+        envError = error;
+
+        condition = script.get("if");
+
+        auth = script.get("auth");
+        if (auth != null && !auth.isBoolean()) {
+            // "auth" : "basic" is short for "auth" : { "basic" : true }
+            ObjectNode spec = null;
+            if (auth.isTextual()) {
+                spec = Json.jsonNodeFactory().objectNode();
+                spec.put(auth.textValue(), true);
+            } else if (auth.isObject())
+                spec = (ObjectNode) auth;
+            authSpec = spec;
+            authClass = spec == null || spec.size() == 0 ? null : registry.auth
+                    .get(Json.firstFieldName(spec));
+        } else {
+            authSpec = null;
+            authClass = null;
+        }
+        authFactory = authClass == null ? null : plugins.getFactory(authClass);
+
+        JsonNode b = script.get("body");
+        body = b == null || b.isNull() ? null : b;
+        ObjectNode spec = null;
+        Class<? extends UnRAVLRequestBodyGenerator> generator = null;
+        byte text[] = null;
+        if (body != null) {
+            if (body.isObject() && body.size() > 0) {
+                generator = registry.requestBodyGenerators.get(Json
+                        .firstFieldName(body));
+                spec = (ObjectNode) body;
+            }
+            if (generator == null || body.isArray() || body.isTextual()) {
+                spec = new ObjectNode(JsonNodeFactory.instance);
+                spec.set(JSON_GENERATOR_KEY, body);
+                generator = JsonRequestBodyGenerator.class;
+            }
+            if (body.isTextual() && constant(body.textValue())
+                    && !body.textValue().trim()
+                            .startsWith(UnRAVL.REDIRECT_PREFIX))
+                text = utf8(body.textValue());
+        }
+        bodySpec = spec;
+        bodyGenerator = generator;
+        bodyFactory = generator == null ? null : plugins.getFactory(generator);
+        textBody = text;
+
+        List<Step<UnRAVLExtractor>> steps = null;
+        error = null;
+        try {
+            steps = defineExtractors(script.get("bind"), plugins,
+                    registry);
+        } catch (UnRAVLException e) {
+            error = e.getMessage();
+        }
+        extractors = steps;
+        extractorsError = error;
+
+        for (Stage stage : Stage.values()) {
+            try {
+                assertions.put(
+                        stage,
+                        defineAssertions(script.get(stage.getName()), stage,
+                                plugins, registry));
+            } catch (UnRAVLException e) {
+                assertionErrors.put(stage, e.getMessage());
+            }
+        }
+        statusAssertion = findStatusAssertion();
+    }
+
+    private static boolean constant(String text) {
+        return text.indexOf('{') == -1 || text.indexOf('}') == -1;
+    }
+
+    private static byte[] utf8(String text) throws UnRAVLException {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new UnRAVLException(
+                    "Could not encode string using UTF-8 for body " + text);
+        }
+    }
+
+    // Look for a "GET", "HEAD" or other method name in this script; the
+    // last one found is used
+    private static Map.Entry<String, JsonNode> findMethod(ObjectNode script)
+            throws UnRAVLException {
+        Map.Entry<String, JsonNode> found = null;
+        for (Map.Entry<String, JsonNode> f : Json.fields(script)) {
+            Method m = METHODS.get(f.getKey().toUpperCase());
+            if (m == null)
+                continue;
+            JsonNode node = f.getValue();
+            if (found != null) {
+                logger.warn(String
+                        .format("Warning: HTTP method %s found but method already defined as %s %s",
+                                m, found.getKey().toUpperCase(), found
+                                        .getValue().textValue()));
+            }
+            if (!node.isTextual())
+                throw new UnRAVLException(String.format(
+                        "URI for method %s must be a string; found %s instead.",
+                        m, node));
+            found = f;
+        }
+        return found;
+    }
+
+    private static List<Header> defineHeaders(JsonNode headersNode)
+            throws UnRAVLException {
+        if (headersNode == null)
+            return Collections.emptyList();
+        List<Header> headers = new ArrayList<Header>();
+        for (Map.Entry<String, JsonNode> h : Json.fields(headersNode)) {
+            // Headers are expanded in ApiCall when the script runs, after
+            // "env" is evaluated.
+            headers.add(new BasicHeader(h.getKey(), h.getValue().asText()));
+        }
+        return Collections.unmodifiableList(headers);
+    }
+
+    // Scalars are bound as Java scalar types; JSON arrays and objects
+    // are bound as JsonNode objects
+    private static List<Variable> defineEnv(JsonNode envNode)
+            throws UnRAVLException {
+        if (envNode == null)
+            return Collections.emptyList();
+        List<Variable> vars = new ArrayList<Variable>();
+        for (Map.Entry<String, JsonNode> e : Json.fields(envNode)) {
+            String name = e.getKey();
+            JsonNode n = e.getValue();
+            if (!n.isValueNode()) {
+                vars.add(new Variable(name, n, null, false));
+                continue;
+            }
+            JsonToken t = n.asToken();
+            switch (t) {
+            case VALUE_FALSE:
+                vars.add(new Variable(name, n, Boolean.FALSE, true));
+                break;
+            case VALUE_TRUE:
+                vars.add(new Variable(name, n, Boolean.TRUE, true));
+                break;
+            case VALUE_NULL:
+                vars.add(new Variable(name, n, null, true));
+                break;
+            case VALUE_NUMBER_FLOAT:
+                vars.add(new Variable(name, n, new Double(n.toString()), true));
+                break;
+            case VALUE_NUMBER_INT:
+                vars.add(new Variable(name, n, new Long(n.toString()), true));
+                break;
+            case VALUE_STRING:
+                vars.add(new Variable(name, n, n.textValue(), constant(n
+                        .textValue())));
+                break;
+            default:
+                vars.add(new Variable(name, n, n, true));
+                break;
+            }
+        }
+        return Collections.unmodifiableList(vars);
+    }
+
+    private static List<Step<UnRAVLExtractor>> defineExtractors(
+            JsonNode bind, UnRAVLPlugins plugins,
+            UnRAVLPlugins.Registry registry) throws UnRAVLException {
+        if (bind == null)
+            return Collections.emptyList();
+        if (bind.isObject())
+            bind = Json.wrapInArray(bind);
+        List<Step<UnRAVLExtractor>> steps = new ArrayList<Step<UnRAVLExtractor>>();
+        for (JsonNode j : Json.array(bind)) {
+            if (!j.isObject() || j.size() == 0) {
+                steps.add(new Step<UnRAVLExtractor>(j, null, null, null,
+                        plugins, "expected object when found " + j));
+                continue;
+            }
+            String key = Json.firstFieldName(j);
+            steps.add(new Step<UnRAVLExtractor>(j, (ObjectNode) j, key,
+                    registry.extractors.get(key), plugins, null));
+        }
+        return Collections.unmodifiableList(steps);
+    }
+
+    private static List<Step<UnRAVLAssertion>> defineAssertions(
+            JsonNode node, Stage stage, UnRAVLPlugins plugins,
+            UnRAVLPlugins.Registry registry) throws UnRAVLException {
+        ArrayNode array = ApiCall.assertionArray(node, stage);
+        if (array == null)
+            return Collections.emptyList();
+        List<Step<UnRAVLAssertion>> steps = new ArrayList<Step<UnRAVLAssertion>>();
+        for (JsonNode s : array) {
+            if (s.isTextual())
+                steps.add(new Step<UnRAVLAssertion>(s, null, null, null,
+                        plugins, null));
+            else if (!s.isObject() || s.size() == 0)
+                steps.add(new Step<UnRAVLAssertion>(s, null, null, null,
+                        plugins, "expected object when found " + s));
+            else {
+                String key = Json.firstFieldName(s);
+                steps.add(new Step<UnRAVLAssertion>(s, (ObjectNode) s, key,
+                        registry.assertions.get(key), plugins, null));
+            }
+        }
+        return Collections.unmodifiableList(steps);
+    }
+
+    private ObjectNode findStatusAssertion() {
+        List<Step<UnRAVLAssertion>> steps = assertions.get(Stage.ASSERT);
+        if (steps != null)
+            for (Step<UnRAVLAssertion> step : steps)
+                if ("status".equals(step.keyword))
+                    return step.scriptlet;
+        return null;
+    }
+
+    /**
+     * @return the script object this plan was compiled from
+     */
+    public ObjectNode getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the script's "name", or null
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the script's "template" value, before variable expansion, or
+     *         null
+     */
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    /**
+     * @return the script's own HTTP method, or null if it has none
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the URI for {@link #getMethod()}, before variable expansion
+     */
+    public String getURI() {
+        return uri;
+    }
+
+    /**
+     * @return the script's own "headers", before variable expansion
+     */
+    public List<Header> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the script's "env" bindings, in order
+     * @throws UnRAVLException
+     *             if "env" is not an object
+     */
+    public List<Variable> getEnv() throws UnRAVLException {
+        if (envError != null)
+            throw new UnRAVLException(envError);
+        return env;
+    }
+
+    /**
+     * @return the "if" condition, or null
+     */
+    public JsonNode getCondition() {
+        return condition;
+    }
+
+    /**
+     * @return the "auth" value, or null
+     */
+    public JsonNode getAuth() {
+        return auth;
+    }
+
+    /**
+     * @return the "auth" value as an object, such as
+     *         <code>{ "basic" : true }</code>, or null if "auth" is absent,
+     *         boolean or invalid
+     */
+    public ObjectNode getAuthSpec() {
+        return authSpec;
+    }
+
+    /**
+     * @return the authentication plugin class for {@link #getAuthSpec()}, or
+     *         null
+     */
+    public Class<? extends UnRAVLAuth> getAuthClass() {
+        return authClass;
+    }
+
+    /**
+     * @return the factory for {@link #getAuthClass()}, or null
+     */
+    public PluginFactory<? extends UnRAVLAuth> getAuthFactory() {
+        return authFactory;
+    }
+
+    /**
+     * @return the "body" value, or null if absent or null
+     */
+    public JsonNode getBody() {
+        return body;
+    }
+
+    /**
+     * @return the body as a body generator specification, such as
+     *         <code>{ "json" : <em>body</em> }</code>
+     */
+    public ObjectNode getBodySpec() {
+        return bodySpec;
+    }
+
+    /**
+     * @return the body generator class for {@link #getBodySpec()}
+     */
+    public Class<? extends UnRAVLRequestBodyGenerator> getBodyGenerator() {
+        return bodyGenerator;
+    }
+
+    /**
+     * @return the factory for {@link #getBodyGenerator()}
+     */
+    public PluginFactory<? extends UnRAVLRequestBodyGenerator> getBodyFactory() {
+        return bodyFactory;
+    }
+
+    /**
+     * @return the UTF-8 encoding of a text body which needs no variable
+     *         expansion, or null. A text body may also name a variable which
+     *         holds JSON; that must be checked when the script runs.
+     */
+    public byte[] getTextBody() {
+        return textBody;
+    }
+
+    /**
+     * @return the "bind" elements
+     * @throws UnRAVLException
+     *             if "bind" is not an object or array
+     */
+    public List<Step<UnRAVLExtractor>> getExtractors() throws UnRAVLException {
+        if (extractorsError != null)
+            throw new UnRAVLException(extractorsError);
+        return extractors;
+    }
+
+    /**
+     * @param stage
+     *            the assertion stage
+     * @return the assertions for the stage
+     * @throws UnRAVLException
+     *             if the stage's value is not a string, object or array
+     */
+    public List<Step<UnRAVLAssertion>> getAssertions(Stage stage)
+            throws UnRAVLException {
+        String error = assertionErrors.get(stage);
+        if (error != null)
+            throw new UnRAVLException(error);
+        return assertions.get(stage);
+    }
+
+    /**
+     * @return the script's own "status" assertion, or null
+     * @throws UnRAVLException
+     *             if the "assert" value is invalid
+     */
+    public ObjectNode getStatusAssertion() throws UnRAVLException {
+        getAssertions(Stage.ASSERT);
+        return statusAssertion;
+    }
+}
@@ -0,0 +1,263 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Orders, shards and runs script files by their expected durations from a
+ * {@link ScriptDurations} history, longest first (the
+ * <em>longest processing time first</em> rule). Running the long scripts
+ * first keeps parallel workers busy until the end of a run instead of waiting
+ * on a long script which started last, and assigning each script to the
+ * least loaded shard splits a suite into shards of nearly equal duration.
+ * Scripts with no history are expected to take the average time of those
+ * with history.
+ * <p>
+ * Shards are computed from the script keys, not the order in which the files
+ * are given, so every shard of a suite agrees on which shard runs each
+ * script, as long as all the shards start from the same history. So once a
+ * scheduler has chosen a shard, {@link #run(List, int, Task)} saves the
+ * durations to the shard's own file ({@link ScriptDurations#saveShard(int, int)})
+ * instead of the history; {@link ScriptDurations#mergeShards()} updates the
+ * history when all the shards have run.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ScriptScheduler {
+
+    /** System property: the number of scripts to run in parallel */
+    public static final String PARALLEL_PROPERTY = "unravl.parallel";
+
+    /**
+     * System property: the shard to run, <em>i</em>/<em>N</em>, where
+     * <em>i</em> is from 1 to <em>N</em>
+     */
+    public static final String SHARD_PROPERTY = "unravl.shard";
+
+    // the expected duration when there is no history at all
+    private static final double DEFAULT_MILLIS = 1000.0;
+
+    private static final Logger logger = Logger
+            .getLogger(ScriptScheduler.class);
+
+    /** Runs one script file */
+    public interface Task {
+        /**
+         * @param scriptFile
+         *            the script file to run
+         * @throws Exception
+         *             if the script fails
+         */
+        void run(String scriptFile) throws Exception;
+    }
+
+    private final ScriptDurations durations;
+    // the shard chosen by shard(), from 1 to shardCount; 0 if none
+    private int shardIndex, shardCount;
+
+    /**
+     * @param durations
+     *            the duration history, or null to treat every script as
+     *            taking equal time
+     */
+    public ScriptScheduler(ScriptDurations durations) {
+        this.durations = durations;
+    }
+
+    public ScriptDurations getDurations() {
+        return durations;
+    }
+
+    /**
+     * @param scriptFiles
+     *            script files
+     * @return the expected duration of each file, in milliseconds
+     */
+    private double[] expected(List<String> scriptFiles) {
+        double millis[] = new double[scriptFiles.size()];
+        double known = 0.0;
+        int count = 0;
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = durations == null ? -1.0 : durations
+                    .getExpectedMillis(scriptFiles.get(i));
+            if (millis[i] >= 0) {
+                known += millis[i];
+                count++;
+            }
+        }
+        double unknown = count == 0 ? DEFAULT_MILLIS : known / count;
+        for (int i = 0; i < millis.length; i++)
+            if (millis[i] < 0)
+                millis[i] = unknown;
+        return millis;
+    }
+
+    /**
+     * @param scriptFiles
+     *            script files
+     * @return the files, longest expected duration first; files with equal
+     *         durations are in key order
+     */
+    public List<String> order(List<String> scriptFiles) {
+        final List<String> files = new ArrayList<String>(scriptFiles);
+        final List<String> keys = new ArrayList<String>(files.size());
+        for (String f : files)
+            keys.add(ScriptDurations.key(f));
+        final double millis[] = expected(files);
+        List<Integer> indexes = new ArrayList<Integer>(files.size());
+        for (int i = 0; i < files.size(); i++)
+            indexes.add(Integer.valueOf(i));
+        Collections.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Double.compare(millis[b.intValue()],
+                        millis[a.intValue()]);
+                return c != 0 ? c : keys.get(a.intValue()).compareTo(
+                        keys.get(b.intValue()));
+            }
+        });
+        List<String> ordered = new ArrayList<String>(files.size());
+        for (Integer i : indexes)
+            ordered.add(files.get(i.intValue()));
+        return ordered;
+    }
+
+    /**
+     * Split script files into shards of nearly equal expected duration,
+     * assigning each file, longest first, to the shard with the least
+     * expected duration so far
+     *
+     * @param scriptFiles
+     *            script files
+     * @param count
+     *            the number of shards
+     * @return the shards; each is ordered longest first
+     */
+    public List<List<String>> partition(List<String> scriptFiles, int count) {
+        List<List<String>> shards = new ArrayList<List<String>>(count);
+        double load[] = new double[count];
+        for (int i = 0; i < count; i++)
+            shards.add(new ArrayList<String>());
+        List<String> ordered = order(scriptFiles);
+        double millis[] = expected(ordered);
+        for (int i = 0; i < ordered.size(); i++) {
+            int least = 0;
+            for (int s = 1; s < count; s++)
+                if (load[s] < load[least])
+                    least = s;
+            shards.get(least).add(ordered.get(i));
+            load[least] += millis[i];
+        }
+        return shards;
+    }
+
+    /**
+     * @param scriptFiles
+     *            script files
+     * @param shard
+     *            a shard specification, <em>i</em>/<em>N</em>, where
+     *            <em>i</em> is from 1 to <em>N</em>
+     * @return the files in shard <em>i</em> of <em>N</em>; this scheduler
+     *         then saves durations to the shard's file, not the history
+     * @throws IllegalArgumentException
+     *             if the shard specification is not valid
+     */
+    public List<String> shard(List<String> scriptFiles, String shard) {
+        String parts[] = shard.trim().split("/");
+        int index, count;
+        try {
+            if (parts.length != 2)
+                throw new NumberFormatException();
+            index = Integer.parseInt(parts[0].trim());
+            count = Integer.parseInt(parts[1].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid shard " + shard
+                    + "; expected i/N, such as 1/4");
+        }
+        if (count < 1 || index < 1 || index > count)
+            throw new IllegalArgumentException("Invalid shard " + shard
+                    + "; i must be from 1 to N");
+        shardIndex = index;
+        shardCount = count;
+        return partition(scriptFiles, count).get(index - 1);
+    }
+
+    /**
+     * Run script files on parallel workers, longest first. Each worker takes
+     * the next script as soon as it finishes one. The duration of each script
+     * is recorded in the history, which is saved when all have run (to the
+     * shard's file, if {@link #shard(List, String)} chose a shard).
+     *
+     * @param scriptFiles
+     *            script files
+     * @param workers
+     *            the number of scripts to run at once
+     * @param task
+     *            runs each script
+     * @return the failures, in the order they occurred; empty if all scripts
+     *         passed
+     */
+    public List<Throwable> run(List<String> scriptFiles, int workers,
+            final Task task) {
+        final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>(
+                workers > 1 ? order(scriptFiles) : scriptFiles);
+        final List<Throwable> failures = Collections
+                .synchronizedList(new ArrayList<Throwable>());
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                String scriptFile;
+                while ((scriptFile = queue.poll()) != null) {
+                    long start = System.currentTimeMillis();
+                    try {
+                        task.run(scriptFile);
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                    if (durations != null)
+                        durations.record(scriptFile,
+                                System.currentTimeMillis() - start);
+                }
+            }
+        };
+        if (workers <= 1)
+            worker.run();
+        else {
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            for (int i = 0; i < workers; i++)
+                executor.execute(worker);
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                    ;
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                failures.add(e);
+            }
+        }
+        if (durations != null) {
+            try {
+                if (shardCount > 0)
+                    durations.saveShard(shardIndex, shardCount);
+                else
+                    durations.save();
+            } catch (Exception e) {
+                logger.error("Could not save script durations to "
+                        + (shardCount > 0 ? durations.getShardFile(
+                                shardIndex, shardCount) : durations.getFile())
+                        + ": " + e.getMessage());
+            }
+        }
+        return new ArrayList<Throwable>(failures);
+    }
+}
@@ -0,0 +1,233 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Variables shared by a runtime and all the runtimes forked from it, such as
+ * the workers of a parallel run. Unlike the runtime's environment, the shared
+ * scope is thread-safe: it holds counters, queues and maps which workers can
+ * update concurrently, and values which can be compared and set atomically.
+ * <p>
+ * Scripts reach the scope as the variable <code>shared</code>. In an
+ * <code>"env"</code> element, or in <code>{shared.<em>name</em>}</code>
+ * references, <code>shared.<em>name</em></code> names the shared variable
+ * <em>name</em>. Groovy and JavaScript can call the methods of this class:
+ *
+ * <pre>
+ * { "groovy" : { "id" : "shared.queue('created').add(id); shared.increment('count')" } }
+ * </pre>
+ *
+ * Values may not be null; setting a shared variable to null removes it.
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class SharedScope {
+
+    /** The name of the variable which is bound to the shared scope */
+    public static final String NAME = "shared";
+
+    /** The prefix of variable names which name shared variables */
+    public static final String PREFIX = NAME + ".";
+
+    private final ConcurrentMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * @param varName
+     *            a variable name
+     * @return the shared variable name, if <var>varName</var> starts with
+     *         {@link #PREFIX}, else null
+     */
+    public static String sharedName(String varName) {
+        return varName.startsWith(PREFIX) && varName.length() > PREFIX.length() ? varName
+                .substring(PREFIX.length()) : null;
+    }
+
+    /**
+     * @param name
+     *            the shared variable name
+     * @return the value of the variable, or null if it is not bound
+     */
+    public Object get(String name) {
+        return values.get(name);
+    }
+
+    /**
+     * @param name
+     *            the shared variable name
+     * @return true iff the variable is bound
+     */
+    public boolean contains(String name) {
+        return values.containsKey(name);
+    }
+
+    /**
+     * Bind a shared variable
+     *
+     * @param name
+     *            the shared variable name
+     * @param value
+     *            the new value; null removes the variable
+     * @return the previous value, or null
+     */
+    public Object set(String name, Object value) {
+        return value == null ? values.remove(name) : values.put(name, value);
+    }
+
+    /**
+     * Remove a shared variable
+     *
+     * @param name
+     *            the shared variable name
+     * @return the previous value, or null
+     */
+    public Object remove(String name) {
+        return values.remove(name);
+    }
+
+    /**
+     * Bind a shared variable if it is not already bound
+     *
+     * @param name
+     *            the shared variable name
+     * @param value
+     *            the value
+     * @return the current value, which is <var>value</var> if the variable
+     *         was not bound
+     */
+    public Object setIfAbsent(String name, Object value) {
+        Object old = values.putIfAbsent(name, value);
+        return old == null ? value : old;
+    }
+
+    /**
+     * Atomically change a shared variable if it has an expected value
+     *
+     * @param name
+     *            the shared variable name
+     * @param expect
+     *            the expected value, compared with <code>equals</code>; null
+     *            if the variable is expected to be unbound
+     * @param update
+     *            the new value; null to remove the variable
+     * @return true if the variable had the expected value and was changed
+     */
+    public boolean compareAndSet(String name, Object expect, Object update) {
+        if (expect == null)
+            return update == null ? !values.containsKey(name) : values
+                    .putIfAbsent(name, update) == null;
+        if (update == null)
+            return values.remove(name, expect);
+        return values.replace(name, expect, update);
+    }
+
+    /**
+     * Return a shared counter, creating it with the value 0 if the variable
+     * is not bound
+     *
+     * @param name
+     *            the shared variable name
+     * @return the counter
+     * @throws IllegalArgumentException
+     *             if the variable is bound to something else
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = existing(name, AtomicLong.class);
+        return counter != null ? counter : create(name, AtomicLong.class,
+                new AtomicLong());
+    }
+
+    /**
+     * Increment a shared counter
+     *
+     * @param name
+     *            the shared variable name
+     * @return the incremented value
+     * @see #counter(String)
+     */
+    public long increment(String name) {
+        return counter(name).incrementAndGet();
+    }
+
+    /**
+     * Add to a shared counter
+     *
+     * @param name
+     *            the shared variable name
+     * @param delta
+     *            the amount to add
+     * @return the new value
+     * @see #counter(String)
+     */
+    public long add(String name, long delta) {
+        return counter(name).addAndGet(delta);
+    }
+
+    /**
+     * Return a shared queue, creating an empty one if the variable is not
+     * bound
+     *
+     * @param name
+     *            the shared variable name
+     * @return the queue
+     * @throws IllegalArgumentException
+     *             if the variable is bound to something else
+     */
+    @SuppressWarnings("unchecked")
+    public Queue<Object> queue(String name) {
+        Queue<Object> queue = existing(name, Queue.class);
+        return queue != null ? queue : create(name, Queue.class,
+                new ConcurrentLinkedQueue<Object>());
+    }
+
+    /**
+     * Return a shared map, creating an empty one if the variable is not bound
+     *
+     * @param name
+     *            the shared variable name
+     * @return the map
+     * @throws IllegalArgumentException
+     *             if the variable is bound to something else
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentMap<String, Object> map(String name) {
+        ConcurrentMap<String, Object> map = existing(name, ConcurrentMap.class);
+        return map != null ? map : create(name, ConcurrentMap.class,
+                new ConcurrentHashMap<String, Object>());
+    }
+
+    /**
+     * @return the names of the shared variables
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    private <T> T existing(String name, Class<T> type) {
+        return checked(name, type, values.get(name));
+    }
+
+    private <T> T create(String name, Class<T> type, T value) {
+        Object old = values.putIfAbsent(name, value);
+        return old == null ? value : checked(name, type, old);
+    }
+
+    private static <T> T checked(String name, Class<T> type, Object value) {
+        if (value != null && !type.isInstance(value))
+            throw new IllegalArgumentException("shared variable " + name
+                    + " is a " + value.getClass().getName() + ", not a "
+                    + type.getSimpleName());
+        return type.cast(value);
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -4,22 +4,19 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
+import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 
 import org.apache.http.Header;
-import org.apache.http.message.BasicHeader;
 import org.apache.log4j.Logger;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.sas.unravl.assertions.UnRAVLAssertion;
-import com.sas.unravl.assertions.UnRAVLAssertion.Stage;
 import com.sas.unravl.extractors.UnRAVLExtractor;
-import com.sas.unravl.util.Json;
 
 /**
  * An UnRAVL script object - this is a wrapper around a JSON UnRAVL script. An
@@ -46,14 +43,13 @@ import com.sas.unravl.util.Json;
 public class UnRAVL {
 
     private static final String IMPLICIT_TEMPLATE = "implicit.template";
-    private static final String TEMPLATE_KEY = "template";
-    private static final String NAME_KEY = "name";
     private static final String TEMPLATE_EXTENSION = ".template";
     private static final String TEXT_MEDIA_TYPES_REGEX = "^(text/.*|.*/.*(xml|json)).*$";
     private static final String JSON_MEDIA_TYPES_REGEX = "^.*(\\.|\\+)*json.*$";
     public static final String REDIRECT_PREFIX = "@";
     private UnRAVLRuntime runtime;
     private ObjectNode root;
+    private ScriptPlan plan;
     private String name;
     private UnRAVL template;
     private List<Header> requestHeaders;
@@ -93,6 +89,7 @@ public class UnRAVL {
                     "the runtime and script objects may not be null.");
         this.runtime = runtime;
         this.root = script;
+        this.plan = runtime.getPlugins().plan(script);
         initialize();
     }
 
@@ -118,14 +115,21 @@ public class UnRAVL {
         return root;
     }
 
+    /**
+     * @return the compiled form of this script's JSON, shared with other
+     *         instances created from the same JSON
+     */
+    public ScriptPlan getPlan() {
+        return plan;
+    }
+
     public String getName() {
         return name;
     }
 
     public void setName() {
-        JsonNode nameNode = root.get(NAME_KEY);
-        if (nameNode != null) {
-            name = nameNode.textValue();
+        if (plan.getName() != null) {
+            name = plan.getName();
             if (name.endsWith(TEMPLATE_EXTENSION))
                 runtime.setTemplate(name, this);
         } else
@@ -150,15 +154,8 @@ public class UnRAVL {
     }
 
     private void setTemplate() throws UnRAVLException {
-        JsonNode tempNode = root.get(TEMPLATE_KEY);
-        if (tempNode != null) {
-
-            if (tempNode.isArray())
-                throw new UnRAVLException(
-                        "array template values are not yet supported.");
-            if (!tempNode.isTextual())
-                throw new UnRAVLException("template value must be a text node.");
-            String templateName = expand(tempNode.textValue());
+        if (plan.getTemplateName() != null) {
+            String templateName = expand(plan.getTemplateName());
             if (!templateName.endsWith(TEMPLATE_EXTENSION))
                 templateName += TEMPLATE_EXTENSION;
             template = runtime.getTemplate(templateName);
@@ -207,43 +204,13 @@ public class UnRAVL {
             this.uri = script.uri;
             return;
         }
-        // Look for a "GET", "HEAD" or other method name in this script
-        for (Map.Entry<String, JsonNode> f : Json.fields(script.root)) {
-            String methodName = f.getKey().toUpperCase();
-            Method m = httpMethod(methodName);
-            if (m == null)
-                continue;
-            JsonNode node = f.getValue();
-            if (node == null)
-                node = script.root.get(m.toString().toLowerCase());
-            if (node != null) {
-                if (method != null) {
-                    logger.warn(String
-                            .format("Warning: HTTP method %s found but method already defined as %s %s",
-                                    m, method, uri));
-                }
-                method = m;
-                if (!node.isTextual())
-                    throw new UnRAVLException(
-                            String.format(
-                                    "URI for method %s must be a string; found %s instead.",
-                                    m, node));
-                uri = node.textValue();
-            }
-        }
-        if (method == null)
+        if (script.plan.getMethod() != null) {
+            method = script.plan.getMethod();
+            uri = script.plan.getURI();
+        } else
             defineAPICall(script.getTemplate());
     }
 
-    private static Method httpMethod(String methodName) {
-        for (Method m : Method.values()) {
-            if (m.name().equals(methodName)) {
-                return m;
-            }
-        }
-        return null;
-    }
-
     private void defineHeaders() throws UnRAVLException {
         ArrayList<Header> headers = new ArrayList<Header>();
         defineHeaders(this, headers);
@@ -260,19 +227,11 @@ public class UnRAVL {
             return;
         UnRAVL template = from.getTemplate();
         defineHeaders(template, headers);
-        JsonNode headersNode = from.getRoot().get("headers");
-        if (headersNode == null)
-            return;
-        for (Map.Entry<String, JsonNode> h : Json.fields(headersNode)) {
-            String string = h.getKey();
-            // Do not expand headers here; do so in
-            // ApiCall.mapHeaders(List<Header> requestHeaders)
-            // This method is called before "env" is evaluated,
-            // so expansion here is premature.
-            String val = h.getValue().asText();
-            BasicHeader header = new BasicHeader(string, val);
-            headers.add(header);
-        }
+        // Do not expand headers here; do so in
+        // ApiCall.mapHeaders(List<Header> requestHeaders)
+        // This method is called before "env" is evaluated,
+        // so expansion here is premature.
+        headers.addAll(from.plan.getHeaders());
     }
 
     public ApiCall run() throws UnRAVLException, IOException {
@@ -281,6 +240,7 @@ public class UnRAVL {
             return apiCall.run();
         } finally {
             apiCall.report(System.out);
+            getRuntime().callCompleted(apiCall);
         }
     }
 
@@ -349,15 +309,9 @@ public class UnRAVL {
             throws UnRAVLException {
         if (script == null)
             return null;
-        // really need to use JSONPath ...
-        JsonNode node = script.root.get("assert");
-        node = ApiCall.assertionArray(node, Stage.ASSERT);
-        if (node != null) {
-            for (JsonNode n : Json.array(node)) {
-                if (n.isObject() && Json.firstFieldName(n).equals("status"))
-                    return Json.object(n);
-            }
-        }
+        ObjectNode status = script.plan.getStatusAssertion();
+        if (status != null)
+            return status;
         return statusAssertion(script.getTemplate());
     }
 
@@ -377,6 +331,10 @@ public class UnRAVL {
             throws UnRAVLException {
         ScriptEngine engine = getRuntime().interpreter(lang);
         try {
+            CompiledScript compiled = getRuntime().compile(engine,
+                    expression);
+            if (compiled != null)
+                return compiled.eval(engine.getContext());
             Object result = engine.eval(expression, engine.getContext());
             return result;
         } catch (ScriptException e) {
@@ -0,0 +1,383 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.util.Json;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * A load generating process, directed by an {@link UnRAVLCoordinator}. Start
+ * agents with
+ *
+ * <pre>
+ * unravl --agent
+ * </pre>
+ *
+ * An agent listens for HTTP requests on the loopback interface (or the
+ * address named by the {@value #ADDRESS_PROPERTY} system property), on the
+ * port named by {@value #PORT_PROPERTY} (or one chosen by the system).
+ * Requests must send the token named by {@value #TOKEN_PROPERTY} in the
+ * {@value UnRAVLDaemon#TOKEN_HEADER} header; if that property is not set, the
+ * agent makes up a token and prints it with its address.
+ * <p>
+ * Requests:
+ * <dl>
+ * <dt><code>POST /load</code></dt>
+ * <dd>The request body is a scenario: a JSON object with the UnRAVL
+ * <code>scripts</code> to run (as a JSON array, as read from script files),
+ * the number of <code>threads</code>, the <code>duration</code> in
+ * milliseconds, the number of <code>iterations</code> each thread runs (0 for
+ * no limit), and the <code>snapshot</code> interval in milliseconds. The
+ * response streams newline delimited JSON events: <code>ready</code>, once the
+ * agent is prepared to start; a <code>snapshot</code> every interval, with a
+ * {@link RunAnalysis} of the calls made since the last snapshot; and
+ * <code>done</code> with the last snapshot. Each thread runs the scripts
+ * repeatedly, each time in a new {@link UnRAVLRuntime} forked from the
+ * agent's warm runtime, through the usual {@link ApiCall} pipeline.</dd>
+ * <dt><code>POST /start</code></dt>
+ * <dd>Start the prepared load at the time (in milliseconds since the epoch)
+ * given by <code>startAt</code> in the JSON request body, so that all agents
+ * start together.</dd>
+ * <dt><code>POST /stop</code></dt>
+ * <dd>Stop the current load, if any, and the agent.</dd>
+ * </dl>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class UnRAVLAgent {
+
+    private static final Logger logger = Logger.getLogger(UnRAVLAgent.class);
+
+    /** System property: the address the agent listens on */
+    public static final String ADDRESS_PROPERTY = "unravl.agent.address";
+    /** System property: the port the agent listens on */
+    public static final String PORT_PROPERTY = "unravl.agent.port";
+    /** System property: the access token shared by agents and coordinator */
+    public static final String TOKEN_PROPERTY = "unravl.agent.token";
+
+    // how long a prepared load waits for /start
+    private static final long START_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final UnRAVLRuntime warm;
+    private final String token;
+    private final ExecutorService requests = Executors.newCachedThreadPool();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ObjectMapper mapper = new ObjectMapper();
+    private HttpServer server;
+    private Load load; // guarded by this
+
+    /**
+     * Create an agent, with the token named by {@value #TOKEN_PROPERTY} or a
+     * new random token
+     */
+    public UnRAVLAgent() {
+        this(System.getProperty(TOKEN_PROPERTY));
+    }
+
+    /**
+     * Create an agent
+     *
+     * @param token
+     *            the access token, or null to make one up
+     */
+    public UnRAVLAgent(String token) {
+        if (token == null) {
+            byte secret[] = new byte[24];
+            new SecureRandom().nextBytes(secret);
+            token = Hex.encodeHexString(secret);
+        }
+        this.token = token;
+        warm = new UnRAVLRuntime();
+        warm.warmUp();
+        // keep only what the analysis needs from each call
+        warm.getApiCalls().setDropBodies(true);
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Start listening
+     *
+     * @return this agent
+     * @throws IOException
+     *             if the port is in use
+     */
+    public UnRAVLAgent start() throws IOException {
+        String address = System.getProperty(ADDRESS_PROPERTY);
+        server = HttpServer.create(new InetSocketAddress(address == null
+                ? InetAddress.getLoopbackAddress()
+                : InetAddress.getByName(address), Integer.getInteger(
+                PORT_PROPERTY, 0)), 0);
+        server.setExecutor(requests);
+        server.createContext("/load", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = UnRAVLDaemon.accept(exchange, token);
+                if (body != null)
+                    load(exchange, body);
+            }
+        });
+        server.createContext("/start", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = UnRAVLDaemon.accept(exchange, token);
+                if (body != null)
+                    start(exchange, body);
+            }
+        });
+        server.createContext("/stop", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (UnRAVLDaemon.accept(exchange, token) != null) {
+                    UnRAVLDaemon.respond(exchange, 200, "stopping\n");
+                    stop();
+                }
+            }
+        });
+        server.start();
+        logger.info("UnRAVL agent listening on " + getAddress());
+        return this;
+    }
+
+    /**
+     * @return the host:port the agent listens on
+     */
+    public String getAddress() {
+        InetSocketAddress a = server.getAddress();
+        return a.getAddress().getHostAddress() + ":" + a.getPort();
+    }
+
+    /**
+     * Stop the current load, if any, and stop listening
+     */
+    public void stop() {
+        if (stopped.getCount() == 0)
+            return;
+        synchronized (this) {
+            if (load != null)
+                load.cancel();
+        }
+        Thread stopper = new Thread("UnRAVL agent stop") {
+            @Override
+            public void run() {
+                server.stop(1);
+                requests.shutdown();
+                stopped.countDown();
+            }
+        };
+        stopper.start();
+    }
+
+    /**
+     * Wait until the agent is stopped
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void load(HttpExchange exchange, String body) throws IOException {
+        Load l;
+        try {
+            l = new Load(Json.object(Json.parse(body)));
+        } catch (UnRAVLException e) {
+            UnRAVLDaemon.respond(exchange, 400, e.getMessage() + "\n");
+            return;
+        }
+        synchronized (this) {
+            if (load != null) {
+                UnRAVLDaemon.respond(exchange, 409, "A load is running\n");
+                return;
+            }
+            load = l;
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+                "application/x-ndjson; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            l.run(out);
+        } finally {
+            synchronized (this) {
+                load = null;
+            }
+        }
+    }
+
+    private void start(HttpExchange exchange, String body) throws IOException {
+        long startAt;
+        try {
+            startAt = Json.parse(body).path("startAt").asLong();
+        } catch (UnRAVLException e) {
+            UnRAVLDaemon.respond(exchange, 400, e.getMessage() + "\n");
+            return;
+        }
+        synchronized (this) {
+            if (load == null) {
+                UnRAVLDaemon.respond(exchange, 409, "No load is prepared\n");
+                return;
+            }
+            load.start(startAt);
+        }
+        UnRAVLDaemon.respond(exchange, 200, "starting\n");
+    }
+
+    // a scenario, and the threads which run it
+    private class Load {
+        final List<JsonNode> scripts = new ArrayList<JsonNode>();
+        final int threads;
+        final long duration;
+        final long iterations;
+        final long snapshot;
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicLong runs = new AtomicLong();
+        final AtomicLong failedRuns = new AtomicLong();
+        volatile long startAt;
+        volatile boolean cancelled;
+        RunAnalysis analysis; // guarded by this Load
+
+        Load(ObjectNode scenario) throws UnRAVLException {
+            for (JsonNode script : Json.array(scenario.path("scripts")))
+                scripts.add(script);
+            threads = Math.max(1, scenario.path("threads").asInt(1));
+            duration = scenario.path("duration").asLong(10000L);
+            iterations = scenario.path("iterations").asLong(0L);
+            snapshot = Math.max(10L, scenario.path("snapshot").asLong(1000L));
+            analysis = new RunAnalysis(snapshot);
+        }
+
+        void start(long at) {
+            startAt = at;
+            started.countDown();
+        }
+
+        void cancel() {
+            cancelled = true;
+            started.countDown();
+        }
+
+        synchronized void add(CallResult result) {
+            analysis.add(result);
+        }
+
+        // the calls made since the last snapshot
+        synchronized RunAnalysis take() {
+            RunAnalysis taken = analysis;
+            analysis = new RunAnalysis(snapshot);
+            return taken;
+        }
+
+        void run(OutputStream out) throws IOException {
+            send(out, event("ready"));
+            try {
+                if (!started.await(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        || cancelled) {
+                    send(out, event("cancelled"));
+                    return;
+                }
+                long wait = startAt - System.currentTimeMillis();
+                if (wait > 0)
+                    Thread.sleep(wait);
+                final long endAt = System.currentTimeMillis() + duration;
+                final CountDownLatch done = new CountDownLatch(threads);
+                for (int i = 0; i < threads; i++) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                work(endAt);
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    }, "unravl-load-" + i);
+                    t.setDaemon(true);
+                    t.start();
+                }
+                while (!done.await(snapshot, TimeUnit.MILLISECONDS))
+                    send(out, event("snapshot").set("analysis",
+                            take().toJson()));
+                ObjectNode last = event("done");
+                last.set("analysis", take().toJson());
+                last.put("runs", runs.get());
+                last.put("failedRuns", failedRuns.get());
+                send(out, last);
+            } catch (InterruptedException e) {
+                cancelled = true;
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // the coordinator went away
+                cancelled = true;
+                throw e;
+            }
+        }
+
+        private void work(long endAt) {
+            // each call prints its report; do not print it under load
+            Main.setThreadOut(DISCARD);
+            try {
+                for (long i = 0; !cancelled
+                        && (iterations == 0 || i < iterations)
+                        && System.currentTimeMillis() < endAt; i++) {
+                    UnRAVLRuntime runtime = new UnRAVLRuntime(warm);
+                    try {
+                        runtime.execute(scripts);
+                    } catch (Exception e) {
+                        failedRuns.incrementAndGet();
+                        logger.debug("Load script failed: " + e.getMessage());
+                    }
+                    runs.incrementAndGet();
+                    for (ApiCall call : runtime.getApiCalls())
+                        add(CallResult.of(call));
+                }
+            } finally {
+                Main.setThreadOut(null);
+            }
+        }
+
+        private ObjectNode event(String name) {
+            ObjectNode e = Json.jsonNodeFactory().objectNode();
+            e.put("event", name);
+            return e;
+        }
+
+        private void send(OutputStream out, JsonNode event) throws IOException {
+            out.write(mapper.writeValueAsBytes(event));
+            out.write('\n');
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a load test on several {@link UnRAVLAgent}s at once. The coordinator
+ * reads the scenario's script files, sends the same scripts to every agent,
+ * waits until all agents are prepared, and then tells them all to start at
+ * the same moment. As the agents run, they stream back snapshots of the calls
+ * they made (as {@link RunAnalysis} objects, with mergeable latency
+ * histograms), which the coordinator merges into global percentiles, error
+ * rates and throughput. Run it with
+ *
+ * <pre>
+ * unravl --coordinate host:port,host:port... script-file...
+ * </pre>
+ *
+ * The system properties {@value #THREADS_PROPERTY} (threads per agent,
+ * default 1), {@value #DURATION_PROPERTY} (seconds, default 10),
+ * {@value #ITERATIONS_PROPERTY} (runs of the scripts per thread, default 0
+ * for no limit) and {@value #SNAPSHOT_PROPERTY} (milliseconds, default 1000)
+ * configure the load. Agents must share the coordinator's
+ * {@value UnRAVLAgent#TOKEN_PROPERTY}.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class UnRAVLCoordinator {
+
+    private static final Logger logger = Logger
+            .getLogger(UnRAVLCoordinator.class);
+
+    /** System property: the number of threads each agent runs */
+    public static final String THREADS_PROPERTY = "unravl.load.threads";
+    /** System property: how long to run the load, in seconds */
+    public static final String DURATION_PROPERTY = "unravl.load.duration";
+    /** System property: how many times each thread runs the scripts */
+    public static final String ITERATIONS_PROPERTY = "unravl.load.iterations";
+    /** System property: how often agents send snapshots, in milliseconds */
+    public static final String SNAPSHOT_PROPERTY = "unravl.load.snapshot";
+
+    // how long agents have to prepare, and the delay before they start
+    private static final long READY_TIMEOUT_MILLIS = 60 * 1000L;
+    private static final long START_DELAY_MILLIS = 250L;
+
+    private final List<String> agents;
+    private final String token;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private int threads = Integer.getInteger(THREADS_PROPERTY, 1).intValue();
+    private long durationMillis = Long.getLong(DURATION_PROPERTY, 10L)
+            .longValue() * 1000L;
+    private long iterations = Long.getLong(ITERATIONS_PROPERTY, 0L)
+            .longValue();
+    private long snapshotMillis = Long.getLong(SNAPSHOT_PROPERTY, 1000L)
+            .longValue();
+
+    /**
+     * @param agents
+     *            the agents' addresses, as host:port
+     * @param token
+     *            the agents' access token
+     */
+    public UnRAVLCoordinator(List<String> agents, String token) {
+        this.agents = new ArrayList<String>(agents);
+        this.token = token == null ? "" : token;
+    }
+
+    /**
+     * @param threads
+     *            the number of threads each agent runs
+     * @return this coordinator
+     */
+    public UnRAVLCoordinator setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param durationMillis
+     *            how long to run the load
+     * @return this coordinator
+     */
+    public UnRAVLCoordinator setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+
+    /**
+     * @param iterations
+     *            how many times each thread runs the scripts; 0 for no limit
+     *            (until the duration ends)
+     * @return this coordinator
+     */
+    public UnRAVLCoordinator setIterations(long iterations) {
+        this.iterations = iterations;
+        return this;
+    }
+
+    /**
+     * @param snapshotMillis
+     *            how often agents send snapshots
+     * @return this coordinator
+     */
+    public UnRAVLCoordinator setSnapshotMillis(long snapshotMillis) {
+        this.snapshotMillis = snapshotMillis;
+        return this;
+    }
+
+    /**
+     * Run a load test
+     *
+     * @param scripts
+     *            the scenario, as read by {@link UnRAVLRuntime#read(String)}
+     * @param progress
+     *            where to print progress as snapshots arrive, or null
+     * @return the merged analysis of all the agents' calls
+     * @throws IOException
+     *             if an agent cannot be reached, or fails
+     */
+    public RunAnalysis run(List<JsonNode> scripts, final PrintStream progress)
+            throws IOException {
+        ObjectNode scenario = Json.jsonNodeFactory().objectNode();
+        ArrayNode s = scenario.putArray("scripts");
+        for (JsonNode script : scripts)
+            s.add(script);
+        scenario.put("threads", threads);
+        scenario.put("duration", durationMillis);
+        scenario.put("iterations", iterations);
+        scenario.put("snapshot", snapshotMillis);
+        final byte body[] = mapper.writeValueAsBytes(scenario);
+
+        final RunAnalysis total = new RunAnalysis(snapshotMillis);
+        final CountDownLatch ready = new CountDownLatch(agents.size());
+        final CountDownLatch done = new CountDownLatch(agents.size());
+        final List<String> errors = Collections
+                .synchronizedList(new ArrayList<String>());
+        for (final String agent : agents) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        follow(agent, body, ready, total, progress);
+                    } catch (IOException e) {
+                        errors.add(agent + ": " + e.getMessage());
+                        logger.error("Agent " + agent + " failed: "
+                                + e.getMessage());
+                    } finally {
+                        // do not wait for a failed agent to get ready
+                        while (ready.getCount() > 0 && !errors.isEmpty())
+                            ready.countDown();
+                        done.countDown();
+                    }
+                }
+            }, "unravl-coordinator-" + agent);
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            if (!ready.await(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                errors.add("agents were not ready in time");
+            if (errors.isEmpty()) {
+                long startAt = System.currentTimeMillis() + START_DELAY_MILLIS;
+                for (String agent : agents)
+                    post(agent, "/start", mapper.writeValueAsBytes(Json
+                            .jsonNodeFactory().objectNode()
+                            .put("startAt", startAt)));
+                logger.info("Started " + agents.size() + " agents");
+            } else {
+                for (String agent : agents)
+                    stopQuietly(agent);
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Load test was interrupted", e);
+        }
+        if (!errors.isEmpty())
+            throw new IOException("Load test failed: " + errors);
+        return total;
+    }
+
+    // read an agent's events until it is done
+    private void follow(String agent, byte body[], CountDownLatch ready,
+            RunAnalysis total, PrintStream progress) throws IOException {
+        HttpURLConnection conn = post(agent, "/load", body);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                conn.getInputStream(), "UTF-8"))) {
+            for (String line = reader.readLine(); line != null; line = reader
+                    .readLine()) {
+                if (line.isEmpty())
+                    continue;
+                JsonNode event = mapper.readTree(line);
+                String name = event.path("event").asText();
+                if ("ready".equals(name))
+                    ready.countDown();
+                else if ("snapshot".equals(name) || "done".equals(name)) {
+                    RunAnalysis snapshot = RunAnalysis.fromJson(event
+                            .path("analysis"));
+                    synchronized (total) {
+                        total.merge(snapshot);
+                        if (progress != null)
+                            progress(progress, agent, snapshot, total);
+                    }
+                    if ("done".equals(name))
+                        return;
+                } else if ("cancelled".equals(name))
+                    throw new IOException("load was cancelled");
+            }
+            throw new IOException("agent ended the load early");
+        }
+    }
+
+    private void progress(PrintStream out, String agent, RunAnalysis snapshot,
+            RunAnalysis total) {
+        LatencyHistogram h = total.getTotal().getLatency();
+        out.format("%s: +%d calls; total %d calls, %d failed, "
+                + "p50 %.1f ms, p99 %.1f ms, %.1f calls/s%n", agent, snapshot
+                .getTotal().getCalls(), total.getTotal().getCalls(), total
+                .getTotal().getErrors(), h.getPercentile(50) / 1000.0, h
+                .getPercentile(99) / 1000.0, total.getCallsPerSecond());
+    }
+
+    private void stopQuietly(String agent) {
+        try {
+            post(agent, "/stop", new byte[0]).getInputStream().close();
+        } catch (IOException e) {
+            logger.warn("Could not stop agent " + agent + ": " + e.getMessage());
+        }
+    }
+
+    private HttpURLConnection post(String agent, String path, byte body[])
+            throws IOException {
+        URL url = new URL("http://" + agent + path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setReadTimeout((int) Math.max(60000L, durationMillis * 2
+                + READY_TIMEOUT_MILLIS));
+        conn.setRequestProperty(UnRAVLDaemon.TOKEN_HEADER, token);
+        conn.setRequestProperty("Content-Type",
+                "application/json; charset=UTF-8");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+        int status = conn.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            try (InputStream err = conn.getErrorStream()) {
+                if (err != null)
+                    Binary.copy(err, message);
+            }
+            throw new IOException("HTTP " + status + " from " + url + ": "
+                    + message.toString("UTF-8").trim());
+        }
+        if (!"/load".equals(path))
+            conn.getInputStream().close();
+        return conn;
+    }
+
+    /**
+     * Run a load test from the command line and print the merged report
+     *
+     * @param agentList
+     *            the agents' addresses, host:port, separated by commas
+     * @param scriptFiles
+     *            the scenario's script files
+     * @param out
+     *            where to print progress and the report
+     * @return 0, or 1 if any call failed or the test could not run
+     */
+    public static int coordinate(String agentList, String scriptFiles[],
+            PrintStream out) {
+        List<String> agents = new ArrayList<String>();
+        for (String a : agentList.split(","))
+            if (!a.trim().isEmpty())
+                agents.add(a.trim());
+        try {
+            UnRAVLRuntime reader = new UnRAVLRuntime();
+            List<JsonNode> scripts = new ArrayList<JsonNode>();
+            for (String file : scriptFiles)
+                scripts.addAll(reader.read(file));
+            RunAnalysis analysis = new UnRAVLCoordinator(agents,
+                    System.getProperty(UnRAVLAgent.TOKEN_PROPERTY)).run(
+                    scripts, out);
+            out.println();
+            analysis.print(out);
+            return analysis.getTotal().getErrors() > 0 ? 1 : 0;
+        } catch (IOException | UnRAVLException e) {
+            System.err.println("Could not run the load test: "
+                    + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.sas.unravl.generators.Binary;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * A long running UnRAVL process which runs scripts submitted by thin clients,
+ * so that each run does not pay for JVM startup, class loading, script engine
+ * initialization and new HTTP connections. Start it with
+ *
+ * <pre>
+ * unravl --daemon
+ * </pre>
+ *
+ * and submit scripts with
+ *
+ * <pre>
+ * unravl --submit script-file [... script-file]
+ * </pre>
+ *
+ * The daemon listens for HTTP requests on the loopback interface only. When it
+ * starts, it writes its port and a random access token to the daemon file (
+ * <code>~/.unravl/daemon.properties</code>, readable only by the user, or the
+ * file named by the {@value #FILE_PROPERTY} system property); clients must
+ * send that token in the {@value #TOKEN_HEADER} header. The port is chosen by
+ * the system unless the {@value #PORT_PROPERTY} system property is set.
+ * <p>
+ * Requests:
+ * <dl>
+ * <dt><code>POST /run</code></dt>
+ * <dd>The request body lists the script files or URLs to run, one per line.
+ * The scripts run in a new {@link UnRAVLRuntime} created from the daemon's
+ * warm runtime, so they see the daemon's system properties but no variables
+ * from earlier jobs. The response streams the job's console output (as
+ * <code>text/plain</code>), followed by a line {@value #EXIT_STATUS_PREFIX}
+ * <var>n</var> with the exit status <code>unravl</code> would return.</dd>
+ * <dt><code>POST /stop</code></dt>
+ * <dd>Stop the daemon after the current job.</dd>
+ * </dl>
+ * Jobs run one at a time, in the order they are received. Relative file
+ * references inside scripts are resolved against the daemon's working
+ * directory; the client sends absolute script paths.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class UnRAVLDaemon {
+
+    private static final Logger logger = Logger.getLogger(UnRAVLDaemon.class);
+
+    /** System property which names the daemon file */
+    public static final String FILE_PROPERTY = "unravl.daemon.file";
+    /** System property which sets the daemon's port */
+    public static final String PORT_PROPERTY = "unravl.daemon.port";
+    /** The request header which holds the daemon's access token */
+    public static final String TOKEN_HEADER = "X-UnRAVL-Token";
+    /** Prefix of the last line of a job's output */
+    public static final String EXIT_STATUS_PREFIX = "unravl-exit-status: ";
+
+    private final UnRAVLRuntime warm;
+    private final File daemonFile;
+    private final String token;
+    private final ExecutorService jobs = Executors.newSingleThreadExecutor();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private HttpServer server;
+
+    /**
+     * Create a daemon which writes the default daemon file
+     *
+     * @throws UnRAVLException
+     *             if the runtime cannot be initialized
+     */
+    public UnRAVLDaemon() throws UnRAVLException {
+        this(daemonFile());
+    }
+
+    /**
+     * Create a daemon
+     *
+     * @param daemonFile
+     *            where to write the port and access token
+     * @throws UnRAVLException
+     *             if the runtime cannot be initialized
+     */
+    public UnRAVLDaemon(File daemonFile) throws UnRAVLException {
+        this.daemonFile = daemonFile;
+        byte secret[] = new byte[24];
+        new SecureRandom().nextBytes(secret);
+        this.token = Hex.encodeHexString(secret);
+        warm = new UnRAVLRuntime();
+        warm.warmUp();
+    }
+
+    /**
+     * @return the daemon file named by the {@value #FILE_PROPERTY} system
+     *         property, or <code>~/.unravl/daemon.properties</code>
+     */
+    public static File daemonFile() {
+        String name = System.getProperty(FILE_PROPERTY);
+        if (name != null)
+            return new File(name);
+        return new File(new File(System.getProperty("user.home"), ".unravl"),
+                "daemon.properties");
+    }
+
+    /**
+     * Start listening on the loopback interface and write the daemon file
+     *
+     * @return this daemon
+     * @throws IOException
+     *             if the port is in use or the daemon file cannot be written
+     */
+    public UnRAVLDaemon start() throws IOException {
+        Main.rerouteStdoutStderr();
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), Integer.getInteger(
+                        PORT_PROPERTY, 0)), 0);
+        server.setExecutor(jobs);
+        server.createContext("/run", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = accept(exchange);
+                if (body != null)
+                    runJob(exchange, lines(body));
+            }
+        });
+        server.createContext("/stop", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (accept(exchange) != null) {
+                    respond(exchange, 200, "stopping\n");
+                    stop();
+                }
+            }
+        });
+        server.start();
+        writeDaemonFile();
+        logger.info("UnRAVL daemon listening on port " + getPort());
+        return this;
+    }
+
+    /**
+     * @return the port the daemon listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop listening, and remove the daemon file
+     */
+    public void stop() {
+        if (stopped.getCount() == 0)
+            return;
+        try {
+            Files.deleteIfExists(daemonFile.toPath());
+        } catch (IOException e) {
+            logger.warn("Could not delete " + daemonFile + ": "
+                    + e.getMessage());
+        }
+        // the stop request itself runs on the job thread, so stop from
+        // another thread
+        Thread stopper = new Thread("UnRAVL daemon stop") {
+            @Override
+            public void run() {
+                server.stop(0);
+                jobs.shutdown();
+                stopped.countDown();
+            }
+        };
+        stopper.start();
+    }
+
+    /**
+     * Wait until the daemon is stopped
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void writeDaemonFile() throws IOException {
+        File dir = daemonFile.getAbsoluteFile().getParentFile();
+        Files.createDirectories(dir.toPath());
+        Properties props = new Properties();
+        props.setProperty("port", Integer.toString(getPort()));
+        props.setProperty("token", token);
+        Path temp = Files.createTempFile(dir.toPath(), daemonFile.getName(),
+                ".tmp");
+        try {
+            Files.setPosixFilePermissions(temp,
+                    PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            File f = temp.toFile();
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+        }
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            props.store(out, "UnRAVL daemon");
+        }
+        Files.move(temp, daemonFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Check the method and access token and return the request body, or
+    // reject the request and return null.
+    private String accept(HttpExchange exchange) throws IOException {
+        return accept(exchange, token);
+    }
+
+    // also used by UnRAVLAgent
+    static String accept(HttpExchange exchange, String token)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Binary.copy(exchange.getRequestBody(), body);
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST required\n");
+            return null;
+        }
+        String sent = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        if (sent == null
+                || !MessageDigest.isEqual(token.getBytes("UTF-8"),
+                        sent.getBytes("UTF-8"))) {
+            respond(exchange, 403, "Invalid " + TOKEN_HEADER + "\n");
+            return null;
+        }
+        return body.toString("UTF-8");
+    }
+
+    static void respond(HttpExchange exchange, int status,
+            String body) throws IOException {
+        byte bytes[] = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void runJob(HttpExchange exchange, String args[])
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = new LineFlushingOutputStream(
+                exchange.getResponseBody());
+        PrintStream jobOut = new PrintStream(body, true, "UTF-8");
+        int rc;
+        Main.setThreadOut(body);
+        try {
+            logger.info("Running job " + Arrays.asList(args));
+            rc = new Main().run(new UnRAVLRuntime(warm), args);
+        } finally {
+            Main.setThreadOut(null);
+        }
+        jobOut.println();
+        jobOut.println(EXIT_STATUS_PREFIX + rc);
+        jobOut.close();
+    }
+
+    // Flushes the chunked response at the end of each line so the client
+    // sees progress as the scripts run
+    private static class LineFlushingOutputStream extends FilterOutputStream {
+        LineFlushingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (b == '\n')
+                out.flush();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            for (int i = off; i < off + len; i++)
+                if (b[i] == '\n') {
+                    out.flush();
+                    break;
+                }
+        }
+    }
+
+    /**
+     * Submit scripts to a running daemon and copy the job's output to a
+     * stream. This is the thin client used by <code>unravl --submit</code>.
+     *
+     * @param scripts
+     *            script files (resolved against the current directory) or
+     *            URLs
+     * @param out
+     *            where to write the job's output
+     * @return the job's exit status
+     * @throws ConnectException
+     *             if no daemon is running
+     * @throws IOException
+     *             if the daemon cannot be reached
+     */
+    public static int submit(String scripts[], PrintStream out)
+            throws IOException {
+        Properties props = daemonProperties();
+        StringBuilder job = new StringBuilder();
+        for (String script : scripts) {
+            File file = new File(script);
+            job.append(file.exists() ? file.getAbsolutePath() : script)
+                    .append('\n');
+        }
+        HttpURLConnection conn = post(props, "/run", job.toString());
+        int rc = 1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                conn.getInputStream(), "UTF-8"))) {
+            String pending = null;
+            for (String line = reader.readLine(); line != null; line = reader
+                    .readLine()) {
+                if (line.startsWith(EXIT_STATUS_PREFIX)) {
+                    rc = Integer.parseInt(line.substring(
+                            EXIT_STATUS_PREFIX.length()).trim());
+                    continue;
+                }
+                // hold back one line, to drop the blank line before the status
+                if (pending != null)
+                    out.println(pending);
+                pending = line;
+            }
+            if (pending != null && !pending.isEmpty())
+                out.println(pending);
+        }
+        out.flush();
+        return rc;
+    }
+
+    /**
+     * Ask a running daemon to stop
+     *
+     * @throws ConnectException
+     *             if no daemon is running
+     * @throws IOException
+     *             if the daemon cannot be reached
+     */
+    public static void stopDaemon() throws IOException {
+        HttpURLConnection conn = post(daemonProperties(), "/stop", "");
+        try (InputStream in = conn.getInputStream()) {
+            Binary.copy(in, new ByteArrayOutputStream());
+        }
+    }
+
+    private static Properties daemonProperties() throws IOException {
+        File file = daemonFile();
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (FileNotFoundException e) {
+            throw new ConnectException("No UnRAVL daemon (no " + file + ")");
+        }
+        return props;
+    }
+
+    private static HttpURLConnection post(Properties props, String path,
+            String body) throws IOException {
+        URL url = new URL("http", InetAddress.getLoopbackAddress()
+                .getHostAddress(), Integer.parseInt(props.getProperty("port",
+                "0")), path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty(TOKEN_HEADER, props.getProperty("token", ""));
+        conn.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body.getBytes("UTF-8"));
+        }
+        if (conn.getResponseCode() != 200)
+            throw new IOException("UnRAVL daemon returned "
+                    + conn.getResponseCode() + " " + conn.getResponseMessage());
+        return conn;
+    }
+
+    static String[] lines(String text) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : text.split("\r?\n"))
+            if (!line.trim().isEmpty())
+                lines.add(line.trim());
+        return lines.toArray(new String[lines.size()]);
+    }
+}
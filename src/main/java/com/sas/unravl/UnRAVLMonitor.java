@@ -0,0 +1,260 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.RollingNdjsonWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs UnRAVL scripts repeatedly, on a fixed interval, as synthetic monitors,
+ * inside one process. Start it with
+ *
+ * <pre>
+ * unravl --monitor script-file [... script-file]
+ * </pre>
+ *
+ * Each script file is a suite which runs every {@value #INTERVAL_PROPERTY}
+ * seconds (default 60) in a new {@link UnRAVLRuntime} forked from a warm
+ * runtime. Each run starts after a random delay of up to
+ * {@value #JITTER_PROPERTY} seconds (default: a tenth of the interval) so that
+ * suites do not all start at once. A suite never runs twice at the same time:
+ * if a run takes longer than the interval, the missed runs are skipped (and
+ * counted in the next result) rather than queued.
+ * <p>
+ * Script files are parsed once and parsed again only when they change (see
+ * {@link UnRAVLRuntime#read(String)}). The script engine factories and HTTP
+ * connection pool are shared by all runs; each run's runtime compiles its own
+ * script expressions, so runs do not share script engine state.
+ * <p>
+ * After each run, one JSON result is appended to the results file
+ * {@value #OUTPUT_PROPERTY} (default <code>unravl-monitor.ndjson</code>):
+ *
+ * <pre>
+ * { "time" : <em>start-millis</em>, "suite" : "<em>script-file</em>",
+ *   "passed" : true, "failed" : 0, "millis" : 123, "skipped" : 0,
+ *   "calls" : [ { "method" : "GET", "uri" : "...", "status" : 200, "millis" : 98 } ] }
+ * </pre>
+ *
+ * A run which throws an exception also has an "error" message. The results
+ * file rolls over after {@value #MAX_BYTES_PROPERTY} bytes (default 10MB),
+ * keeping {@value #FILES_PROPERTY} older files (default 5).
+ *
+ * @author David.Biesack@sas.com
+ */
+public class UnRAVLMonitor {
+
+    private static final Logger logger = Logger.getLogger(UnRAVLMonitor.class);
+
+    /** System property: seconds between runs of each suite */
+    public static final String INTERVAL_PROPERTY = "unravl.monitor.interval";
+    /** System property: maximum random delay, in seconds, before each run */
+    public static final String JITTER_PROPERTY = "unravl.monitor.jitter";
+    /** System property: the results file */
+    public static final String OUTPUT_PROPERTY = "unravl.monitor.output";
+    /** System property: the size at which the results file rolls over */
+    public static final String MAX_BYTES_PROPERTY = "unravl.monitor.maxBytes";
+    /** System property: the number of rolled over results files to keep */
+    public static final String FILES_PROPERTY = "unravl.monitor.files";
+
+    private static final int MAX_THREADS = 4;
+
+    private final UnRAVLRuntime warm;
+    private final List<Suite> suites = new ArrayList<Suite>();
+    private final long intervalMillis;
+    private final long jitterMillis;
+    private final RollingNdjsonWriter results;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * Create a monitor
+     *
+     * @param scripts
+     *            the script files or URLs; each is one suite
+     * @param intervalMillis
+     *            time between the scheduled starts of each suite
+     * @param jitterMillis
+     *            maximum random delay added to each start
+     * @param results
+     *            where to write the results of each run
+     */
+    public UnRAVLMonitor(List<String> scripts, long intervalMillis,
+            long jitterMillis, RollingNdjsonWriter results) {
+        this.intervalMillis = intervalMillis;
+        this.jitterMillis = jitterMillis;
+        this.results = results;
+        for (String script : scripts)
+            suites.add(new Suite(script));
+        scheduler = new ScheduledThreadPoolExecutor(Math.max(1,
+                Math.min(MAX_THREADS, suites.size())), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "UnRAVL monitor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        warm = new UnRAVLRuntime();
+        warm.warmUp();
+    }
+
+    /**
+     * Create a monitor configured by the system properties described above
+     *
+     * @param scripts
+     *            the script files or URLs; each is one suite
+     * @return the monitor
+     */
+    public static UnRAVLMonitor fromSystemProperties(String scripts[]) {
+        long interval = Long.getLong(INTERVAL_PROPERTY, 60L) * 1000L;
+        long jitter = System.getProperty(JITTER_PROPERTY) == null ? interval / 10
+                : Long.getLong(JITTER_PROPERTY, 0L) * 1000L;
+        RollingNdjsonWriter results = new RollingNdjsonWriter(new File(
+                System.getProperty(OUTPUT_PROPERTY, "unravl-monitor.ndjson")),
+                Long.getLong(MAX_BYTES_PROPERTY, 10L * 1024 * 1024),
+                Integer.getInteger(FILES_PROPERTY, 5));
+        List<String> list = new ArrayList<String>();
+        for (String script : scripts)
+            list.add(script);
+        return new UnRAVLMonitor(list, interval, jitter, results);
+    }
+
+    /**
+     * Schedule the first run of each suite
+     *
+     * @return this monitor
+     */
+    public UnRAVLMonitor start() {
+        long now = System.currentTimeMillis();
+        for (Suite suite : suites) {
+            suite.nextTick = now;
+            suite.schedule(jitter());
+        }
+        logger.info("Monitoring " + suites.size() + " suites every "
+                + intervalMillis + "ms");
+        return this;
+    }
+
+    /**
+     * Stop scheduling runs, wait briefly for running suites, and close the
+     * results file
+     */
+    public void stop() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            results.close();
+        } catch (IOException e) {
+            logger.warn("Could not close " + results.getFile() + ": "
+                    + e.getMessage());
+        }
+        stopped.countDown();
+    }
+
+    /**
+     * Wait until the monitor is stopped
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private long jitter() {
+        return jitterMillis <= 0 ? 0 : ThreadLocalRandom.current().nextLong(
+                jitterMillis + 1);
+    }
+
+    // One script file. A suite schedules its next run only when its current
+    // run is done, so runs of a suite never overlap.
+    private final class Suite implements Runnable {
+        final String script;
+        long nextTick;
+        int skipped;
+
+        Suite(String script) {
+            this.script = script;
+        }
+
+        void schedule(long delay) {
+            try {
+                scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // stopped
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                results.write(runOnce());
+            } catch (Throwable e) {
+                logger.error("Could not record monitor result for " + script
+                        + ": " + e.getMessage());
+            }
+            long now = System.currentTimeMillis();
+            nextTick += intervalMillis;
+            skipped = 0;
+            while (nextTick <= now) {
+                nextTick += intervalMillis;
+                skipped++;
+            }
+            schedule(nextTick - now + jitter());
+        }
+
+        private ObjectNode runOnce() {
+            long start = System.currentTimeMillis();
+            UnRAVLRuntime runtime = new UnRAVLRuntime(warm);
+            String error = null;
+            try {
+                runtime.execute(runtime.read(script));
+            } catch (Exception e) {
+                error = e.getMessage() == null ? e.toString() : e.getMessage();
+            }
+            int failed = runtime.report();
+            if (error != null && failed == 0)
+                failed = 1;
+            long millis = System.currentTimeMillis() - start;
+
+            ObjectNode result = Json.jsonNodeFactory().objectNode();
+            result.put("time", start);
+            result.put("suite", script);
+            result.put("passed", failed == 0);
+            result.put("failed", failed);
+            result.put("millis", millis);
+            result.put("skipped", skipped);
+            if (error != null)
+                result.put("error", error);
+            ArrayNode calls = result.putArray("calls");
+            for (ApiCall call : runtime.getApiCalls()) {
+                if (call.getMethod() == null)
+                    continue;
+                ObjectNode c = calls.addObject();
+                c.put("method", call.getMethod().name());
+                c.put("uri", call.getURI());
+                c.put("status", call.getHttpStatus());
+                c.put("millis", call.getElapsedMillis());
+            }
+            return result;
+        }
+    }
+}
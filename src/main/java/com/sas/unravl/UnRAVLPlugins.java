@@ -1,30 +1,50 @@
 // Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
 package com.sas.unravl;
 
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.annotations.UnRAVLAuthPlugin;
 import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
 import com.sas.unravl.assertions.UnRAVLAssertion;
+import com.sas.unravl.auth.AuthSession;
 import com.sas.unravl.auth.CredentialsProvider;
 import com.sas.unravl.auth.NetrcCredentialsProvider;
+import com.sas.unravl.auth.SessionAuth;
 import com.sas.unravl.auth.UnRAVLAuth;
 import com.sas.unravl.extractors.UnRAVLExtractor;
 import com.sas.unravl.generators.UnRAVLRequestBodyGenerator;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
 
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultRedirectStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.client.ClientHttpResponse;
@@ -41,19 +61,77 @@ public class UnRAVLPlugins {
 
     private static final Logger logger = Logger.getLogger(UnRAVLRuntime.class);
 
-    private Map<String, Class<? extends UnRAVLRequestBodyGenerator>> requestBodyGenerators = new HashMap<String, Class<? extends UnRAVLRequestBodyGenerator>>();
-    private Map<String, Class<? extends UnRAVLAssertion>> assertions = new HashMap<String, Class<? extends UnRAVLAssertion>>();
-    private Map<String, Class<? extends UnRAVLExtractor>> extractors = new HashMap<String, Class<? extends UnRAVLExtractor>>();
-    private Map<String, Class<? extends UnRAVLAuth>> auth = new HashMap<String, Class<? extends UnRAVLAuth>>();
+    /**
+     * The class path resource which lists plugin class names, one per line.
+     * Blank lines and lines starting with <code>#</code> are ignored. See
+     * {@link #addIndexedPlugins(ClassLoader)}.
+     */
+    public static final String PLUGIN_INDEX = "META-INF/unravl/plugins";
+
+    /**
+     * An immutable snapshot of the registered plugins, and the plans compiled
+     * with them. Registering a plugin publishes a new snapshot, so readers
+     * never lock and never see a partly updated registry, and plans compiled
+     * with older snapshots are not reused.
+     */
+    static final class Registry {
+        final Map<String, Class<? extends UnRAVLAssertion>> assertions;
+        final Map<String, Class<? extends UnRAVLExtractor>> extractors;
+        final Map<String, Class<? extends UnRAVLRequestBodyGenerator>> requestBodyGenerators;
+        final Map<String, Class<? extends UnRAVLAuth>> auth;
+        // compiled scripts, by script node identity
+        final Cache<ObjectNode, ScriptPlan> plans = CacheBuilder.newBuilder()
+                .weakKeys().build();
+
+        Registry(
+                Map<String, Class<? extends UnRAVLAssertion>> assertions,
+                Map<String, Class<? extends UnRAVLExtractor>> extractors,
+                Map<String, Class<? extends UnRAVLRequestBodyGenerator>> requestBodyGenerators,
+                Map<String, Class<? extends UnRAVLAuth>> auth) {
+            this.assertions = assertions;
+            this.extractors = extractors;
+            this.requestBodyGenerators = requestBodyGenerators;
+            this.auth = auth;
+        }
+
+        // the same plugins, without the compiled plans
+        Registry copy() {
+            return new Registry(assertions, extractors, requestBodyGenerators,
+                    auth);
+        }
+    }
+
+    private static final Registry EMPTY = new Registry(
+            Collections.<String, Class<? extends UnRAVLAssertion>> emptyMap(),
+            Collections.<String, Class<? extends UnRAVLExtractor>> emptyMap(),
+            Collections
+                    .<String, Class<? extends UnRAVLRequestBodyGenerator>> emptyMap(),
+            Collections.<String, Class<? extends UnRAVLAuth>> emptyMap());
+
+    private final AtomicReference<Registry> registry = new AtomicReference<Registry>(
+            EMPTY.copy());
 
-    private CredentialsProvider credentialsProvider;
+    private final ConcurrentMap<String, AuthSession> authSessions = new ConcurrentHashMap<String, AuthSession>();
+    private final ConcurrentMap<Class<?>, SessionAuth> sessionAuthPrototypes = new ConcurrentHashMap<Class<?>, SessionAuth>();
+    private final ConcurrentMap<Class<?>, PluginFactory<?>> factories = new ConcurrentHashMap<Class<?>, PluginFactory<?>>();
 
-    private RestTemplate defaultRestTemplate;
+    private volatile CredentialsProvider credentialsProvider;
+
+    private volatile RestTemplate defaultRestTemplate;
+
+    private static final String MAX_CONNECTIONS_PROPERTY = "unravl.http.maxConnections";
+    private static final String MAX_CONNECTIONS_PER_ROUTE_PROPERTY = "unravl.http.maxConnectionsPerRoute";
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static PoolingHttpClientConnectionManager connectionManager;
+    private static CloseableHttpClient sharedHttpClient;
+    private static final ConcurrentMap<String, ScriptEngineFactory> engineFactories = new ConcurrentHashMap<String, ScriptEngineFactory>();
 
     // must be "Groovy", "groovy", "JavaScript", "js", "javascript", or another
     // valid ScriptEngine name
     @Value("#{systemProperties['unravl.script.language'] ?: 'groovy'}")
-    private String scriptLanguage = "groovy";
+    private volatile String scriptLanguage = System.getProperty(
+            "unravl.script.language", "groovy");
 
     public void setScriptLanguage(String scriptLanguage) {
         this.scriptLanguage = scriptLanguage;
@@ -78,6 +156,8 @@ public class UnRAVLPlugins {
      */
     public void setCredentialsProvider(CredentialsProvider credentialsProvider) {
         this.credentialsProvider = credentialsProvider;
+        // sessions hold credentials from the previous provider
+        authSessions.clear();
     }
 
     public String getScriptLanguage() {
@@ -87,10 +167,29 @@ public class UnRAVLPlugins {
             return scriptLanguage;
     }
 
+    /**
+     * Return a new script engine for a script language. The engine factory for
+     * each language is found once and reused, which avoids searching the class
+     * path for script engines each time.
+     *
+     * @param lang
+     *            the script language, or null for the default language
+     * @return a new script engine
+     * @throws UnRAVLException
+     *             if no engine exists for the script language
+     */
     public ScriptEngine interpreter(String lang) throws UnRAVLException {
+        String name = lang == null ? getScriptLanguage() : lang;
+        ScriptEngineFactory factory = engineFactories.get(name);
+        if (factory != null) {
+            ScriptEngine engine = factory.getScriptEngine();
+            engine.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+            return engine;
+        }
         ScriptEngineManager manager = new ScriptEngineManager();
-        ScriptEngine engine = manager
-                .getEngineByName(lang == null ? getScriptLanguage() : lang);
+        ScriptEngine engine = manager.getEngineByName(name);
+        if (engine != null)
+            engineFactories.putIfAbsent(name, engine.getFactory());
         if (engine == null) {
             logSupportedScriptEngines();
             throw new UnRAVLException(String.format(
@@ -101,59 +200,319 @@ public class UnRAVLPlugins {
         return engine;
     }
 
+    /**
+     * Compile a script expression, if the engine supports compilation and is
+     * thread-safe (its "THREADING" parameter is "MULTITHREADED" or stronger,
+     * as for Groovy), so that the compiled form may be reused with the
+     * contexts of other engines. A compiled script keeps the engine which
+     * compiled it (and that engine's state, such as the functions Groovy
+     * scripts define), so {@link UnRAVLRuntime#compile(ScriptEngine, String)}
+     * keeps compiled scripts per runtime.
+     *
+     * @param engine
+     *            an engine from {@link #interpreter(String)}
+     * @param expression
+     *            the expression text
+     * @return the compiled expression, or null if the engine's expressions
+     *         must not be shared. Evaluate it with
+     *         {@link CompiledScript#eval(ScriptContext)}, passing the context
+     *         of the engine which holds the bindings.
+     * @throws ScriptException
+     *             if the expression cannot be compiled
+     */
+    public CompiledScript compile(ScriptEngine engine, String expression)
+            throws ScriptException {
+        if (!(engine instanceof Compilable)
+                || engine.getFactory().getParameter("THREADING") == null)
+            return null;
+        return ((Compilable) engine).compile(expression);
+    }
+
+    /**
+     * Return the factory which creates instances of a plugin class. The
+     * default is {@link PluginFactory#forClass(Class)}.
+     *
+     * @param pluginClass
+     *            an assertion, extractor, body generator or authentication
+     *            plugin class
+     * @param <T>
+     *            the plugin type
+     * @return the factory
+     */
+    @SuppressWarnings("unchecked")
+    public <T> PluginFactory<T> getFactory(Class<T> pluginClass) {
+        PluginFactory<?> factory = factories.get(pluginClass);
+        if (factory == null) {
+            factory = PluginFactory.forClass(pluginClass);
+            PluginFactory<?> existing = factories.putIfAbsent(pluginClass,
+                    factory);
+            if (existing != null)
+                factory = existing;
+        }
+        return (PluginFactory<T>) factory;
+    }
+
+    /**
+     * Use a factory to create instances of a plugin class
+     *
+     * @param pluginClass
+     *            the plugin class
+     * @param factory
+     *            creates instances of the class
+     * @param <T>
+     *            the plugin type
+     */
+    public <T> void setFactory(Class<T> pluginClass,
+            PluginFactory<? extends T> factory) {
+        factories.put(pluginClass, factory);
+        sessionAuthPrototypes.remove(pluginClass);
+        // plans hold factories, so stop using them
+        Registry r;
+        do {
+            r = registry.get();
+        } while (!registry.compareAndSet(r, r.copy()));
+    }
+
+    /**
+     * Create a separate registry which starts with the plugins, factories and
+     * settings of this one. Plugins registered later in either registry are
+     * not seen by the other, so one process can run suites with different
+     * plugins, each in runtimes created with
+     * {@link UnRAVLRuntime#UnRAVLRuntime(Map, UnRAVLPlugins)}. The copy has
+     * its own authentication sessions.
+     *
+     * @return the new registry
+     */
+    public UnRAVLPlugins copy() {
+        UnRAVLPlugins copy = new UnRAVLPlugins();
+        copy.registry.set(registry.get().copy());
+        copy.factories.putAll(factories);
+        copy.scriptLanguage = scriptLanguage;
+        copy.credentialsProvider = credentialsProvider;
+        copy.defaultRestTemplate = defaultRestTemplate;
+        return copy;
+    }
+
+    // the current snapshot
+    Registry getRegistry() {
+        return registry.get();
+    }
+
+    /**
+     * Return the compiled plan for a script, compiling it on first use. Plans
+     * are shared by every runtime which uses these plugins, for as long as the
+     * script node is in use, so the node must not be modified.
+     *
+     * @param script
+     *            the script object
+     * @return the script's plan
+     * @throws UnRAVLException
+     *             if the script cannot be compiled
+     */
+    public ScriptPlan plan(ObjectNode script) throws UnRAVLException {
+        Registry r = registry.get();
+        ScriptPlan plan = r.plans.getIfPresent(script);
+        if (plan == null) {
+            // plans are immutable, so compiling one twice is harmless
+            plan = new ScriptPlan(script, this, r);
+            r.plans.put(script, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Register the plugin classes listed in every {@link #PLUGIN_INDEX}
+     * resource visible to a class loader. This is much faster than a Spring
+     * component scan of the class path.
+     *
+     * @param loader
+     *            the class loader used to find the indexes and load the classes
+     * @throws UnRAVLException
+     *             if an index cannot be read, or if it names a class which
+     *             cannot be loaded or is not a plugin
+     */
+    public void addIndexedPlugins(ClassLoader loader) throws UnRAVLException {
+        try {
+            Enumeration<URL> indexes = loader.getResources(PLUGIN_INDEX);
+            while (indexes.hasMoreElements()) {
+                URL index = indexes.nextElement();
+                logger.trace("Loading plugins listed in " + index);
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(index.openStream(), "UTF-8"))) {
+                    for (String line = reader.readLine(); line != null; line = reader
+                            .readLine()) {
+                        String className = line.trim();
+                        if (className.isEmpty() || className.startsWith("#"))
+                            continue;
+                        addPlugin(Class.forName(className, true, loader));
+                    }
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new UnRAVLException("Could not load UnRAVL plugins: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Register a plugin class according to its plugin annotation, such as
+     * {@link UnRAVLAssertionPlugin} or {@link UnRAVLAuthPlugin}
+     *
+     * @param pluginClass
+     *            the plugin class
+     * @throws UnRAVLException
+     *             if the class does not have a plugin annotation, or does not
+     *             implement the corresponding plugin interface
+     */
+    public void addPlugin(Class<?> pluginClass) throws UnRAVLException {
+        try {
+            if (pluginClass.isAnnotationPresent(UnRAVLAssertionPlugin.class))
+                addAssertion(pluginClass.asSubclass(UnRAVLAssertion.class));
+            else if (pluginClass
+                    .isAnnotationPresent(UnRAVLExtractorPlugin.class))
+                addExtractor(pluginClass.asSubclass(UnRAVLExtractor.class));
+            else if (pluginClass
+                    .isAnnotationPresent(UnRAVLRequestBodyGeneratorPlugin.class))
+                addRequestBodyGenerator(pluginClass
+                        .asSubclass(UnRAVLRequestBodyGenerator.class));
+            else if (pluginClass.isAnnotationPresent(UnRAVLAuthPlugin.class))
+                addAuth(pluginClass.asSubclass(UnRAVLAuth.class));
+            else
+                throw new UnRAVLException(pluginClass.getName()
+                        + " does not have an UnRAVL plugin annotation");
+        } catch (ClassCastException e) {
+            throw new UnRAVLException(pluginClass.getName()
+                    + " does not implement its UnRAVL plugin interface", e);
+        }
+    }
+
     public void addAssertion(Class<? extends UnRAVLAssertion> class1) {
         UnRAVLAssertionPlugin a = class1
                 .getAnnotation(UnRAVLAssertionPlugin.class);
         String[] keys = a.value();
-        for (String key : keys) {
+        for (String key : keys)
             logger.trace("Define assertion '" + key + "' via " + class1);
-            assertions.put(key, class1);
-        }
+        Registry r;
+        do {
+            r = registry.get();
+        } while (!registry.compareAndSet(r, new Registry(with(r.assertions,
+                keys, class1), r.extractors, r.requestBodyGenerators, r.auth)));
     }
 
     public void addAuth(Class<? extends UnRAVLAuth> class1) {
         UnRAVLAuthPlugin a = class1.getAnnotation(UnRAVLAuthPlugin.class);
         String[] keys = a.value();
-        for (String key : keys) {
+        for (String key : keys)
             logger.trace("Define auth '" + key + "' via " + class1);
-            auth.put(key, class1);
-        }
+        Registry r;
+        do {
+            r = registry.get();
+        } while (!registry.compareAndSet(r, new Registry(r.assertions,
+                r.extractors, r.requestBodyGenerators, with(r.auth, keys,
+                        class1))));
     }
 
     public void addExtractor(Class<? extends UnRAVLExtractor> class1) {
         UnRAVLExtractorPlugin a = class1
                 .getAnnotation(UnRAVLExtractorPlugin.class);
-        for (String key : a.value()) {
+        for (String key : a.value())
             logger.trace("Define extractor '" + key + "' via " + class1);
-            extractors.put(key, class1);
-        }
-
+        Registry r;
+        do {
+            r = registry.get();
+        } while (!registry.compareAndSet(r, new Registry(r.assertions, with(
+                r.extractors, a.value(), class1), r.requestBodyGenerators,
+                r.auth)));
     }
 
     public void addRequestBodyGenerator(
             Class<? extends UnRAVLRequestBodyGenerator> class1) {
         UnRAVLRequestBodyGeneratorPlugin a = class1
                 .getAnnotation(UnRAVLRequestBodyGeneratorPlugin.class);
-        for (String key : a.value()) {
+        for (String key : a.value())
             logger.trace("Define body generator '" + key + "' via " + class1);
-            requestBodyGenerators.put(key, class1);
-        }
+        Registry r;
+        do {
+            r = registry.get();
+        } while (!registry.compareAndSet(r, new Registry(r.assertions,
+                r.extractors, with(r.requestBodyGenerators, a.value(), class1),
+                r.auth)));
+    }
+
+    // a copy of an immutable map, with keys mapped to a value
+    private static <V> Map<String, V> with(Map<String, V> map,
+            String keys[], V value) {
+        Map<String, V> copy = new HashMap<String, V>(map);
+        for (String key : keys)
+            copy.put(key, value);
+        return Collections.unmodifiableMap(copy);
     }
 
+    /**
+     * @return an unmodifiable snapshot of the assertion plugins, by keyword
+     */
     public Map<String, Class<? extends UnRAVLAssertion>> getAssertions() {
-        return assertions;
+        return registry.get().assertions;
     }
 
+    /**
+     * @return an unmodifiable snapshot of the body generator plugins, by
+     *         keyword
+     */
     public Map<String, Class<? extends UnRAVLRequestBodyGenerator>> getBodyGenerators() {
-        return requestBodyGenerators;
+        return registry.get().requestBodyGenerators;
     }
 
+    /**
+     * @return an unmodifiable snapshot of the extractor plugins, by keyword
+     */
     public Map<String, Class<? extends UnRAVLExtractor>> getExtractors() {
-        return extractors;
+        return registry.get().extractors;
     }
 
+    /**
+     * @return an unmodifiable snapshot of the authentication plugins, by
+     *         keyword
+     */
     public Map<String, Class<? extends UnRAVLAuth>> getAuth() {
-        return auth;
+        return registry.get().auth;
+    }
+
+    /**
+     * The open {@link AuthSession}s of {@link SessionAuth} plugins, by session
+     * key. {@link ApiCall} adds sessions on first use and removes a session
+     * when a call using it is rejected with 401 Unauthorized. The sessions
+     * belong to the current credentials provider, and are discarded when
+     * another provider is {@link #setCredentialsProvider(CredentialsProvider)
+     * set}.
+     *
+     * @return the shared, thread-safe session map
+     */
+    public ConcurrentMap<String, AuthSession> getAuthSessions() {
+        return authSessions;
+    }
+
+    /**
+     * Return the shared instance of a session auth plugin class, used only to
+     * compute session keys
+     *
+     * @param authClass
+     *            an auth plugin class which implements {@link SessionAuth}
+     * @return the shared instance of that class
+     * @throws UnRAVLException
+     *             if the class cannot be instantiated
+     */
+    public SessionAuth getSessionAuth(Class<? extends UnRAVLAuth> authClass)
+            throws UnRAVLException {
+        SessionAuth prototype = sessionAuthPrototypes.get(authClass);
+        if (prototype == null) {
+            prototype = (SessionAuth) getFactory(authClass).newInstance();
+            SessionAuth existing = sessionAuthPrototypes.putIfAbsent(
+                    authClass, prototype);
+            if (existing != null)
+                prototype = existing;
+        }
+        return prototype;
     }
 
     /**
@@ -210,6 +569,11 @@ public class UnRAVLPlugins {
      * that ApiCall can extract the HTTP response code, headers, and response
      * body.
      * </p>
+     * <p>
+     * All RestTemplates created here share one pool of connections (see
+     * {@link #getConnectionManager()}), so connections (and TLS sessions) are
+     * reused across calls.
+     * </p>
      * 
      * @return a RestTemplate instance to use for making HTTP calls when running
      *         UnRAVL scripts.
@@ -234,6 +598,8 @@ public class UnRAVLPlugins {
         };
         HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory();
         final HttpClient httpClient = HttpClientBuilder.create()
+                .setConnectionManager(getConnectionManager())
+                .setConnectionManagerShared(true)
                 .setRedirectStrategy(new UnRAVLRedirectStrategy()).build();
         factory.setHttpClient(httpClient);
 
@@ -242,6 +608,44 @@ public class UnRAVLPlugins {
         return rt;
     }
 
+    /**
+     * Return the connection pool shared by all HTTP clients created by UnRAVL,
+     * including the {@link #newRestTemplate()} clients and the
+     * {@link #getHttpClient()} client used by auth plugins. The pool size is
+     * set with the system properties <code>unravl.http.maxConnections</code>
+     * (default 100) and <code>unravl.http.maxConnectionsPerRoute</code>
+     * (default 20).
+     * 
+     * @return the shared connection manager
+     */
+    public static synchronized PoolingHttpClientConnectionManager getConnectionManager() {
+        if (connectionManager == null) {
+            connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(Integer.getInteger(
+                    MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS));
+            connectionManager.setDefaultMaxPerRoute(Integer.getInteger(
+                    MAX_CONNECTIONS_PER_ROUTE_PROPERTY,
+                    DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+        }
+        return connectionManager;
+    }
+
+    /**
+     * Return a shared HTTP client which uses the shared connection pool. This
+     * client does not follow redirects. Callers must not close it, but must
+     * consume or close each response so its connection returns to the pool.
+     * 
+     * @return the shared HTTP client
+     */
+    public static synchronized CloseableHttpClient getHttpClient() {
+        if (sharedHttpClient == null)
+            sharedHttpClient = HttpClientBuilder.create()
+                    .setConnectionManager(getConnectionManager())
+                    .setConnectionManagerShared(true).disableRedirectHandling()
+                    .build();
+        return sharedHttpClient;
+    }
+
     private static final class UnRAVLRedirectStrategy extends
             DefaultRedirectStrategy {
 
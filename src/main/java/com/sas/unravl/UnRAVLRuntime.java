@@ -12,10 +12,16 @@ import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
+import javax.script.ScriptException;
 import javax.script.SimpleBindings;
 
 import org.apache.log4j.Logger;
@@ -26,6 +32,8 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.Option;
 import com.jayway.jsonpath.spi.json.JacksonJsonProvider;
@@ -36,7 +44,9 @@ import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
 import com.sas.unravl.assertions.UnRAVLAssertionException;
 import com.sas.unravl.generators.UnRAVLRequestBodyGenerator;
+import com.sas.unravl.util.ContentCache;
 import com.sas.unravl.util.Json;
+import com.sas.unravl.util.LayeredMap;
 import com.sas.unravl.util.VariableResolver;
 
 /**
@@ -57,11 +67,14 @@ public class UnRAVLRuntime implements Cloneable {
      */
     public static final String ENV_PROPERTY_CHANGE_PREFIX = "env.";
     private static final Logger logger = Logger.getLogger(UnRAVLRuntime.class);
-    private Map<String, Object> env; // script variables
+    private LayeredMap env; // script variables
+    private final SharedScope shared; // shared with forked runtimes
+    private final UnRAVLPlugins plugins;
     private Map<String, UnRAVL> scripts = new LinkedHashMap<String, UnRAVL>();
     private Map<String, UnRAVL> templates = new LinkedHashMap<String, UnRAVL>();
     // a history of the API calls we've made in this runtime
-    private ArrayList<ApiCall> calls = new ArrayList<ApiCall>();
+    private CallHistory calls = new CallHistory();
+    private ResultsWriter resultsWriter;
     private int failedAssertionCount;
 
     // used to expand variable references {varName} in strings:
@@ -69,38 +82,83 @@ public class UnRAVLRuntime implements Cloneable {
     private String scriptLanguage;
     private boolean cancelled;
 
+    private static final int MAX_COMPILED_SCRIPTS = 1000;
+    // this runtime's compiled expressions, by language and text; not shared
+    // with forked runtimes, which have their own script engine state
+    private final Cache<String, CompiledScript> compiledScripts = CacheBuilder
+            .newBuilder().maximumSize(MAX_COMPILED_SCRIPTS).build();
+
     public UnRAVLRuntime() {
         this(new LinkedHashMap<String, Object>());
     }
 
     /**
-     * Instantiate a new runtime with the given environment
+     * Instantiate a new runtime with the given environment. The runtime binds
+     * the system properties and copies the environment; it does not change
+     * <var>environment</var>.
      *
      * @param environment
      *            name/value bindings
      */
     public UnRAVLRuntime(Map<String, Object> environment) {
+        this(environment, getDefaultPlugins());
+    }
+
+    /**
+     * Instantiate a new runtime with the given environment, which uses the
+     * given plugins instead of the shared ones. Use
+     * {@link UnRAVLPlugins#copy()} to create plugins which can be changed
+     * without affecting other runtimes.
+     *
+     * @param environment
+     *            name/value bindings, which are copied
+     * @param plugins
+     *            the plugins this runtime and the runtimes created from it
+     *            use
+     */
+    public UnRAVLRuntime(Map<String, Object> environment, UnRAVLPlugins plugins) {
         configure();
-        this.env = environment;
+        this.plugins = plugins;
+        shared = new SharedScope();
+        // system properties take precedence, as they did when bound last
+        env = systemProperties();
+        env.put(SharedScope.NAME, shared);
+        // shared.name properties and bindings set shared variables
+        Properties properties = System.getProperties();
+        for (String name : properties.stringPropertyNames()) {
+            String sharedName = SharedScope.sharedName(name);
+            if (sharedName != null)
+                shared.set(sharedName, properties.getProperty(name));
+        }
+        for (Map.Entry<String, Object> e : environment.entrySet()) {
+            String sharedName = SharedScope.sharedName(e.getKey());
+            if (sharedName == null) {
+                if (!env.containsKey(e.getKey()))
+                    env.put(e.getKey(), e.getValue());
+            } else if (e.getValue() != null)
+                shared.setIfAbsent(sharedName, e.getValue());
+        }
         setScriptLanguage(getPlugins().getScriptLanguage());
-        for (Map.Entry<Object, Object> e : System.getProperties().entrySet())
-            bind(e.getKey().toString(), e.getValue());
         bind("failedAssertionCount", Integer.valueOf(0));
         resetBindings();
     }
 
     /**
      * Instantiate a new runtime with the environment of the input runtime
-     * instance. The environment is copied, but the new runtime gets its own
-     * empty list of calls, scripts, and templates.
+     * instance. The environment is forked in constant time (see
+     * {@link LayeredMap#fork()}), so later bindings in either runtime are not
+     * seen by the other. The new runtime gets its own empty list of calls,
+     * scripts, and templates.
      *
      * @param runtime
      *            an existing Runtime (may not be null)
      */
     public UnRAVLRuntime(UnRAVLRuntime runtime) {
-        env = new LinkedHashMap<String, Object>();
-        env.putAll(runtime.env);
-        calls = new ArrayList<ApiCall>();
+        plugins = runtime.plugins;
+        shared = runtime.shared;
+        env = runtime.env.fork();
+        calls = new CallHistory(runtime.calls);
+        resultsWriter = runtime.resultsWriter;
         scripts = new LinkedHashMap<String, UnRAVL>();
         cancelled = false;
         variableResolver = new VariableResolver(env);
@@ -171,10 +229,67 @@ public class UnRAVLRuntime implements Cloneable {
         return engine;
     }
 
+    /**
+     * Return a compiled form of a script expression, compiled once per script
+     * language and expression text by this runtime and then reused by its
+     * later evaluations. Compiled scripts keep the engine which compiled them,
+     * so they are not shared with other runtimes.
+     *
+     * @param engine
+     *            an engine from {@link #interpreter(String)}
+     * @param expression
+     *            the expression text
+     * @return the compiled expression, or null if the engine's expressions
+     *         cannot be reused (see
+     *         {@link UnRAVLPlugins#compile(ScriptEngine, String)})
+     * @throws ScriptException
+     *             if the expression cannot be compiled
+     */
+    public CompiledScript compile(final ScriptEngine engine,
+            final String expression) throws ScriptException {
+        if (!(engine instanceof Compilable)
+                || engine.getFactory().getParameter("THREADING") == null)
+            return null;
+        String key = engine.getFactory().getEngineName() + "\n" + expression;
+        try {
+            return compiledScripts.get(key, new Callable<CompiledScript>() {
+                @Override
+                public CompiledScript call() throws ScriptException {
+                    return getPlugins().compile(engine, expression);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw (ScriptException) e.getCause();
+        }
+    }
+
+    /**
+     * Load and initialize the default script language's engine and the shared
+     * HTTP client now, rather than during the first script, for long running
+     * processes which fork this runtime for each run
+     */
+    public void warmUp() {
+        try {
+            interpreter().eval("true");
+        } catch (UnRAVLException | ScriptException e) {
+            logger.warn("Could not initialize script language "
+                    + getScriptLanguage() + ": " + e.getMessage());
+        }
+        UnRAVLPlugins.getHttpClient();
+    }
+
     public Map<String, Object> getBindings() {
         return env;
     }
 
+    /**
+     * @return the thread-safe variables which this runtime shares with the
+     *         runtime it was forked from and the runtimes forked from it
+     */
+    public SharedScope getSharedScope() {
+        return shared;
+    }
+
     public int getFailedAssertionCount() {
         return failedAssertionCount;
     }
@@ -201,26 +316,51 @@ public class UnRAVLRuntime implements Cloneable {
         return templates;
     }
 
+    /**
+     * System property which names Spring application context configuration
+     * files (comma separated class path locations). If set,
+     * {@link #configure()} uses the {@link UnRAVLPlugins} bean defined there,
+     * such as to inject a custom RestTemplate.
+     */
+    public static final String SPRING_CONTEXT_PROPERTY = "unravl.spring.context";
+
+    private static UnRAVLPlugins defaultPlugins = null;
+    private static LayeredMap systemProperties = null;
+    private static int systemPropertiesHash;
     private static ClassPathXmlApplicationContext ctx = null;
 
     /**
-     * UnRAVL can be configured with Spring by loading the Spring config
-     * classpath:/META-INF/spring/unravlApplicationContext.xml . If that has not
-     * been done, this method initializes Spring. Spring performs a
-     * component-scan for assertions, body generators, and extractors. As each
-     * such component is loaded, it's runtime property is {@literal @} autowired
-     * to a UnRAVLRuntime instance this calls the register*() methods. See
-     * {@link UnRAVLRequestBodyGenerator}, {@link UnRAVLAssertionPlugin}, and
-     * {@link UnRAVLExtractorPlugin}.
+     * Initialize the shared {@link UnRAVLPlugins}, if that has not been done.
+     * The assertions, body generators, extractors and auth plugins are
+     * registered from the plugin index files (see
+     * {@link UnRAVLPlugins#PLUGIN_INDEX}), so Spring is not needed to find
+     * them. See {@link UnRAVLRequestBodyGenerator},
+     * {@link UnRAVLAssertionPlugin}, and {@link UnRAVLExtractorPlugin}.
+     * <p>
+     * If the {@link #SPRING_CONTEXT_PROPERTY} system property is set, Spring
+     * loads that configuration and the plugins instance is the
+     * {@link UnRAVLPlugins} bean it defines. Plugins which Spring discovers,
+     * such as with
+     * classpath:/META-INF/spring/unravlApplicationContext.xml, register
+     * themselves through their {@literal @}Autowired setters as well.
      */
     public static synchronized void configure() {
-        if (ctx != null)
+        if (defaultPlugins != null)
             return;
 
-        // Configure Spring. Works on Unix; fails on Windows?
-        String[] contextXml = new String[] { "/META-INF/spring/unravlApplicationContext.xml" };
-        ctx = new ClassPathXmlApplicationContext(contextXml);
-        assert (ctx != null);
+        UnRAVLPlugins configured;
+        String contextXml = System.getProperty(SPRING_CONTEXT_PROPERTY);
+        if (contextXml != null) {
+            ctx = new ClassPathXmlApplicationContext(contextXml.split(","));
+            configured = ctx.getBean(UnRAVLPlugins.class);
+        } else
+            configured = new UnRAVLPlugins();
+        try {
+            configured.addIndexedPlugins(UnRAVLRuntime.class.getClassLoader());
+        } catch (UnRAVLException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        defaultPlugins = configured;
 
         // Configure jsonPath to use Jackson
         Configuration.Defaults jsonPathConfig = new Configuration.Defaults() {
@@ -359,7 +499,7 @@ public class UnRAVLRuntime implements Cloneable {
     /** Stop execution. */
     public void cancel() {
         if (!cancelled) {
-            pcs.firePropertyChange("cancelled", Boolean.FALSE, Boolean.TRUE);
+            fireCancelled(true);
             this.cancelled = true;
         }
     }
@@ -414,6 +554,10 @@ public class UnRAVLRuntime implements Cloneable {
      * on <code>bind("two", Integer.valueOf(2))</code>, this will fire an event
      * with the property named <code>"env.two"</code>.
      * </p>
+     * <p>
+     * A name of the form <code>shared.<em>name</em></code> binds the variable
+     * <em>name</em> in the {@link SharedScope}.
+     * </p>
      *
      * @see #unbind(String)
      * @param varName
@@ -429,18 +573,30 @@ public class UnRAVLRuntime implements Cloneable {
             throw new RuntimeException(ue);
         }
 
-        Object oldValue = binding(varName);
-        env.put(varName, value);
-        pcs.firePropertyChange(ENV_PROPERTY_CHANGE_PREFIX + varName, oldValue,
-                value);
-
-        logger.trace("bind("
-                + varName
-                + ","
-                + value
-                + ")"
-                + ((value instanceof String) ? "" : " "
-                        + (value == null ? "null" : value.getClass().getName())));
+        // events and trace messages cost nothing unless someone listens
+        boolean fire = pcs.hasListeners(null);
+        Object oldValue = fire ? binding(varName) : null;
+        String sharedName = SharedScope.sharedName(varName);
+        if (sharedName != null)
+            shared.set(sharedName, value);
+        else
+            env.put(varName, value);
+        if (fire)
+            pcs.firePropertyChange(ENV_PROPERTY_CHANGE_PREFIX + varName,
+                    oldValue, value);
+        ChangeDispatcher dispatcher = changeDispatcher;
+        if (dispatcher != null && dispatcher.hasListeners())
+            dispatcher.bound(varName, value, env);
+
+        if (logger.isTraceEnabled())
+            logger.trace("bind("
+                    + varName
+                    + ","
+                    + value
+                    + ")"
+                    + ((value instanceof String) ? "" : " "
+                            + (value == null ? "null" : value.getClass()
+                                    .getName())));
         return this;
     }
 
@@ -453,7 +609,11 @@ public class UnRAVLRuntime implements Cloneable {
      * @see #bind(String,Object)
      */
     public void unbind(String varName) {
-        env.remove(varName);
+        String sharedName = SharedScope.sharedName(varName);
+        if (sharedName != null)
+            shared.remove(sharedName);
+        else
+            env.remove(varName);
     }
 
     /**
@@ -464,7 +624,8 @@ public class UnRAVLRuntime implements Cloneable {
      * @return the value bound to the variable
      */
     public Object binding(String varName) {
-        return env.get(varName);
+        String sharedName = SharedScope.sharedName(varName);
+        return sharedName != null ? shared.get(sharedName) : env.get(varName);
     }
 
     /**
@@ -475,7 +636,9 @@ public class UnRAVLRuntime implements Cloneable {
      * @return true iff the variable is bound
      */
     public boolean bound(String varName) {
-        return env.containsKey(varName);
+        String sharedName = SharedScope.sharedName(varName);
+        return sharedName != null ? shared.contains(sharedName) : env
+                .containsKey(varName);
     }
 
     /**
@@ -510,7 +673,13 @@ public class UnRAVLRuntime implements Cloneable {
             root = mapper.readTree(url);
         else {
             File f = new File(scriptFile);
-            root = mapper.readTree(f);
+            // parse each file once while it is unchanged. The parsed JSON,
+            // and the plans compiled from it, are shared by all runtimes, so
+            // it must not be modified.
+            if (f.isFile())
+                root = ContentCache.getInstance().json(f);
+            else
+                root = mapper.readTree(f);
         }
 
         if (root.isArray()) {
@@ -524,24 +693,23 @@ public class UnRAVLRuntime implements Cloneable {
     }
 
     public int report() {
-        int failed = (calls.size() == 0 ? 1 : 0);
-        for (ApiCall call : calls) {
-            failed += call.getFailedAssertions().size();
-        }
+        int failed = (calls.getTotalCalls() == 0 ? 1 : 0)
+                + calls.getFailedAssertionCount();
         if (cancelled)
             System.out.println("UnRAVL script execution was canceled.");
         return failed;
     }
 
     /**
-     * @return a list of the API calls
+     * @return the API calls which the call history keeps; by default, all of
+     *         them
      */
-    public List<ApiCall> getApiCalls() {
+    public CallHistory getApiCalls() {
         return calls;
     }
 
     /**
-     * @return The size of this runtime, which is the number of API calls
+     * @return The size of this runtime, which is the number of API calls kept
      */
     public int size() {
         return calls.size();
@@ -549,11 +717,68 @@ public class UnRAVLRuntime implements Cloneable {
 
     public void addApiCall(ApiCall apiCall) {
         calls.add(apiCall);
-        pcs.firePropertyChange("calls", null, calls);
+        fireCallsChanged();
+    }
+
+    /**
+     * Record a call which has completed: write its result, if there is a
+     * results writer, then apply the call history's policy to it
+     *
+     * @param apiCall
+     *            the call
+     */
+    void callCompleted(ApiCall apiCall) {
+        if (resultsWriter != null)
+            resultsWriter.write(CallResult.of(apiCall));
+        calls.completed(apiCall);
+    }
+
+    /**
+     * @param resultsWriter
+     *            where to write a {@link CallResult} for each completed call,
+     *            or null to not write results. Runtimes forked from this one
+     *            after this call share the writer. The caller closes it.
+     */
+    public void setResultsWriter(ResultsWriter resultsWriter) {
+        this.resultsWriter = resultsWriter;
+    }
+
+    public ResultsWriter getResultsWriter() {
+        return resultsWriter;
+    }
+
+    // A fork of the system properties, which are bound at the base of every
+    // environment. The bindings are shared until the properties change.
+    private static synchronized LayeredMap systemProperties() {
+        Properties properties = System.getProperties();
+        int hash = properties.hashCode();
+        if (systemProperties == null || hash != systemPropertiesHash) {
+            LayeredMap bindings = new LayeredMap();
+            for (Map.Entry<Object, Object> e : properties.entrySet())
+                // shared.name properties are bound in the shared scope
+                if (SharedScope.sharedName(e.getKey().toString()) == null)
+                    bindings.put(e.getKey().toString(), e.getValue());
+            systemProperties = bindings;
+            systemPropertiesHash = hash;
+        }
+        return systemProperties.fork();
     }
 
+    /**
+     * @return the plugins this runtime uses
+     */
     public UnRAVLPlugins getPlugins() {
-        return ctx.getBean(UnRAVLPlugins.class);
+        return plugins;
+    }
+
+    /**
+     * @return the shared plugins, which runtimes use unless they are created
+     *         with their own
+     * @see #configure()
+     */
+    public static synchronized UnRAVLPlugins getDefaultPlugins() {
+        configure();
+        return defaultPlugins;
     }
 
     public UnRAVL getTemplate(String templateName) {
@@ -581,13 +806,33 @@ public class UnRAVLRuntime implements Cloneable {
         calls.clear();
         if (cancelled) {
             cancelled = false;
-            pcs.firePropertyChange("cancelled", Boolean.TRUE, Boolean.FALSE);
+            fireCancelled(false);
         }
-        pcs.firePropertyChange("calls", null, calls);
+        fireCallsChanged();
     }
 
     private final PropertyChangeSupport pcs = new PropertyChangeSupport(this);
 
+    /**
+     * System property which sets the shortest time, in milliseconds, between
+     * the deliveries of change sets to a runtime's {@link ChangeSetListener}
+     * s. The default is 100.
+     */
+    public static final String CHANGE_INTERVAL_PROPERTY = "unravl.change.interval";
+
+    private volatile ChangeDispatcher changeDispatcher;
+
+    /**
+     * Add a listener which is called on the thread running the script for
+     * each change: for each variable bound (with the property name
+     * {@link #ENV_PROPERTY_CHANGE_PREFIX} followed by the variable name), each
+     * API call added (<code>"calls"</code>), and cancellation (
+     * <code>"cancelled"</code>). Listeners which can accept changes later
+     * should use {@link #addChangeSetListener(ChangeSetListener)}.
+     *
+     * @param listener
+     *            the listener
+     */
     public void addPropertyChangeListener(PropertyChangeListener listener) {
         this.pcs.addPropertyChangeListener(listener);
     }
@@ -596,6 +841,42 @@ public class UnRAVLRuntime implements Cloneable {
         this.pcs.removePropertyChangeListener(listener);
     }
 
+    /**
+     * Add a listener which receives this runtime's changes in batches, on a
+     * separate thread, at most once per {@link #CHANGE_INTERVAL_PROPERTY}
+     * milliseconds.
+     *
+     * @param listener
+     *            the listener
+     */
+    public synchronized void addChangeSetListener(ChangeSetListener listener) {
+        if (changeDispatcher == null)
+            changeDispatcher = new ChangeDispatcher(this, Long.getLong(
+                    CHANGE_INTERVAL_PROPERTY, 100L).longValue());
+        changeDispatcher.add(listener);
+    }
+
+    public synchronized void removeChangeSetListener(ChangeSetListener listener) {
+        if (changeDispatcher != null)
+            changeDispatcher.remove(listener);
+    }
+
+    private void fireCallsChanged() {
+        if (pcs.hasListeners(null))
+            pcs.firePropertyChange("calls", null, calls);
+        ChangeDispatcher dispatcher = changeDispatcher;
+        if (dispatcher != null && dispatcher.hasListeners())
+            dispatcher.callsChanged(calls.size());
+    }
+
+    private void fireCancelled(boolean value) {
+        pcs.firePropertyChange("cancelled", Boolean.valueOf(!value),
+                Boolean.valueOf(value));
+        ChangeDispatcher dispatcher = changeDispatcher;
+        if (dispatcher != null && dispatcher.hasListeners())
+            dispatcher.cancelled(value);
+    }
+
     /**
      * Checks if a node is a value node.
      *
@@ -0,0 +1,307 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sas.unravl.util.ContentCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs UnRAVL scripts, then watches the files they use and runs them again
+ * when the files change. Start it with
+ *
+ * <pre>
+ * unravl --watch script-file [... script-file]
+ * </pre>
+ *
+ * The files each script depends on are found by scanning the script: the
+ * script file itself, the script files it includes with
+ * <code>"@file"</code> elements, and the files named by other
+ * <code>"@file"</code> values, such as request bodies, expected response
+ * bodies and schemas. Files named in <code>"bind"</code> (or
+ * <code>"extract"</code>) elements are written by the scripts, so they are
+ * not watched. <code>{variable}</code> references in file names are expanded
+ * with the system properties only.
+ * <p>
+ * When files change, only the scripts which depend on them run again. Since
+ * templates are defined by running the scripts that define them, a script file
+ * that defines templates also runs before the affected scripts, and a change
+ * to it runs every script file after it.
+ * <p>
+ * Each run uses a new {@link UnRAVLRuntime} forked from one warm runtime, and
+ * reuses parsed scripts, expected files and schemas (see {@link ContentCache}
+ * ) from earlier runs.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class UnRAVLWatcher {
+
+    private static final Logger logger = Logger.getLogger(UnRAVLWatcher.class);
+
+    // wait this long after a change for more changes, such as when an editor
+    // saves several files
+    private static final long SETTLE_MILLIS = 100;
+
+    private final List<String> scripts;
+    private final UnRAVLRuntime warm;
+    private final Map<String, Set<File>> dependencies = new HashMap<String, Set<File>>();
+    private final Set<String> templateScripts = new HashSet<String>();
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+    private final AtomicInteger runs = new AtomicInteger();
+    private WatchService watcher;
+
+    /**
+     * Create a watcher
+     *
+     * @param scripts
+     *            the script files to run and watch
+     */
+    public UnRAVLWatcher(String scripts[]) {
+        this.scripts = Arrays.asList(scripts);
+        warm = new UnRAVLRuntime();
+        warm.warmUp();
+        for (String script : this.scripts)
+            scan(script);
+    }
+
+    /**
+     * Run all the scripts, then run affected scripts each time files change,
+     * until {@link #stop()} is called
+     *
+     * @throws IOException
+     *             if the files cannot be watched
+     */
+    public void watch() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        register();
+        run(scripts);
+        try {
+            for (;;) {
+                Set<File> changed = new LinkedHashSet<File>();
+                WatchKey key = watcher.take();
+                do {
+                    collect(key, changed);
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                List<String> affected = affected(changed);
+                if (affected.isEmpty())
+                    continue;
+                logger.info("Changed: " + changed);
+                for (String script : affected)
+                    scan(script);
+                register();
+                run(affected);
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Stop watching
+     */
+    public void stop() {
+        try {
+            if (watcher != null)
+                watcher.close();
+        } catch (IOException e) {
+            logger.warn("Could not close file watcher: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of times scripts have been run
+     */
+    public int getRunCount() {
+        return runs.get();
+    }
+
+    /**
+     * @param script
+     *            one of the watched scripts
+     * @return the files the script depends on
+     */
+    public Set<File> getDependencies(String script) {
+        return dependencies.get(script);
+    }
+
+    /**
+     * Return the scripts to run when files change, in their original order
+     *
+     * @param changed
+     *            the changed files
+     * @return the scripts which depend on the changed files, and the scripts
+     *         which define templates that they may use
+     */
+    public List<String> affected(Collection<File> changed) {
+        Set<File> canonical = new HashSet<File>();
+        for (File file : changed)
+            canonical.add(canonical(file));
+        List<String> affected = new ArrayList<String>();
+        List<String> templates = new ArrayList<String>();
+        boolean rest = false;
+        for (String script : scripts) {
+            boolean depends = rest
+                    || !disjoint(dependencies.get(script), canonical);
+            if (depends) {
+                affected.addAll(templates);
+                templates.clear();
+                affected.add(script);
+                // later scripts may use this script's templates
+                rest |= templateScripts.contains(script);
+            } else if (templateScripts.contains(script))
+                templates.add(script);
+        }
+        return affected;
+    }
+
+    private static boolean disjoint(Set<File> a, Set<File> b) {
+        for (File f : b)
+            if (a.contains(f))
+                return false;
+        return true;
+    }
+
+    private void run(List<String> toRun) {
+        runs.incrementAndGet();
+        long start = System.currentTimeMillis();
+        int rc = new Main().run(new UnRAVLRuntime(warm),
+                toRun.toArray(new String[toRun.size()]));
+        logger.info(String.format(
+                "Ran %s in %sms (%s). Watching for changes...", toRun,
+                System.currentTimeMillis() - start, rc == 0 ? "passed"
+                        : rc + " failed"));
+    }
+
+    private void collect(WatchKey key, Set<File> changed) {
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir != null && event.context() instanceof Path)
+                changed.add(dir.resolve((Path) event.context()).toFile());
+        }
+        key.reset();
+    }
+
+    // Watch the directories of all the dependencies
+    private void register() throws IOException {
+        if (watcher == null)
+            return;
+        Set<Path> dirs = new HashSet<Path>();
+        for (Set<File> files : dependencies.values())
+            for (File file : files)
+                dirs.add(file.getParentFile().toPath());
+        dirs.removeAll(watchedDirs.values());
+        for (Path dir : dirs) {
+            WatchKey key = dir.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirs.put(key, dir);
+        }
+    }
+
+    // Find the files a top level script depends on and whether it defines
+    // templates.
+    private void scan(String script) {
+        Set<File> files = new HashSet<File>();
+        boolean templates = false;
+        File file = ContentCache.localFile(script);
+        if (file != null)
+            templates = scanScripts(canonical(file), files);
+        dependencies.put(script, files);
+        if (templates)
+            templateScripts.add(script);
+        else
+            templateScripts.remove(script);
+    }
+
+    // Scan a script file; return true if it defines templates
+    private boolean scanScripts(File file, Set<File> files) {
+        if (!files.add(file))
+            return false;
+        try {
+            return scanScripts(ContentCache.getInstance().json(file), files);
+        } catch (IOException e) {
+            // may be mid-edit; it is still a dependency
+            logger.trace("Could not parse " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean scanScripts(JsonNode node, Set<File> files) {
+        boolean templates = false;
+        if (node.isArray()) {
+            for (JsonNode element : node)
+                templates |= scanScripts(element, files);
+        } else if (node.isTextual()) {
+            File included = reference(node.textValue());
+            if (included != null)
+                templates |= scanScripts(included, files);
+        } else if (node.isObject()) {
+            JsonNode name = node.get("name");
+            templates = name != null && name.isTextual()
+                    && name.textValue().endsWith(".template");
+            scanValues(node, files);
+        }
+        return templates;
+    }
+
+    // Add files referenced from a script's values
+    private void scanValues(JsonNode node, Set<File> files) {
+        if (node.isTextual()) {
+            File file = reference(node.textValue());
+            if (file != null)
+                files.add(file);
+        } else if (node.isObject()) {
+            for (Iterator<Map.Entry<String, JsonNode>> i = node.fields(); i
+                    .hasNext();) {
+                Map.Entry<String, JsonNode> field = i.next();
+                // extractors write files
+                if (!"bind".equals(field.getKey())
+                        && !"extract".equals(field.getKey()))
+                    scanValues(field.getValue(), files);
+            }
+        } else if (node.isArray()) {
+            for (JsonNode element : node)
+                scanValues(element, files);
+        }
+    }
+
+    // the local file named by an "@file" reference, or null
+    private File reference(String text) {
+        if (!text.startsWith(UnRAVL.REDIRECT_PREFIX))
+            return null;
+        File file = ContentCache.localFile(warm.expand(text
+                .substring(UnRAVL.REDIRECT_PREFIX.length())));
+        return file == null ? null : canonical(file);
+    }
+
+    private static File canonical(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.sas.unravl.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation for plugin classes whose instances keep no state for the
+ * element they are running. UnRAVL creates one instance of such a class and
+ * uses it for every script element, in every call and thread, instead of
+ * creating an instance for each use. For example,
+ *
+ * <pre>
+ * {@literal @}UnRAVLStatelessPlugin
+ * {@literal @}UnRAVLRequestBodyGeneratorPlugin("json")
+ * public class JsonRequestBodyGenerator ...
+ * </pre>
+ *
+ * A stateless plugin must be thread-safe, and must not call the
+ * <code>setScript</code>, <code>setScriptlet</code> or <code>setCall</code>
+ * methods, which the base classes' <code>check</code>, <code>extract</code>
+ * and <code>getBody</code> methods do. It may keep expensive, reusable state,
+ * such as compiled patterns, in thread-safe fields.
+ * <p>
+ * This annotation is not inherited; each subclass must declare it.
+ *
+ * @author David.Biesack@sas.com
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface UnRAVLStatelessPlugin {
+}
@@ -7,7 +7,9 @@ import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.generators.Binary;
+import com.sas.unravl.util.ContentCache;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -28,8 +30,9 @@ public class BinaryBodyAssertion extends BaseUnRAVLAssertion implements
         super.check(current, assertion, when, call);
         JsonNode value = assertion.get("binary");
         try {
-            Binary binary = new Binary(current, value);
-            byte[] expected = binary.bytes();
+            byte[] expected = expectedFile(current, value);
+            if (expected == null)
+                expected = new Binary(current, value).bytes();
             byte[] actual = call.getResponseBody().toByteArray();
             assertArrayEquals(expected, actual);
         } catch (IOException e1) {
@@ -38,6 +41,18 @@ public class BinaryBodyAssertion extends BaseUnRAVLAssertion implements
 
     }
 
+    // If the value is "@file", return the file's (cached) contents without
+    // copying them
+    private byte[] expectedFile(UnRAVL current, JsonNode value)
+            throws IOException {
+        if (value == null || !value.isTextual()
+                || !value.textValue().startsWith(UnRAVL.REDIRECT_PREFIX))
+            return null;
+        File file = ContentCache.localFile(current.expand(value.textValue()
+                .substring(UnRAVL.REDIRECT_PREFIX.length())));
+        return file == null ? null : ContentCache.getInstance().bytes(file);
+    }
+
     private void assertArrayEquals(byte[] expected, byte[] actual)
             throws UnRAVLAssertionException {
         if (expected.length != actual.length)
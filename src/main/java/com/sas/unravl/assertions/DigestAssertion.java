@@ -0,0 +1,179 @@
+package com.sas.unravl.assertions;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
+import com.sas.unravl.util.ContentCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Asserts that the message digest (such as SHA-256 or MD5) of the HTTP
+ * response body matches an expected digest. There are two forms:
+ *
+ * <pre>
+ * { "digest" : "<em>hex-digest</em>", "algorithm" : "SHA-256" }
+ * { "digest" : "@file-or-url", "algorithm" : "MD5" }
+ * </pre>
+ *
+ * In the first form, the expected digest is written as hexadecimal digits. In
+ * the second form, the expected digest is the digest of a reference file or
+ * URL; the digest of a local file is computed once and cached until the file
+ * changes. The <code>"algorithm"</code> may be any
+ * {@link MessageDigest} algorithm; the default is <code>"SHA-256"</code>.
+ * <p>
+ * {@link ApiCall} computes the digests needed by the digest assertions of a
+ * script while it reads the response body, so the body does not need to be
+ * read again. With the option <code>"retainBody" : false</code>, the response
+ * body is not kept in memory at all, so that very large downloads can be
+ * checked with constant memory; other assertions and extractors then see an
+ * empty response body.
+ *
+ * @author David.Biesack@sas.com
+ */
+@UnRAVLAssertionPlugin("digest")
+public class DigestAssertion extends BaseUnRAVLAssertion {
+
+    public static final String DEFAULT_ALGORITHM = "SHA-256";
+
+    private static final int BUFSIZE = 8192;
+
+    @Override
+    public void check(UnRAVL current, ObjectNode assertion, Stage when,
+            ApiCall call) throws UnRAVLAssertionException, UnRAVLException {
+        super.check(current, assertion, when, call);
+        JsonNode value = assertion.get(key(assertion));
+        if (value == null || !value.isTextual())
+            throw new UnRAVLException(
+                    "digest assertion requires a hex digest or @file-or-url string, found "
+                            + value);
+        String algorithm = algorithm(assertion);
+        String spec = current.expand(value.textValue());
+        byte[] expected;
+        try {
+            if (spec.startsWith(UnRAVL.REDIRECT_PREFIX))
+                expected = referenceDigest(
+                        spec.substring(UnRAVL.REDIRECT_PREFIX.length()),
+                        algorithm);
+            else
+                expected = Hex.decodeHex(spec.trim().toCharArray());
+        } catch (DecoderException e) {
+            throw new UnRAVLException("Invalid hex digest " + spec
+                    + " in digest assertion", e);
+        } catch (IOException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        }
+        byte[] actual = call.getResponseDigest(algorithm);
+        if (!MessageDigest.isEqual(expected, actual))
+            throw new UnRAVLAssertionException(String.format(
+                    "Response body %s digest %s does not match expected %s",
+                    algorithm, Hex.encodeHexString(actual),
+                    Hex.encodeHexString(expected)));
+    }
+
+    /**
+     * Return the digest algorithm named in a digest assertion
+     *
+     * @param assertion
+     *            the digest assertion
+     * @return the upper case algorithm name; {@link #DEFAULT_ALGORITHM} if
+     *         none is given
+     */
+    public static String algorithm(ObjectNode assertion) {
+        JsonNode val = assertion.get("algorithm");
+        String algorithm = val == null || !val.isTextual() ? DEFAULT_ALGORITHM
+                : val.textValue();
+        return algorithm.toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Test if a digest assertion allows the response body to be kept in
+     * memory.
+     *
+     * @param assertion
+     *            the digest assertion
+     * @return false if the assertion sets <code>"retainBody" : false</code>
+     * @throws UnRAVLException
+     *             if retainBody is not a boolean
+     */
+    public static boolean retainsBody(ObjectNode assertion)
+            throws UnRAVLException {
+        return assertion.get("retainBody") == null
+                || booleanOption(assertion, "retainBody");
+    }
+
+    /**
+     * Create a MessageDigest
+     *
+     * @param algorithm
+     *            the digest algorithm name
+     * @return a new MessageDigest
+     * @throws UnRAVLException
+     *             if the algorithm is not available
+     */
+    public static MessageDigest messageDigest(String algorithm)
+            throws UnRAVLException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnRAVLException("Unsupported digest algorithm "
+                    + algorithm, e);
+        }
+    }
+
+    // Digest a local file once per change (via the content cache), else
+    // read the URL or resource each time.
+    private byte[] referenceDigest(String fileOrURL, final String algorithm)
+            throws IOException, UnRAVLException {
+        final MessageDigest md = messageDigest(algorithm);
+        File file = ContentCache.localFile(fileOrURL);
+        if (file != null) {
+            return ContentCache.getInstance().get(file, "digest:" + algorithm,
+                    new ContentCache.Loader<byte[]>() {
+                        @Override
+                        public byte[] load(File file) throws IOException {
+                            return digest(new FileInputStream(file), md);
+                        }
+
+                        @Override
+                        public long weight(File file, byte[] value) {
+                            return value.length;
+                        }
+                    });
+        }
+        InputStream is;
+        try {
+            is = new URL(fileOrURL).openStream();
+        } catch (MalformedURLException e) {
+            is = getClass().getResourceAsStream(fileOrURL);
+        }
+        if (is == null)
+            throw new IOException("No such file or URL " + fileOrURL);
+        return digest(is, md);
+    }
+
+    private static byte[] digest(InputStream in, MessageDigest md)
+            throws IOException {
+        try (DigestInputStream dis = new DigestInputStream(in, md)) {
+            byte buffer[] = new byte[BUFSIZE];
+            while (dis.read(buffer) >= 0)
+                ;
+        }
+        return md.digest();
+    }
+}
@@ -3,14 +3,19 @@ package com.sas.unravl.assertions;
 
 import com.google.common.io.PatternFilenameFilter;
 import com.sas.unravl.ApiCall;
+import com.sas.unravl.ScriptDurations;
+import com.sas.unravl.ScriptScheduler;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.UnRAVLRuntime;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -18,6 +23,13 @@ import org.apache.log4j.Logger;
  * A convenience class for running UnRAVL scripts within a JUnit environment.
  * {@link UnRAVLException}s (including {@link UnRAVLAssertionException}s) are
  * wrapped in {#link AssertionErrors}.
+ * <p>
+ * When scripts run independently (each in its own environment), the system
+ * property {@link ScriptScheduler#PARALLEL_PROPERTY} runs that many at once,
+ * longest first, and {@link ScriptScheduler#SHARD_PROPERTY} runs only one
+ * shard of them. Script durations are kept in the history named by
+ * {@link ScriptDurations#DURATIONS_PROPERTY}; a shard saves its durations
+ * beside it, to be merged with {@link ScriptDurations#mergeShards()}.
  *
  * @author DavidBiesack@sas.com
  */
@@ -145,39 +157,60 @@ public class JUnitWrapper {
         return runScriptFiles(runtime, null, scriptFileNames);
     }
 
-    private static int runScriptFiles(UnRAVLRuntime runtime,
+    private static int runScriptFiles(final UnRAVLRuntime runtime,
             Map<String, Object> env, String... scriptFileNames) {
         // for now, assume each command line arg is an UnRAVL script
-        int count = 0;
+        final AtomicInteger count = new AtomicInteger();
         if (runtime != null)
             runtime.reset();
-        Map<String, Object> newEnv = (env == null ? new HashMap<String, Object>()
-                : new HashMap<String, Object>(env));
-        Throwable caught = null;
-        for (String scriptFile : scriptFileNames) {
-            try {
-                count++;
-                UnRAVLRuntime rt = runtime == null ? new UnRAVLRuntime(newEnv)
-                        : runtime;
-                System.out.println("Run UnRAVL script " + scriptFile);
-                rt.execute(scriptFile);
-                for (ApiCall call : rt.getApiCalls()) {
-                    if (call.getFailedAssertions().size() > 0) {
-                        printFailedAssertions(call);
-                        throw new AssertionError("script " + scriptFile
-                                + " should have had 0 assertion failures.");
-                    }
-                }
-            } catch (Throwable t) {
-                logger.error(t.getMessage());
-                caught = t;
-            }
+        // each script runs in a fork of the initial environment, so that
+        // bindings made by one script are not seen by the next
+        final UnRAVLRuntime initial = runtime != null ? null
+                : new UnRAVLRuntime(env == null ? new HashMap<String, Object>()
+                        : env);
+        ScriptScheduler scheduler = new ScriptScheduler(
+                ScriptDurations.fromSystemProperties());
+        List<String> files = Arrays.asList(scriptFileNames);
+        int workers = 1;
+        if (runtime == null) {
+            // independent scripts may be sharded and run in parallel
+            String shard = System.getProperty(ScriptScheduler.SHARD_PROPERTY);
+            if (shard != null)
+                files = scheduler.shard(files, shard);
+            workers = Integer.getInteger(ScriptScheduler.PARALLEL_PROPERTY, 1)
+                    .intValue();
         }
-        if (caught != null) {
+        List<Throwable> failures = scheduler.run(files, workers,
+                new ScriptScheduler.Task() {
+                    @Override
+                    public void run(String scriptFile) throws Exception {
+                        try {
+                            count.incrementAndGet();
+                            UnRAVLRuntime rt = runtime == null ? new UnRAVLRuntime(
+                                    initial) : runtime;
+                            System.out.println("Run UnRAVL script "
+                                    + scriptFile);
+                            rt.execute(scriptFile);
+                            // the totals include calls the call history no
+                            // longer keeps
+                            if (rt.getApiCalls().getFailedAssertionCount() > 0) {
+                                for (ApiCall call : rt.getApiCalls())
+                                    printFailedAssertions(call);
+                                throw new AssertionError("script " + scriptFile
+                                        + " should have had 0 assertion failures.");
+                            }
+                        } catch (Throwable t) {
+                            logger.error(t.getMessage());
+                            throw t;
+                        }
+                    }
+                });
+        if (!failures.isEmpty()) {
+            Throwable caught = failures.get(failures.size() - 1);
             caught.printStackTrace(System.err);
             throw new AssertionError(caught.getMessage());
         }
-        return count;
+        return count.get();
     }
 
     private static void printFailedAssertions(ApiCall call) {
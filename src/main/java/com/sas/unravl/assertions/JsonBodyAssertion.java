@@ -9,9 +9,16 @@ import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.generators.Text;
+import com.sas.unravl.util.ContentCache;
 import com.sas.unravl.util.Json;
+import com.sas.unravl.util.JsonSetMatcher;
+import com.sas.unravl.util.JsonSetMatcher.Mode;
+import com.sas.unravl.util.JsonStreamComparator;
+import com.sas.unravl.util.JsonStreamComparator.Difference;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Asserts that the HTTP response body is a JSON body that matches the given
@@ -29,6 +36,27 @@ import java.io.IOException;
  * This body assertion operation performs a somewhat strict definition of
  * equality: arrays and JSON objects must match in cardinality and order.
  * Numbers are matched exactly. Whitespace is ignored.
+ * <p>
+ * The response body is compared token by token against the expected JSON as
+ * it is parsed, without building a JSON tree for the response; the comparison
+ * stops at the first difference, and the failure message names the JSON
+ * Pointer of that difference, such as <code>/data/1</code>.
+ * <p>
+ * An optional <code>"mode"</code> relaxes the comparison:
+ *
+ * <pre>
+ * { "json" : expected-json-body, "mode" : "unordered" }
+ * { "json" : expected-json-body, "mode" : "subset" }
+ * { "json" : expected-json-body, "mode" : "superset" }
+ * </pre>
+ *
+ * <code>"unordered"</code> ignores the order of array elements;
+ * <code>"subset"</code> asserts that every object member and array element of
+ * the response also occurs in the expected JSON, and <code>"superset"</code>
+ * asserts that the response contains every object member and array element of
+ * the expected JSON (array order is ignored in both). See
+ * {@link JsonSetMatcher}. The default mode, <code>"exact"</code>, is described
+ * above. On failure, the unmatched fields and array elements are listed.
  * <h3>Examples</h3>
  * 
  * <pre>
@@ -54,18 +82,19 @@ public class JsonBodyAssertion extends BaseUnRAVLAssertion implements
         JsonNode expected = Json.firstFieldValue(assertion);
 
         ObjectMapper mapper = new ObjectMapper();
-        String content;
+        String mode = stringOption(assertion, "mode", null);
         try {
-            content = current.expand(Text.utf8ToString(call.getResponseBody()
-                    .toByteArray()));
-            JsonNode actual = mapper.readTree(content);
-            JsonNode mapped = Json.expand(actual, current);
             expected = realize(expected, mapper);
-            boolean same = mapped.equals(expected);
-            if (!same)
+            if (mode != null && !mode.equals("exact")) {
+                matchSet(current, expected, Mode.of(mode), mapper, call);
+                return;
+            }
+            Difference difference = new JsonStreamComparator(current).compare(
+                    call.getResponseBody().toByteArray(), expected);
+            if (difference != null)
                 throw new UnRAVLAssertionException(
-                        "Response body does not match expected. Received:"
-                                + actual);
+                        "Response body does not match expected JSON at "
+                                + difference);
         } catch (JsonProcessingException e) {
             throw new UnRAVLException("Could not parse response body as JSON: "
                     + e.getMessage(), e);
@@ -91,12 +120,43 @@ public class JsonBodyAssertion extends BaseUnRAVLAssertion implements
 
     }
 
+    // Compare with a JsonSetMatcher. This needs a tree for the response body.
+    private void matchSet(UnRAVL current, JsonNode expected, Mode mode,
+            ObjectMapper mapper, ApiCall call) throws IOException,
+            UnRAVLAssertionException {
+        String content = current.expand(Text.utf8ToString(call
+                .getResponseBody().toByteArray()));
+        JsonNode actual = Json.expand(mapper.readTree(content), current);
+        List<String> failures = new JsonSetMatcher(mode).match(actual,
+                expected);
+        if (!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder(
+                    "Response body does not match expected JSON in mode "
+                            + mode.name().toLowerCase() + ":");
+            for (String failure : failures)
+                message.append("\n").append(failure);
+            throw new UnRAVLAssertionException(message.toString());
+        }
+    }
+
     // If node is "@file-or-URL , read text from that file and parse as JSON
     private JsonNode realize(JsonNode expected, ObjectMapper mapper)
             throws IOException, UnRAVLException {
         JsonNode json = expected;
         if (expected.isTextual()) {
             String path = getScript().expand(expected.textValue());
+            File file = path.startsWith(UnRAVL.REDIRECT_PREFIX) ? ContentCache
+                    .localFile(getScript().expand(
+                            path.substring(UnRAVL.REDIRECT_PREFIX.length())))
+                    : null;
+            if (file != null) {
+                // Reuse the cached tree unless expansion changes the text
+                ContentCache cache = ContentCache.getInstance();
+                String raw = cache.text(file);
+                String text = getScript().expand(raw);
+                return text.equals(raw) ? cache.json(file) : mapper
+                        .readTree(text);
+            }
             String text = getScript()
                     .expand(new Text(getScript(), path).text());
             json = mapper.readTree(text);
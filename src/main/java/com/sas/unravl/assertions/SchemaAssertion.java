@@ -13,8 +13,12 @@ import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.generators.Text;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sas.unravl.util.ContentCache;
 import com.sas.unravl.util.Json;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 
@@ -59,6 +63,12 @@ import java.util.Iterator;
 @UnRAVLAssertionPlugin("schema")
 public class SchemaAssertion extends BaseUnRAVLAssertion {
 
+    // Validated schemas, by schema node identity. Schemas loaded from local
+    // files are shared nodes from the ContentCache, so each file's schema is
+    // validated once while the file is unchanged.
+    private static final Cache<JsonNode, JsonSchema> validatedSchemas = CacheBuilder
+            .newBuilder().weakKeys().build();
+
     @Override
     public void check(UnRAVL current, ObjectNode assertion, Stage when,
             ApiCall call) throws UnRAVLAssertionException, UnRAVLException {
@@ -106,12 +116,19 @@ public class SchemaAssertion extends BaseUnRAVLAssertion {
         if (schemaRef.isTextual()) {
             String request = schemaRef.textValue();
             if (request.startsWith(UnRAVL.REDIRECT_PREFIX)) {
-                Text text;
                 try {
                     TextNode expanded = new TextNode(current.expand(schemaRef
                             .textValue()));
-                    text = new Text(current, expanded);
-                    jsonSchema = Json.parse(text.text());
+                    File file = ContentCache.localFile(expanded.textValue()
+                            .substring(UnRAVL.REDIRECT_PREFIX.length()));
+                    if (file != null) {
+                        // shared while the file is unchanged, so the
+                        // validated schema is also reused
+                        jsonSchema = ContentCache.getInstance().json(file);
+                    } else {
+                        Text text = new Text(current, expanded);
+                        jsonSchema = Json.parse(text.text());
+                    }
                 } catch (IOException e) {
                     throw new UnRAVLException(String.format(
                             "Unable to load schema from @ reference %s",
@@ -137,7 +154,15 @@ public class SchemaAssertion extends BaseUnRAVLAssertion {
 
     private JsonSchema validateSchema(JsonNode jsonSchema)
             throws UnRAVLException {
+        JsonSchema cached = validatedSchemas.getIfPresent(jsonSchema);
+        if (cached != null)
+            return cached;
+        JsonSchema schema = newSchema(jsonSchema);
+        validatedSchemas.put(jsonSchema, schema);
+        return schema;
+    }
 
+    private JsonSchema newSchema(JsonNode jsonSchema) throws UnRAVLException {
         try {
             final JsonSchemaFactory factory = JsonSchemaFactory.byDefault();
             final JsonSchema schema = factory.getJsonSchema(jsonSchema);
@@ -6,8 +6,13 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
+import com.sas.unravl.annotations.UnRAVLStatelessPlugin;
 import com.sas.unravl.util.Json;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
 /**
  * StatusAssertion asserts that the API call returned an HTTP status code that
  * matches the specification. There are three possible forms for this assertion:
@@ -39,13 +44,18 @@ import com.sas.unravl.util.Json;
  * @author David.Biesack@sas.com
  *
  */
+@UnRAVLStatelessPlugin
 @UnRAVLAssertionPlugin("status")
 public class StatusAssertion extends BaseUnRAVLAssertion {
 
+    // One instance is shared, so compiled patterns are kept for reuse
+    private final ConcurrentMap<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+
     @Override
     public void check(UnRAVL current, ObjectNode assertion, Stage when,
             ApiCall call) throws UnRAVLAssertionException, UnRAVLException {
-        super.check(current, assertion, when, call);
+        // This plugin is stateless; do not call super.check(), which keeps
+        // the assertion in this instance
         int httpStatus = call.getHttpStatus();
         boolean found = false;
         JsonNode statusCodes = Json.firstFieldValue(assertion);
@@ -65,7 +75,12 @@ public class StatusAssertion extends BaseUnRAVLAssertion {
 
     private boolean check(String pattern, int httpStatus)
             throws UnRAVLAssertionException {
-        return Integer.toString(httpStatus).matches(pattern);
+        Pattern p = patterns.get(pattern);
+        if (p == null) {
+            p = Pattern.compile(pattern);
+            patterns.putIfAbsent(pattern, p);
+        }
+        return p.matcher(Integer.toString(httpStatus)).matches();
     }
 
     private boolean check(JsonNode j, int httpStatus) throws UnRAVLException {
@@ -0,0 +1,33 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth;
+
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+
+/**
+ * An authenticated session, created by a {@link SessionAuth} plugin, which can
+ * be reused by many API calls. The session holds whatever the plugin resolved
+ * once (credentials, encoded headers, tokens) so that applying it to a call is
+ * cheap.
+ * <p>
+ * Sessions are shared by all scripts and threads that use the same session
+ * key, so implementations must be thread-safe and should be immutable.
+ *
+ * @author David.Biesack@sas.com
+ */
+public interface AuthSession {
+
+    /**
+     * Apply this session to an API call, such as by adding an
+     * <code>Authorization</code> header.
+     *
+     * @param script
+     *            the currently running script
+     * @param call
+     *            the current API call
+     * @throws UnRAVLException
+     *             if the session cannot be applied
+     */
+    public void apply(UnRAVL script, ApiCall call) throws UnRAVLException;
+}
@@ -0,0 +1,298 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.util.Json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An optional on-disk store of authentication sessions (OAuth2 access tokens
+ * and CAS ticket granting tickets) which lets later UnRAVL runs reuse
+ * credentials obtained by earlier runs, instead of authenticating again.
+ * <p>
+ * The store is disabled by default. It is enabled with the system property
+ * <code>unravl.auth.sessions=true</code> (or the <code>--sessions</code>
+ * command line option). Sessions are kept in the file
+ * <code>sessions.dat</code> in the directory named by the system property
+ * <code>unravl.auth.sessions.dir</code> (default <code>~/.unravl</code>).
+ * The file is encrypted with AES-GCM using a random key kept in
+ * <code>sessions.key</code> in the same directory; on file systems which
+ * support it, both files are readable only by their owner. Changes are made
+ * under a lock on the file <code>sessions.dat.lock</code>, which re-reads
+ * the sessions file before changing it, so parallel UnRAVL processes do not
+ * lose each other's sessions.
+ * <p>
+ * Each session has an expiration time. Expired sessions are never returned
+ * and are removed the next time the store is written. Auth plugins also
+ * {@link #remove(String) remove} a session when a call using it is rejected
+ * with 401 Unauthorized.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class AuthSessionStore {
+
+    private static final Logger logger = Logger
+            .getLogger(AuthSessionStore.class);
+
+    /** The system property which enables the session store */
+    public static final String ENABLED_PROPERTY = "unravl.auth.sessions";
+
+    /** The system property which names the session store directory */
+    public static final String DIR_PROPERTY = "unravl.auth.sessions.dir";
+
+    private static final String SESSIONS_FILE = "sessions.dat";
+    private static final String KEY_FILE = "sessions.key";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int KEY_BITS = 128;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private static AuthSessionStore instance;
+
+    private final File dir;
+    private final SecureRandom random = new SecureRandom();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private SecretKey key;
+    // the decrypted contents: { key : { "value" : v, "expires" : millis } }
+    private ObjectNode sessions;
+    private long loadedModified = -1;
+
+    /**
+     * Create a session store in a directory. Most callers should use
+     * {@link #getInstance()}.
+     *
+     * @param dir
+     *            the directory which holds the session and key files
+     */
+    public AuthSessionStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the session store, or null if the session store is not enabled
+     */
+    public static synchronized AuthSessionStore getInstance() {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY))
+            return null;
+        File dir = new File(System.getProperty(DIR_PROPERTY, new File(
+                System.getProperty("user.home"), ".unravl").getPath()));
+        if (instance == null || !instance.dir.equals(dir))
+            instance = new AuthSessionStore(dir);
+        return instance;
+    }
+
+    /**
+     * Return an unexpired session value
+     *
+     * @param key
+     *            the session key
+     * @return the session value, or null if there is no unexpired session
+     */
+    public synchronized String get(String key) {
+        load();
+        JsonNode session = sessions.get(key);
+        if (session == null
+                || session.path("expires").asLong() <= System
+                        .currentTimeMillis())
+            return null;
+        return session.path("value").textValue();
+    }
+
+    /**
+     * Return the expiration time of a session
+     *
+     * @param key
+     *            the session key
+     * @return the expiration time, in milliseconds since the epoch; 0 if
+     *         there is no such session
+     */
+    public synchronized long expires(String key) {
+        load();
+        return sessions.path(key).path("expires").asLong();
+    }
+
+    /**
+     * Save a session
+     *
+     * @param key
+     *            the session key
+     * @param value
+     *            the session value, such as an access token
+     * @param expires
+     *            when the session expires, in milliseconds since the epoch
+     */
+    public synchronized void put(String key, String value, long expires) {
+        try (RandomAccessFile lockFile = lockFile();
+                FileLock lock = lockFile.getChannel().lock()) {
+            reload();
+            ObjectNode session = sessions.putObject(key);
+            session.put("value", value);
+            session.put("expires", expires);
+            save();
+        } catch (IOException e) {
+            logger.warn("Cannot lock auth session file in " + dir + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove a session, such as after a server rejects it
+     *
+     * @param key
+     *            the session key
+     */
+    public synchronized void remove(String key) {
+        try (RandomAccessFile lockFile = lockFile();
+                FileLock lock = lockFile.getChannel().lock()) {
+            reload();
+            if (sessions.remove(key) != null) {
+                logger.info("Removed saved auth session " + key);
+                save();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot lock auth session file in " + dir + ": "
+                    + e.getMessage());
+        }
+    }
+
+    // Open the lock file which serializes changes to the session file
+    // among processes.
+    private RandomAccessFile lockFile() throws IOException {
+        Files.createDirectories(dir.toPath());
+        return new RandomAccessFile(new File(dir, SESSIONS_FILE + ".lock"),
+                "rw");
+    }
+
+    // Read the session file even if its last modified time has not changed;
+    // another process may have written it within the timestamp resolution.
+    private void reload() {
+        sessions = null;
+        load();
+    }
+
+    // (Re)read the session file if another process has changed it.
+    private void load() {
+        File file = new File(dir, SESSIONS_FILE);
+        long modified = file.lastModified();
+        if (sessions != null && modified == loadedModified)
+            return;
+        sessions = Json.jsonNodeFactory().objectNode();
+        loadedModified = modified;
+        if (!file.isFile())
+            return;
+        try {
+            byte data[] = Files.readAllBytes(file.toPath());
+            if (data.length <= IV_BYTES)
+                return;
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key(), new GCMParameterSpec(
+                    TAG_BITS, data, 0, IV_BYTES));
+            byte plain[] = cipher.doFinal(data, IV_BYTES, data.length
+                    - IV_BYTES);
+            JsonNode json = mapper.readTree(plain);
+            if (json instanceof ObjectNode)
+                sessions = (ObjectNode) json;
+        } catch (IOException | GeneralSecurityException e) {
+            // a corrupt file or changed key just means no saved sessions
+            logger.warn("Ignoring unreadable auth session file " + file + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private void save() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, JsonNode>> i = sessions.fields(); i
+                .hasNext();) {
+            if (i.next().getValue().path("expires").asLong() <= now)
+                i.remove();
+        }
+        File file = new File(dir, SESSIONS_FILE);
+        try {
+            byte iv[] = new byte[IV_BYTES];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key(), new GCMParameterSpec(
+                    TAG_BITS, iv));
+            byte encrypted[] = cipher.doFinal(mapper.writeValueAsBytes(sessions));
+            byte data[] = new byte[IV_BYTES + encrypted.length];
+            System.arraycopy(iv, 0, data, 0, IV_BYTES);
+            System.arraycopy(encrypted, 0, data, IV_BYTES, encrypted.length);
+            Path temp = Files.createTempFile(dir.toPath(), SESSIONS_FILE, ".tmp");
+            ownerOnly(temp);
+            Files.write(temp, data);
+            move(temp, file.toPath());
+            loadedModified = file.lastModified();
+        } catch (IOException | GeneralSecurityException e) {
+            logger.warn("Cannot save auth sessions to " + file + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Read the encryption key, creating it on first use.
+    private SecretKey key() throws IOException, GeneralSecurityException {
+        if (key != null)
+            return key;
+        Files.createDirectories(dir.toPath());
+        File file = new File(dir, KEY_FILE);
+        if (file.isFile()) {
+            key = new SecretKeySpec(Files.readAllBytes(file.toPath()), "AES");
+        } else {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(KEY_BITS, random);
+            key = generator.generateKey();
+            Path temp = Files.createTempFile(dir.toPath(), KEY_FILE, ".tmp");
+            ownerOnly(temp);
+            Files.write(temp, key.getEncoded());
+            move(temp, file.toPath());
+        }
+        return key;
+    }
+
+    private static void ownerOnly(Path path) throws IOException {
+        try {
+            Set<PosixFilePermission> perms = PosixFilePermissions
+                    .fromString("rw-------");
+            Files.setPosixFilePermissions(path, perms);
+        } catch (UnsupportedOperationException e) {
+            File f = path.toFile();
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(false, false);
+            f.setWritable(true, true);
+        }
+    }
+}
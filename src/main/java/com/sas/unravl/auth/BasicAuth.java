@@ -16,6 +16,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
 import org.apache.log4j.Logger;
 
@@ -39,6 +40,14 @@ import org.apache.log4j.Logger;
  * when logging the request headers.
  * </p>
  * <p>
+ * The credentials are looked up and encoded once per host, port and auth
+ * specification; the resulting {@link AuthSession} is shared by later calls
+ * (see {@link SessionAuth}) until a call using it is rejected with 401
+ * Unauthorized or another credentials provider is set. When a parsed
+ * <code>.netrc</code> file changes (see {@link NetrcFile#generation()}), the
+ * session looks up and encodes its credentials again.
+ * </p>
+ * <p>
  * If mock is true, present mock authentication credentials
  * <p>
  * TODO: allow an alternate location so credentials can be shared across
@@ -52,7 +61,7 @@ import org.apache.log4j.Logger;
  * @author DavidBiesack@sas.com
  */
 @UnRAVLAuthPlugin("basic")
-public class BasicAuth extends BaseUnRAVLAuth {
+public class BasicAuth extends BaseUnRAVLAuth implements SessionAuth {
 
     private static final Logger logger = Logger.getLogger(BasicAuth.class);
     private boolean mock; // JSON spec contains "mock" : true, then mock out the
@@ -62,63 +71,129 @@ public class BasicAuth extends BaseUnRAVLAuth {
     public void authenticate(UnRAVL script, ObjectNode scriptlet, ApiCall call)
             throws UnRAVLAssertionException, UnRAVLException {
         super.authenticate(script, scriptlet, call);
-        authenticateAndAddAuthenticationHeader(scriptlet);
+        if (sessionKey(script, scriptlet, call) != null)
+            openSession(script, scriptlet, call).apply(script, call);
     }
 
-    void authenticateAndAddAuthenticationHeader(ObjectNode auth)
+    @Override
+    public String sessionKey(UnRAVL script, ObjectNode auth, ApiCall call)
             throws UnRAVLException {
-        try {
-            // TODO: generalize this check and push it into BaseUnRAVLAuth
-            // It should also use a getEffectiveURI() and getEffectiveMethod()
-            // which walk templates in case the script does not have them.
-            if (getScript().getURI() == null || getScript().getMethod() == null)
-                throw new UnRAVLException(
-                        "basic auth requires an HTTP method and URI");
-            // TODO: allow the value to be a string; use that host name or
-            // location for credential lookup
-            JsonNode authVal = Json.firstFieldValue(getScriptlet());
-            if (!authVal.isBoolean()) {
-                throw new UnRAVLException(
-                        "Value of \"auth\" must be boolean. Found: " + authVal);
-            }
-            if (!authVal.booleanValue())
-                return;
-
-            if (getScriptlet().get("mock") != null)
-                mock = getScriptlet().get("mock").booleanValue();
-            // Note: the URI should already be expanded at this point
-            String location = getCall().getURI();
-            URI uri = new URI(location);
+        // TODO: generalize this check and push it into BaseUnRAVLAuth
+        // It should also use a getEffectiveURI() and getEffectiveMethod()
+        // which walk templates in case the script does not have them.
+        if (script.getURI() == null || script.getMethod() == null)
+            throw new UnRAVLException(
+                    "basic auth requires an HTTP method and URI");
+        // TODO: allow the value to be a string; use that host name or
+        // location for credential lookup
+        JsonNode authVal = Json.firstFieldValue(auth);
+        if (!authVal.isBoolean()) {
+            throw new UnRAVLException(
+                    "Value of \"auth\" must be boolean. Found: " + authVal);
+        }
+        if (!authVal.booleanValue())
+            return null;
+        // Note: the URI should already be expanded at this point
+        URI uri = uri(call);
+        // login and password may be variable references, which runtimes
+        // may bind differently
+        String spec = auth.toString();
+        if (hasVariables(auth))
+            spec = script.getRuntime().expand(spec);
+        return "basic|" + uri.getHost() + ":" + uri.getPort() + "|" + spec;
+    }
 
-            basicAuth(uri, auth);
+    private static boolean hasVariables(ObjectNode auth) {
+        for (JsonNode value : auth)
+            if (value.isTextual() && value.textValue().indexOf('{') >= 0)
+                return true;
+        return false;
+    }
 
-        } catch (URISyntaxException e) {
-            new UnRAVLException(e.getMessage(), e);
-        } catch (IOException e) {
-            new UnRAVLException(e.getMessage(), e);
-        }
+    private static boolean mock(ObjectNode auth) {
+        return auth.get("mock") != null && auth.get("mock").booleanValue();
     }
 
-    private void basicAuth(URI uri, ObjectNode auth) throws UnRAVLException,
-            IOException {
-        String host = uri.getHost();
-        CredentialsProvider cp = getScript().getRuntime().getPlugins()
+    private static HostCredentials credentials(UnRAVL script, String host,
+            ObjectNode auth, boolean mock) throws UnRAVLException {
+        CredentialsProvider cp = script.getRuntime().getPlugins()
                 .getCredentialsProvider();
-        cp.setRuntime(getScript().getRuntime());
-        HostCredentials credentials = cp.getHostCredentials(host, auth, mock);
-
+        cp.setRuntime(script.getRuntime());
+        HostCredentials credentials;
+        try {
+            credentials = cp.getHostCredentials(host, auth, mock);
+        } catch (IOException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        }
         if (credentials == null)
             throw new UnRAVLException("No Basic Auth credentials for host "
                     + host);
+        return credentials;
+    }
 
+    @Override
+    public AuthSession openSession(UnRAVL script, ObjectNode auth,
+            ApiCall call) throws UnRAVLException {
+        super.authenticate(script, auth, call);
+        mock = mock(auth);
+        BasicSession session = new BasicSession(uri(call).getHost(), auth,
+                mock);
+        session.header(script);
+        return session;
+    }
+
+    private static URI uri(ApiCall call) throws UnRAVLException {
+        try {
+            return new URI(call.getURI());
+        } catch (URISyntaxException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        }
+    }
+
+    private static Header basicAuthHeader(UnRAVL script, String host,
+            ObjectNode auth, boolean mock) throws UnRAVLException {
+        HostCredentials credentials = credentials(script, host, auth, mock);
         String creds = new Base64().encodeToString(Text.utf8(credentials
                 .getUserName() + ":" + credentials.getPassword()));
         credentials.clear();
-        // TODO: use the ApiCall and add headers there instead of mutating the
-        // script
-        getScript().addRequestHeader(
-                new BasicHeader("Authorization", "Basic " + creds));
-        logger.info("\"basic\" auth added 'Authorization: Basic ********' header");
+        return new BasicHeader("Authorization", "Basic " + creds);
+    }
+
+    // The encoded Authorization header for one host and auth specification,
+    // encoded again when .netrc changes. Headers are immutable, so the session
+    // may be shared; threads which see a change at once both encode the same
+    // header.
+    private static final class BasicSession implements AuthSession {
+        private final String host;
+        private final ObjectNode auth;
+        private final boolean mock;
+        private volatile Header header;
+        private volatile long generation;
+
+        BasicSession(String host, ObjectNode auth, boolean mock) {
+            this.host = host;
+            this.auth = auth;
+            this.mock = mock;
+        }
+
+        Header header(UnRAVL script) throws UnRAVLException {
+            long current = NetrcFile.generation();
+            Header h = header;
+            if (h == null || current != generation) {
+                h = basicAuthHeader(script, host, auth, mock);
+                header = h;
+                generation = current;
+            }
+            return h;
+        }
+
+        @Override
+        public void apply(UnRAVL script, ApiCall call) throws UnRAVLException {
+            // TODO: use the ApiCall and add headers there instead of mutating
+            // the script
+            script.addRequestHeader(header(script));
+            logger.info("\"basic\" auth added 'Authorization: Basic ********' header");
+        }
     }
 
 }
@@ -0,0 +1,168 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The process-wide cache used by {@link CentralAuthenticationServiceAuth}: CAS
+ * ticket granting tickets (TGTs) per user and logon URL, with an expiration
+ * time, and spare (prefetched) service tickets per TGT and service URL.
+ *
+ * @author David.Biesack@sas.com
+ */
+class CasTicketCache {
+
+    private static final Logger logger = Logger.getLogger(CasTicketCache.class);
+
+    private static final int PREFETCH_THREADS = 4;
+
+    private static final CasTicketCache instance = new CasTicketCache();
+
+    private static class Ticket {
+        final String ticket;
+        final long expiresAt;
+
+        Ticket(String ticket, long expiresAt) {
+            this.ticket = ticket;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // service tickets fetched ahead of use, and the number being fetched
+    private static class Spares {
+        final ConcurrentLinkedQueue<Ticket> tickets = new ConcurrentLinkedQueue<Ticket>();
+        final AtomicInteger pending = new AtomicInteger();
+    }
+
+    private final ConcurrentMap<String, Ticket> tgts = new ConcurrentHashMap<String, Ticket>();
+    private final ConcurrentMap<String, Object> logonLocks = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Spares> spares = new ConcurrentHashMap<String, Spares>();
+    private final ExecutorService prefetcher;
+
+    private CasTicketCache() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(PREFETCH_THREADS,
+                PREFETCH_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                "UnRAVL CAS service ticket prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        prefetcher = pool;
+    }
+
+    static CasTicketCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param key
+     *            the user and logon URL
+     * @return an unexpired TGT, or null
+     */
+    String getTgt(String key) {
+        Ticket tgt = tgts.get(key);
+        if (tgt == null)
+            return null;
+        if (tgt.expiresAt <= System.currentTimeMillis()) {
+            tgts.remove(key, tgt);
+            return null;
+        }
+        return tgt.ticket;
+    }
+
+    void putTgt(String key, String tgt, long expiresAt) {
+        tgts.put(key, new Ticket(tgt, expiresAt));
+    }
+
+    /**
+     * Discard a TGT which the CAS server rejected, and its spare service
+     * tickets. A newer TGT for the same key is kept.
+     */
+    void invalidateTgt(String key, String tgt) {
+        Ticket cached = tgts.get(key);
+        if (cached != null && cached.ticket.equals(tgt))
+            tgts.remove(key, cached);
+        for (String spareKey : spares.keySet())
+            if (spareKey.startsWith(tgt + " "))
+                spares.remove(spareKey);
+    }
+
+    /**
+     * @return an object to synchronize on, so that only one thread logs in
+     *         for a key at a time
+     */
+    Object logonLock(String key) {
+        Object lock = new Object();
+        Object existing = logonLocks.putIfAbsent(key, lock);
+        return existing == null ? lock : existing;
+    }
+
+    /**
+     * Take a spare service ticket
+     *
+     * @return an unexpired service ticket for the TGT and service, or null
+     */
+    String takeServiceTicket(String tgt, String service) {
+        Spares s = spares.get(tgt + " " + service);
+        if (s == null)
+            return null;
+        long now = System.currentTimeMillis();
+        for (Ticket t = s.tickets.poll(); t != null; t = s.tickets.poll()) {
+            if (t.expiresAt > now)
+                return t.ticket;
+        }
+        return null;
+    }
+
+    /**
+     * Fetch service tickets in parallel, in the background, until there are
+     * <var>count</var> spare (or pending) tickets for the TGT and service.
+     *
+     * @param fetch
+     *            requests one service ticket
+     * @param maxAgeMillis
+     *            how long a spare ticket may be used after it was fetched
+     */
+    void prefetch(String tgt, final String service, int count,
+            final long maxAgeMillis, final Callable<String> fetch) {
+        Spares created = new Spares();
+        Spares s = spares.putIfAbsent(tgt + " " + service, created);
+        final Spares target = s == null ? created : s;
+        int needed = count - target.tickets.size() - target.pending.get();
+        for (int i = 0; i < needed; i++) {
+            target.pending.incrementAndGet();
+            prefetcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String st = fetch.call();
+                        if (st != null)
+                            target.tickets.add(new Ticket(st, System
+                                    .currentTimeMillis() + maxAgeMillis));
+                    } catch (Exception e) {
+                        logger.warn("Could not prefetch CAS service ticket for "
+                                + service + ": " + e.getMessage());
+                    } finally {
+                        target.pending.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+}
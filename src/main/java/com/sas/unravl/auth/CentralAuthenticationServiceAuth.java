@@ -7,6 +7,7 @@ import com.fasterxml.jackson.databind.node.TextNode;
 import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
 import com.sas.unravl.annotations.UnRAVLAuthPlugin;
 import com.sas.unravl.assertions.UnRAVLAssertionException;
 import com.sas.unravl.generators.Binary;
@@ -19,6 +20,8 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -27,8 +30,6 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
 import org.apache.log4j.Logger;
 
@@ -64,6 +65,14 @@ import org.apache.log4j.Logger;
  * logon-URL value in the JSON specification
  * <p>
  * If mock is true, this auth object will create a mock service ticket.
+ * <p>
+ * TGTs are shared by all runtimes in the process (see
+ * {@link #TGT_SECONDS_PROPERTY}); if the CAS server rejects a TGT, this
+ * logs in again once. The option <code>"prefetch" : <em>n</em></code>
+ * requests up to <em>n</em> spare service tickets for the same service in the
+ * background; spare tickets are used within
+ * <code>"prefetchMaxAge" : <em>seconds</em></code> (default 10). CAS requests
+ * use the shared connection pool of {@link UnRAVLPlugins#getHttpClient()}.
  *
  * @author DavidBiesack@sas.com
  */
@@ -74,7 +83,20 @@ public class CentralAuthenticationServiceAuth extends BaseUnRAVLAuth {
     private boolean mock; // JSON spec contains "mock" : true, then mock out the
                           // CAS responses and create a fake ?ticket=
                           // parameter
-    private ByteArrayOutputStream responseBody;
+    // environment variable and process-wide cache keys for the user's TGT
+    private String tgtKey, cacheKey;
+
+    private static final String PREFETCH_KEY = "prefetch";
+    private static final String PREFETCH_MAX_AGE_KEY = "prefetchMaxAge";
+    private static final long DEFAULT_PREFETCH_MAX_AGE = 10;
+
+    /**
+     * The system property which sets how long (in seconds) a TGT saved in the
+     * process-wide TGT cache and the {@link AuthSessionStore} is reused;
+     * default 7200 (2 hours)
+     */
+    public static final String TGT_SECONDS_PROPERTY = "unravl.cas.tgt.seconds";
+    private static final long DEFAULT_TGT_SECONDS = 7200;
     private static final Logger logger = Logger
             .getLogger(CentralAuthenticationServiceAuth.class);
 
@@ -107,8 +129,21 @@ public class CentralAuthenticationServiceAuth extends BaseUnRAVLAuth {
             if (getScriptlet().get("mock") != null)
                 mock = getScriptlet().get("mock").booleanValue();
             logonUrl = getScript().expand(logon.textValue());
-            String tgtLocation = logon(new URI(logonUrl), auth);
-            String st = serviceTicket(tgtLocation, uri);
+            URI logonURI = new URI(logonUrl);
+            String tgtLocation = logon(logonURI, auth, false);
+            String st = serviceTicket(tgtLocation, uri, auth);
+            if (st == null) {
+                // The TGT has expired or was revoked; log in again, once.
+                logger.info("CAS TGT was rejected; logging in again.");
+                invalidateTGT(tgtLocation);
+                tgtLocation = logon(logonURI, auth, true);
+                st = serviceTicket(tgtLocation, uri, auth);
+                if (st == null)
+                    throw new UnRAVLException("Cannot get Service Ticket for "
+                            + uri + " with a new TGT");
+            }
+            if (!mock)
+                evictOnUnauthorized(tgtLocation);
             getScript().bind("casAuth.ST", st);
             String ticketedUri = serviceTicket(location, st);
             getCall().setURI(ticketedUri);
@@ -116,9 +151,9 @@ public class CentralAuthenticationServiceAuth extends BaseUnRAVLAuth {
             logger.trace("CAS authentication took " + (end - start) + "ms");
 
         } catch (URISyntaxException e) {
-            new UnRAVLException(e.getMessage(), e);
+            throw new UnRAVLException(e.getMessage(), e);
         } catch (IOException e) {
-            new UnRAVLException(e.getMessage(), e);
+            throw new UnRAVLException(e.getMessage(), e);
         }
 
     }
@@ -155,38 +190,67 @@ public class CentralAuthenticationServiceAuth extends BaseUnRAVLAuth {
             return location + "&ticket=" + encodedTicket;
     }
 
-    private String serviceTicket(String tgt, URI uri) throws UnRAVLException,
-            URISyntaxException, ClientProtocolException, IOException {
+    // Return a service ticket for the URI: a prefetched one if available,
+    // else request one. If the "prefetch" option is set, top up the spare
+    // tickets for this service in the background. Return null if the CAS
+    // server rejects the TGT.
+    private String serviceTicket(final String tgt, final URI uri,
+            ObjectNode auth) throws UnRAVLException, IOException {
         if (mock)
             return "ST-18-umUeNL4yUkWHES2VdtKki5mFzatga43kNNCe3niguLWaUxl1aK-cas";
-        CloseableHttpClient httpclient = HttpClients.createDefault();
+        CasTicketCache cache = CasTicketCache.getInstance();
+        String service = uri.toString();
+        int prefetch = auth.path(PREFETCH_KEY).asInt(0);
+        String st = prefetch > 0 ? cache.takeServiceTicket(tgt, service)
+                : null;
+        if (st != null)
+            logger.info("Using prefetched CAS service ticket");
+        else
+            st = requestServiceTicket(tgt, uri);
+        if (st != null && prefetch > 0) {
+            long maxAge = TimeUnit.SECONDS.toMillis(auth.path(
+                    PREFETCH_MAX_AGE_KEY).asLong(DEFAULT_PREFETCH_MAX_AGE));
+            cache.prefetch(tgt, service, prefetch, maxAge,
+                    new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return requestServiceTicket(tgt, uri);
+                        }
+                    });
+        }
+        return st;
+    }
+
+    // Request a service ticket from the CAS server; return null if the
+    // TGT is not accepted.
+    private static String requestServiceTicket(String tgt, URI uri)
+            throws UnRAVLException, IOException {
+        // TODO: make this call via UnRAVL, not HttpPost
+        HttpPost post;
         try {
-            // TODO: make this call via UnRAVL, not HttpPost
-            HttpPost post = new HttpPost();
-            post.setURI(new URI(tgt));
-            Header requestHeaders[] = new Header[] { new BasicHeader(
-                    "Content-Type", "text/plain") };
-            post.setHeaders(requestHeaders);
-            String body = "service=" + Text.urlEncode(uri.toString());
-            HttpEntity entity = new StringEntity(body);
-            post.setEntity(entity);
-            ResponseHandler<HttpResponse> responseHandler = new CasAuthResponseHandler();
-            HttpResponse response = httpclient.execute(post, responseHandler);
-            // TODO: If we get back a response that indicates a timed out
-            // TGT, we should login again.
-            int status = response.getStatusLine().getStatusCode();
-            if (status != 200)
-                throw new UnRAVLException("Cannot get Service Ticket for "
-                        + uri + ", response returned " + status);
-            String st = Text.utf8ToString(responseBody.toByteArray());
-            return st;
-        } finally {
-            httpclient.close();
+            post = new HttpPost(new URI(tgt));
+        } catch (URISyntaxException e) {
+            throw new UnRAVLException("Invalid CAS TGT location " + tgt, e);
         }
+        post.setHeader(new BasicHeader("Content-Type", "text/plain"));
+        String body = "service=" + Text.urlEncode(uri.toString());
+        post.setEntity(new StringEntity(body));
+        CasResponse response = UnRAVLPlugins.getHttpClient().execute(post,
+                new CasAuthResponseHandler());
+        if (response.status == 200)
+            return response.body;
+        // CAS returns 400 or 404 for an unknown or expired TGT
+        if (response.status == 400 || response.status == 404)
+            return null;
+        throw new UnRAVLException("Cannot get Service Ticket for " + uri
+                + ", response returned " + response.status);
     }
 
-    private String logon(URI logonURI, ObjectNode auth) throws UnRAVLException,
-            URISyntaxException, ClientProtocolException, IOException {
+    // Return a TGT for the user: from this runtime's environment, from the
+    // process-wide cache, from a saved session, or by logging in. If
+    // fresh, always log in.
+    private String logon(URI logonURI, ObjectNode auth, boolean fresh)
+            throws UnRAVLException, IOException {
         if (mock)
             return "https://sasserver:port/SASLogon/v1/tickets/TGT-18-umUeNL4yUkWHES2VdtKki5mFzatga43kNNCe3niguLWaUxl1aK-cas";
         String host = logonURI.getHost();
@@ -199,70 +263,139 @@ public class CentralAuthenticationServiceAuth extends BaseUnRAVLAuth {
                     + host);
 
         String user = credentials.getUserName();
-        String key = user + "." + host + ".TGT";
+        tgtKey = user + "." + host + ".TGT";
+        cacheKey = user + "|" + logonURI;
+        String sessionKey = "cas|" + cacheKey;
+        CasTicketCache cache = CasTicketCache.getInstance();
+        AuthSessionStore sessions = AuthSessionStore.getInstance();
         String tgt = null;
-        // See if the TGT is cached for this user/host
-        // Note that this risks a TGT timeout
-        if (getCall().bound(key)) {
-            Object tgto = getCall().getVariable(key);
-            if (tgto instanceof String) {
-                tgt = (String) getCall().getVariable(key);
-                logger.info("Using cached CAS TGT " + tgt);
+        if (!fresh) {
+            // See if the TGT is cached for this user/host
+            if (getCall().bound(tgtKey)) {
+                Object tgto = getCall().getVariable(tgtKey);
+                if (tgto instanceof String) {
+                    tgt = (String) tgto;
+                    logger.info("Using cached CAS TGT " + tgt);
+                    return tgt;
+                }
+            }
+            tgt = cache.getTgt(cacheKey);
+            if (tgt != null) {
+                logger.info("Using shared CAS TGT " + tgt);
+                bindTGT(tgt, logonURI, user);
                 return tgt;
             }
         }
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        try {
-            HttpPost post = new HttpPost();
-            Header requestHeaders[] = new Header[] { new BasicHeader(
-                    "Content-Type", "application/x-www-form-urlencoded") };
-            String u = Text.urlEncode(user);
-            String p = Text.urlEncode(credentials.getPassword());
-            String body = String.format("username=%s&password=%s", u, p);
-            // security: don't hold onto credentials in memory
-            credentials.clear();
+        // Only one thread logs in per user/server; the others then find
+        // its TGT in the cache.
+        synchronized (cache.logonLock(cacheKey)) {
+            if (!fresh) {
+                tgt = cache.getTgt(cacheKey);
+                if (tgt == null && sessions != null) {
+                    // Or one saved by an earlier run
+                    tgt = sessions.get(sessionKey);
+                    if (tgt != null) {
+                        logger.info("Using saved CAS TGT session " + tgt);
+                        cache.putTgt(cacheKey, tgt,
+                                sessions.expires(sessionKey));
+                    }
+                }
+                if (tgt != null) {
+                    bindTGT(tgt, logonURI, user);
+                    return tgt;
+                }
+            }
+            tgt = requestTGT(logonURI, credentials);
             credentials = null;
-            p = null;
-            post.setURI(logonURI);
-            post.setHeaders(requestHeaders);
-            post.setEntity(new StringEntity(body));
-            ResponseHandler<HttpResponse> responseHandler = new CasAuthResponseHandler();
-            HttpResponse response = httpclient.execute(post, responseHandler);
-            // security: don't hold onto credentials in memory
-            body = null;
-            int status = response.getStatusLine().getStatusCode();
-            if (status != 201)
-                throw new UnRAVLException("Cannot login via " + logonURI
-                        + ", response: " + response.getStatusLine());
-            Header location = response.getFirstHeader("Location");
-            if (location == null)
-                throw new UnRAVLException("Cannot login via " + logonURI
-                        + ", no Location header returned.");
-
-            tgt = location.getValue();
-            bindTGT(tgt, logonURI, user);
-            return tgt;
-        } finally {
-            httpclient.close();
+            long expires = System.currentTimeMillis()
+                    + TimeUnit.SECONDS.toMillis(Long.getLong(
+                            TGT_SECONDS_PROPERTY, DEFAULT_TGT_SECONDS));
+            cache.putTgt(cacheKey, tgt, expires);
+            if (sessions != null)
+                sessions.put(sessionKey, tgt, expires);
         }
+        bindTGT(tgt, logonURI, user);
+        return tgt;
+    }
+
+    private static String requestTGT(URI logonURI, HostCredentials credentials)
+            throws UnRAVLException, IOException {
+        HttpPost post = new HttpPost(logonURI);
+        String u = Text.urlEncode(credentials.getUserName());
+        String p = Text.urlEncode(credentials.getPassword());
+        String body = String.format("username=%s&password=%s", u, p);
+        // security: don't hold onto credentials in memory
+        credentials.clear();
+        p = null;
+        post.setHeader(new BasicHeader("Content-Type",
+                "application/x-www-form-urlencoded"));
+        post.setEntity(new StringEntity(body));
+        // security: don't hold onto credentials in memory
+        body = null;
+        CasResponse response = UnRAVLPlugins.getHttpClient().execute(post,
+                new CasAuthResponseHandler());
+        if (response.status != 201)
+            throw new UnRAVLException("Cannot login via " + logonURI
+                    + ", response: " + response.statusLine);
+        if (response.location == null)
+            throw new UnRAVLException("Cannot login via " + logonURI
+                    + ", no Location header returned.");
+        return response.location;
+    }
+
+    // Discard a TGT the CAS server no longer accepts
+    private void invalidateTGT(String tgt) {
+        if (tgtKey == null)
+            return;
+        getScript().getRuntime().unbind(tgtKey);
+        CasTicketCache.getInstance().invalidateTgt(cacheKey, tgt);
+        AuthSessionStore sessions = AuthSessionStore.getInstance();
+        if (sessions != null)
+            sessions.remove("cas|" + cacheKey);
+    }
+
+    // If the server rejects the call, the TGT may have expired: discard it
+    // so the next call logs in again.
+    private void evictOnUnauthorized(final String tgt) {
+        getCall().addUnauthorizedListener(new ApiCall.UnauthorizedListener() {
+            @Override
+            public void unauthorized(ApiCall call) {
+                logger.info("Discarding CAS TGT " + tgtKey
+                        + " after 401 Unauthorized");
+                invalidateTGT(tgt);
+            }
+        });
+    }
+
+    // The parts of a CAS response that the plugin uses
+    private static class CasResponse {
+        int status;
+        String statusLine;
+        String location;
+        String body;
     }
 
-    private class CasAuthResponseHandler implements
-            ResponseHandler<HttpResponse> {
+    // Reads the whole response, so the connection returns to the pool.
+    private static class CasAuthResponseHandler implements
+            ResponseHandler<CasResponse> {
         @Override
-        public HttpResponse handleResponse(HttpResponse response)
+        public CasResponse handleResponse(HttpResponse response)
                 throws ClientProtocolException, IOException {
-            if (response.getEntity() == null)
-                return response;
-            InputStream input = response.getEntity().getContent();
-            if (input != null) {
-                responseBody = new ByteArrayOutputStream();
-                Binary.copy(input, responseBody);
-                responseBody.close();
-            } else
-                responseBody = null;
-
-            return response;
+            CasResponse r = new CasResponse();
+            r.status = response.getStatusLine().getStatusCode();
+            r.statusLine = response.getStatusLine().toString();
+            Header location = response.getFirstHeader("Location");
+            r.location = location == null ? null : location.getValue();
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream input = entity.getContent()) {
+                    if (input != null)
+                        Binary.copy(input, body);
+                }
+                r.body = Text.utf8ToString(body.toByteArray());
+            }
+            return r;
         }
 
     }
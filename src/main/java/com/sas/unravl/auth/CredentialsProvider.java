@@ -43,8 +43,8 @@ public interface CredentialsProvider {
 
     /**
      * Get credentials for the host, user, and password. Note: If reading
-     * credentials from a .netrc file, the credentials are <em>not</em> cached;
-     * we reread the .netrc file each time. (This allows one script to obtain
+     * credentials from a .netrc file, the parsed file is cached, but it is
+     * read again whenever it changes. (This allows one script to obtain
      * credentials from a service and store them in .netrc in the current
      * directory.)
      *
@@ -1,14 +1,10 @@
 // Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
 package com.sas.unravl.auth;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
@@ -41,6 +37,9 @@ import org.apache.log4j.Logger;
  * <p>
  * Passwords with whitespace in them must be quoted with double quotes. Thus,
  * passwords may not contain double quote characters.
+ * <p>
+ * The file is parsed once and cached (see {@link NetrcFile}); it is parsed
+ * again when it changes.
  * 
  * @author DavidBiesack@sas.com
  */
@@ -52,14 +51,6 @@ public class NetrcCredentialsProvider extends AbstractCredentialsProvider {
     public NetrcCredentialsProvider() {
     }
 
-    // matches: identifier unquoted-text-without-spaces
-    // matches: identifier "quoted-text with possible spaces"
-    private static final Pattern KEY_VALUE = Pattern
-            .compile("\\s*(\\w+)\\s+(\"([^\"]*)\"|([^\\s]+))");
-    // pattern match groups:
-    private static final int KEY_GROUP = 1;
-    private static final int QUOTED_VAL_GROUP = 3;
-    private static final int UNQUOTED_VAL_GROUP = 4;
     static final Logger logger = Logger
             .getLogger(NetrcCredentialsProvider.class);
 
@@ -71,15 +62,15 @@ public class NetrcCredentialsProvider extends AbstractCredentialsProvider {
      * java.lang.String, java.lang.String, boolean)
      */
     @Override
-    public HostCredentials getHostCredentials(String hostPort, String login,
-            String password, boolean mock) throws FileNotFoundException,
-            IOException {
+    public HostCredentials getHostCredentials(String hostPort,
+            final String login, final String password, boolean mock)
+            throws FileNotFoundException, IOException {
 
         if (mock)
             return mockCredentials();
-        String clientId = credentialValue(auth, "clientId");
-        String clientSecret = credentialValue(auth, "clientSecret");
-        String accessToken = credentialValue(auth, "accessToken");
+        final String clientId = credentialValue(auth, "clientId");
+        final String clientSecret = credentialValue(auth, "clientSecret");
+        final String accessToken = credentialValue(auth, "accessToken");
 
         // Locate the netrc config file that contains credentials for hosts
         File netrc = new File(".netrc"); // look in current dir first
@@ -91,78 +82,42 @@ public class NetrcCredentialsProvider extends AbstractCredentialsProvider {
             netrc = new File(home, ".netrc");
         if (!netrc.exists())
             netrc = new File(home, "_netrc");
-        if (!netrc.exists())
-            return null;
 
         // split host:port into its parts. :port is optional
         String host = host(hostPort);
         String port = port(hostPort);
-        // Note: We can read and cache all the credentials, but that
-        // is a security issue; we should probably encrypt the cached content.
-        // Also, if we do cache the file content, we would still have to check
-        // the modification time stamp of the file, in case it has been updated
-        // since we cached the content.
-        // Also, the loop below would need to read all rows, not stop when a
-        // match is found. So we don't cache and simply read the file each time
-        // it is needed
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(netrc))) {
-            for (String line = reader.readLine(); line != null; line = reader
-                    .readLine()) {
-                if (line.trim().startsWith("#"))
-                    continue;
-                Matcher m = KEY_VALUE.matcher(line);
-                String lHost = null, lPort = null, lLogin = null, lPassword = null, lClientId = null, lClientSecret = null, lAccessToken = null;
-                while (m.find()) {
-                    String key = m.group(KEY_GROUP).toLowerCase();
-                    String val = m.group(QUOTED_VAL_GROUP);
-                    if (val == null)
-                        val = m.group(UNQUOTED_VAL_GROUP);
-                    switch (key) {
-                    case "login":
-                    case "user":
-                        lLogin = val;
-                        break;
-                    case "host":
-                    case "machine":
-                        lHost = val;
-                        break;
-                    case "port":
-                        lPort = val;
-                        break;
-                    case "password":
-                        lPassword = val;
-                        break;
-                    case "clientid":
-                        lClientId = val;
-                        break;
-                    case "clientsecret":
-                        lClientSecret = val;
-                        break;
-                    case "accesstoken":
-                        lAccessToken = val;
-                        break;
-                    default:
-                        logger.warn("Ignoring unknown key " + key
-                                + " in netrc file");
-                    }
-                }
-                if (host.equalsIgnoreCase(lHost)
-                        && Objects.equals(port, lPort)
-                        && (clientId == null || (Objects.equals(clientId,
-                                lClientId)))) {
-                    if (login == null || lLogin.equals(login)) {
-                        if ((or(clientId, lClientId) != null && or(clientSecret, lClientSecret) != null)
-                                || or(accessToken, lAccessToken) != null)
-                            return credentials(or(login, lLogin), or(password, lPassword),
-                                    or(clientId, lClientId),
-                                    or(clientSecret, lClientSecret),
-                                    or(accessToken, lAccessToken));
-                        else if (or(password, lPassword) != null)
-                            return credentials(or(login, lLogin), or(password, lPassword));
-                    }
-                }
-            }
+        // The file is parsed once and indexed by host and port, and parsed
+        // again only if it changes, such as when one script obtains
+        // credentials from a service and stores them in .netrc.
+        if (netrc.exists()) {
+            HostCredentials found = NetrcFile.forFile(netrc).find(host, port,
+                    new NetrcFile.EntryMatcher<HostCredentials>() {
+                        @Override
+                        public HostCredentials match(NetrcFile.Entry e) {
+                            if (clientId != null
+                                    && !Objects.equals(clientId,
+                                            e.getClientId()))
+                                return null;
+                            if (login != null && !login.equals(e.getLogin()))
+                                return null;
+                            String lClientId = e.getClientId();
+                            if ((or(clientId, lClientId) != null && or(
+                                    clientSecret, e.getClientSecret()) != null)
+                                    || or(accessToken, e.getAccessToken()) != null)
+                                return credentials(or(login, e.getLogin()),
+                                        or(password, e.getPassword()),
+                                        or(clientId, lClientId),
+                                        or(clientSecret, e.getClientSecret()),
+                                        or(accessToken, e.getAccessToken()));
+                            else if (or(password, e.getPassword()) != null)
+                                return credentials(or(login, e.getLogin()),
+                                        or(password, e.getPassword()));
+                            return null;
+                        }
+                    });
+            if (found != null)
+                return found;
         }
 
         if ((clientId != null && clientSecret != null) || accessToken != null)
@@ -174,7 +129,7 @@ public class NetrcCredentialsProvider extends AbstractCredentialsProvider {
         return null;
     }
 
-    private String or(String s1, String s2) {
+    private static String or(String s1, String s2) {
         return s1 == null ? s2 : s1;
     }
 
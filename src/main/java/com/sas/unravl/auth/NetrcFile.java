@@ -0,0 +1,297 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The parsed contents of a <code>.netrc</code> file, indexed by host and port.
+ * See {@link NetrcCredentialsProvider} for the file format.
+ * <p>
+ * Each file is parsed once and shared by all callers (see
+ * {@link #forFile(File)}); it is parsed again only when the file's last
+ * modified time or size changes. A {@link ReadWriteLock} lets parallel
+ * workers look up credentials concurrently.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class NetrcFile {
+
+    static final Logger logger = Logger.getLogger(NetrcFile.class);
+
+    // matches: identifier unquoted-text-without-spaces
+    // matches: identifier "quoted-text with possible spaces"
+    private static final Pattern KEY_VALUE = Pattern
+            .compile("\\s*(\\w+)\\s+(\"([^\"]*)\"|([^\\s]+))");
+    // pattern match groups:
+    private static final int KEY_GROUP = 1;
+    private static final int QUOTED_VAL_GROUP = 3;
+    private static final int UNQUOTED_VAL_GROUP = 4;
+
+    private static final ConcurrentMap<String, NetrcFile> files = new ConcurrentHashMap<String, NetrcFile>();
+    // incremented whenever a file is parsed again or cleared
+    private static final AtomicLong generation = new AtomicLong();
+
+    /**
+     * One line of a <code>.netrc</code> file
+     */
+    public static class Entry {
+        private String host, port, login, password, clientId, clientSecret,
+                accessToken;
+
+        public String getHost() {
+            return host;
+        }
+
+        public String getPort() {
+            return port;
+        }
+
+        public String getLogin() {
+            return login;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getClientSecret() {
+            return clientSecret;
+        }
+
+        public String getAccessToken() {
+            return accessToken;
+        }
+    }
+
+    private final File file;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<String, List<Entry>> index = Collections.emptyMap();
+    private List<Entry> entries = Collections.emptyList();
+    private long lastModified = -1, length = -1;
+
+    private NetrcFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Return the shared, up to date, parsed contents of a file
+     *
+     * @param file
+     *            the <code>.netrc</code> file
+     * @return the parsed file
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static NetrcFile forFile(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        NetrcFile netrc = files.get(path);
+        if (netrc == null) {
+            NetrcFile created = new NetrcFile(new File(path));
+            netrc = files.putIfAbsent(path, created);
+            if (netrc == null)
+                netrc = created;
+        }
+        netrc.refresh();
+        return netrc;
+    }
+
+    /**
+     * Return a number which changes whenever credentials read from any parsed
+     * file may have changed. Files already parsed are checked for changes
+     * (by their last modified time and size, without parsing them), so
+     * holders of credentials, such as {@link BasicAuth} sessions, can tell
+     * cheaply when to look them up again.
+     *
+     * @return the current generation of the parsed files
+     */
+    public static long generation() {
+        for (NetrcFile netrc : files.values()) {
+            try {
+                netrc.refresh();
+            } catch (IOException e) {
+                logger.warn("Could not read " + netrc.file + ": "
+                        + e.getMessage());
+            }
+        }
+        return generation.get();
+    }
+
+    /**
+     * Forget all parsed files
+     */
+    public static void clear() {
+        for (NetrcFile netrc : files.values())
+            netrc.replace(Collections.<Entry> emptyList(), -1, -1);
+        files.clear();
+    }
+
+    /**
+     * Selects an entry and extracts a result from it
+     *
+     * @param <T>
+     *            the result type
+     */
+    public interface EntryMatcher<T> {
+        /**
+         * @param entry
+         *            an entry for the host and port
+         * @return the result for this entry, or null to try the next entry
+         */
+        T match(Entry entry);
+    }
+
+    /**
+     * Apply a matcher to the entries for a host and port, in file order,
+     * until it returns a result
+     *
+     * @param host
+     *            the host name (case is ignored)
+     * @param port
+     *            the port, or null to match entries without a port
+     * @param matcher
+     *            selects an entry and extracts the result
+     * @return the first non-null result of the matcher, or null
+     */
+    public <T> T find(String host, String port, EntryMatcher<T> matcher) {
+        lock.readLock().lock();
+        try {
+            List<Entry> found = index.get(key(host, port));
+            if (found != null) {
+                for (Entry entry : found) {
+                    T result = matcher.match(entry);
+                    if (result != null)
+                        return result;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String key(String host, String port) {
+        return host.toLowerCase(Locale.ENGLISH) + "|" + port;
+    }
+
+    // Parse the file again if it has changed since it was last parsed.
+    private void refresh() throws IOException {
+        long modified = file.lastModified();
+        long size = file.length();
+        lock.readLock().lock();
+        try {
+            if (modified == lastModified && size == length)
+                return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (modified == lastModified && size == length)
+                return;
+            logger.trace("Reading credentials from " + file);
+            replace(parse(file), modified, size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void replace(List<Entry> parsed, long modified, long size) {
+        lock.writeLock().lock();
+        try {
+            Map<String, List<Entry>> newIndex = new HashMap<String, List<Entry>>();
+            for (Entry e : parsed) {
+                String key = key(e.host, e.port);
+                List<Entry> list = newIndex.get(key);
+                if (list == null) {
+                    list = new ArrayList<Entry>(1);
+                    newIndex.put(key, list);
+                }
+                list.add(e);
+            }
+            // nobody holds credentials from a file parsed the first time
+            if (lastModified != -1)
+                generation.incrementAndGet();
+            entries = parsed;
+            index = newIndex;
+            lastModified = modified;
+            length = size;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Parse all the lines which name a host
+    private static List<Entry> parse(File file) throws IOException {
+        List<Entry> parsed = new ArrayList<Entry>();
+        if (!file.isFile())
+            return parsed;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            for (String line = reader.readLine(); line != null; line = reader
+                    .readLine()) {
+                if (line.trim().startsWith("#"))
+                    continue;
+                Matcher m = KEY_VALUE.matcher(line);
+                Entry e = new Entry();
+                while (m.find()) {
+                    String key = m.group(KEY_GROUP).toLowerCase();
+                    String val = m.group(QUOTED_VAL_GROUP);
+                    if (val == null)
+                        val = m.group(UNQUOTED_VAL_GROUP);
+                    switch (key) {
+                    case "login":
+                    case "user":
+                        e.login = val;
+                        break;
+                    case "host":
+                    case "machine":
+                        e.host = val;
+                        break;
+                    case "port":
+                        e.port = val;
+                        break;
+                    case "password":
+                        e.password = val;
+                        break;
+                    case "clientid":
+                        e.clientId = val;
+                        break;
+                    case "clientsecret":
+                        e.clientSecret = val;
+                        break;
+                    case "accesstoken":
+                        e.accessToken = val;
+                        break;
+                    default:
+                        logger.warn("Ignoring unknown key " + key
+                                + " in netrc file");
+                    }
+                }
+                if (e.host != null)
+                    parsed.add(e);
+            }
+        }
+        return parsed;
+    }
+}
@@ -8,6 +8,7 @@ import com.fasterxml.jackson.databind.node.TextNode;
 import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
 import com.sas.unravl.UnRAVLRuntime;
 import com.sas.unravl.annotations.UnRAVLAuthPlugin;
 import com.sas.unravl.assertions.UnRAVLAssertionException;
@@ -20,6 +21,11 @@ import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.message.BasicHeader;
@@ -59,6 +65,7 @@ public class OAuth2Auth extends BaseUnRAVLAuth {
 
     private static final String PARAMETER_KEY = "parameter";
     private static final String ACCESS_TOKEN = "access_token";
+    private static final String EXPIRES_IN = "expires_in";
     private static final String BIND_ACCESS_TOKEN_KEY = "bindAccessToken";
     private static final String DEFAULT_ACCESS_TOKEN_JSON_PATH = "$.access_token";
     private static final String DEFAULT_OATH_SCRIPT_RESOURCE = "/com/sas/unravl/auth/get-oauth-token.unravl";
@@ -68,6 +75,11 @@ public class OAuth2Auth extends BaseUnRAVLAuth {
 
     private static String ACCESS_TOKEN_JSON_PATH_KEY = "accessTokenJsonPath";
 
+    // the names of the variables the token script references, such as
+    // "userId" in "{userId}" or "{userId|guest}"
+    private static final Pattern VARIABLE_REFERENCE = Pattern
+            .compile("\\{([-\\w.\\$]+)");
+
     @Override
     public void authenticate(UnRAVL script, ObjectNode oauthSpec, ApiCall call)
             throws UnRAVLException {
@@ -183,7 +195,9 @@ public class OAuth2Auth extends BaseUnRAVLAuth {
      * Get the access token. If it is part of the credentials for the OAuth2
      * host, return that static access token.
      * <p>
-     * If a cached token exists, return it.
+     * If the shared {@link OAuth2TokenStore} holds an unexpired token for the
+     * client, user and token server, return it. Concurrent requests for the
+     * same token share one request to the token server.
      * </p>
      * <p>
      * Otherwise, use UnRAVL to run an REST API POST call to the authentication
@@ -249,22 +263,22 @@ public class OAuth2Auth extends BaseUnRAVLAuth {
             return cacheAccessToken(user, host, access_token);
         }
 
+        // Tokens fetched from the token server are kept in the shared token
+        // store. A token already bound in the environment (such as one
+        // passed in by the caller) is used only if the store has never
+        // fetched a token for this client/user/server.
+        String storeKey = OAuth2TokenStore.key(creds.getClientId(), user,
+                authTokenURI.toString());
+        OAuth2TokenStore store = OAuth2TokenStore.getInstance();
         String key = accessTokenCacheKey(user, host);
-        if (runtime.bound(key)) {
-            access_token = (String) getScript().getRuntime().binding(key);
+        if (!store.contains(storeKey) && runtime.bound(key)) {
+            access_token = (String) runtime.binding(key);
             logger.info(String.format(
                     "Found cached OAuth2 access_token for user %s and host %s",
                     user, host));
             return cacheAccessToken(user, host, access_token);
         }
 
-        // See if the access token is cached for this user/host
-        if (runtime.bound(key)) {
-            access_token = (String) getCall().getVariable(key);
-            logger.info("Using cached oauth2 access token: " + access_token);
-            return cacheAccessToken(user, host, access_token);
-        }
-
         // Else, use UnRAVL to send a request to the server to generate an
         // access_token
 
@@ -273,37 +287,178 @@ public class OAuth2Auth extends BaseUnRAVLAuth {
         String accessTokenJsonPath = stringOption(auth,
                 ACCESS_TOKEN_JSON_PATH_KEY, DEFAULT_ACCESS_TOKEN_JSON_PATH);
 
-        // We need a new runtime because we don't want this script to
+        // The fetcher runs only if the store has no usable token; it reads
+        // the token script when it first fetches a token.
+        access_token = store.getToken(storeKey, new TokenFetcher(runtime,
+                creds, authTokenURI.toString(), accessTokenJsonPath,
+                oAuthScriptResourcePath, storeKey));
+        evictOnUnauthorized(storeKey);
+        return cacheAccessToken(user, host, access_token);
+    }
+
+    // If the server rejects the token, discard it so that the next call
+    // fetches a new one.
+    private void evictOnUnauthorized(final String storeKey) {
+        getCall().addUnauthorizedListener(new ApiCall.UnauthorizedListener() {
+            @Override
+            public void unauthorized(ApiCall call) {
+                logger.info("Discarding rejected OAuth2 access_token for "
+                        + storeKey);
+                OAuth2TokenStore.getInstance().invalidate(storeKey);
+                AuthSessionStore sessions = AuthSessionStore.getInstance();
+                if (sessions != null)
+                    sessions.remove(sessionKey(storeKey));
+            }
+        });
+    }
+
+    private static String sessionKey(String storeKey) {
+        return "oauth2|" + storeKey;
+    }
+
+    // Runs the token script in a new runtime and reads the access_token and
+    // (optional) expires_in values from the response. The fetcher is kept in
+    // the token store for background refreshes, so it keeps only what the
+    // token script needs: the credentials, the script, and the caller's
+    // values of the other variables the script references.
+    // If the AuthSessionStore is enabled, the first fetch reuses a token
+    // saved by an earlier run, and new tokens are saved for later runs.
+    private static class TokenFetcher implements OAuth2TokenStore.Fetcher {
+        private final OAuth2Credentials creds;
+        private final String tokenUrl;
+        private final String accessTokenJsonPath;
+        private final String scriptPath;
+        private final String sessionKey;
+        private volatile boolean first = true;
+        // the caller's runtime, until the first fetch reads the script
+        private UnRAVLRuntime caller; // guarded by this
+        private UnRAVLPlugins plugins; // guarded by this
+        private String scriptLanguage; // guarded by this
+        private ObjectNode script; // guarded by this
+        private Map<String, Object> environment; // guarded by this
+
+        TokenFetcher(UnRAVLRuntime caller, OAuth2Credentials creds,
+                String tokenUrl, String accessTokenJsonPath,
+                String scriptPath, String storeKey) {
+            this.caller = caller;
+            this.creds = creds;
+            this.tokenUrl = tokenUrl;
+            this.accessTokenJsonPath = accessTokenJsonPath;
+            this.scriptPath = scriptPath;
+            this.sessionKey = sessionKey(storeKey);
+        }
+
+        // Read the token script and copy the caller's bindings of the
+        // variables it references, then let go of the caller's runtime.
+        private synchronized void prepare() throws UnRAVLException {
+            if (script != null)
+                return;
+            try (InputStream in = openScriptStream(scriptPath)) {
+                script = (ObjectNode) new ObjectMapper().readTree(in);
+            } catch (IOException e) {
+                throw new UnRAVLException(e.getMessage(), e);
+            }
+            environment = new HashMap<String, Object>();
+            Matcher m = VARIABLE_REFERENCE.matcher(script.toString());
+            while (m.find()) {
+                String name = m.group(1);
+                if (caller.bound(name))
+                    environment.put(name, caller.binding(name));
+            }
+            plugins = caller.getPlugins();
+            scriptLanguage = caller.getScriptLanguage();
+            caller = null;
+        }
+
+        // We need a new runtime because we don't want the token script to
         // be recorded in the calling runtime's history of scripts, or these
         // values to affect the calling runtime.
+        private synchronized UnRAVLRuntime runtime() {
+            UnRAVLRuntime runtime = new UnRAVLRuntime(environment, plugins);
+            runtime.setScriptLanguage(scriptLanguage);
+            // @formatter:off
+            runtime
+                    // Hmmmm, is it worth defining constants for these keys?
+                    .bind("oath2TokenUrl", tokenUrl)
+                    .bind("clientId", creds.getClientId())
+                    .bind("clientSecret", creds.getClientSecret())
+                    .bind("userId", creds.getUserName())
+                    .bind("password", creds.getPassword())
+                    .bind(ACCESS_TOKEN_JSON_PATH_KEY, accessTokenJsonPath);
+            // @formatter:on
+            return runtime;
+        }
 
-        UnRAVLRuntime tokenRuntime = new UnRAVLRuntime(getScript().getRuntime());
-        tokenRuntime.bind(ACCESS_TOKEN_JSON_PATH_KEY, accessTokenJsonPath);
-
-        // @formatter:off
-        tokenRuntime
-                // Hmmmm, is it worth defining constants for these keys?
-                .bind("oath2TokenUrl", authTokenURI.toString())
-                .bind("clientId", creds.getClientId())
-                .bind("clientSecret", creds.getClientSecret())
-                .bind("userId", creds.getUserName())
-                .bind("password", creds.getPassword())
-                .bind(ACCESS_TOKEN_JSON_PATH_KEY, accessTokenJsonPath);
-        // @formatter:on
-        ObjectMapper mapper = new ObjectMapper();
-        try (InputStream in = openScriptStream(oAuthScriptResourcePath)) {
-            ObjectNode accessAuthJson = (ObjectNode) mapper.readTree(in);
-            UnRAVL oathAccessTokenScript = new UnRAVL(tokenRuntime,
-                    accessAuthJson);
-            oathAccessTokenScript.run();
-            access_token = (String) tokenRuntime.binding(ACCESS_TOKEN);
-        } catch (IOException e) {
-            throw new UnRAVLException(e.getMessage(), e);
+        @Override
+        public OAuth2TokenStore.Token fetch() throws UnRAVLException {
+            // read the script now, on the caller's thread, even if a saved
+            // session supplies this token; later refreshes use it
+            prepare();
+            AuthSessionStore sessions = AuthSessionStore.getInstance();
+            if (sessions != null && first) {
+                // refreshes must go to the token server
+                first = false;
+                String saved = sessions.get(sessionKey);
+                if (saved != null) {
+                    logger.info("Using saved OAuth2 access_token session");
+                    long expires = sessions.expires(sessionKey);
+                    return new OAuth2TokenStore.Token(saved,
+                            expires == Long.MAX_VALUE ? 0 : expires
+                                    - System.currentTimeMillis(),
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+            OAuth2TokenStore.Token token = fetchFromServer();
+            if (sessions != null)
+                sessions.put(sessionKey, token.getAccessToken(),
+                        token.getExpiresAt());
+            return token;
+        }
+
+        private OAuth2TokenStore.Token fetchFromServer() throws UnRAVLException {
+            UnRAVLRuntime tokenRuntime = runtime();
+            ObjectNode accessAuthJson;
+            synchronized (this) {
+                accessAuthJson = script.deepCopy();
+            }
+            try {
+                new UnRAVL(tokenRuntime, accessAuthJson).run();
+            } catch (IOException e) {
+                throw new UnRAVLException(e.getMessage(), e);
+            }
+            String access_token = (String) tokenRuntime.binding(ACCESS_TOKEN);
+            if (access_token == null)
+                throw new UnRAVLException(
+                        "oauth2 token script did not bind access_token");
+            return new OAuth2TokenStore.Token(access_token,
+                    expiresIn(tokenRuntime));
+        }
+
+        // The token lifetime in seconds: the expires_in variable, if the
+        // token script binds one, else expires_in in the response body.
+        private static long expiresIn(UnRAVLRuntime tokenRuntime) {
+            Object value = tokenRuntime.bound(EXPIRES_IN) ? tokenRuntime
+                    .binding(EXPIRES_IN) : null;
+            if (value == null && tokenRuntime.bound("responseBody")) {
+                Object body = tokenRuntime.binding("responseBody");
+                if (body instanceof JsonNode)
+                    value = ((JsonNode) body).get(EXPIRES_IN);
+            }
+            if (value instanceof JsonNode)
+                value = ((JsonNode) value).asText();
+            if (value == null)
+                return 0;
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring non-numeric oauth2 expires_in " + value);
+                return 0;
+            }
         }
-        return cacheAccessToken(user, host, access_token);
     }
 
-    private InputStream openScriptStream(String path) throws UnRAVLException {
+    private static InputStream openScriptStream(String path)
+            throws UnRAVLException {
         if (path.startsWith("@")) {
             String urlPath = path.substring(1);
             try {
@@ -315,7 +470,7 @@ public class OAuth2Auth extends BaseUnRAVLAuth {
         }
         // Not a @url; try to load relative to the classpath, or if that fails,
         // as a file.
-        InputStream is = getClass().getResourceAsStream(path);
+        InputStream is = OAuth2Auth.class.getResourceAsStream(path);
         if (is != null)
             return is;
         else {
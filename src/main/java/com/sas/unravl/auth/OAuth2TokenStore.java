@@ -0,0 +1,375 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth;
+
+import com.sas.unravl.UnRAVLException;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A process-wide store of OAuth2 access tokens, shared by all runtimes
+ * (including forked runtimes and parallel workers). Tokens are keyed by
+ * client ID, user ID and token server URL (see
+ * {@link #key(String, String, String)}).
+ * <p>
+ * A token is used until shortly before it expires (as reported by the token
+ * server's <code>expires_in</code> value); tokens without an expiration are
+ * kept until they are {@link #invalidate(String) invalidated}. A token which
+ * has been used is refreshed in the background ahead of its expiration, so
+ * callers do not wait for the token server in the middle of a run. The
+ * refresh lead time, in seconds, is set with the system property
+ * <code>unravl.oauth2.refresh.seconds</code> (default 60), but is never more
+ * than half of the token's lifetime.
+ * <p>
+ * Concurrent requests for the same key share one in-flight fetch: only one
+ * request is sent to the token server and the others wait for its result.
+ * <p>
+ * Each token is kept with the {@link Fetcher} which fetched it, for
+ * refreshes. Tokens which are invalidated, or which are not used again
+ * before their refresh is due, are removed along with their fetchers.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class OAuth2TokenStore {
+
+    private static final Logger logger = Logger
+            .getLogger(OAuth2TokenStore.class);
+
+    /** The system property which sets the refresh lead time, in seconds */
+    public static final String REFRESH_SECONDS_PROPERTY = "unravl.oauth2.refresh.seconds";
+
+    private static final long DEFAULT_REFRESH_SECONDS = 60;
+
+    // A token is not handed out if it expires within this many milliseconds
+    // (or a quarter of its lifetime, if less), so that it does not expire
+    // while the request is in flight.
+    private static final long EXPIRY_SKEW_MILLIS = 5000;
+
+    private static final OAuth2TokenStore instance = new OAuth2TokenStore(
+            TimeUnit.SECONDS.toMillis(Long.getLong(REFRESH_SECONDS_PROPERTY,
+                    DEFAULT_REFRESH_SECONDS)));
+
+    /**
+     * Fetches a new token from the token server
+     */
+    public interface Fetcher {
+        /**
+         * @return a new token
+         * @throws UnRAVLException
+         *             if the token cannot be obtained
+         */
+        Token fetch() throws UnRAVLException;
+    }
+
+    /**
+     * An access token and its expiration time
+     */
+    public static class Token {
+        private final String accessToken;
+        private final long expiresAt;
+        private final long skew;
+
+        /**
+         * @param accessToken
+         *            the access token string
+         * @param expiresIn
+         *            the token lifetime in seconds, as returned by the token
+         *            server; 0 or less if the token does not expire
+         */
+        public Token(String accessToken, long expiresIn) {
+            this(accessToken, expiresIn, TimeUnit.SECONDS);
+        }
+
+        /**
+         * @param accessToken
+         *            the access token string
+         * @param expiresIn
+         *            the token lifetime; 0 or less if the token does not
+         *            expire
+         * @param unit
+         *            the unit of expiresIn
+         */
+        public Token(String accessToken, long expiresIn, TimeUnit unit) {
+            this.accessToken = accessToken;
+            long lifetime = unit.toMillis(expiresIn);
+            this.expiresAt = expiresIn > 0 ? System.currentTimeMillis()
+                    + lifetime : Long.MAX_VALUE;
+            this.skew = Math.min(EXPIRY_SKEW_MILLIS, lifetime / 4);
+        }
+
+        public String getAccessToken() {
+            return accessToken;
+        }
+
+        /**
+         * @return the time (in milliseconds since the epoch) when the token
+         *         expires; {@link Long#MAX_VALUE} if it does not expire
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        boolean usable(long now) {
+            return expiresAt == Long.MAX_VALUE || now < expiresAt - skew;
+        }
+    }
+
+    private class Entry {
+        final String key;
+        final FutureTask<Token> task;
+        final Fetcher fetcher;
+        // set when the token is handed out; only used tokens are refreshed
+        volatile boolean used;
+        volatile boolean invalid;
+        volatile ScheduledFuture<?> refresh;
+
+        Entry(String key, final Fetcher fetcher) {
+            this.key = key;
+            this.fetcher = fetcher;
+            this.task = new FutureTask<Token>(new Callable<Token>() {
+                @Override
+                public Token call() throws UnRAVLException {
+                    fetchCount.incrementAndGet();
+                    return fetcher.fetch();
+                }
+            });
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    // the keys of all tokens fetched, including removed ones
+    private final Set<String> fetched = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final long refreshAheadMillis;
+    private final ScheduledThreadPoolExecutor refresher;
+    private final AtomicInteger fetchCount = new AtomicInteger();
+
+    /**
+     * Create a token store. Most callers should use the shared
+     * {@link #getInstance()}.
+     *
+     * @param refreshAheadMillis
+     *            how long before expiration a used token is refreshed; if
+     *            negative, tokens are never refreshed in the background
+     */
+    public OAuth2TokenStore(long refreshAheadMillis) {
+        this.refreshAheadMillis = refreshAheadMillis;
+        refresher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "UnRAVL OAuth2 token refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        refresher.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return the process-wide token store
+     */
+    public static OAuth2TokenStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Return the store key for a client, user and token server
+     *
+     * @param clientId
+     *            the OAuth2 client ID
+     * @param userId
+     *            the user ID
+     * @param tokenUrl
+     *            the token server URL
+     * @return the key
+     */
+    public static String key(String clientId, String userId, String tokenUrl) {
+        return clientId + "|" + userId + "|" + tokenUrl;
+    }
+
+    /**
+     * Test if the store has (or had) a token for a key. Expired and
+     * invalidated tokens still count, so that callers do not fall back to
+     * stale copies of a token kept elsewhere.
+     *
+     * @param key
+     *            the store key
+     * @return true if a token has been fetched for the key
+     */
+    public boolean contains(String key) {
+        return fetched.contains(key);
+    }
+
+    /**
+     * Return a usable token for a key, fetching one if there is no token or
+     * the token has expired. If another thread is already fetching a token
+     * for the key, wait for that fetch instead of starting another one.
+     *
+     * @param key
+     *            the store key
+     * @param fetcher
+     *            fetches a new token; also used for background refreshes
+     * @return the access token
+     * @throws UnRAVLException
+     *             if the token cannot be fetched
+     */
+    public String getToken(String key, Fetcher fetcher) throws UnRAVLException {
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                Entry created = new Entry(key, fetcher);
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    fetched.add(key);
+                    entry = created;
+                    entry.task.run();
+                }
+            } else if (stale(entry)) {
+                Entry created = new Entry(key, fetcher);
+                if (entries.replace(key, entry, created)) {
+                    cancelRefresh(entry);
+                    entry = created;
+                    entry.task.run();
+                } else
+                    continue; // another thread replaced it; look again
+            }
+            Token token = await(entry);
+            entry.used = true;
+            scheduleRefresh(entry, token);
+            return token.getAccessToken();
+        }
+    }
+
+    // An entry must be replaced if it was invalidated or finished without a
+    // usable token.
+    private boolean stale(Entry entry) {
+        if (entry.invalid)
+            return true;
+        if (!entry.task.isDone())
+            return false;
+        try {
+            return !entry.task.get().usable(System.currentTimeMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    private Token await(Entry entry) throws UnRAVLException {
+        try {
+            return entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnRAVLException("Interrupted while fetching OAuth2 token",
+                    e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnRAVLException)
+                throw (UnRAVLException) cause;
+            throw new UnRAVLException(cause.getMessage(), cause);
+        }
+    }
+
+    private synchronized void scheduleRefresh(final Entry entry, Token token) {
+        if (entry.refresh != null || token.getExpiresAt() == Long.MAX_VALUE
+                || refreshAheadMillis < 0)
+            return;
+        long now = System.currentTimeMillis();
+        long lifetime = token.getExpiresAt() - now;
+        long lead = Math.min(refreshAheadMillis, lifetime / 2);
+        entry.refresh = refresher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(entry);
+            }
+        }, Math.max(0, lifetime - lead), TimeUnit.MILLISECONDS);
+    }
+
+    // Replace an entry with a freshly fetched token, if it is still current
+    // and has been used; remove it if it has not been used. A failed refresh
+    // leaves the old token in place until it expires.
+    private void refresh(Entry entry) {
+        if (!entry.used) {
+            entries.remove(entry.key, entry);
+            return;
+        }
+        if (entries.get(entry.key) != entry || entry.invalid)
+            return;
+        Entry created = new Entry(entry.key, entry.fetcher);
+        created.task.run();
+        try {
+            Token token = created.task.get();
+            if (entries.replace(entry.key, entry, created)) {
+                logger.info("Refreshed OAuth2 access_token for " + entry.key);
+                // keep refreshing only if the new token is used
+                scheduleRefresh(created, token);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("Could not refresh OAuth2 access_token for "
+                    + entry.key + ": " + e.getCause().getMessage());
+        }
+    }
+
+    private void cancelRefresh(Entry entry) {
+        ScheduledFuture<?> refresh = entry.refresh;
+        if (refresh != null)
+            refresh.cancel(false);
+    }
+
+    /**
+     * Discard the token for a key, such as after the server rejects it. The
+     * next {@link #getToken(String, Fetcher)} fetches a new token.
+     *
+     * @param key
+     *            the store key
+     */
+    public void invalidate(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.invalid = true;
+            cancelRefresh(entry);
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Remove all tokens
+     */
+    public void clear() {
+        for (Entry entry : entries.values())
+            cancelRefresh(entry);
+        entries.clear();
+        fetched.clear();
+    }
+
+    /**
+     * @return the number of tokens in the store
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of fetches (including background refreshes) since
+     *         this store was created
+     */
+    public int getFetchCount() {
+        return fetchCount.get();
+    }
+}
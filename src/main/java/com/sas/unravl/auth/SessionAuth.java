@@ -0,0 +1,60 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+
+/**
+ * An optional interface for {@link UnRAVLAuth} plugins which can reuse their
+ * work across API calls. Instead of running
+ * {@link UnRAVLAuth#authenticate(UnRAVL, ObjectNode, ApiCall)} for each call,
+ * {@link ApiCall} asks the plugin for a session key; calls with the same key
+ * share one {@link AuthSession}, which is opened on first use and discarded if
+ * a call using it is rejected with 401 Unauthorized.
+ * <p>
+ * {@link #sessionKey(UnRAVL, ObjectNode, ApiCall)} is called on one shared
+ * instance of the plugin class, possibly from several threads, so it must not
+ * use or change the plugin instance's state.
+ *
+ * @author David.Biesack@sas.com
+ */
+public interface SessionAuth extends UnRAVLAuth {
+
+    /**
+     * Return the key of the session to use for a call. Calls which would
+     * authenticate identically (such as the same host and credentials
+     * specification) should return the same key.
+     *
+     * @param script
+     *            the currently running script
+     * @param auth
+     *            the JSON object node which defines this authentication
+     * @param call
+     *            the current API call
+     * @return the session key, or null to use
+     *         {@link UnRAVLAuth#authenticate(UnRAVL, ObjectNode, ApiCall)}
+     *         for this call instead of a session
+     * @throws UnRAVLException
+     *             if the authentication definition is invalid
+     */
+    public String sessionKey(UnRAVL script, ObjectNode auth, ApiCall call)
+            throws UnRAVLException;
+
+    /**
+     * Create a new session, such as by resolving credentials.
+     *
+     * @param script
+     *            the currently running script
+     * @param auth
+     *            the JSON object node which defines this authentication
+     * @param call
+     *            the current API call
+     * @return a new session
+     * @throws UnRAVLException
+     *             if authentication fails
+     */
+    public AuthSession openSession(UnRAVL script, ObjectNode auth, ApiCall call)
+            throws UnRAVLException;
+}
@@ -1,17 +1,23 @@
 package com.sas.unravl.extractors;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.PathNotFoundException;
 import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
 import com.sas.unravl.generators.Text;
 import com.sas.unravl.util.Json;
+import com.sas.unravl.util.StreamingJsonPath;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -65,6 +71,18 @@ import org.apache.log4j.Logger;
  * variable instead of the current API call's response body. The from value can
  * be a value assigned by another extractor or defined in the "env" element.
  * </p>
+ * <pre>
+ * "stream" : true
+ * </pre>
+ * <p>
+ * evaluates all the paths in a single pass over the response body, without
+ * parsing it into a JSON tree, and stops reading once every path is resolved.
+ * In this mode, the response body is not bound to <var>responseBody</var>.
+ * This only applies to paths that {@link StreamingJsonPath} supports (fields,
+ * indexes, wildcards, and simple filters); if any path uses other JsonPath
+ * features, the response body is parsed and JsonPath is used instead. This
+ * option is ignored if "from" is used.
+ * </p>
  *
  * @author David.Biesack@sas.com
  */
@@ -79,13 +97,13 @@ public class JsonPathExtractor extends JsonExtractor {
     @Override
     public void extract(UnRAVL script, ObjectNode scriptlet, ApiCall call)
             throws UnRAVLException {
-        Object fromObject = getJsonSource(script, scriptlet, call);
         ObjectNode bindings = Json.object(Json.firstFieldValue(scriptlet));
         // TODO: look for the effective binding
         // "bind" : [ ..., { "jsonNode" : {}, "wrap" : true }, ...]
         // in inherited templates (match only if the value is {}). If true, wrap
         // this one as well.
         boolean wrap = booleanOption(scriptlet, "wrap");
+        Map<String, String> paths = new LinkedHashMap<String, String>();
         for (Map.Entry<String, JsonNode> entry : Json.fields(bindings)) {
             JsonNode path = entry.getValue();
             if (!path.isTextual()) {
@@ -93,8 +111,16 @@ public class JsonPathExtractor extends JsonExtractor {
                         "JsonPath extractor requires string path values, found "
                                 + path);
             }
-            String pathString = call.getScript().expand(path.textValue());
-            Object value = JsonPath.read(fromObject, pathString);
+            paths.put(entry.getKey(),
+                    call.getScript().expand(path.textValue()));
+        }
+        if (scriptlet.get("from") == null
+                && booleanOption(scriptlet, "stream")
+                && streamExtract(script, paths, wrap, call))
+            return;
+        Object fromObject = getJsonSource(script, scriptlet, call);
+        for (Map.Entry<String, String> entry : paths.entrySet()) {
+            Object value = JsonPath.read(fromObject, entry.getValue());
             if (wrap) {
                 value = Json.wrap(value);
             }
@@ -102,6 +128,63 @@ public class JsonPathExtractor extends JsonExtractor {
         }
     }
 
+    // Evaluate all the paths in one pass over the response body, without
+    // parsing it into a tree. Return false if any path is not in the subset
+    // supported by StreamingJsonPath, so that the caller can use JsonPath.
+    private boolean streamExtract(UnRAVL script, Map<String, String> paths,
+            boolean wrap, ApiCall call) throws UnRAVLException {
+        List<StreamingJsonPath> compiled = new ArrayList<StreamingJsonPath>(
+                paths.size());
+        for (String path : paths.values()) {
+            StreamingJsonPath c = StreamingJsonPath.compile(path);
+            if (c == null) {
+                logger.debug("Cannot stream JsonPath " + path
+                        + "; parsing the response body instead.");
+                return false;
+            }
+            compiled.add(c);
+        }
+        List<List<JsonNode>> results;
+        try {
+            results = StreamingJsonPath.evaluate(call.getResponseBody()
+                    .toByteArray(), compiled);
+        } catch (IOException e) {
+            throw new UnRAVLException("Could not parse response body as JSON: "
+                    + e.getMessage(), e);
+        }
+        int i = 0;
+        for (String varName : paths.keySet()) {
+            StreamingJsonPath path = compiled.get(i);
+            List<JsonNode> matches = results.get(i++);
+            Object value;
+            if (path.isDefinite()) {
+                if (matches.isEmpty())
+                    throw new PathNotFoundException("No results for path: "
+                            + path);
+                value = wrap ? matches.get(0) : unwrap(matches.get(0));
+            } else if (wrap) {
+                ArrayNode array = new ArrayNode(Json.jsonNodeFactory());
+                array.addAll(matches);
+                value = array;
+            } else {
+                List<Object> list = new ArrayList<Object>(matches.size());
+                for (JsonNode match : matches)
+                    list.add(unwrap(match));
+                value = list;
+            }
+            script.bind(varName, value);
+        }
+        return true;
+    }
+
+    private Object unwrap(JsonNode node) throws UnRAVLException {
+        try {
+            return mapper.treeToValue(node, Object.class);
+        } catch (JsonProcessingException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        }
+    }
+
     private Object getJsonSource(UnRAVL script, ObjectNode scriptlet,
             ApiCall call) throws UnRAVLException {
         JsonNode from = scriptlet.get("from");
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.node.BinaryNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.util.ContentCache;
 import com.sas.unravl.util.Json;
 
 import java.io.BufferedInputStream;
@@ -122,6 +123,11 @@ public class Binary {
     }
 
     private void buildFromStream(String fileOrURL) throws IOException {
+        File file = ContentCache.localFile(fileOrURL);
+        if (file != null) {
+            bytes.write(ContentCache.getInstance().bytes(file));
+            return;
+        }
         InputStream is = null;
         try {
             URL url = new URL(fileOrURL);
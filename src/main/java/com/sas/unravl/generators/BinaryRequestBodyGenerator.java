@@ -5,6 +5,7 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.annotations.UnRAVLStatelessPlugin;
 import com.sas.unravl.util.Json;
 
 import java.io.IOException;
@@ -30,6 +31,7 @@ import java.io.InputStream;
  * @author David.Biesack@sas.com
  *
  */
+@UnRAVLStatelessPlugin
 @UnRAVLRequestBodyGeneratorPlugin("binary")
 public class BinaryRequestBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
 
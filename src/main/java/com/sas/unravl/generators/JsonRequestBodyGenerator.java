@@ -6,6 +6,7 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.annotations.UnRAVLStatelessPlugin;
 import com.sas.unravl.util.Json;
 
 import java.io.ByteArrayInputStream;
@@ -36,6 +37,7 @@ import java.io.InputStream;
  * @author David.Biesack@sas.com
  * 
  */
+@UnRAVLStatelessPlugin
 @UnRAVLRequestBodyGeneratorPlugin("json")
 public class JsonRequestBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
 
@@ -3,6 +3,7 @@ package com.sas.unravl.generators;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.util.ContentCache;
 import com.sas.unravl.util.Json;
 
 import java.io.BufferedReader;
@@ -102,6 +103,11 @@ public class Text implements CharSequence {
     }
 
     private void buildFromStream(String fileOrURL) throws IOException {
+        File file = ContentCache.localFile(fileOrURL);
+        if (file != null) {
+            text.append(ContentCache.getInstance().text(file));
+            return;
+        }
         InputStream is = null;
         try {
             URL url = new URL(fileOrURL);
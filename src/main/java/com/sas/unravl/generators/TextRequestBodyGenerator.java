@@ -6,6 +6,7 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.annotations.UnRAVLStatelessPlugin;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -29,6 +30,7 @@ import java.io.InputStream;
  * @author David.Biesack@sas.com
  *
  */
+@UnRAVLStatelessPlugin
 @UnRAVLRequestBodyGeneratorPlugin("text")
 public class TextRequestBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
 
@@ -10,6 +10,8 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.google.common.io.Files;
 import com.sas.unravl.ApiCall;
+import com.sas.unravl.ChangeSet;
+import com.sas.unravl.ChangeSetListener;
 import com.sas.unravl.Main;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
@@ -26,8 +28,6 @@ import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseWheelListener;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,6 +38,7 @@ import java.io.Reader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -142,7 +143,8 @@ public class UnRAVLFrame extends JFrame {
     private void reset() {
         runtime = new UnRAVLRuntime();
         changedVars = new LinkedHashMap<String, Object>();
-        runtime.addPropertyChangeListener(new RuntimePropertyChangeListener());
+        allVars = new LinkedHashMap<String, Object>(runtime.getBindings());
+        runtime.addChangeSetListener(new RuntimeChangeSetListener());
         updateVarTab();
         updateCallsTab();
         outputTextArea.setText("");
@@ -548,30 +550,34 @@ public class UnRAVLFrame extends JFrame {
     }
 
     LinkedHashMap<String, Object> changedVars = new LinkedHashMap<String, Object>();
+    // the runtime's bindings, as copied by the script thread; the live
+    // bindings may not be read while a script is running
+    Map<String, Object> allVars = Collections.emptyMap();
 
-    class RuntimePropertyChangeListener implements PropertyChangeListener {
+    // Updates the variables and calls tabs at most once per change interval,
+    // rather than for every binding and call
+    class RuntimeChangeSetListener implements ChangeSetListener {
 
         @Override
-        public void propertyChange(PropertyChangeEvent evt) {
-            Object source = evt.getSource();
-            if (source == runtime) {
-                String name = evt.getPropertyName();
-                if (name.startsWith(UnRAVLRuntime.ENV_PROPERTY_CHANGE_PREFIX)) {
-                    changedVars.put(name
-                            .substring(UnRAVLRuntime.ENV_PROPERTY_CHANGE_PREFIX
-                                    .length()), evt.getNewValue());
-                } else {
-                    switch (name) {
-                    case ("calls"): // NOI18N
-                        if (callIndex > runtime.size()) {
+        public void changed(final ChangeSet changes) {
+            if (changes.getRuntime() != runtime)
+                return;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!changes.getBindings().isEmpty()) {
+                        changedVars.putAll(changes.getBindings());
+                        allVars = changes.getEnvironment();
+                        updateVarTab();
+                    }
+                    if (changes.isCallsChanged()) {
+                        if (callIndex > changes.getCallCount()) {
                             callIndex = 0;
                         }
                         updateCallsTab();
-                    default:
-                        ;
                     }
                 }
-            }
+            });
         }
     }
 
@@ -669,7 +675,7 @@ public class UnRAVLFrame extends JFrame {
         }
         Map<String, Object> varMap;
         if (showAll.isSelected()) {
-            varMap = runtime.getBindings();
+            varMap = allVars;
         } else {
             varMap = changedVars;
         }
@@ -1552,6 +1558,9 @@ public class UnRAVLFrame extends JFrame {
             }
             enableControlsForRunState(false);
             final String statusText = text;
+            // the script has finished, so its bindings may be copied here
+            final Map<String, Object> finalVars = new LinkedHashMap<String, Object>(
+                    runtime.getBindings());
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
@@ -1559,9 +1568,10 @@ public class UnRAVLFrame extends JFrame {
                     outputTextArea.setCaretPosition(0);
                     callIndex = runtime.size() - 1;
                     updateCallsTab();
+                    allVars = finalVars;
+                    updateVarTab();
                 }
             });
-            updateVarTab();
         }
 
     }// GEN-LAST:event_onRun
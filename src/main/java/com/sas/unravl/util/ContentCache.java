@@ -0,0 +1,401 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sas.unravl.generators.Text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A process-wide cache of the contents of local files, such as the expected
+ * values used by the "json", "text" and "binary" assertions. Entries are
+ * keyed by the file's canonical path and the kind of content (bytes, text,
+ * parsed JSON, mapped buffer, or a value computed by a {@link Loader}). An
+ * entry is reused only while the file's last modified time and size are
+ * unchanged; otherwise the file is read again.
+ * <p>
+ * The total (estimated) size of the cached content is capped; least recently
+ * used entries are evicted when the cap is exceeded, and files larger than the
+ * cap are not cached. The cap, in bytes, is set with the system property
+ * <code>unravl.content.cache.bytes</code> (default 64MB); 0 disables the
+ * cache.
+ * <p>
+ * Cached values are shared: callers must not modify the arrays, buffers, or
+ * JSON nodes returned from the cache.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ContentCache {
+
+    private static final Logger logger = Logger.getLogger(ContentCache.class);
+
+    /** The system property which sets the cache's size cap */
+    public static final String MAX_BYTES_PROPERTY = "unravl.content.cache.bytes";
+
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    // parsed JSON trees take several times the space of their text
+    private static final int JSON_WEIGHT_FACTOR = 4;
+
+    private static final ContentCache instance = new ContentCache(Long.getLong(
+            MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Computes the value cached for a file
+     *
+     * @param <T>
+     *            the type of the cached value
+     */
+    public interface Loader<T> {
+        /**
+         * @param file
+         *            the file to load
+         * @return the value to cache for the file
+         * @throws IOException
+         *             if the file cannot be read
+         */
+        T load(File file) throws IOException;
+
+        /**
+         * @param file
+         *            the file to load
+         * @param value
+         *            the value computed by {@link #load(File)}
+         * @return the estimated size in bytes of the value
+         */
+        long weight(File file, T value);
+    }
+
+    private static class Entry {
+        final Object value;
+        final long lastModified;
+        final long length;
+        final long weight;
+
+        Entry(Object value, long lastModified, long length, long weight) {
+            this.value = value;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.weight = weight;
+        }
+    }
+
+    // access-ordered, for LRU eviction
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+    // loads in progress, by key and file version
+    private final ConcurrentMap<String, FutureTask<Object>> loading = new ConcurrentHashMap<String, FutureTask<Object>>();
+    private long maxWeight;
+    private long weight;
+    private long hits, misses, evictions;
+
+    /**
+     * Create a cache. Most callers should use the shared
+     * {@link #getInstance()}.
+     *
+     * @param maxWeight
+     *            the maximum total size, in bytes, of the cached content
+     */
+    public ContentCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return the process-wide content cache
+     */
+    public static ContentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Return the local file named by an UnRAVL <code>@file-or-url</code>
+     * location (after the <code>@</code>), if it is a file that exists.
+     *
+     * @param fileOrURL
+     *            a file name or URL
+     * @return the file, or null if fileOrURL is a URL or is not an existing
+     *         file
+     */
+    public static File localFile(String fileOrURL) {
+        try {
+            new URL(fileOrURL);
+            return null;
+        } catch (MalformedURLException e) {
+            File f = new File(fileOrURL);
+            return f.isFile() ? f : null;
+        }
+    }
+
+    /**
+     * Return the contents of a file.
+     *
+     * @param file
+     *            the file to read
+     * @return the file's bytes
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public byte[] bytes(File file) throws IOException {
+        return get(file, "bytes", new Loader<byte[]>() {
+            @Override
+            public byte[] load(File file) throws IOException {
+                return Files.readAllBytes(file.toPath());
+            }
+
+            @Override
+            public long weight(File file, byte[] value) {
+                return value.length;
+            }
+        });
+    }
+
+    /**
+     * Return the contents of a UTF-8 text file.
+     *
+     * @param file
+     *            the file to read
+     * @return the file's text
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public String text(File file) throws IOException {
+        return get(file, "text", new Loader<String>() {
+            @Override
+            public String load(File file) throws IOException {
+                return Text.utf8ToString(Files.readAllBytes(file.toPath()));
+            }
+
+            @Override
+            public long weight(File file, String value) {
+                return 2L * value.length();
+            }
+        });
+    }
+
+    /**
+     * Return the contents of a UTF-8 JSON file, parsed as a JSON tree. The
+     * text is not expanded.
+     *
+     * @param file
+     *            the file to read
+     * @return the file's JSON content
+     * @throws IOException
+     *             if the file cannot be read or is not valid JSON
+     */
+    public JsonNode json(File file) throws IOException {
+        return get(file, "json", new Loader<JsonNode>() {
+            @Override
+            public JsonNode load(File file) throws IOException {
+                return mapper.readTree(file);
+            }
+
+            @Override
+            public long weight(File file, JsonNode value) {
+                return JSON_WEIGHT_FACTOR * file.length();
+            }
+        });
+    }
+
+    /**
+     * Return a read-only memory-mapped buffer of the contents of a file. This
+     * does not copy large files into the Java heap.
+     *
+     * @param file
+     *            the file to map
+     * @return a buffer containing the file's bytes. Use
+     *         {@link MappedByteBuffer#duplicate()} before changing its
+     *         position.
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    public MappedByteBuffer mapped(File file) throws IOException {
+        return get(file, "mapped", new Loader<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer load(File file) throws IOException {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                        FileChannel channel = raf.getChannel()) {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                            channel.size());
+                }
+            }
+
+            @Override
+            public long weight(File file, MappedByteBuffer value) {
+                return value.capacity();
+            }
+        });
+    }
+
+    /**
+     * Return a value computed from a file, loading it if it is not cached or
+     * if the file has changed since it was cached. Files are loaded outside
+     * the cache's lock, so a large file does not hold up other callers;
+     * concurrent requests for the same file wait for a single load.
+     *
+     * @param file
+     *            the file
+     * @param kind
+     *            distinguishes different values cached for the same file
+     * @param loader
+     *            computes the value from the file
+     * @return the cached or newly loaded value
+     * @throws IOException
+     *             if the loader cannot read the file
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(final File file, String kind, final Loader<T> loader)
+            throws IOException {
+        String key = kind + ":" + file.getCanonicalPath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified
+                    && entry.length == length) {
+                hits++;
+                return (T) entry.value;
+            }
+            misses++;
+            if (entry != null)
+                remove(key);
+        }
+        String version = key + "@" + lastModified + ":" + length;
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                return loader.load(file);
+            }
+        });
+        FutureTask<Object> loading = this.loading.putIfAbsent(version, task);
+        if (loading != null)
+            return (T) await(loading);
+        try {
+            task.run();
+            T value = (T) await(task);
+            long w = loader.weight(file, value);
+            synchronized (this) {
+                remove(key);
+                if (w <= maxWeight) {
+                    entries.put(key, new Entry(value, lastModified, length, w));
+                    weight += w;
+                    evict();
+                }
+            }
+            return value;
+        } finally {
+            this.loading.remove(version, task);
+        }
+    }
+
+    private static Object await(FutureTask<Object> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null)
+            weight -= removed.weight;
+    }
+
+    private void evict() {
+        for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet()
+                .iterator(); weight > maxWeight && i.hasNext();) {
+            Map.Entry<String, Entry> eldest = i.next();
+            weight -= eldest.getValue().weight;
+            i.remove();
+            evictions++;
+            logger.trace("Evicted " + eldest.getKey() + " from content cache");
+        }
+    }
+
+    /**
+     * Change the cap on the total size of cached content, evicting entries if
+     * needed.
+     *
+     * @param maxWeight
+     *            the maximum total size, in bytes; 0 disables caching
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    public synchronized long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return the estimated size in bytes of the cached content
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Remove all entries and reset the statistics.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = hits = misses = evictions = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = hits + misses;
+        return String.format(
+                "ContentCache: %d entries, %d of %d bytes, %d hits, %d misses (%.1f%% hits), %d evictions",
+                entries.size(), weight, maxWeight, hits, misses,
+                requests == 0 ? 0.0 : 100.0 * hits / requests, evictions);
+    }
+}
@@ -121,35 +121,7 @@ public class Json {
             @Override
             public JsonNode apply(JsonNode node) {
                 if (node.isTextual()) {
-                    if (script.getRuntime().isValueNode(node.textValue())) {
-                        Object nodeValue = script.obtainVariableValue(node
-                                .textValue());
-                        if (nodeValue instanceof Boolean) {
-                            return BooleanNode.valueOf(((Boolean) nodeValue));
-                        } else if (nodeValue instanceof Integer) {
-                            return new IntNode((Integer) nodeValue);
-                        } else if (nodeValue instanceof Double) {
-                            return new DoubleNode((Double) nodeValue);
-                        } else if (nodeValue instanceof BigInteger) {
-                            return new BigIntegerNode((BigInteger) nodeValue);
-                        } else if (nodeValue instanceof BigDecimal) {
-                            return new DecimalNode((BigDecimal) nodeValue);
-                        } else if (nodeValue instanceof Long) {
-                            return new LongNode((Long) nodeValue);
-                        } else if (nodeValue instanceof String) {
-                            return new TextNode(nodeValue.toString());
-                        } else if (nodeValue instanceof ArrayNode) {
-                            return (ArrayNode) nodeValue;
-                        } else if (nodeValue instanceof ObjectNode) {
-                            return (ObjectNode) nodeValue;
-                        } else if (nodeValue == null) {
-                            return NullNode.getInstance();
-                        } else {
-                            return new TextNode(nodeValue.toString());
-                        }
-                    } else {
-                        return new TextNode(script.expand(node.textValue()));
-                    }
+                    return expandText(node.textValue(), script);
                 } else if (node.isArray()) {
                     ArrayNode from = (ArrayNode) node;
                     ArrayNode to = new ArrayNode(jnf);
@@ -173,6 +145,47 @@ public class Json {
         return map(actual, expandText);
     }
 
+    /**
+     * Expand a single JSON string value the way {@link #expand(JsonNode, UnRAVL)}
+     * does: a string of the form <code>"{@literal @}varName@}"</code> is replaced
+     * with the JSON value of <code><em>varName</em></code>; any other string has
+     * its <code>{varName}</code> references expanded.
+     *
+     * @param text
+     *            a JSON string value
+     * @param script
+     *            the Unravl script
+     * @return the JSON value which replaces the text
+     */
+    public static JsonNode expandText(String text, UnRAVL script) {
+        if (!script.getRuntime().isValueNode(text))
+            return new TextNode(script.expand(text));
+        Object nodeValue = script.obtainVariableValue(text);
+        if (nodeValue instanceof Boolean) {
+            return BooleanNode.valueOf(((Boolean) nodeValue));
+        } else if (nodeValue instanceof Integer) {
+            return new IntNode((Integer) nodeValue);
+        } else if (nodeValue instanceof Double) {
+            return new DoubleNode((Double) nodeValue);
+        } else if (nodeValue instanceof BigInteger) {
+            return new BigIntegerNode((BigInteger) nodeValue);
+        } else if (nodeValue instanceof BigDecimal) {
+            return new DecimalNode((BigDecimal) nodeValue);
+        } else if (nodeValue instanceof Long) {
+            return new LongNode((Long) nodeValue);
+        } else if (nodeValue instanceof String) {
+            return new TextNode(nodeValue.toString());
+        } else if (nodeValue instanceof ArrayNode) {
+            return (ArrayNode) nodeValue;
+        } else if (nodeValue instanceof ObjectNode) {
+            return (ObjectNode) nodeValue;
+        } else if (nodeValue == null) {
+            return NullNode.getInstance();
+        } else {
+            return new TextNode(nodeValue.toString());
+        }
+    }
+
     /**
      * Transform a JsonNode tree by applying a mapping function to the nodes in
      * it.
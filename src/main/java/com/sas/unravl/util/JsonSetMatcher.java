@@ -0,0 +1,454 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sas.unravl.UnRAVLException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares JSON values where the order of array elements does not matter. The
+ * {@link Mode} selects whether the actual value must equal the expected value,
+ * be contained in it, or contain it.
+ * <p>
+ * Array elements are matched through a canonical structural hash of each
+ * subtree, which does not depend on the order of object members or array
+ * elements. Elements are grouped into hash buckets so that matching large
+ * arrays takes time close to linear in their size. Only in the
+ * <code>subset</code> and <code>superset</code> modes, elements which have no
+ * exact equivalent are then matched against elements that contain them,
+ * with augmenting paths, so that a match is found whenever one exists. The
+ * elements which may contain an element are found through an index of their
+ * scalar members (or scalar array elements) and member names, so each is
+ * compared only with the few elements that share its most selective member,
+ * such as an <code>"id"</code>.
+ * <p>
+ * Hashes are cached per node for the duration of one {@link #match} call, so
+ * the JSON values should not be modified while they are compared.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class JsonSetMatcher {
+
+    /** The maximum number of unmatched elements listed in one failure */
+    public static final int MAX_LISTED = 10;
+
+    /**
+     * How the actual value is compared to the expected value
+     */
+    public enum Mode {
+        /**
+         * The values are equal, except that array elements may appear in any
+         * order
+         */
+        UNORDERED,
+        /**
+         * Every member of each actual object and every actual array element
+         * also occurs in the expected value; the expected value may contain
+         * more
+         */
+        SUBSET,
+        /**
+         * Every member of each expected object and every expected array
+         * element also occurs in the actual value; the actual value may
+         * contain more
+         */
+        SUPERSET;
+
+        /**
+         * Find a mode by name, ignoring case
+         *
+         * @param name
+         *            "unordered", "subset", or "superset"
+         * @return the corresponding mode
+         * @throws UnRAVLException
+         *             if the name is not a valid mode
+         */
+        public static Mode of(String name) throws UnRAVLException {
+            for (Mode mode : values())
+                if (mode.name().equalsIgnoreCase(name))
+                    return mode;
+            throw new UnRAVLException("Unrecognized JSON comparison mode "
+                    + name + "; must be unordered, subset, or superset");
+        }
+    }
+
+    private final Mode mode;
+    private final Map<JsonNode, Integer> hashes = new IdentityHashMap<JsonNode, Integer>();
+    private final List<String> failures = new ArrayList<String>();
+    private final List<Object> path = new ArrayList<Object>();
+
+    public JsonSetMatcher(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Compare an actual JSON value with an expected value.
+     *
+     * @param actual
+     *            the actual JSON value
+     * @param expected
+     *            the expected JSON value
+     * @return a description of each difference, prefixed with its JSON
+     *         Pointer; an empty list if the values match.
+     */
+    public List<String> match(JsonNode actual, JsonNode expected) {
+        failures.clear();
+        path.clear();
+        hashes.clear();
+        if (mode == Mode.SUBSET)
+            compare(expected, actual);
+        else
+            compare(actual, expected);
+        hashes.clear();
+        return new ArrayList<String>(failures);
+    }
+
+    // In SUBSET mode, the container is the expected value and the contained
+    // is the actual value; else the reverse.
+    private JsonNode actual(JsonNode container, JsonNode contained) {
+        return mode == Mode.SUBSET ? contained : container;
+    }
+
+    private JsonNode expected(JsonNode container, JsonNode contained) {
+        return mode == Mode.SUBSET ? container : contained;
+    }
+
+    private void compare(JsonNode container, JsonNode contained) {
+        if (container.isObject() && contained.isObject()) {
+            for (Iterator<Map.Entry<String, JsonNode>> fields = contained
+                    .fields(); fields.hasNext();) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                path.add(field.getKey());
+                JsonNode member = container.get(field.getKey());
+                if (member == null) {
+                    if (mode == Mode.SUBSET)
+                        fail("unexpected field, found " + field.getValue());
+                    else
+                        fail("missing field, expected " + field.getValue());
+                } else
+                    compare(member, field.getValue());
+                path.remove(path.size() - 1);
+            }
+            if (mode == Mode.UNORDERED) {
+                for (Iterator<Map.Entry<String, JsonNode>> fields = container
+                        .fields(); fields.hasNext();) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    if (!contained.has(field.getKey())) {
+                        path.add(field.getKey());
+                        fail("unexpected field, found " + field.getValue());
+                        path.remove(path.size() - 1);
+                    }
+                }
+            }
+        } else if (container.isArray() && contained.isArray()) {
+            List<JsonNode> leftover = new ArrayList<JsonNode>();
+            List<JsonNode> unmatched = matchElements(container, contained,
+                    mode == Mode.UNORDERED, leftover);
+            if (mode == Mode.SUBSET) {
+                list(unmatched, "response elements not found in expected");
+            } else {
+                list(unmatched, "expected elements not found in response");
+                if (mode == Mode.UNORDERED)
+                    list(leftover, "response elements not found in expected");
+            }
+        } else if (!container.equals(contained)) {
+            fail("found " + actual(container, contained) + ", expected "
+                    + expected(container, contained));
+        }
+    }
+
+    // Match the elements of two arrays. Return the contained elements that
+    // have no match in the container, and add the unused container
+    // elements to leftover.
+    private List<JsonNode> matchElements(JsonNode container,
+            JsonNode contained, boolean exact, List<JsonNode> leftover) {
+        int size = container.size();
+        // the index of the contained element matched to each container
+        // element, or -1
+        int owner[] = new int[size];
+        Arrays.fill(owner, -1);
+        Map<Integer, List<Integer>> buckets = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < size; i++) {
+            Integer h = hash(container.get(i));
+            List<Integer> bucket = buckets.get(h);
+            if (bucket == null) {
+                bucket = new ArrayList<Integer>(1);
+                buckets.put(h, bucket);
+            }
+            bucket.add(i);
+        }
+        List<Integer> unmatched = new ArrayList<Integer>();
+        for (int j = 0; j < contained.size(); j++) {
+            JsonNode element = contained.get(j);
+            List<Integer> bucket = buckets.get(hash(element));
+            boolean found = false;
+            if (bucket != null) {
+                for (Iterator<Integer> i = bucket.iterator(); i.hasNext();) {
+                    int index = i.next();
+                    if (matches(container.get(index), element, true)) {
+                        owner[index] = j;
+                        i.remove();
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if (!found)
+                unmatched.add(j);
+        }
+        if (!exact && !unmatched.isEmpty()) {
+            // Elements without an exact equivalent may still be contained
+            // in an element that has more fields or elements. Find a
+            // maximum matching with augmenting paths, which may move
+            // earlier matches to other elements that also contain them.
+            Map<Integer, List<Integer>> candidates = new HashMap<Integer, List<Integer>>();
+            ContainerIndex index = new ContainerIndex(container);
+            int from[] = new int[size];
+            Arrays.fill(from, -2);
+            List<Integer> remaining = new ArrayList<Integer>();
+            for (int j : unmatched)
+                if (!contained.get(j).isContainerNode()
+                        || !augment(container, contained, j, owner, from,
+                                index, candidates))
+                    remaining.add(j);
+            unmatched = remaining;
+        }
+        if (leftover != null)
+            for (int i = 0; i < size; i++)
+                if (owner[i] < 0)
+                    leftover.add(container.get(i));
+        List<JsonNode> elements = new ArrayList<JsonNode>(unmatched.size());
+        for (int j : unmatched)
+            elements.add(contained.get(j));
+        return elements;
+    }
+
+    // Search breadth first for a path from the contained element j to an
+    // unused container element, alternating between containment and the
+    // current matches, and if one is found, shift the matches along it.
+    // from[i] is the container element from which container element i was
+    // reached; -1 if reached from j; -2 (as on entry and exit) if not
+    // reached.
+    private boolean augment(JsonNode container, JsonNode contained, int j,
+            int owner[], int from[], ContainerIndex index,
+            Map<Integer, List<Integer>> candidates) {
+        Deque<Integer> queue = new ArrayDeque<Integer>(); // container indexes
+        List<Integer> reached = new ArrayList<Integer>();
+        try {
+            for (int i : candidates(container, contained, j, index,
+                    candidates)) {
+                from[i] = -1;
+                reached.add(i);
+                queue.add(i);
+            }
+            while (!queue.isEmpty()) {
+                int k = queue.remove();
+                if (owner[k] < 0) {
+                    for (int i = k; i >= 0;) {
+                        int previous = from[i];
+                        owner[i] = previous < 0 ? j : owner[previous];
+                        i = previous;
+                    }
+                    return true;
+                }
+                for (int i : candidates(container, contained, owner[k],
+                        index, candidates))
+                    if (from[i] == -2) {
+                        from[i] = k;
+                        reached.add(i);
+                        queue.add(i);
+                    }
+            }
+            return false;
+        } finally {
+            for (int i : reached)
+                from[i] = -2;
+        }
+    }
+
+    // the indexes of the container elements which contain element j
+    private List<Integer> candidates(JsonNode container, JsonNode contained,
+            int j, ContainerIndex index, Map<Integer, List<Integer>> candidates) {
+        List<Integer> list = candidates.get(j);
+        if (list == null) {
+            list = new ArrayList<Integer>();
+            JsonNode element = contained.get(j);
+            for (int i : index.mayContain(element))
+                if (matches(container.get(i), element, false))
+                    list.add(i);
+            candidates.put(j, list);
+        }
+        return list;
+    }
+
+    // The elements of a container array, indexed by the scalar members and
+    // member names of its objects and the scalar elements of its arrays. An
+    // element can contain another only if it has each of the other's scalar
+    // members (or scalar elements) and member names.
+    private final class ContainerIndex {
+        private final Map<Object, List<Integer>> postings = new HashMap<Object, List<Integer>>();
+        private final List<Integer> objects = new ArrayList<Integer>();
+        private final List<Integer> arrays = new ArrayList<Integer>();
+
+        ContainerIndex(JsonNode container) {
+            for (int i = 0; i < container.size(); i++) {
+                JsonNode element = container.get(i);
+                if (element.isObject()) {
+                    objects.add(i);
+                    for (Iterator<Map.Entry<String, JsonNode>> fields = element
+                            .fields(); fields.hasNext();) {
+                        Map.Entry<String, JsonNode> field = fields.next();
+                        add(field.getKey(), i);
+                        if (!field.getValue().isContainerNode())
+                            add(Arrays.asList(field.getKey(),
+                                    field.getValue()), i);
+                    }
+                } else if (element.isArray()) {
+                    arrays.add(i);
+                    for (JsonNode e : element)
+                        if (!e.isContainerNode())
+                            add(Collections.singletonList(e), i);
+                }
+            }
+        }
+
+        private void add(Object key, int i) {
+            List<Integer> list = postings.get(key);
+            if (list == null) {
+                list = new ArrayList<Integer>(1);
+                postings.put(key, list);
+            }
+            // an array may repeat a scalar
+            if (list.isEmpty() || list.get(list.size() - 1) != i)
+                list.add(i);
+        }
+
+        // the shortest list of container elements which have one of the
+        // element's scalar members or member names (or scalar elements)
+        List<Integer> mayContain(JsonNode element) {
+            List<Integer> shortest = element.isObject() ? objects : arrays;
+            if (element.isObject()) {
+                for (Iterator<Map.Entry<String, JsonNode>> fields = element
+                        .fields(); fields.hasNext();) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    shortest = shorter(shortest, field.getValue()
+                            .isContainerNode() ? field.getKey() : Arrays
+                            .asList(field.getKey(), field.getValue()));
+                }
+            } else {
+                for (JsonNode e : element)
+                    if (!e.isContainerNode())
+                        shortest = shorter(shortest,
+                                Collections.singletonList(e));
+            }
+            return shortest;
+        }
+
+        private List<Integer> shorter(List<Integer> shortest, Object key) {
+            List<Integer> list = postings.get(key);
+            if (list == null)
+                return Collections.emptyList();
+            return list.size() < shortest.size() ? list : shortest;
+        }
+    }
+
+    // Return true if the container matches the contained value. If exact,
+    // they must be equivalent (equal, ignoring array element order), else
+    // the container may have additional members and elements.
+    private boolean matches(JsonNode container, JsonNode contained,
+            boolean exact) {
+        if (container.isObject() && contained.isObject()) {
+            if (exact && container.size() != contained.size())
+                return false;
+            for (Iterator<Map.Entry<String, JsonNode>> fields = contained
+                    .fields(); fields.hasNext();) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                JsonNode member = container.get(field.getKey());
+                if (member == null
+                        || !matches(member, field.getValue(), exact))
+                    return false;
+            }
+            return true;
+        } else if (container.isArray() && contained.isArray()) {
+            if (exact && container.size() != contained.size())
+                return false;
+            return matchElements(container, contained, exact, null).isEmpty();
+        } else
+            return container.equals(contained);
+    }
+
+    // A structural hash that ignores the order of object members and array
+    // elements, so equivalent values have equal hashes.
+    private int hash(JsonNode node) {
+        if (!node.isContainerNode())
+            return node.hashCode();
+        Integer cached = hashes.get(node);
+        if (cached != null)
+            return cached;
+        int h;
+        if (node.isObject()) {
+            h = 0x0b1ec7;
+            for (Iterator<Map.Entry<String, JsonNode>> fields = node.fields(); fields
+                    .hasNext();) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                h += mix(field.getKey().hashCode() * 31
+                        + hash(field.getValue()));
+            }
+        } else {
+            h = 0xa77a7;
+            for (JsonNode element : node)
+                h += mix(hash(element));
+        }
+        h = mix(h + node.size());
+        hashes.put(node, h);
+        return h;
+    }
+
+    // spread the bits, so that sums of element hashes do not collide easily
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private void list(List<JsonNode> elements, String label) {
+        if (elements.isEmpty())
+            return;
+        StringBuilder b = new StringBuilder();
+        b.append(elements.size()).append(' ').append(label).append(": ");
+        int n = 0;
+        for (JsonNode element : elements) {
+            if (n == MAX_LISTED) {
+                b.append(", ... ").append(elements.size() - n)
+                        .append(" more");
+                break;
+            }
+            if (n++ > 0)
+                b.append(", ");
+            b.append(element);
+        }
+        fail(b.toString());
+    }
+
+    private void fail(String message) {
+        String pointer = JsonStreamComparator.pointer(path);
+        failures.add((pointer.isEmpty() ? "root" : pointer) + ": " + message);
+    }
+}
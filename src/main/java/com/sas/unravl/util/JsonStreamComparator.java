@@ -0,0 +1,296 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.sas.unravl.UnRAVL;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compares a JSON document, read token by token with a Jackson
+ * {@link JsonParser}, against an expected {@link JsonNode} tree, without
+ * building a tree for the actual document. The comparison stops at the first
+ * difference, which is reported with the
+ * <a href="https://tools.ietf.org/html/rfc6901">JSON Pointer</a> of the value
+ * that differs.
+ * <p>
+ * Equality is the same as {@link JsonNode#equals(Object)}: arrays must match
+ * in size and order, object members may appear in any order, and numbers must
+ * match in type and value.
+ * <p>
+ * If a script is supplied, string values and field names in the actual
+ * document are expanded the same way as {@link Json#expand(JsonNode, UnRAVL)}
+ * before they are compared, so <code>{varName}</code> and
+ * <code>"{@literal @}varName@}"</code> references behave as they do when the
+ * response body is parsed and expanded as a tree.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class JsonStreamComparator {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final UnRAVL script;
+    // path from the root to the current value: String field names or
+    // Integer array indexes. Only converted to a JSON Pointer on mismatch.
+    private final List<Object> path = new ArrayList<Object>();
+
+    /**
+     * The first difference found by a {@link JsonStreamComparator}
+     */
+    public static class Difference {
+        private final String pointer;
+        private final String message;
+
+        Difference(String pointer, String message) {
+            this.pointer = pointer;
+            this.message = message;
+        }
+
+        /**
+         * @return the JSON Pointer of the value that differs; the empty string
+         *         denotes the root value
+         */
+        public String getPointer() {
+            return pointer;
+        }
+
+        /**
+         * @return a description of the difference
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return (pointer.isEmpty() ? "root" : pointer) + ": " + message;
+        }
+    }
+
+    /**
+     * Create a comparator
+     *
+     * @param script
+     *            the script used to expand strings in the actual JSON; may be
+     *            null, in which case no expansion is done.
+     */
+    public JsonStreamComparator(UnRAVL script) {
+        this.script = script;
+    }
+
+    /**
+     * Compare JSON text with an expected JSON value.
+     *
+     * @param actual
+     *            UTF-8 encoded JSON text
+     * @param expected
+     *            the expected JSON value
+     * @return null if the actual JSON equals the expected value, else the
+     *         first difference.
+     * @throws IOException
+     *             if the actual JSON cannot be parsed
+     */
+    public Difference compare(byte[] actual, JsonNode expected)
+            throws IOException {
+        try (JsonParser parser = FACTORY.createParser(actual)) {
+            return compare(parser, expected);
+        }
+    }
+
+    /**
+     * Compare the next value read from a parser with an expected JSON value.
+     * Reading stops at the first difference.
+     *
+     * @param parser
+     *            a JSON parser, positioned before the value to compare
+     * @param expected
+     *            the expected JSON value
+     * @return null if the actual JSON equals the expected value, else the
+     *         first difference.
+     * @throws IOException
+     *             if the actual JSON cannot be parsed
+     */
+    public Difference compare(JsonParser parser, JsonNode expected)
+            throws IOException {
+        path.clear();
+        if (parser.nextToken() == null)
+            return difference("found no JSON value, expected "
+                    + describe(expected));
+        return compareValue(parser, expected);
+    }
+
+    // The parser is positioned on the first token of a value.
+    private Difference compareValue(JsonParser parser, JsonNode expected)
+            throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        switch (token) {
+        case START_OBJECT:
+            return compareObject(parser, expected);
+        case START_ARRAY:
+            return compareArray(parser, expected);
+        case VALUE_STRING:
+            return compareString(parser, expected);
+        case VALUE_NUMBER_INT:
+            switch (parser.getNumberType()) {
+            case INT:
+                if (expected.isInt()
+                        && expected.intValue() == parser.getIntValue())
+                    return null;
+                break;
+            case LONG:
+                if (expected.isLong()
+                        && expected.longValue() == parser.getLongValue())
+                    return null;
+                break;
+            default:
+                if (expected.isBigInteger()
+                        && expected.bigIntegerValue().equals(
+                                parser.getBigIntegerValue()))
+                    return null;
+            }
+            return mismatch(parser.getText(), expected);
+        case VALUE_NUMBER_FLOAT:
+            if (expected.isDouble()
+                    && Double.compare(expected.doubleValue(),
+                            parser.getDoubleValue()) == 0)
+                return null;
+            return mismatch(parser.getText(), expected);
+        case VALUE_TRUE:
+        case VALUE_FALSE:
+            if (expected.isBoolean()
+                    && expected.booleanValue() == parser.getBooleanValue())
+                return null;
+            return mismatch(parser.getText(), expected);
+        case VALUE_NULL:
+            if (expected.isNull())
+                return null;
+            return mismatch("null", expected);
+        default:
+            return difference("found unexpected JSON token " + token);
+        }
+    }
+
+    private Difference compareObject(JsonParser parser, JsonNode expected)
+            throws IOException {
+        if (!expected.isObject())
+            return mismatch("an object", expected);
+        Set<String> seen = new HashSet<String>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = expandName(parser.getCurrentName());
+            JsonNode value = expected.get(name);
+            path.add(name);
+            if (value == null)
+                return difference("found unexpected field");
+            seen.add(name);
+            parser.nextToken();
+            Difference d = compareValue(parser, value);
+            if (d != null)
+                return d;
+            path.remove(path.size() - 1);
+        }
+        if (seen.size() < expected.size()) {
+            for (Iterator<String> names = expected.fieldNames(); names
+                    .hasNext();) {
+                String name = names.next();
+                if (!seen.contains(name)) {
+                    path.add(name);
+                    return difference("missing field, expected "
+                            + describe(expected.get(name)));
+                }
+            }
+        }
+        return null;
+    }
+
+    private Difference compareArray(JsonParser parser, JsonNode expected)
+            throws IOException {
+        if (!expected.isArray())
+            return mismatch("an array", expected);
+        int index = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            path.add(index);
+            if (index >= expected.size())
+                return difference("found unexpected array element; expected "
+                        + expected.size() + " elements");
+            Difference d = compareValue(parser, expected.get(index));
+            if (d != null)
+                return d;
+            path.remove(path.size() - 1);
+            index++;
+        }
+        if (index < expected.size()) {
+            path.add(index);
+            return difference("missing array element, expected "
+                    + describe(expected.get(index)));
+        }
+        return null;
+    }
+
+    private Difference compareString(JsonParser parser, JsonNode expected)
+            throws IOException {
+        String text = parser.getText();
+        if (script != null && text.indexOf('{') >= 0) {
+            JsonNode expanded = Json.expandText(script.expand(text), script);
+            if (expanded.equals(expected))
+                return null;
+            return mismatch(expanded.toString(), expected);
+        }
+        if (expected.isTextual() && expected.textValue().equals(text))
+            return null;
+        return mismatch(quote(text), expected);
+    }
+
+    private String expandName(String name) {
+        if (script == null || name.indexOf('{') < 0)
+            return name;
+        return script.expand(script.expand(name));
+    }
+
+    private Difference mismatch(String found, JsonNode expected) {
+        return difference("found " + found + ", expected "
+                + describe(expected));
+    }
+
+    private Difference difference(String message) {
+        return new Difference(pointer(path), message);
+    }
+
+    private static String describe(JsonNode node) {
+        if (node.isObject())
+            return "an object";
+        else if (node.isArray())
+            return "an array";
+        else
+            return node.toString();
+    }
+
+    private static String quote(String text) {
+        return new TextNode(text).toString();
+    }
+
+    /**
+     * Convert a path of field names and array indexes to a JSON Pointer
+     *
+     * @param path
+     *            a list of String field names and Integer array indexes
+     * @return the JSON Pointer string
+     */
+    public static String pointer(List<Object> path) {
+        StringBuilder pointer = new StringBuilder();
+        for (Object step : path) {
+            pointer.append('/').append(
+                    step.toString().replace("~", "~0").replace("/", "~1"));
+        }
+        return pointer.toString();
+    }
+}
@@ -0,0 +1,185 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A histogram of latencies (or any non-negative long values) in fixed memory.
+ * Values below 64 are counted exactly; larger values are counted in buckets
+ * 1/32 of a power of two wide, so percentiles are within about 3% of the
+ * recorded values. The mean and variance are computed from exact sums.
+ * Histograms can be merged, so that parts of a data set may be counted on
+ * separate threads (or separate machines) and combined.
+ * <p>
+ * Histograms are not thread-safe. {@link #toJson()} and
+ * {@link #fromJson(JsonNode)} copy histograms between processes.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class LatencyHistogram {
+
+    private static final int EXACT = 64;
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKETS = EXACT + 58 * SUB_BUCKETS;
+
+    private final long counts[] = new long[BUCKETS];
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private double sum;
+    private double sumOfSquares;
+
+    static int bucket(long value) {
+        if (value < EXACT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+        return EXACT + (shift - 1) * SUB_BUCKETS
+                + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // the value reported for a bucket: the middle of its range
+    static long value(int bucket) {
+        if (bucket < EXACT)
+            return bucket;
+        int shift = (bucket - EXACT) / SUB_BUCKETS + 1;
+        long sub = (bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        return (sub << shift) + (1L << (shift - 1));
+    }
+
+    /**
+     * Count a value
+     *
+     * @param value
+     *            the value; negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[bucket(value)]++;
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        sumOfSquares += (double) value * value;
+    }
+
+    /**
+     * Add the values counted by another histogram to this one
+     *
+     * @param other
+     *            another histogram, which is not changed
+     * @return this histogram
+     */
+    public LatencyHistogram merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+        return this;
+    }
+
+    /**
+     * @return this histogram as JSON, with only the buckets which have counts
+     */
+    public ObjectNode toJson() {
+        ObjectNode json = Json.jsonNodeFactory().objectNode();
+        json.put("count", count);
+        json.put("min", getMin());
+        json.put("max", getMax());
+        json.put("sum", sum);
+        json.put("sumOfSquares", sumOfSquares);
+        ArrayNode buckets = json.putArray("buckets");
+        for (int i = 0; i < BUCKETS; i++)
+            if (counts[i] != 0)
+                buckets.addArray().add(i).add(counts[i]);
+        return json;
+    }
+
+    /**
+     * @param json
+     *            a histogram written by {@link #toJson()}
+     * @return the histogram
+     */
+    public static LatencyHistogram fromJson(JsonNode json) {
+        LatencyHistogram h = new LatencyHistogram();
+        h.count = json.path("count").asLong();
+        if (h.count > 0) {
+            h.min = json.path("min").asLong();
+            h.max = json.path("max").asLong();
+        }
+        h.sum = json.path("sum").asDouble();
+        h.sumOfSquares = json.path("sumOfSquares").asDouble();
+        for (JsonNode b : json.path("buckets")) {
+            int bucket = b.path(0).asInt();
+            if (bucket >= 0 && bucket < BUCKETS)
+                h.counts[bucket] = b.path(1).asLong();
+        }
+        return h;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the smallest value, or 0 if there are none
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return the largest value, or 0 if there are none
+     */
+    public long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    /**
+     * @return the mean value, or 0 if there are none
+     */
+    public double getMean() {
+        return count == 0 ? 0.0 : sum / count;
+    }
+
+    /**
+     * @return the sample variance, or 0 if there are fewer than two values
+     */
+    public double getVariance() {
+        if (count < 2)
+            return 0.0;
+        double mean = getMean();
+        double variance = (sumOfSquares - count * mean * mean) / (count - 1);
+        return Math.max(0.0, variance);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * @param percent
+     *            a percentile, from 0 to 100, such as 99.9
+     * @return the value at or below which <var>percent</var> of the values
+     *         fall, approximately; 0 if there are no values
+     */
+    public long getPercentile(double percent) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(percent / 100.0 * count);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.max(min, Math.min(max, value(i)));
+        }
+        return max;
+    }
+}
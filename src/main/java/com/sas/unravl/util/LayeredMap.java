@@ -0,0 +1,231 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A map of variable names to values which can be forked in constant time. The
+ * map is a stack of immutable layers, shared by all forks, with a small
+ * private overlay on top which holds this map's own changes. Removing a
+ * variable bound in a shared layer records a tombstone in the overlay.
+ * <p>
+ * {@link #fork()} freezes the overlay into a new shared layer and returns a
+ * map with an empty overlay above it, so neither map sees the other's later
+ * changes. When the stack grows too deep, forking compacts it into one layer,
+ * so lookups stay fast.
+ * <p>
+ * Iteration order is that of a {@link LinkedHashMap} which received the same
+ * changes. This class is not thread-safe, except that several threads may
+ * fork a map which is not being changed.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class LayeredMap extends AbstractMap<String, Object> {
+
+    // the deepest stack of shared layers before forking compacts it
+    private static final int MAX_DEPTH = 16;
+
+    // a tombstone, and the result of looking up an unbound key
+    private static final Object REMOVED = new Object();
+
+    // an immutable layer; entries may map keys to REMOVED
+    private static final class Layer {
+        final Layer parent;
+        final Map<String, Object> entries;
+        final int depth;
+
+        Layer(Layer parent, Map<String, Object> entries) {
+            this.parent = parent;
+            this.entries = entries;
+            this.depth = parent == null ? 1 : parent.depth + 1;
+        }
+    }
+
+    private Layer parent;
+    private Map<String, Object> overlay = new LinkedHashMap<String, Object>();
+    private int size;
+
+    /**
+     * Create an empty map
+     */
+    public LayeredMap() {
+        this(null, 0);
+    }
+
+    /**
+     * Create a map with the bindings of another map
+     *
+     * @param map
+     *            the initial bindings
+     */
+    public LayeredMap(Map<String, ?> map) {
+        this();
+        putAll(map);
+    }
+
+    private LayeredMap(Layer parent, int size) {
+        this.parent = parent;
+        this.size = size;
+    }
+
+    /**
+     * Return a copy of this map in constant time. Changes to either map are
+     * not seen by the other.
+     *
+     * @return the new map
+     */
+    public synchronized LayeredMap fork() {
+        if (!overlay.isEmpty()) {
+            if (parent != null && parent.depth >= MAX_DEPTH)
+                parent = new Layer(null, flatten(parent, overlay));
+            else
+                parent = new Layer(parent, overlay);
+            overlay = new LinkedHashMap<String, Object>();
+        }
+        return new LayeredMap(parent, size);
+    }
+
+    // the value of a key in a layer or its parents, or REMOVED
+    private static Object lookup(Layer layer, Object key) {
+        for (; layer != null; layer = layer.parent) {
+            Object value = layer.entries.get(key);
+            if (value != null || layer.entries.containsKey(key))
+                return value;
+        }
+        return REMOVED;
+    }
+
+    private Object lookup(Object key) {
+        Object value = overlay.get(key);
+        if (value != null || overlay.containsKey(key))
+            return value;
+        return lookup(parent, key);
+    }
+
+    // apply the layers, bottom up, and then the overlay
+    private static Map<String, Object> flatten(Layer layer,
+            Map<String, Object> overlay) {
+        List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>();
+        for (; layer != null; layer = layer.parent)
+            maps.add(layer.entries);
+        Map<String, Object> flat = new LinkedHashMap<String, Object>();
+        for (int i = maps.size() - 1; i >= -1; i--) {
+            for (Map.Entry<String, Object> e : (i < 0 ? overlay : maps.get(i))
+                    .entrySet()) {
+                if (e.getValue() == REMOVED)
+                    flat.remove(e.getKey());
+                else
+                    flat.put(e.getKey(), e.getValue());
+            }
+        }
+        return flat;
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = lookup(key);
+        return value == REMOVED ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return lookup(key) != REMOVED;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Object old = lookup(key);
+        overlay.put(key, value);
+        if (old == REMOVED) {
+            size++;
+            return null;
+        }
+        return old;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object old = lookup(key);
+        if (old == REMOVED)
+            return null;
+        if (lookup(parent, key) == REMOVED)
+            overlay.remove(key);
+        else
+            overlay.put((String) key, REMOVED);
+        size--;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        parent = null;
+        overlay = new LinkedHashMap<String, Object>();
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new EntryIterator(flatten(parent, overlay).entrySet()
+                        .iterator());
+            }
+        };
+    }
+
+    // iterates a flattened copy, and writes changes through to the map
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private final Iterator<Map.Entry<String, Object>> entries;
+        private String last;
+
+        EntryIterator(Iterator<Map.Entry<String, Object>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            Map.Entry<String, Object> e = entries.next();
+            last = e.getKey();
+            return new SimpleEntry<String, Object>(e) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Object setValue(Object value) {
+                    LayeredMap.this.put(getKey(), value);
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            LayeredMap.this.remove(last);
+            last = null;
+        }
+    }
+}
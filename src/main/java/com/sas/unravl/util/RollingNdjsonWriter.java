@@ -0,0 +1,121 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Appends JSON records, one per line (newline delimited JSON), to a file. When
+ * the file grows past a size limit, it is renamed to <var>file</var>.1 (older
+ * files are renamed to <var>file</var>.2 and so on, up to a maximum number of
+ * files) and a new file is started.
+ * <p>
+ * Writers are thread-safe. Each record is written with a single write call.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class RollingNdjsonWriter implements Closeable {
+
+    private static final byte NEWLINE[] = { '\n' };
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private OutputStream out;
+    private long size;
+
+    /**
+     * Create a writer which appends to a file
+     *
+     * @param file
+     *            the current file
+     * @param maxBytes
+     *            roll over to a new file when the current file reaches this
+     *            size; 0 to never roll over
+     * @param maxFiles
+     *            the number of older files to keep
+     */
+    public RollingNdjsonWriter(File file, long maxBytes, int maxFiles) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * @return the current file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Append a record
+     *
+     * @param record
+     *            the record; written on one line
+     * @throws IOException
+     *             if the record cannot be written
+     */
+    public synchronized void write(JsonNode record) throws IOException {
+        byte bytes[] = mapper.writeValueAsBytes(record);
+        if (out == null)
+            open();
+        else if (maxBytes > 0 && size + bytes.length + 1 > maxBytes && size > 0) {
+            out.close();
+            roll();
+            open();
+        }
+        byte line[] = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, line, 0, bytes.length);
+        System.arraycopy(NEWLINE, 0, line, bytes.length, 1);
+        out.write(line);
+        out.flush();
+        size += line.length;
+    }
+
+    private void open() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null)
+            Files.createDirectories(dir.toPath());
+        size = file.length();
+        out = new FileOutputStream(file, true);
+    }
+
+    // file.(n-1) -> file.n, ..., file -> file.1
+    private void roll() throws IOException {
+        if (maxFiles < 1) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        Files.deleteIfExists(rolled(maxFiles).toPath());
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File older = rolled(i);
+            if (older.exists())
+                Files.move(older.toPath(), rolled(i + 1).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(file.toPath(), rolled(1).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File rolled(int n) {
+        return new File(file.getPath() + "." + n);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.util;
+
+/**
+ * Statistical tests used to compare runs.
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class Statistics {
+
+    private Statistics() {
+    }
+
+    /**
+     * Welch's t-test of whether the mean of the second sample is greater than
+     * the mean of the first. Unlike Student's t-test, Welch's test does not
+     * assume the samples have equal variances.
+     *
+     * @param baseline
+     *            the first sample
+     * @param current
+     *            the second sample
+     * @return the one-sided p-value: the probability of a difference at least
+     *         this large if the means were equal. Returns 1 if either sample
+     *         has fewer than two values or both have no variance.
+     */
+    public static double welchGreater(LatencyHistogram baseline,
+            LatencyHistogram current) {
+        long n1 = baseline.getCount(), n2 = current.getCount();
+        if (n1 < 2 || n2 < 2)
+            return 1.0;
+        double v1 = baseline.getVariance() / n1;
+        double v2 = current.getVariance() / n2;
+        if (v1 + v2 == 0.0)
+            return current.getMean() > baseline.getMean() ? 0.0 : 1.0;
+        double t = (current.getMean() - baseline.getMean())
+                / Math.sqrt(v1 + v2);
+        // Welch-Satterthwaite degrees of freedom
+        double df = (v1 + v2) * (v1 + v2)
+                / (v1 * v1 / (n1 - 1) + v2 * v2 / (n2 - 1));
+        double twoSided = regularizedBeta(df / (df + t * t), df / 2.0, 0.5);
+        return t > 0 ? twoSided / 2.0 : 1.0 - twoSided / 2.0;
+    }
+
+    /**
+     * @return the regularized incomplete beta function I<sub>x</sub>(a, b)
+     */
+    static double regularizedBeta(double x, double a, double b) {
+        if (x <= 0.0)
+            return 0.0;
+        if (x >= 1.0)
+            return 1.0;
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b)
+                + a * Math.log(x) + b * Math.log(1.0 - x));
+        // the continued fraction converges quickly on this side
+        if (x < (a + 1.0) / (a + b + 2.0))
+            return front * betaFraction(x, a, b) / a;
+        return 1.0 - front * betaFraction(1.0 - x, b, a) / b;
+    }
+
+    // Lentz's method for the continued fraction of the incomplete beta
+    private static double betaFraction(double x, double a, double b) {
+        final double tiny = 1e-300;
+        double c = 1.0;
+        double d = 1.0 - (a + b) * x / (a + 1.0);
+        if (Math.abs(d) < tiny)
+            d = tiny;
+        d = 1.0 / d;
+        double h = d;
+        for (int m = 1; m <= 300; m++) {
+            int m2 = 2 * m;
+            double aa = m * (b - m) * x / ((a + m2 - 1.0) * (a + m2));
+            d = 1.0 + aa * d;
+            if (Math.abs(d) < tiny)
+                d = tiny;
+            c = 1.0 + aa / c;
+            if (Math.abs(c) < tiny)
+                c = tiny;
+            d = 1.0 / d;
+            h *= d * c;
+            aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1.0));
+            d = 1.0 + aa * d;
+            if (Math.abs(d) < tiny)
+                d = tiny;
+            c = 1.0 + aa / c;
+            if (Math.abs(c) < tiny)
+                c = tiny;
+            d = 1.0 / d;
+            double delta = d * c;
+            h *= delta;
+            if (Math.abs(delta - 1.0) < 1e-12)
+                break;
+        }
+        return h;
+    }
+
+    // Lanczos approximation
+    private static double logGamma(double x) {
+        final double g[] = { 76.18009172947146, -86.50532032941677,
+                24.01409824083091, -1.231739572450155, 0.1208650973866179e-2,
+                -0.5395239384953e-5 };
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double ser = 1.000000000190015;
+        for (double c : g)
+            ser += c / ++y;
+        return -tmp + Math.log(2.5066282746310005 * ser / x);
+    }
+}
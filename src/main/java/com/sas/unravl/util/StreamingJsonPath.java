@@ -0,0 +1,527 @@
+// Copyright (c) 2014, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates a subset of <a href='https://github.com/jayway/JsonPath'>JsonPath
+ * expressions</a> while streaming a JSON document through a Jackson
+ * {@link JsonParser}, without building a tree for the entire document. All
+ * the paths passed to {@link #evaluate(byte[], List)} are evaluated in a
+ * single pass, and parsing stops as soon as no path can match any more of the
+ * document. Only the matched values (and array elements tested by filters)
+ * are read as trees.
+ * <p>
+ * The supported subset is:
+ * <ul>
+ * <li>the root, <code>$</code> (which may be omitted)</li>
+ * <li>dotted fields, <code>.name</code>, and bracketed fields,
+ * <code>['name']</code></li>
+ * <li>array indexes, <code>[0]</code></li>
+ * <li>wildcards, <code>.*</code> and <code>[*]</code></li>
+ * <li>simple filters which compare a (possibly dotted) field of the current
+ * element with a literal, such as <code>[?(@.price &lt; 10)]</code> or
+ * <code>[?(@.category == 'fiction')]</code>, or which test if a field
+ * exists, <code>[?(@.isbn)]</code></li>
+ * </ul>
+ * {@link #compile(String)} returns null for other expressions (deep scans,
+ * slices, unions, negative indexes, functions, or complex filters); callers
+ * should evaluate those with JsonPath on a parsed tree instead.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class StreamingJsonPath {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final Pattern INDEX = Pattern.compile("^\\d+$");
+    private static final Pattern QUOTED_NAME = Pattern
+            .compile("^(?:'([^',]*)'|\"([^\",]*)\")$");
+    private static final Pattern FILTER = Pattern
+            .compile("^@((?:\\.[\\w$-]+)+)\\s*(?:(==|!=|<=|>=|<|>)\\s*(.+?))?\\s*$");
+
+    private enum Kind {
+        FIELD, INDEX, WILDCARD, FILTER
+    }
+
+    private static class Step {
+        final Kind kind;
+        final String name;
+        final int index;
+        final Filter filter;
+
+        Step(Kind kind, String name, int index, Filter filter) {
+            this.kind = kind;
+            this.name = name;
+            this.index = index;
+            this.filter = filter;
+        }
+    }
+
+    private final String path;
+    private final List<Step> steps;
+    private final boolean definite;
+
+    private StreamingJsonPath(String path, List<Step> steps) {
+        this.path = path;
+        this.steps = steps;
+        boolean d = true;
+        for (Step step : steps)
+            if (step.kind == Kind.WILDCARD || step.kind == Kind.FILTER)
+                d = false;
+        this.definite = d;
+    }
+
+    /**
+     * @return the JsonPath expression string
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * A definite path, which contains no wildcards or filters, matches at most
+     * one value. Other paths match a list of values.
+     *
+     * @return true if this is a definite path
+     */
+    public boolean isDefinite() {
+        return definite;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    /**
+     * Compile a JsonPath expression
+     *
+     * @param path
+     *            the JsonPath expression
+     * @return the compiled path, or null if the path is not in the subset
+     *         which can be evaluated by streaming.
+     */
+    public static StreamingJsonPath compile(String path) {
+        String s = path.trim();
+        if (s.startsWith("$"))
+            s = s.substring(1);
+        else if (!s.startsWith("["))
+            s = "." + s;
+        List<Step> steps = new ArrayList<Step>();
+        int len = s.length();
+        int i = 0;
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                i++;
+                if (i < len && s.charAt(i) == '*') {
+                    steps.add(new Step(Kind.WILDCARD, null, 0, null));
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < len && s.charAt(i) != '.' && s.charAt(i) != '[')
+                    i++;
+                String name = s.substring(start, i);
+                // empty names are deep scans, "..";
+                // parentheses are functions such as length()
+                if (name.isEmpty() || name.indexOf('(') >= 0
+                        || name.indexOf('*') >= 0)
+                    return null;
+                steps.add(new Step(Kind.FIELD, name, 0, null));
+            } else if (c == '[') {
+                if (s.startsWith("[?(", i)) {
+                    int end = s.indexOf(")]", i);
+                    if (end < 0)
+                        return null;
+                    Filter filter = Filter.parse(s.substring(i + 3, end));
+                    if (filter == null)
+                        return null;
+                    steps.add(new Step(Kind.FILTER, null, 0, filter));
+                    i = end + 2;
+                    continue;
+                }
+                int end = s.indexOf(']', i);
+                if (end < 0)
+                    return null;
+                String inner = s.substring(i + 1, end).trim();
+                Matcher quoted = QUOTED_NAME.matcher(inner);
+                if (inner.equals("*"))
+                    steps.add(new Step(Kind.WILDCARD, null, 0, null));
+                else if (INDEX.matcher(inner).matches())
+                    steps.add(new Step(Kind.INDEX, null, Integer
+                            .parseInt(inner), null));
+                else if (quoted.matches())
+                    steps.add(new Step(Kind.FIELD,
+                            quoted.group(1) != null ? quoted.group(1) : quoted
+                                    .group(2), 0, null));
+                else
+                    return null;
+                i = end + 1;
+            } else
+                return null;
+        }
+        return new StreamingJsonPath(path, steps);
+    }
+
+    /**
+     * Evaluate several paths against a JSON document in a single pass.
+     *
+     * @param json
+     *            UTF-8 encoded JSON text
+     * @param paths
+     *            compiled paths
+     * @return the list of matched values for each path, in document order, in
+     *         the same order as paths
+     * @throws IOException
+     *             if the JSON cannot be parsed
+     */
+    public static List<List<JsonNode>> evaluate(byte[] json,
+            List<StreamingJsonPath> paths) throws IOException {
+        List<List<JsonNode>> results = new ArrayList<List<JsonNode>>(
+                paths.size());
+        List<Cursor> cursors = new ArrayList<Cursor>(paths.size());
+        for (StreamingJsonPath p : paths) {
+            List<JsonNode> matches = new ArrayList<JsonNode>();
+            results.add(matches);
+            cursors.add(new Cursor(p, 0, matches));
+        }
+        if (cursors.isEmpty())
+            return results;
+        try (JsonParser parser = mapper.getFactory().createParser(json)) {
+            if (parser.nextToken() != null)
+                new Walker(cursors.size()).value(parser, cursors);
+        } catch (Walker.Done done) {
+            // every path is resolved; the rest of the document is not read
+        }
+        return results;
+    }
+
+    /**
+     * Evaluate this path against a JSON tree.
+     *
+     * @param node
+     *            the root of the tree
+     * @return the list of matched values, in document order
+     */
+    public List<JsonNode> evaluate(JsonNode node) {
+        List<JsonNode> matches = new ArrayList<JsonNode>();
+        evaluate(node, 0, matches);
+        return matches;
+    }
+
+    private void evaluate(JsonNode node, int from, List<JsonNode> matches) {
+        if (from == steps.size()) {
+            matches.add(node);
+            return;
+        }
+        Step step = steps.get(from);
+        switch (step.kind) {
+        case FIELD:
+            if (node.isObject() && node.has(step.name))
+                evaluate(node.get(step.name), from + 1, matches);
+            break;
+        case INDEX:
+            if (node.isArray() && step.index < node.size())
+                evaluate(node.get(step.index), from + 1, matches);
+            break;
+        case WILDCARD:
+            if (node.isContainerNode())
+                for (JsonNode child : node)
+                    evaluate(child, from + 1, matches);
+            break;
+        case FILTER:
+            if (node.isArray()) {
+                for (JsonNode child : node)
+                    if (step.filter.accept(child))
+                        evaluate(child, from + 1, matches);
+            } else if (node.isObject() && step.filter.accept(node))
+                evaluate(node, from + 1, matches);
+            break;
+        }
+    }
+
+    // A path which has matched the first 'step' steps at the current
+    // position in the document
+    private static class Cursor {
+        final StreamingJsonPath path;
+        final int step;
+        final List<JsonNode> matches;
+
+        Cursor(StreamingJsonPath path, int step, List<JsonNode> matches) {
+            this.path = path;
+            this.step = step;
+            this.matches = matches;
+        }
+
+        boolean complete() {
+            return step == path.steps.size();
+        }
+
+        Step next() {
+            return path.steps.get(step);
+        }
+
+        Cursor advance() {
+            return new Cursor(path, step + 1, matches);
+        }
+    }
+
+    private static class Walker {
+
+        @SuppressWarnings("serial")
+        private static class Done extends RuntimeException {
+            Done() {
+                super(null, null, false, false);
+            }
+        }
+
+        // number of cursors which may still match part of the document
+        private int live;
+
+        Walker(int live) {
+            this.live = live;
+        }
+
+        // The parser is on the first token of a value. Each cursor has
+        // matched the path to this value; all are released when done.
+        // Arrays are streamed even when filtered; only a filter applied to
+        // an object (rather than to the elements of an array) reads the
+        // object as a tree.
+        void value(JsonParser parser, List<Cursor> cursors)
+                throws IOException {
+            boolean object = parser.getCurrentToken() == JsonToken.START_OBJECT;
+            boolean materialize = false;
+            for (Cursor c : cursors)
+                if (c.complete() || (object && c.next().kind == Kind.FILTER))
+                    materialize = true;
+            if (materialize) {
+                JsonNode node = parser.readValueAsTree();
+                for (Cursor c : cursors)
+                    c.path.evaluate(node, c.step, c.matches);
+                release(cursors.size());
+            } else if (object)
+                object(parser, cursors);
+            else if (parser.getCurrentToken() == JsonToken.START_ARRAY)
+                array(parser, cursors);
+            else
+                // a scalar cannot match the remaining steps
+                release(cursors.size());
+        }
+
+        private void object(JsonParser parser, List<Cursor> cursors)
+                throws IOException {
+            List<Cursor> open = new ArrayList<Cursor>(cursors.size());
+            for (Cursor c : cursors)
+                if (c.next().kind == Kind.FIELD
+                        || c.next().kind == Kind.WILDCARD)
+                    open.add(c);
+            release(cursors.size() - open.size());
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (open.isEmpty()) {
+                    skipRest(parser);
+                    return;
+                }
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                List<Cursor> children = Collections.emptyList();
+                for (Iterator<Cursor> i = open.iterator(); i.hasNext();) {
+                    Cursor c = i.next();
+                    Step step = c.next();
+                    if (step.kind == Kind.WILDCARD
+                            || step.name.equals(name)) {
+                        if (children.isEmpty())
+                            children = new ArrayList<Cursor>(open.size());
+                        children.add(c.advance());
+                        if (step.kind == Kind.FIELD) {
+                            // a field name matches only once
+                            i.remove();
+                            live--;
+                        }
+                    }
+                }
+                child(parser, children);
+            }
+            release(open.size());
+        }
+
+        private void array(JsonParser parser, List<Cursor> cursors)
+                throws IOException {
+            List<Cursor> open = new ArrayList<Cursor>(cursors.size());
+            boolean filtered = false;
+            for (Cursor c : cursors)
+                if (c.next().kind == Kind.FILTER) {
+                    open.add(c);
+                    filtered = true;
+                } else if (c.next().kind == Kind.INDEX
+                        || c.next().kind == Kind.WILDCARD)
+                    open.add(c);
+            release(cursors.size() - open.size());
+            int index = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (open.isEmpty()) {
+                    skipRest(parser);
+                    return;
+                }
+                if (filtered) {
+                    // read one element, test it, and match the rest of each
+                    // path against it
+                    JsonNode element = parser.readValueAsTree();
+                    for (Iterator<Cursor> i = open.iterator(); i.hasNext();) {
+                        Cursor c = i.next();
+                        Step step = c.next();
+                        if (step.kind == Kind.FILTER
+                                ? step.filter.accept(element)
+                                : step.kind == Kind.WILDCARD
+                                        || step.index == index)
+                            c.path.evaluate(element, c.step + 1, c.matches);
+                        if (step.kind == Kind.INDEX && step.index == index) {
+                            i.remove();
+                            live--;
+                        }
+                    }
+                    index++;
+                    continue;
+                }
+                List<Cursor> children = Collections.emptyList();
+                for (Iterator<Cursor> i = open.iterator(); i.hasNext();) {
+                    Cursor c = i.next();
+                    Step step = c.next();
+                    if (step.kind == Kind.WILDCARD || step.index == index) {
+                        if (children.isEmpty())
+                            children = new ArrayList<Cursor>(open.size());
+                        children.add(c.advance());
+                        if (step.kind == Kind.INDEX) {
+                            i.remove();
+                            live--;
+                        }
+                    }
+                }
+                child(parser, children);
+                index++;
+            }
+            release(open.size());
+        }
+
+        private void child(JsonParser parser, List<Cursor> children)
+                throws IOException {
+            if (children.isEmpty()) {
+                parser.skipChildren();
+            } else {
+                live += children.size();
+                value(parser, children);
+            }
+        }
+
+        private void release(int count) {
+            live -= count;
+            if (live == 0)
+                throw new Done();
+        }
+
+        // skip to the end of the current object or array
+        private static void skipRest(JsonParser parser) throws IOException {
+            for (JsonToken t = parser.getCurrentToken(); t != null; t = parser
+                    .nextToken()) {
+                if (t == JsonToken.END_OBJECT || t == JsonToken.END_ARRAY)
+                    return;
+                parser.skipChildren();
+            }
+        }
+    }
+
+    // [?(@.field op literal)] or [?(@.field)]
+    private static class Filter {
+        private final String[] fields;
+        private final String op;
+        private final JsonNode literal;
+
+        private Filter(String[] fields, String op, JsonNode literal) {
+            this.fields = fields;
+            this.op = op;
+            this.literal = literal;
+        }
+
+        static Filter parse(String expression) {
+            Matcher m = FILTER.matcher(expression.trim());
+            if (!m.matches())
+                return null;
+            String[] fields = m.group(1).substring(1).split("\\.");
+            String op = m.group(2);
+            JsonNode literal = null;
+            if (op != null) {
+                literal = literal(m.group(3));
+                if (literal == null)
+                    return null;
+            }
+            return new Filter(fields, op, literal);
+        }
+
+        private static JsonNode literal(String text) {
+            if (text.length() >= 2
+                    && ((text.startsWith("'") && text.endsWith("'")) || (text
+                            .startsWith("\"") && text.endsWith("\""))))
+                return Json.jsonNodeFactory().textNode(
+                        text.substring(1, text.length() - 1));
+            if (text.equals("true") || text.equals("false"))
+                return Json.jsonNodeFactory().booleanNode(
+                        Boolean.parseBoolean(text));
+            if (text.equals("null"))
+                return Json.jsonNodeFactory().nullNode();
+            try {
+                return Json.jsonNodeFactory().numberNode(new BigDecimal(text));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        boolean accept(JsonNode element) {
+            JsonNode value = element;
+            for (String field : fields) {
+                if (!value.isObject() || !value.has(field))
+                    return false;
+                value = value.get(field);
+            }
+            if (op == null)
+                return true;
+            int cmp;
+            if (literal.isNumber() && value.isNumber())
+                cmp = value.decimalValue().compareTo(literal.decimalValue());
+            else if (literal.isTextual() && value.isTextual())
+                cmp = value.textValue().compareTo(literal.textValue());
+            else if (op.equals("=="))
+                return value.equals(literal);
+            else if (op.equals("!="))
+                return !value.equals(literal);
+            else
+                return false;
+            switch (op) {
+            case "==":
+                return cmp == 0;
+            case "!=":
+                return cmp != 0;
+            case "<":
+                return cmp < 0;
+            case "<=":
+                return cmp <= 0;
+            case ">":
+                return cmp > 0;
+            default:
+                return cmp >= 0;
+            }
+        }
+    }
+}
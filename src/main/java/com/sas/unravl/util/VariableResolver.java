@@ -1,5 +1,7 @@
 package com.sas.unravl.util;
 
+import com.sas.unravl.SharedScope;
+
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -18,6 +20,8 @@ import java.util.regex.Pattern;
  * where nnnn is four hex digits naming a Unicode code point. For example,
  * <code>{U+002D}</code> will be replaced with the right curly (close) brace, '}', and
  * <code>{U+03C0}</code> will be replaced with the Unicode GREEK SMALL LETTER PI &#x3c0;
+ * <li><code>{shared.<em>name</em>}</code> is replaced with the value of the variable
+ * <em>name</em> in the {@link SharedScope} bound to <code>shared</code>.
  * </ol>
  *
  * @author David.Biesack@sas.com
@@ -124,8 +128,8 @@ public class VariableResolver {
                 case CLOSING_BRACE: {
                     String candidateVarName = input.substring(varPos, index);
                     if (isValidVarName(candidateVarName)
-                            && env.containsKey(candidateVarName)) {
-                        Object val = env.get(candidateVarName);
+                            && bound(candidateVarName)) {
+                        Object val = value(candidateVarName);
                         result.append(val == null ? "null" : val.toString());
                     } else if (isUnicodeCodePointName(candidateVarName)) {
                         result.append(unicodeCharacter(candidateVarName));
@@ -141,8 +145,8 @@ public class VariableResolver {
                     String candidateVarName = input.substring(varPos, index);
                     index++;
                     if (isValidVarName(candidateVarName)) {
-                        if (env.containsKey(candidateVarName)) {
-                            Object val = env.get(candidateVarName);
+                        if (bound(candidateVarName)) {
+                            Object val = value(candidateVarName);
                             result.append(val == null ? "null" : val.toString());
                             scanToCloseBrace(false);
                         } else {
@@ -166,6 +170,28 @@ public class VariableResolver {
             result.append(OPENING_BRACE);
     }
 
+    // the shared scope, if varName names a shared variable and the
+    // environment has one; as in UnRAVLRuntime.binding(String), shared names
+    // always refer to the scope
+    private SharedScope sharedScope(String varName) {
+        if (SharedScope.sharedName(varName) == null)
+            return null;
+        Object shared = env.get(SharedScope.NAME);
+        return shared instanceof SharedScope ? (SharedScope) shared : null;
+    }
+
+    private boolean bound(String varName) {
+        SharedScope shared = sharedScope(varName);
+        return shared == null ? env.containsKey(varName) : shared
+                .contains(SharedScope.sharedName(varName));
+    }
+
+    private Object value(String varName) {
+        SharedScope shared = sharedScope(varName);
+        return shared == null ? env.get(varName) : shared.get(SharedScope
+                .sharedName(varName));
+    }
+
     // return true if there is a matching } for the current {
     private boolean hasMatchingCloseBrace() {
         int matchDepth = 1;
@@ -271,8 +297,8 @@ public class VariableResolver {
         Matcher matcher = VAR_NAME_IN_VALUE_PATTERN.matcher(varName);
         if (matcher.find()) {
             String candidateVarName = matcher.group(1);
-            if (env.containsKey(candidateVarName)) {
-                return env.get(candidateVarName);
+            if (bound(candidateVarName)) {
+                return value(candidateVarName);
             }
         }
         return varName;
@@ -0,0 +1,107 @@
+// Copyright (c) 2015, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.auth.AuthSessionStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestAuthSessionStore {
+
+    private static final long HOUR = 3600 * 1000L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void sessionsPersistAcrossInstances() throws IOException {
+        File dir = tmp.newFolder();
+        long expires = System.currentTimeMillis() + HOUR;
+        new AuthSessionStore(dir).put("oauth2|key", "secret-token", expires);
+
+        // a later run
+        AuthSessionStore store = new AuthSessionStore(dir);
+        assertEquals("secret-token", store.get("oauth2|key"));
+        assertEquals(expires, store.expires("oauth2|key"));
+        assertNull(store.get("cas|other"));
+    }
+
+    @Test
+    public void sessionFileIsEncrypted() throws IOException {
+        File dir = tmp.newFolder();
+        new AuthSessionStore(dir).put("oauth2|key", "secret-token",
+                System.currentTimeMillis() + HOUR);
+        byte data[] = Files.readAllBytes(new File(dir, "sessions.dat")
+                .toPath());
+        String text = new String(data, "ISO-8859-1");
+        assertFalse(text.contains("secret-token"));
+        assertFalse(text.contains("oauth2|key"));
+        if (Files.getFileStore(dir.toPath()).supportsFileAttributeView(
+                "posix")) {
+            for (String name : new String[] { "sessions.dat", "sessions.key" }) {
+                Set<PosixFilePermission> perms = Files
+                        .getPosixFilePermissions(new File(dir, name).toPath());
+                assertEquals(PosixFilePermissions.fromString("rw-------"),
+                        perms);
+            }
+        }
+    }
+
+    @Test
+    public void expiredAndRemovedSessionsAreNotReturned() throws IOException {
+        File dir = tmp.newFolder();
+        AuthSessionStore store = new AuthSessionStore(dir);
+        store.put("expired", "old", System.currentTimeMillis() - 1);
+        store.put("rejected", "token", System.currentTimeMillis() + HOUR);
+        assertNull(store.get("expired"));
+        store.remove("rejected");
+        assertNull(store.get("rejected"));
+        assertNull(new AuthSessionStore(dir).get("rejected"));
+    }
+
+    @Test
+    public void storesSharingADirectoryKeepEachOthersSessions()
+            throws IOException {
+        File dir = tmp.newFolder();
+        long expires = System.currentTimeMillis() + HOUR;
+        // as if in two processes
+        AuthSessionStore one = new AuthSessionStore(dir);
+        AuthSessionStore two = new AuthSessionStore(dir);
+        one.put("a", "token-a", expires);
+        assertEquals("token-a", two.get("a"));
+        two.put("b", "token-b", expires);
+        // written within the timestamp resolution of two's write
+        one.put("c", "token-c", expires);
+        two.remove("a");
+        AuthSessionStore later = new AuthSessionStore(dir);
+        assertNull(later.get("a"));
+        assertEquals("token-b", later.get("b"));
+        assertEquals("token-c", later.get("c"));
+    }
+
+    @Test
+    public void unreadableFileIsIgnored() throws IOException {
+        File dir = tmp.newFolder();
+        new AuthSessionStore(dir).put("key", "token",
+                System.currentTimeMillis() + HOUR);
+        // a different key cannot decrypt the sessions
+        assertTrue(new File(dir, "sessions.key").delete());
+        AuthSessionStore store = new AuthSessionStore(dir);
+        assertNull(store.get("key"));
+        store.put("key", "new-token", System.currentTimeMillis() + HOUR);
+        assertEquals("new-token", new AuthSessionStore(dir).get("key"));
+    }
+}
@@ -0,0 +1,188 @@
+// Copyright (c) 2015, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.assertions.UnRAVLAssertionException;
+import com.sas.unravl.auth.HostCredentials;
+import com.sas.unravl.auth.NetrcCredentialsProvider;
+import com.sas.unravl.auth.NetrcFile;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.util.Json;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the "basic" auth plugin reuses its session while the credentials
+ * are unchanged, and until the server rejects it.
+ */
+public class TestBasicAuthSession {
+
+    private HttpServer server;
+    private String base;
+    private File netrc;
+    private final Set<String> accepted = Collections
+            .synchronizedSet(new HashSet<String>());
+    private final Set<String> received = Collections
+            .synchronizedSet(new HashSet<String>());
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private String userHome;
+
+    @Before
+    public void startServer() throws IOException {
+        userHome = System.getProperty("user.home");
+        File home = tmp.newFolder();
+        netrc = new File(home, ".netrc");
+        System.setProperty("user.home", home.getPath());
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0), 0);
+        base = "http://localhost:" + server.getAddress().getPort();
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                Binary.copy(ex.getRequestBody(), new ByteArrayOutputStream());
+                String authorization = ex.getRequestHeaders().getFirst(
+                        "Authorization");
+                received.add(String.valueOf(authorization));
+                byte bytes[] = "{}".getBytes("UTF-8");
+                ex.sendResponseHeaders(accepted.contains(authorization) ? 200
+                        : 401, bytes.length);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        System.setProperty("user.home", userHome);
+        NetrcFile.clear();
+    }
+
+    private void password(String password) throws IOException {
+        Files.write(netrc.toPath(),
+                ("machine localhost login user password " + password + "\n")
+                        .getBytes("UTF-8"));
+        // make sure the change is visible even with coarse timestamps
+        netrc.setLastModified(System.currentTimeMillis() - 10000
+                - password.length() * 1000);
+        accepted.clear();
+        accepted.add("Basic "
+                + Base64.encodeBase64String(("user:" + password)
+                        .getBytes("UTF-8")));
+    }
+
+    private int run(String auth) throws UnRAVLException, IOException {
+        return run(new UnRAVLRuntime(), auth);
+    }
+
+    private int run(UnRAVLRuntime runtime, String auth)
+            throws UnRAVLException, IOException {
+        ObjectNode script = (ObjectNode) Json.parse(("{ 'GET' : '" + base
+                + "/api', 'auth' : " + auth + " }").replace('\'', '"'));
+        new UnRAVL(runtime, script).run();
+        return runtime.getFailedAssertionCount();
+    }
+
+    @Test
+    public void sessionFollowsNetrcChanges() throws Exception {
+        password("one");
+        assertEquals(0, run("'basic'"));
+        assertEquals(0, run("'basic'"));
+        // a changed .netrc opens a new session; no call is rejected first
+        password("second");
+        assertEquals(0, run("'basic'"));
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void sessionIsDiscardedWhenRejected() throws Exception {
+        password("one");
+        assertEquals(0, run("'basic'"));
+        accepted.clear();
+        try {
+            run("'basic'");
+            fail("the server should reject the session");
+        } catch (UnRAVLAssertionException e) {
+            assertTrue(e.getMessage().contains("401"));
+        }
+        password("one");
+        assertEquals(0, run("'basic'"));
+        assertEquals(1, received.size());
+    }
+
+    // counts credential lookups
+    private static class CountingProvider extends NetrcCredentialsProvider {
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public HostCredentials getHostCredentials(String host,
+                ObjectNode auth, boolean mock) throws IOException {
+            lookups.incrementAndGet();
+            return super.getHostCredentials(host, auth, mock);
+        }
+    }
+
+    @Test
+    public void credentialsAreLookedUpOncePerSession() throws Exception {
+        password("one");
+        UnRAVLPlugins plugins = UnRAVLRuntime.getDefaultPlugins().copy();
+        CountingProvider first = new CountingProvider();
+        plugins.setCredentialsProvider(first);
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, run(new UnRAVLRuntime(
+                    new LinkedHashMap<String, Object>(), plugins), "'basic'"));
+        assertEquals(1, first.lookups.get());
+        // another provider's runtimes do not reuse the first one's session
+        CountingProvider second = new CountingProvider();
+        plugins.setCredentialsProvider(second);
+        assertEquals(0, run(new UnRAVLRuntime(
+                new LinkedHashMap<String, Object>(), plugins), "'basic'"));
+        assertEquals(1, first.lookups.get());
+        assertEquals(1, second.lookups.get());
+    }
+
+    @Test
+    public void sessionsAreKeyedByCredentials() throws Exception {
+        password("one");
+        assertEquals(0, run("{ 'basic' : true }"));
+        accepted.add("Basic "
+                + Base64.encodeBase64String("other:pw".getBytes("UTF-8")));
+        assertEquals(0, run("{ 'basic' : true, 'login' : 'other', "
+                + "'password' : 'pw' }"));
+        assertEquals(2, received.size());
+    }
+}
@@ -0,0 +1,159 @@
+// Copyright (c) 2015, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.util.Json;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the "cas" auth plugin against a minimal CAS server on the loopback
+ * interface.
+ */
+public class TestCasAuth {
+
+    private HttpServer server;
+    private String base;
+    private final AtomicInteger logons = new AtomicInteger();
+    private final AtomicInteger serviceTickets = new AtomicInteger();
+    private final Set<String> validTGTs = Collections
+            .synchronizedSet(new HashSet<String>());
+    private final Set<String> validSTs = Collections
+            .synchronizedSet(new HashSet<String>());
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private String userHome;
+
+    @Before
+    public void startServer() throws IOException {
+        // the credentials provider requires a .netrc file
+        userHome = System.getProperty("user.home");
+        File home = tmp.newFolder();
+        Files.write(new File(home, ".netrc").toPath(),
+                "machine localhost login user password secret\n"
+                        .getBytes("UTF-8"));
+        System.setProperty("user.home", home.getPath());
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0), 0);
+        base = "http://localhost:" + server.getAddress().getPort();
+        server.createContext("/v1/tickets", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                drain(ex);
+                String path = ex.getRequestURI().getPath();
+                if (path.equals("/v1/tickets")) {
+                    String tgt = "TGT-" + logons.incrementAndGet();
+                    validTGTs.add(tgt);
+                    ex.getResponseHeaders().add("Location",
+                            base + "/v1/tickets/" + tgt);
+                    respond(ex, 201, "");
+                } else if (validTGTs.contains(path.substring(path
+                        .lastIndexOf('/') + 1))) {
+                    String st = "ST-" + serviceTickets.incrementAndGet();
+                    validSTs.add(st);
+                    respond(ex, 200, st);
+                } else
+                    respond(ex, 404, "TGT not found");
+            }
+        });
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                drain(ex);
+                String query = ex.getRequestURI().getQuery();
+                String st = query == null ? null : query.replaceFirst(
+                        ".*ticket=", "");
+                // service tickets are single use
+                respond(ex, st != null && validSTs.remove(st) ? 200 : 401,
+                        "{}");
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        System.setProperty("user.home", userHome);
+    }
+
+    private static void drain(HttpExchange ex) throws IOException {
+        Binary.copy(ex.getRequestBody(), new ByteArrayOutputStream());
+    }
+
+    private static void respond(HttpExchange ex, int status, String body)
+            throws IOException {
+        byte bytes[] = body.getBytes("UTF-8");
+        ex.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            if (bytes.length > 0)
+                out.write(bytes);
+        }
+    }
+
+    private UnRAVLRuntime run(String options) throws UnRAVLException,
+            IOException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        ObjectNode script = (ObjectNode) Json.parse(("{ 'GET' : '" + base
+                + "/api', 'auth' : { 'cas' : '" + base
+                + "/v1/tickets'"
+                + options + " } }").replace('\'', '"'));
+        new UnRAVL(runtime, script).run();
+        return runtime;
+    }
+
+    @Test
+    public void tgtIsSharedByRuntimes() throws Exception {
+        assertEquals(0, run("").getFailedAssertionCount());
+        assertEquals(0, run("").getFailedAssertionCount());
+        assertEquals(1, logons.get());
+        assertEquals(2, serviceTickets.get());
+    }
+
+    @Test
+    public void expiredTgtLogsInAgain() throws Exception {
+        assertEquals(0, run("").getFailedAssertionCount());
+        validTGTs.clear(); // the server times out the TGT
+        assertEquals(0, run("").getFailedAssertionCount());
+        assertEquals(2, logons.get());
+    }
+
+    @Test
+    public void serviceTicketsArePrefetched() throws Exception {
+        assertEquals(0, run(", 'prefetch' : 2").getFailedAssertionCount());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (serviceTickets.get() < 3
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals(3, serviceTickets.get());
+        assertEquals(0, run(", 'prefetch' : 2").getFailedAssertionCount());
+        assertTrue(validSTs.size() <= 2);
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright (c) 2015, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.sas.unravl.auth.NetrcFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestNetrcFile {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // return "login:password" of the first entry for the host and port
+    private static final NetrcFile.EntryMatcher<String> FIRST = new NetrcFile.EntryMatcher<String>() {
+        @Override
+        public String match(NetrcFile.Entry entry) {
+            return entry.getLogin() + ":" + entry.getPassword();
+        }
+    };
+
+    @After
+    public void clear() {
+        NetrcFile.clear();
+    }
+
+    private File netrc(String content) throws IOException {
+        File file = new File(tmp.getRoot(), ".netrc");
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        return file;
+    }
+
+    @Test
+    public void indexesByHostAndPort() throws IOException {
+        File file = netrc("# comment\n"
+                + "machine Host.A login a password \"a secret\"\n"
+                + "machine host.a login a2 password a2\n"
+                + "host host.a port 8080 user b password b\n"
+                + "login nohost password x\n");
+        NetrcFile netrc = NetrcFile.forFile(file);
+        assertEquals("a:a secret", netrc.find("host.a", null, FIRST));
+        assertEquals("b:b", netrc.find("HOST.A", "8080", FIRST));
+        assertNull(netrc.find("host.a", "9090", FIRST));
+        assertNull(netrc.find("nohost", null, FIRST));
+    }
+
+    @Test
+    public void parsesOnceUntilChanged() throws IOException {
+        File file = netrc("machine host.a login a password a\n");
+        NetrcFile netrc = NetrcFile.forFile(file);
+        assertSame(netrc, NetrcFile.forFile(file));
+        assertEquals("a:a", netrc.find("host.a", null, FIRST));
+
+        file = netrc("machine host.a login a password changed\n");
+        // make sure the change is visible even with coarse timestamps
+        assertEquals(true,
+                file.setLastModified(file.lastModified() - 10000));
+        assertEquals("a:changed",
+                NetrcFile.forFile(file).find("host.a", null, FIRST));
+    }
+
+    @Test
+    public void clearForgetsParsedFiles() throws IOException {
+        File file = netrc("machine host.a login a password a\n");
+        NetrcFile netrc = NetrcFile.forFile(file);
+        long generation = NetrcFile.generation();
+        NetrcFile.clear();
+        assertNotSame(netrc, NetrcFile.forFile(file));
+        assertNotEquals(generation, NetrcFile.generation());
+        assertEquals("a:a", NetrcFile.forFile(file).find("host.a", null, FIRST));
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright (c) 2015, SAS Institute Inc., Cary, NC, USA, All Rights Reserved
+package com.sas.unravl.auth.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.auth.OAuth2TokenStore;
+import com.sas.unravl.auth.OAuth2TokenStore.Token;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestOAuth2TokenStore {
+
+    private static final String KEY = OAuth2TokenStore.key("client", "user",
+            "http://www.example.com/token");
+
+    // Returns token-1, token-2, ... with the given lifetime
+    private static class CountingFetcher implements OAuth2TokenStore.Fetcher {
+        final AtomicInteger count = new AtomicInteger();
+        final long expiresIn; // milliseconds
+        final long delay;
+
+        CountingFetcher(long expiresIn, long delay) {
+            this.expiresIn = expiresIn;
+            this.delay = delay;
+        }
+
+        @Override
+        public Token fetch() throws UnRAVLException {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new UnRAVLException("interrupted", e);
+            }
+            return new Token("token-" + count.incrementAndGet(), expiresIn,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void reusesToken() throws UnRAVLException {
+        OAuth2TokenStore store = new OAuth2TokenStore(60000);
+        CountingFetcher fetcher = new CountingFetcher(3600000, 0);
+        assertFalse(store.contains(KEY));
+        assertEquals("token-1", store.getToken(KEY, fetcher));
+        assertEquals("token-1", store.getToken(KEY, fetcher));
+        assertTrue(store.contains(KEY));
+        assertEquals(1, fetcher.count.get());
+        assertEquals("token-1",
+                store.getToken(OAuth2TokenStore.key("client", "user", "x"),
+                        new CountingFetcher(0, 0)));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        final OAuth2TokenStore store = new OAuth2TokenStore(60000);
+        final CountingFetcher fetcher = new CountingFetcher(3600000, 200);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < threads; i++)
+                results.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await();
+                        return store.getToken(KEY, fetcher);
+                    }
+                }));
+            start.countDown();
+            for (Future<String> result : results)
+                assertEquals("token-1", result.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, fetcher.count.get());
+    }
+
+    @Test
+    public void expiredTokenIsFetchedAgain() throws Exception {
+        // no background refresh, so only the expiration replaces the token
+        OAuth2TokenStore store = new OAuth2TokenStore(-1);
+        CountingFetcher fetcher = new CountingFetcher(50, 0);
+        assertEquals("token-1", store.getToken(KEY, fetcher));
+        assertEquals("token-1", store.getToken(KEY, fetcher));
+        Thread.sleep(60);
+        assertEquals(1, fetcher.count.get());
+        assertEquals("token-2", store.getToken(KEY, fetcher));
+    }
+
+    @Test
+    public void invalidatedTokenIsFetchedAgain() throws UnRAVLException {
+        OAuth2TokenStore store = new OAuth2TokenStore(60000);
+        CountingFetcher fetcher = new CountingFetcher(0, 0);
+        assertEquals("token-1", store.getToken(KEY, fetcher));
+        store.invalidate(KEY);
+        assertEquals(0, store.size());
+        assertTrue(store.contains(KEY));
+        assertEquals("token-2", store.getToken(KEY, fetcher));
+    }
+
+    @Test
+    public void unusedTokenIsNotRefreshed() throws Exception {
+        OAuth2TokenStore store = new OAuth2TokenStore(200);
+        CountingFetcher fetcher = new CountingFetcher(400, 0);
+        store.getToken(KEY, fetcher);
+        Thread.sleep(600);
+        // the first token was used and so refreshed once; the refreshed
+        // token was never used, so it was removed instead of refreshed.
+        assertEquals(2, fetcher.count.get());
+        assertEquals(0, store.size());
+        assertTrue(store.contains(KEY));
+    }
+
+    @Test
+    public void failedFetchIsRetried() throws UnRAVLException {
+        OAuth2TokenStore store = new OAuth2TokenStore(60000);
+        try {
+            store.getToken(KEY, new OAuth2TokenStore.Fetcher() {
+                @Override
+                public Token fetch() throws UnRAVLException {
+                    throw new UnRAVLException("token server unavailable");
+                }
+            });
+            fail("expected an UnRAVLException");
+        } catch (UnRAVLException e) {
+            assertEquals("token server unavailable", e.getMessage());
+        }
+        assertEquals("token-1",
+                store.getToken(KEY, new CountingFetcher(3600000, 0)));
+    }
+
+    @Test
+    public void usedTokenIsRefreshedAhead() throws Exception {
+        // refreshed 200ms ahead of expiration, before it stops being usable
+        OAuth2TokenStore store = new OAuth2TokenStore(200);
+        CountingFetcher fetcher = new CountingFetcher(400, 0);
+        assertEquals("token-1", store.getToken(KEY, fetcher));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fetcher.count.get() < 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals(2, fetcher.count.get());
+        assertEquals("token-2", store.getToken(KEY, fetcher));
+        assertEquals(2, store.getFetchCount());
+    }
+}
@@ -0,0 +1,110 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.CallHistory;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.util.Json;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestCallHistory extends TestBase {
+
+    private static void run(UnRAVLRuntime runtime, String script)
+            throws IOException, UnRAVLException {
+        runtime.execute(Json.parse(script.replace('\'', '"')));
+    }
+
+    @Test
+    public void keepsTheLatestCalls() throws IOException, UnRAVLException {
+        File spill = File.createTempFile("calls", ".ndjson");
+        spill.delete();
+        try {
+            UnRAVLRuntime runtime = new UnRAVLRuntime();
+            CallHistory history = runtime.getApiCalls();
+            history.setMaxCalls(3);
+            history.setSpillFile(spill);
+            for (int i = 0; i < 10; i++)
+                run(runtime, "{ 'name' : 'call " + i + "', 'assert' : '"
+                        + (i != 1) + "' }");
+
+            assertEquals(3, history.size());
+            assertEquals("call 7", history.get(0).getScript().getName());
+            assertEquals("call 9", history.get(2).getScript().getName());
+            assertEquals(10, history.getTotalCalls());
+            assertEquals(1, history.getFailedAssertionCount());
+            assertEquals(1, runtime.report());
+
+            try (CallHistory.SpillReader spilled = history.readSpilled()) {
+                assertEquals("call 0", spilled.next().get("name").textValue());
+                JsonNode failed = spilled.next();
+                assertEquals(1, failed.get("failed").intValue());
+                assertEquals("{\"groovy\":\"false\"}", failed
+                        .get("failures").get(0).textValue());
+                int count = 2;
+                for (; spilled.hasNext(); spilled.next())
+                    count++;
+                assertEquals(7, count);
+            }
+            // a reader closed early releases the file
+            CallHistory.SpillReader early = history.readSpilled();
+            assertEquals("call 0", early.next().get("name").textValue());
+            early.close();
+            assertFalse(early.hasNext());
+
+            // forks get the same policy, but their own calls
+            UnRAVLRuntime fork = new UnRAVLRuntime(runtime);
+            assertEquals(3, fork.getApiCalls().getMaxCalls());
+            assertEquals(0, fork.getApiCalls().getTotalCalls());
+        } finally {
+            spill.delete();
+        }
+    }
+
+    @Test
+    public void keepsOnlyFailedCallsWithoutBodies() throws IOException,
+            UnRAVLException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        CallHistory history = runtime.getApiCalls();
+        history.setFailedOnly(true);
+        history.setDropBodies(true);
+        run(runtime, "{ 'name' : 'passes', 'assert' : 'true' }");
+        run(runtime, "{ 'name' : 'fails', 'body' : { 'json' : { 'a' : 1 } }, 'assert' : 'false' }");
+        run(runtime, "{ 'name' : 'passes too', 'assert' : 'true' }");
+
+        assertEquals(1, history.size());
+        ApiCall call = history.get(0);
+        assertEquals("fails", call.getScript().getName());
+        assertNull(call.getRequestStream());
+        assertNull(call.getResponseBody());
+        assertEquals(1, call.getFailedAssertions().size());
+        assertEquals(3, history.getTotalCalls());
+        assertEquals(1, runtime.report());
+        assertNull(history.getSpillFile());
+        try (CallHistory.SpillReader spilled = history.readSpilled()) {
+            assertFalse(spilled.hasNext());
+        }
+    }
+
+    @Test
+    public void keepsEveryCallByDefault() throws IOException, UnRAVLException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        for (int i = 0; i < 40; i++)
+            run(runtime, "{ 'name' : 'call " + i + "', 'body' : { 'json' : { 'a' : 1 } } }");
+        CallHistory history = runtime.getApiCalls();
+        assertEquals(40, history.size());
+        assertEquals("call 39", history.get(39).getScript().getName());
+        assertNotNull(history.get(0).getRequestStream());
+        runtime.reset();
+        assertEquals(0, history.getTotalCalls());
+    }
+}
@@ -0,0 +1,129 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.ChangeSet;
+import com.sas.unravl.ChangeSetListener;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.util.Json;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestChangeSetListener extends TestBase {
+
+    private static class Recorder implements ChangeSetListener {
+        final BlockingQueue<ChangeSet> changes = new LinkedBlockingQueue<ChangeSet>();
+
+        @Override
+        public void changed(ChangeSet changeSet) {
+            changes.add(changeSet);
+        }
+    }
+
+    @Test
+    public void changesAreCoalesced() throws InterruptedException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        Recorder recorder = new Recorder();
+        runtime.addChangeSetListener(recorder);
+        for (int i = 0; i < 10000; i++)
+            runtime.bind("i", Integer.valueOf(i));
+        runtime.bind("done", Boolean.TRUE);
+
+        Map<String, Object> bindings = new LinkedHashMap<String, Object>();
+        int deliveries = 0;
+        while (!bindings.containsKey("done")) {
+            ChangeSet changes = recorder.changes.poll(5, TimeUnit.SECONDS);
+            assertNotNull(changes);
+            assertSame(runtime, changes.getRuntime());
+            bindings.putAll(changes.getBindings());
+            deliveries++;
+        }
+        assertEquals(9999, bindings.get("i"));
+        assertTrue(deliveries < 100);
+    }
+
+    @Test
+    public void callsAndCancellationAreReported() throws IOException,
+            UnRAVLException, InterruptedException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        Recorder recorder = new Recorder();
+        runtime.addChangeSetListener(new ChangeSetListener() {
+            @Override
+            public void changed(ChangeSet changes) {
+                throw new IllegalStateException("listener failures are logged");
+            }
+        });
+        runtime.addChangeSetListener(recorder);
+        runtime.execute(Json.parse("[ { 'env' : { 'x' : 1 } }, { 'env' : { 'y' : 2 } } ]"
+                .replace('\'', '"')));
+        runtime.cancel();
+
+        int calls = 0;
+        Boolean cancelled = null;
+        while (calls < 2 || cancelled == null) {
+            ChangeSet changes = recorder.changes.poll(5, TimeUnit.SECONDS);
+            assertNotNull(changes);
+            if (changes.isCallsChanged())
+                calls = changes.getCallCount();
+            if (changes.getCancelled() != null)
+                cancelled = changes.getCancelled();
+        }
+        assertEquals(2, calls);
+        assertEquals(Boolean.TRUE, cancelled);
+    }
+
+    @Test
+    public void changeSetsCarryASnapshotOfTheBindings()
+            throws InterruptedException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        Recorder recorder = new Recorder();
+        runtime.addChangeSetListener(recorder);
+        runtime.bind("a", "first");
+        ChangeSet changes = recorder.changes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(changes);
+        Map<String, Object> snapshot = changes.getEnvironment();
+        // later changes on the script thread do not affect the snapshot
+        runtime.bind("a", "second");
+        runtime.bind("b", "other");
+        assertEquals("first", snapshot.get("a"));
+        assertFalse(snapshot.containsKey("b"));
+        assertEquals(runtime.getBindings().size() - 1, snapshot.size());
+    }
+
+    @Test
+    public void snapshotsIncludeTheWholeChangeSet()
+            throws InterruptedException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        Recorder recorder = new Recorder();
+        runtime.addChangeSetListener(recorder);
+        // many bindings join a few change sets, each with one snapshot
+        for (int i = 0; i < 1000; i++)
+            runtime.bind("x" + i, Integer.valueOf(i));
+        runtime.bind("shared.total", Integer.valueOf(1000));
+        Map<String, Object> snapshot = null;
+        int sets = 0;
+        while (snapshot == null || !snapshot.containsKey("x999")) {
+            ChangeSet changes = recorder.changes.poll(5, TimeUnit.SECONDS);
+            assertNotNull(changes);
+            snapshot = changes.getEnvironment();
+            sets++;
+        }
+        assertTrue(sets < 1000);
+        assertEquals(Integer.valueOf(0), snapshot.get("x0"));
+        assertEquals(Integer.valueOf(999), snapshot.get("x999"));
+        assertFalse(snapshot.containsKey("shared.total"));
+        assertEquals(runtime.getBindings().size(), snapshot.size());
+    }
+}
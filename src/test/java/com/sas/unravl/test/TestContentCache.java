@@ -0,0 +1,126 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sas.unravl.generators.Text;
+import com.sas.unravl.util.ContentCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestContentCache {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file(String name, String content) throws IOException {
+        File f = new File(folder.getRoot(), name);
+        Files.write(f.toPath(), Text.utf8(content));
+        return f;
+    }
+
+    @Test
+    public void hitsAndValidation() throws IOException {
+        ContentCache cache = new ContentCache(1024);
+        File f = file("a.json", "{ \"a\" : 1 }");
+        JsonNode first = cache.json(f);
+        assertSame(first, cache.json(f));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // a change in size invalidates the entry
+        file("a.json", "{ \"a\" : 12 }");
+        assertEquals(12, cache.json(f).get("a").intValue());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void eviction() throws IOException {
+        ContentCache cache = new ContentCache(20);
+        File a = file("a.bin", "0123456789");
+        File b = file("b.bin", "0123456789");
+        File c = file("c.bin", "0123456789");
+        cache.bytes(a);
+        cache.bytes(b);
+        cache.bytes(a); // a is now more recently used than b
+        cache.bytes(c); // evicts b
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(20, cache.getWeight());
+        cache.bytes(a);
+        assertEquals(2, cache.getHitCount());
+        cache.bytes(b);
+        assertEquals(4, cache.getMissCount());
+
+        // files larger than the cap are not cached
+        File big = file("big.txt", "012345678901234567890123456789");
+        assertEquals(30, cache.bytes(big).length);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void loadsOutsideTheLock() throws Exception {
+        final ContentCache cache = new ContentCache(1024);
+        final File slow = file("slow.txt", "slow");
+        final File fast = file("fast.txt", "fast");
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final ContentCache.Loader<String> loader = new ContentCache.Loader<String>() {
+            @Override
+            public String load(File file) throws IOException {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return "loaded";
+            }
+
+            @Override
+            public long weight(File file, String value) {
+                return value.length();
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Callable<String> get = new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return cache.get(slow, "slow", loader);
+                }
+            };
+            Future<String> first = pool.submit(get);
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            Future<String> second = pool.submit(get);
+            // another file is not held up by the slow load
+            assertEquals("fast", cache.text(fast));
+            release.countDown();
+            assertSame(first.get(10, TimeUnit.SECONDS),
+                    second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+            assertEquals("loaded", cache.get(slow, "slow", loader));
+            assertEquals(1, loads.get());
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sas.unravl.UnRAVLDaemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs scripts through an {@link UnRAVLDaemon} on the loopback interface
+ */
+public class TestDaemon extends TestBase {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private File daemonFile;
+    private UnRAVLDaemon daemon;
+
+    @Before
+    public void startDaemon() throws Exception {
+        daemonFile = new File(tmp.newFolder(), "daemon.properties");
+        System.setProperty(UnRAVLDaemon.FILE_PROPERTY, daemonFile.getPath());
+        daemon = new UnRAVLDaemon().start();
+    }
+
+    @After
+    public void stopDaemon() throws InterruptedException {
+        daemon.stop();
+        daemon.awaitStop();
+        System.clearProperty(UnRAVLDaemon.FILE_PROPERTY);
+    }
+
+    private File script(String name, String json) throws IOException {
+        File file = tmp.newFile(name);
+        Files.write(file.toPath(), json.replace('\'', '"').getBytes("UTF-8"));
+        return file;
+    }
+
+    @Test
+    public void jobsReturnExitStatus() throws Exception {
+        File pass = script("pass.json",
+                "{ 'name' : 'pass', 'env' : { 'x' : 1 }, 'assert' : [ 'x == 1' ] }");
+        File failing = script("fail.json",
+                "{ 'name' : 'fail', 'env' : { 'x' : 1 }, 'assert' : [ 'x == 2' ] }");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(out, true, "UTF-8");
+        assertEquals(0,
+                UnRAVLDaemon.submit(new String[] { pass.getPath() }, ps));
+        assertEquals(1,
+                UnRAVLDaemon.submit(new String[] { failing.getPath() }, ps));
+        assertFalse(out.toString("UTF-8").contains(
+                UnRAVLDaemon.EXIT_STATUS_PREFIX));
+    }
+
+    @Test
+    public void jobsDoNotShareVariables() throws Exception {
+        File first = script("first.json",
+                "{ 'name' : 'first', 'env' : { 'leak' : 1 } }");
+        File second = script("second.json",
+                "{ 'name' : 'second', 'assert' : [ '!binding.hasVariable(\\'leak\\')' ] }");
+        PrintStream ps = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(0,
+                UnRAVLDaemon.submit(new String[] { first.getPath() }, ps));
+        assertEquals(0,
+                UnRAVLDaemon.submit(new String[] { second.getPath() }, ps));
+    }
+
+    @Test
+    public void daemonFileIsRequiredAndProtected() throws Exception {
+        Properties props = new Properties();
+        props.load(Files.newInputStream(daemonFile.toPath()));
+        assertEquals(Integer.toString(daemon.getPort()),
+                props.getProperty("port"));
+        // a client without the token is rejected
+        props.setProperty("token", "wrong");
+        props.store(Files.newOutputStream(daemonFile.toPath()), null);
+        try {
+            UnRAVLDaemon.submit(new String[0], System.out);
+            fail("expected the daemon to reject the token");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("403"));
+        }
+        assertTrue(daemonFile.delete());
+        try {
+            UnRAVLDaemon.submit(new String[0], System.out);
+            fail("expected no daemon");
+        } catch (ConnectException e) {
+            // expected
+        }
+    }
+}
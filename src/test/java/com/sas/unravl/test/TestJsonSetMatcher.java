@@ -0,0 +1,137 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.JsonSetMatcher;
+import com.sas.unravl.util.JsonSetMatcher.Mode;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestJsonSetMatcher extends TestBase {
+
+    private static List<String> match(Mode mode, String actual,
+            String expected) throws UnRAVLException {
+        return new JsonSetMatcher(mode).match(mockJson(actual),
+                mockJson(expected));
+    }
+
+    @Test
+    public void unordered() throws UnRAVLException {
+        assertTrue(match(Mode.UNORDERED,
+                "{ 'a' : [ 3, { 'x' : [1, 2] }, 'b', 3 ] }",
+                "{ 'a' : [ 'b', 3, 3, { 'x' : [2, 1] } ] }").isEmpty());
+        List<String> failures = match(Mode.UNORDERED, "[ 1, 2, 2 ]",
+                "[ 2, 1, 1 ]");
+        assertEquals(2, failures.size());
+        assertEquals("root: 1 expected elements not found in response: 1",
+                failures.get(0));
+        assertEquals("root: 1 response elements not found in expected: 2",
+                failures.get(1));
+        assertEquals("/b: unexpected field, found 2",
+                match(Mode.UNORDERED, "{ 'a' : 1, 'b' : 2 }", "{ 'a' : 1 }")
+                        .get(0));
+    }
+
+    @Test
+    public void superset() throws UnRAVLException {
+        assertTrue(match(Mode.SUPERSET,
+                "[ { 'id' : 2, 'name' : 'b' }, { 'id' : 1, 'name' : 'a' }, 7 ]",
+                "[ { 'id' : 1 }, { 'id' : 2, 'name' : 'b' } ]").isEmpty());
+        assertEquals(
+                "root: 1 expected elements not found in response: {\"id\":3}",
+                match(Mode.SUPERSET, "[ { 'id' : 1 } ]",
+                        "[ { 'id' : 1 }, { 'id' : 3 } ]").get(0));
+    }
+
+    @Test
+    public void containmentDoesNotDependOnOrder() throws UnRAVLException {
+        // { a } must not take the only element which contains { b }
+        assertTrue(match(Mode.SUPERSET,
+                "[ { 'a' : 1, 'b' : 1 }, { 'a' : 1, 'c' : 1 } ]",
+                "[ { 'a' : 1 }, { 'b' : 1 } ]").isEmpty());
+        assertTrue(match(Mode.SUBSET, "[ { 'a' : 1 }, { 'b' : 1 } ]",
+                "[ { 'a' : 1, 'b' : 1 }, { 'a' : 1, 'c' : 1 } ]").isEmpty());
+        // {b} moves {a} to the second element, which moves {c} to the third
+        assertTrue(match(Mode.SUPERSET,
+                "[ { 'a' : 1, 'b' : 1 }, { 'a' : 1, 'c' : 1 }, { 'c' : 1, 'd' : 1 } ]",
+                "[ { 'a' : 1 }, { 'c' : 1 }, { 'b' : 1 } ]").isEmpty());
+        assertEquals(
+                "root: 1 expected elements not found in response: {\"a\":1}",
+                match(Mode.SUPERSET, "[ { 'a' : 1, 'b' : 1 }, { 'a' : 1 } ]",
+                        "[ { 'a' : 1 }, { 'b' : 1 }, { 'a' : 1 } ]").get(0));
+    }
+
+    @Test
+    public void subset() throws UnRAVLException {
+        assertTrue(match(Mode.SUBSET, "{ 'a' : [ 2 ] }",
+                "{ 'a' : [ 1, 2, 3 ], 'b' : true }").isEmpty());
+        assertEquals("/a: 1 response elements not found in expected: 4",
+                match(Mode.SUBSET, "{ 'a' : [ 2, 4 ] }",
+                        "{ 'a' : [ 1, 2, 3 ] }").get(0));
+    }
+
+    @Test
+    public void largeArrays() throws UnRAVLException {
+        int n = 100000;
+        ArrayNode actual = new ArrayNode(Json.jsonNodeFactory());
+        ArrayNode expected = new ArrayNode(Json.jsonNodeFactory());
+        for (int i = 0; i < n; i++) {
+            ObjectNode a = actual.addObject();
+            a.put("id", i);
+            a.put("name", "item " + i);
+            ObjectNode e = expected.insertObject(0);
+            e.put("name", "item " + i);
+            e.put("id", i);
+        }
+        // expected lacks the last element of actual
+        expected.remove(0);
+        assertTrue(new JsonSetMatcher(Mode.SUPERSET).match(actual, expected)
+                .isEmpty());
+        List<String> failures = new JsonSetMatcher(Mode.UNORDERED).match(
+                actual, expected);
+        assertEquals(1, failures.size());
+        assertEquals("root: 1 response elements not found in expected: "
+                + actual.get(n - 1), failures.get(0));
+    }
+
+    @Test
+    public void largeArraysOfPartialObjects() throws UnRAVLException {
+        // expected elements have only some of the fields of the actual
+        // ones, so none has an exact match; comparing each with every
+        // element would take 10^10 comparisons
+        int n = 100000;
+        ArrayNode actual = new ArrayNode(Json.jsonNodeFactory());
+        ArrayNode expected = new ArrayNode(Json.jsonNodeFactory());
+        for (int i = 0; i < n; i++) {
+            ObjectNode a = actual.addObject();
+            a.put("type", "item");
+            a.put("id", i);
+            a.put("name", "item " + i);
+            a.putObject("tags").put("even", i % 2 == 0);
+            // in reverse order
+            int id = n - 1 - i;
+            ObjectNode e = expected.addObject();
+            e.put("type", "item");
+            e.put("id", id);
+            if (id % 3 == 0)
+                e.putObject("tags").put("even", id % 2 == 0);
+        }
+        long start = System.currentTimeMillis();
+        assertTrue(new JsonSetMatcher(Mode.SUPERSET).match(actual, expected)
+                .isEmpty());
+        assertTrue(new JsonSetMatcher(Mode.SUBSET).match(expected, actual)
+                .isEmpty());
+        ((ObjectNode) expected.get(0)).put("id", n);
+        assertEquals("root: 1 expected elements not found in response: "
+                + expected.get(0), new JsonSetMatcher(Mode.SUPERSET).match(
+                actual, expected).get(0));
+        assertTrue(System.currentTimeMillis() - start < 30000L);
+    }
+}
@@ -0,0 +1,63 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.generators.Text;
+import com.sas.unravl.util.JsonStreamComparator;
+import com.sas.unravl.util.JsonStreamComparator.Difference;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestJsonStreamComparator extends TestBase {
+
+    private static Difference compare(UnRAVL script, String actual,
+            String expected) throws IOException, UnRAVLException {
+        JsonNode expectedJson = mockJson(expected);
+        return new JsonStreamComparator(script).compare(
+                Text.utf8(actual.replace("'", "\"")), expectedJson);
+    }
+
+    @Test
+    public void equal() throws IOException, UnRAVLException {
+        assertNull(compare(null, "{ 'x' : 1, 'y' : [ 2.5, true, null, 'z' ] }",
+                "{ 'y' : [ 2.5, true, null, 'z' ], 'x' : 1 }"));
+        assertNull(compare(null, "[]", "[]"));
+        assertNull(compare(null, "12345678901", "12345678901"));
+    }
+
+    @Test
+    public void firstDifference() throws IOException, UnRAVLException {
+        Difference d = compare(null,
+                "{ 'a' : { 'b/c' : [ 1, 2, 3 ] }, 'd' : 4 }",
+                "{ 'a' : { 'b/c' : [ 1, 2, 4 ] }, 'd' : 5 }");
+        assertEquals("/a/b~1c/2", d.getPointer());
+        assertEquals("found 3, expected 4", d.getMessage());
+    }
+
+    @Test
+    public void structuralDifferences() throws IOException, UnRAVLException {
+        assertEquals("/x", compare(null, "{ 'x' : 1 }", "{ 'y' : 1 }")
+                .getPointer());
+        assertEquals("/y", compare(null, "{ }", "{ 'y' : 1 }").getPointer());
+        assertEquals("/1", compare(null, "[ 1 ]", "[ 1, 2 ]").getPointer());
+        assertEquals("/1", compare(null, "[ 1, 2 ]", "[ 1 ]").getPointer());
+        assertEquals("", compare(null, "[ ]", "{ }").getPointer());
+        // numbers must match in type as well as value
+        assertEquals("", compare(null, "1.0", "1").getPointer());
+        assertEquals("", compare(null, "", "1").getPointer());
+    }
+
+    @Test
+    public void expansion() throws IOException, UnRAVLException {
+        UnRAVL script = scriptFixture();
+        assertNull(compare(script, "{ '{where}' : '{who}', 'n' : '{@"
+                + WHICH_KEY + "@}' }", "{ '" + WHERE_VAL + "' : '" + WHO_VAL
+                + "', 'n' : " + WHICH_VAL + " }"));
+    }
+}
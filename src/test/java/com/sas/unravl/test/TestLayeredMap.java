@@ -0,0 +1,99 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.util.LayeredMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestLayeredMap extends TestBase {
+
+    @Test
+    public void forksAreIsolated() {
+        LayeredMap parent = new LayeredMap();
+        parent.put("a", 1);
+        parent.put("b", 2);
+        LayeredMap child = parent.fork();
+        child.put("a", 10);
+        child.remove("b");
+        child.put("c", null);
+        parent.put("d", 4);
+
+        assertEquals(10, child.get("a"));
+        assertFalse(child.containsKey("b"));
+        assertTrue(child.containsKey("c"));
+        assertFalse(child.containsKey("d"));
+        assertEquals(2, child.size());
+
+        assertEquals(1, parent.get("a"));
+        assertEquals(2, parent.get("b"));
+        assertFalse(parent.containsKey("c"));
+        assertEquals(3, parent.size());
+
+        child.put("b", 20);
+        assertEquals(20, child.get("b"));
+        assertEquals(3, child.size());
+    }
+
+    @Test
+    public void actsLikeALinkedHashMap() {
+        LayeredMap layered = new LayeredMap();
+        Map<String, Object> expected = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < 100; i++) {
+            String key = "k" + (i % 7);
+            if (i % 3 == 0) {
+                assertEquals(expected.remove(key), layered.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), layered.put(key, i));
+            }
+            if (i % 5 == 0)
+                layered = layered.fork(); // compacts when the stack is deep
+            assertEquals(expected, layered);
+            assertEquals(new ArrayList<String>(expected.keySet()),
+                    new ArrayList<String>(layered.keySet()));
+        }
+
+        Iterator<Map.Entry<String, Object>> i = layered.entrySet().iterator();
+        String first = i.next().getKey();
+        i.remove();
+        assertFalse(layered.containsKey(first));
+        i.next().setValue("changed");
+        assertTrue(layered.containsValue("changed"));
+        assertEquals(expected.size() - 1, layered.size());
+    }
+
+    @Test
+    public void forkedRuntimesDoNotShareBindings() {
+        Map<String, Object> env = new HashMap<String, Object>();
+        env.put("x", "initial");
+        UnRAVLRuntime parent = new UnRAVLRuntime(env);
+        assertEquals(System.getProperty("java.version"),
+                parent.binding("java.version"));
+        assertEquals(0, parent.binding("failedAssertionCount"));
+
+        UnRAVLRuntime first = new UnRAVLRuntime(parent);
+        UnRAVLRuntime second = new UnRAVLRuntime(parent);
+        first.bind("x", "first");
+        first.unbind("java.version");
+        second.bind("y", "second");
+
+        assertEquals("initial", parent.binding("x"));
+        assertEquals("initial", second.binding("x"));
+        assertEquals("first", first.binding("x"));
+        assertFalse(first.bound("java.version"));
+        assertTrue(second.bound("java.version"));
+        assertNull(first.binding("y"));
+        assertFalse(parent.bound("y"));
+        assertEquals("initial", env.get("x"));
+    }
+}
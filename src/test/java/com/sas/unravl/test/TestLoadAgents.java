@@ -0,0 +1,73 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sas.unravl.RunAnalysis;
+import com.sas.unravl.UnRAVLAgent;
+import com.sas.unravl.UnRAVLCoordinator;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.util.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestLoadAgents extends TestBase {
+
+    private static List<JsonNode> scenario() throws UnRAVLException {
+        return Collections.singletonList(Json.parse(("{ 'name' : 'load', "
+                + "'env' : { 'x' : 1 }, 'assert' : '{x} == 1' }").replace(
+                '\'', '"')));
+    }
+
+    @Test
+    public void mergesAgentsOverLoopback() throws IOException,
+            UnRAVLException, InterruptedException {
+        UnRAVLAgent one = new UnRAVLAgent("secret").start();
+        UnRAVLAgent two = new UnRAVLAgent("secret").start();
+        try {
+            ByteArrayOutputStream progress = new ByteArrayOutputStream();
+            RunAnalysis analysis = new UnRAVLCoordinator(Arrays.asList(
+                    one.getAddress(), two.getAddress()), "secret")
+                    .setThreads(3).setIterations(20)
+                    .setDurationMillis(60000L).setSnapshotMillis(50L)
+                    .run(scenario(), new PrintStream(progress, true, "UTF-8"));
+            // 2 agents x 3 threads x 20 iterations
+            assertEquals(120, analysis.getTotal().getCalls());
+            assertEquals(0, analysis.getTotal().getErrors());
+            assertEquals(120, analysis.getScripts().get("load").getCalls());
+            assertTrue(progress.toString("UTF-8").contains(one.getAddress()));
+            assertTrue(progress.toString("UTF-8").contains(two.getAddress()));
+        } finally {
+            one.stop();
+            two.stop();
+            one.awaitStop();
+            two.awaitStop();
+        }
+    }
+
+    @Test
+    public void rejectsTheWrongToken() throws IOException, UnRAVLException,
+            InterruptedException {
+        UnRAVLAgent agent = new UnRAVLAgent("secret").start();
+        try {
+            new UnRAVLCoordinator(Collections.singletonList(agent
+                    .getAddress()), "guess").setIterations(1).run(scenario(),
+                    null);
+            fail("expected the agent to refuse the load");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("403"));
+        } finally {
+            agent.stop();
+            agent.awaitStop();
+        }
+    }
+}
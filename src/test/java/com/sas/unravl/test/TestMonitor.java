@@ -0,0 +1,166 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sas.unravl.UnRAVLMonitor;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.RollingNdjsonWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestMonitor extends TestBase {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File script(String name, String json) throws IOException {
+        File file = tmp.newFile(name);
+        Files.write(file.toPath(),
+                json.replace('\'', '"').getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<JsonNode> results(File file) throws IOException {
+        List<JsonNode> results = new ArrayList<JsonNode>();
+        ObjectMapper mapper = new ObjectMapper();
+        for (String line : Files.readAllLines(file.toPath(),
+                StandardCharsets.UTF_8))
+            results.add(mapper.readTree(line));
+        return results;
+    }
+
+    // Keeps each result the monitor writes, so tests can wait for results
+    // instead of sleeping for a fixed time.
+    private static class CapturingWriter extends RollingNdjsonWriter {
+        final BlockingQueue<JsonNode> written = new LinkedBlockingQueue<JsonNode>();
+
+        CapturingWriter(File file) {
+            super(file, 0, 0);
+        }
+
+        @Override
+        public synchronized void write(JsonNode record) throws IOException {
+            super.write(record);
+            written.add(record);
+        }
+    }
+
+    // Run a monitor until it writes count results, failing after a generous
+    // deadline.
+    private List<JsonNode> monitor(File script, long interval, int count)
+            throws Exception {
+        CapturingWriter writer = new CapturingWriter(new File(tmp.getRoot(),
+                "results.ndjson"));
+        UnRAVLMonitor monitor = new UnRAVLMonitor(Arrays.asList(script
+                .getPath()), interval, 0, writer).start();
+        List<JsonNode> results = new ArrayList<JsonNode>();
+        try {
+            long deadline = System.currentTimeMillis() + 30000;
+            while (results.size() < count) {
+                JsonNode result = writer.written.poll(
+                        deadline - System.currentTimeMillis(),
+                        TimeUnit.MILLISECONDS);
+                assertNotNull("expected " + count + " results, got "
+                        + results.size(), result);
+                results.add(result);
+            }
+        } finally {
+            monitor.stop();
+        }
+        return results;
+    }
+
+    // Called from the slow script: the first run waits until the test lets
+    // it finish, so it takes longer than the monitor interval.
+    private static final CountDownLatch firstRunStarted = new CountDownLatch(1);
+    private static final CountDownLatch finishFirstRun = new CountDownLatch(1);
+    private static final AtomicInteger slowRuns = new AtomicInteger();
+
+    public static boolean slowRun() throws InterruptedException {
+        if (slowRuns.getAndIncrement() == 0) {
+            firstRunStarted.countDown();
+            finishFirstRun.await(30, TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    @Test
+    public void suitesRunRepeatedly() throws Exception {
+        File pass = script("pass.json",
+                "{ 'name' : 'pass', 'env' : { 'x' : 1 }, 'assert' : [ 'x == 1' ] }");
+        List<JsonNode> results = monitor(pass, 10, 3);
+        for (JsonNode result : results) {
+            assertEquals(pass.getPath(), result.get("suite").textValue());
+            assertTrue(result.get("passed").booleanValue());
+        }
+    }
+
+    @Test
+    public void slowRunsDoNotOverlap() throws Exception {
+        File slow = script("slow.json", "{ 'name' : 'slow', 'assert' : "
+                + "[ 'com.sas.unravl.test.TestMonitor.slowRun()' ] }");
+        final long interval = 10;
+        Thread release = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    firstRunStarted.await(30, TimeUnit.SECONDS);
+                    // Thread.sleep waits at least this long, so the first
+                    // run misses several scheduled starts
+                    Thread.sleep(5 * interval);
+                } catch (InterruptedException e) {
+                    // release the run now
+                }
+                finishFirstRun.countDown();
+            }
+        };
+        release.start();
+        List<JsonNode> results = monitor(slow, interval, 2);
+        release.join();
+        JsonNode first = results.get(0);
+        JsonNode second = results.get(1);
+        assertTrue(first.get("passed").booleanValue());
+        assertTrue(first.get("millis").longValue() > interval);
+        // the second run started after the first ended, and counts the
+        // starts the first run missed
+        assertTrue(second.get("time").longValue() >= first.get("time")
+                .longValue() + first.get("millis").longValue());
+        assertTrue(second.get("skipped").intValue() > 0);
+    }
+
+    @Test
+    public void resultsFileRollsOver() throws Exception {
+        File file = new File(tmp.getRoot(), "roll.ndjson");
+        RollingNdjsonWriter writer = new RollingNdjsonWriter(file, 100, 2);
+        for (int i = 0; i < 10; i++)
+            writer.write(Json.parse("{\"record\":" + i
+                    + ", \"padding\":\"0123456789012345678901234567890\"}"));
+        writer.close();
+        assertEquals(9, results(file).get(results(file).size() - 1)
+                .get("record").intValue());
+        assertTrue(new File(file.getPath() + ".1").isFile());
+        assertTrue(new File(file.getPath() + ".2").isFile());
+        assertFalse(new File(file.getPath() + ".3").exists());
+        assertTrue(file.length() <= 100);
+    }
+}
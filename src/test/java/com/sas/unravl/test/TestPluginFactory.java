@@ -0,0 +1,90 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.PluginFactory;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.assertions.BoundAssertion;
+import com.sas.unravl.assertions.StatusAssertion;
+import com.sas.unravl.assertions.UnRAVLAssertion;
+import com.sas.unravl.generators.JsonRequestBodyGenerator;
+import com.sas.unravl.util.Json;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestPluginFactory extends TestBase {
+
+    @Test
+    public void statelessPluginsAreShared() throws UnRAVLException {
+        UnRAVLPlugins plugins = new UnRAVLPlugins();
+        PluginFactory<JsonRequestBodyGenerator> json = plugins
+                .getFactory(JsonRequestBodyGenerator.class);
+        assertTrue(json.isShared());
+        assertSame(json.newInstance(), json.newInstance());
+
+        PluginFactory<BoundAssertion> bound = plugins
+                .getFactory(BoundAssertion.class);
+        assertFalse(bound.isShared());
+        assertNotSame(bound.newInstance(), bound.newInstance());
+        assertSame(bound, plugins.getFactory(BoundAssertion.class));
+    }
+
+    @Test
+    public void sharedAssertionsAreReportedSeparately()
+            throws IOException, UnRAVLException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        runtime.getPlugins().setFactory(BoundAssertion.class,
+                PluginFactory.shared(new BoundAssertion()));
+        try {
+            runtime.execute(Json.parse("{ 'env' : { 'x' : 1, 'y' : 2 }, 'assert' : [ { 'bound' : 'x' }, { 'bound' : 'y' } ] }"
+                    .replace('\'', '"')));
+        } finally {
+            runtime.getPlugins().setFactory(BoundAssertion.class,
+                    PluginFactory.forClass(BoundAssertion.class));
+        }
+        List<UnRAVLAssertion> passed = runtime.getApiCalls().get(0)
+                .getPassedAssertions();
+        assertEquals(2, passed.size());
+        assertEquals("{\"bound\":\"x\"}", passed.get(0).getAssertion()
+                .toString());
+        assertEquals("{\"bound\":\"y\"}", passed.get(1).getAssertion()
+                .toString());
+    }
+
+    @Test
+    public void customFactoriesAreUsed() throws IOException, UnRAVLException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        final AtomicInteger created = new AtomicInteger();
+        PluginFactory<BoundAssertion> counting = new PluginFactory<BoundAssertion>() {
+            @Override
+            public BoundAssertion newInstance() {
+                created.incrementAndGet();
+                return new BoundAssertion();
+            }
+        };
+        runtime.getPlugins().setFactory(BoundAssertion.class, counting);
+        try {
+            runtime.execute(Json.parse("{ 'env' : { 'x' : 1 }, 'assert' : [ { 'bound' : 'x' }, { 'bound' : 'x' } ] }"
+                    .replace('\'', '"')));
+            assertEquals(2, created.get());
+            ApiCall call = runtime.getApiCalls().get(0);
+            assertEquals(2, call.getPassedAssertions().size());
+        } finally {
+            runtime.getPlugins().setFactory(BoundAssertion.class,
+                    PluginFactory.forClass(BoundAssertion.class));
+        }
+        assertTrue(runtime.getPlugins().getFactory(StatusAssertion.class)
+                .isShared());
+    }
+}
@@ -0,0 +1,84 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
+import com.sas.unravl.annotations.UnRAVLAuthPlugin;
+import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
+import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.assertions.StatusAssertion;
+import com.sas.unravl.auth.BasicAuth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.filter.AnnotationTypeFilter;
+
+/**
+ * Checks that the plugin index lists the same classes that a Spring component
+ * scan of <code>com.sas.unravl</code> finds.
+ */
+public class TestPluginIndex extends TestBase {
+
+    private static Set<String> indexed() throws IOException {
+        Set<String> names = new TreeSet<String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                TestPluginIndex.class.getClassLoader().getResourceAsStream(
+                        UnRAVLPlugins.PLUGIN_INDEX), "UTF-8"))) {
+            for (String line = reader.readLine(); line != null; line = reader
+                    .readLine()) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    names.add(line);
+            }
+        }
+        return names;
+    }
+
+    private static Set<String> scanned() {
+        ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(
+                false);
+        scanner.addIncludeFilter(new AnnotationTypeFilter(
+                UnRAVLAssertionPlugin.class));
+        scanner.addIncludeFilter(new AnnotationTypeFilter(
+                UnRAVLExtractorPlugin.class));
+        scanner.addIncludeFilter(new AnnotationTypeFilter(
+                UnRAVLRequestBodyGeneratorPlugin.class));
+        scanner.addIncludeFilter(new AnnotationTypeFilter(
+                UnRAVLAuthPlugin.class));
+        Set<String> names = new TreeSet<String>();
+        for (BeanDefinition bean : scanner
+                .findCandidateComponents("com.sas.unravl"))
+            names.add(bean.getBeanClassName());
+        return names;
+    }
+
+    @Test
+    public void indexListsAllAnnotatedPlugins() throws IOException {
+        assertEquals(scanned(), indexed());
+    }
+
+    @Test
+    public void runtimeRegistersIndexedPlugins() throws UnRAVLException {
+        UnRAVLPlugins plugins = new UnRAVLRuntime().getPlugins();
+        assertSame(StatusAssertion.class, plugins.getAssertions().get("status"));
+        assertSame(BasicAuth.class, plugins.getAuth().get("basic"));
+        assertEquals(true, plugins.getExtractors().containsKey("json"));
+        assertEquals(true, plugins.getBodyGenerators().containsKey("json"));
+    }
+
+    @Test(expected = UnRAVLException.class)
+    public void nonPluginClassesAreRejected() throws UnRAVLException {
+        new UnRAVLPlugins().addPlugin(String.class);
+    }
+}
@@ -0,0 +1,101 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.assertions.BoundAssertion;
+import com.sas.unravl.assertions.HeadersAssertion;
+import com.sas.unravl.assertions.SchemaAssertion;
+import com.sas.unravl.assertions.StatusAssertion;
+import com.sas.unravl.assertions.UnRAVLAssertion;
+import com.sas.unravl.util.Json;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestPluginRegistry extends TestBase {
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotsAreImmutable() {
+        UnRAVLPlugins plugins = new UnRAVLPlugins();
+        plugins.addAssertion(BoundAssertion.class);
+        Map<String, Class<? extends UnRAVLAssertion>> before = plugins
+                .getAssertions();
+        plugins.addAssertion(StatusAssertion.class);
+        assertFalse(before.containsKey("status"));
+        assertTrue(plugins.getAssertions().containsKey("status"));
+        assertTrue(plugins.getAssertions().containsKey("bound"));
+        before.put("status", StatusAssertion.class);
+    }
+
+    @Test
+    public void copiesAreIsolated() throws IOException, UnRAVLException {
+        UnRAVLPlugins base = new UnRAVLPlugins();
+        base.addAssertion(StatusAssertion.class);
+        UnRAVLPlugins isolated = base.copy();
+        isolated.addAssertion(BoundAssertion.class);
+        assertFalse(base.getAssertions().containsKey("bound"));
+        assertEquals(StatusAssertion.class,
+                isolated.getAssertions().get("status"));
+
+        UnRAVLRuntime runtime = new UnRAVLRuntime(
+                new LinkedHashMap<String, Object>(), isolated);
+        assertSame(isolated, runtime.getPlugins());
+        assertSame(isolated, new UnRAVLRuntime(runtime).getPlugins());
+        assertSame(UnRAVLRuntime.getDefaultPlugins(),
+                new UnRAVLRuntime().getPlugins());
+
+        ObjectNode script = Json.object(Json
+                .parse("{ 'env' : { 'x' : 1 }, 'assert' : { 'bound' : 'x' } }"
+                        .replace('\'', '"')));
+        runtime.execute(script);
+        assertEquals(0, runtime.report());
+        assertEquals(1, runtime.getApiCalls().get(0).getPassedAssertions()
+                .size());
+    }
+
+    @Test
+    public void concurrentRegistrationsAreKept() throws InterruptedException {
+        final UnRAVLPlugins plugins = new UnRAVLPlugins();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread threads[] = new Thread[4];
+        final Class<?> classes[] = { BoundAssertion.class,
+                StatusAssertion.class, HeadersAssertion.class,
+                SchemaAssertion.class };
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    plugins.addAssertion(classes[n]
+                            .asSubclass(UnRAVLAssertion.class));
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        Map<String, Class<? extends UnRAVLAssertion>> assertions = plugins
+                .getAssertions();
+        assertEquals(BoundAssertion.class, assertions.get("bound"));
+        assertEquals(StatusAssertion.class, assertions.get("status"));
+        assertEquals(HeadersAssertion.class, assertions.get("headers"));
+        assertEquals(SchemaAssertion.class, assertions.get("schema"));
+    }
+}
@@ -0,0 +1,156 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.ResultsAnalyzer;
+import com.sas.unravl.RunAnalysis;
+import com.sas.unravl.util.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestResultsAnalyzer extends TestBase {
+
+    // write results for two scripts; "get" takes about getMillis ms and
+    // every tenth "post" fails
+    private static File results(int count, int getMillis, long seed)
+            throws IOException {
+        return results(count, getMillis * 1000L, seed);
+    }
+
+    private static File results(int count, long getMicros, long seed)
+            throws IOException {
+        File file = File.createTempFile("results", ".ndjson");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+        try (Writer w = Files.newBufferedWriter(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            for (int i = 0; i < count; i++) {
+                boolean get = i % 2 == 0;
+                long micros = get ? getMicros + random.nextInt(2000)
+                        : 5000L;
+                boolean failed = !get && i % 20 == 1;
+                w.write(("{'time':" + (1476888000000L + i * 10L)
+                        + ",'name':'" + (get ? "get" : "post") + "','method':'"
+                        + (get ? "GET" : "POST") + "','uri':'{site}/items','status':200"
+                        + ",'phases':{'env':10,'http':" + (micros - 10)
+                        + ",'assert':3000,'unknown':{'a':[1]}},'passed':1,'failed':"
+                        + (failed ? 1 : 0) + ",'skipped':0"
+                        + (failed ? ",'failures':['assert.status']" : "")
+                        + ",'extra':[1,{'b':2}]}\n").replace('\'', '"'));
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void histogramPercentilesAndMerge() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++)
+            (i % 2 == 0 ? a : b).record(i * 100L);
+        a.merge(b);
+        assertEquals(10000, a.getCount());
+        assertEquals(100, a.getMin());
+        assertEquals(1000000, a.getMax());
+        assertEquals(500050.0, a.getMean(), 0.001);
+        assertEquals(500000, a.getPercentile(50), 500000 * 0.03);
+        assertEquals(990000, a.getPercentile(99), 990000 * 0.03);
+        assertEquals(1000000, a.getPercentile(100));
+        assertEquals(0, new LatencyHistogram().getPercentile(50));
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(7);
+        assertEquals(7, small.getPercentile(99.9));
+    }
+
+    @Test
+    public void analyzesChunksInParallel() throws IOException {
+        // over 1MB, so the file is split into chunks
+        File file = results(20000, 10, 1L);
+        RunAnalysis analysis = new ResultsAnalyzer(4, 60000L).analyze(Arrays
+                .asList(file));
+        assertEquals(20000, analysis.getTotal().getCalls());
+        assertEquals(1000, analysis.getTotal().getErrors());
+        RunAnalysis.Group get = analysis.getScripts().get("get");
+        assertEquals(10000, get.getCalls());
+        assertEquals(0, get.getErrors());
+        // latency is the HTTP phase, without the assertions
+        assertEquals(11000, get.getLatency().getPercentile(50), 11000 * 0.05);
+        assertEquals(14000, get.getMeanTotalMicros(), 14000 * 0.05);
+        assertEquals(0.1, analysis.getScripts().get("post").getErrorRate(),
+                1e-9);
+        assertEquals(10000, analysis.getEndpoints().get("POST {site}/items")
+                .getCalls());
+        assertEquals(RunAnalysis.SLOWEST, analysis.getSlowest().size());
+        assertEquals("get", analysis.getSlowest().get(0).getName());
+        assertEquals(4, analysis.getThroughput().size()); // 200 s, 60 s each
+        assertEquals(100.0, analysis.getCallsPerSecond(), 0.01);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        analysis.print(new PrintStream(out, true, "UTF-8"));
+        String report = out.toString("UTF-8");
+        assertTrue(report, report.startsWith("20000 calls, 1000 failed"));
+        assertTrue(report, report.contains("GET {site}/items"));
+    }
+
+    @Test
+    public void flagsRegressions() throws IOException {
+        File baseline = results(400, 10, 1L);
+        File same = results(400, 10, 2L);
+        File slower = results(400, 12, 3L);
+        ResultsAnalyzer analyzer = new ResultsAnalyzer(2, 60000L);
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        RunAnalysis base = analyzer.analyze(Collections.singletonList(baseline));
+        assertEquals(0, analyzer.analyze(Collections.singletonList(same))
+                .compare(base, 0.01, out));
+        // the "get" script and the GET endpoint
+        assertEquals(2, analyzer.analyze(Collections.singletonList(slower))
+                .compare(base, 0.01, out));
+        assertEquals(1, analyzer.report(Arrays.asList(slower),
+                Arrays.asList(baseline), out));
+    }
+
+    @Test
+    public void ignoresTinySignificantChanges() throws IOException {
+        // with this many calls, a 1% slower "get" is significant, but too
+        // small to flag
+        File baseline = results(20000, 10000L, 1L);
+        File slightly = results(20000, 10110L, 2L);
+        ResultsAnalyzer analyzer = new ResultsAnalyzer(2, 60000L);
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        RunAnalysis base = analyzer.analyze(Collections.singletonList(baseline));
+        RunAnalysis current = analyzer.analyze(Collections
+                .singletonList(slightly));
+        assertEquals(0, current.compare(base, 0.01, out));
+        assertEquals(0, current.compare(base, 0.01, 0.05, out));
+        assertEquals(2, current.compare(base, 0.01, 0.005, out));
+    }
+
+    @Test
+    public void mergesShardResults() throws IOException {
+        File one = results(100, 10, 1L);
+        File two = results(50, 10, 2L);
+        // a shard whose last line has no newline
+        Files.write(two.toPath(), Arrays.copyOf(Files.readAllBytes(two
+                .toPath()), (int) two.length() - 1));
+        File merged = File.createTempFile("merged", ".ndjson");
+        merged.deleteOnExit();
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        ResultsAnalyzer analyzer = new ResultsAnalyzer(2, 60000L);
+        assertEquals(1, analyzer.merge(Arrays.asList(one, two), merged, out));
+        RunAnalysis analysis = analyzer.analyze(Arrays.asList(merged));
+        assertEquals(150, analysis.getTotal().getCalls());
+        assertEquals(8, analysis.getTotal().getErrors());
+    }
+}
@@ -0,0 +1,139 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sas.unravl.CallResult;
+import com.sas.unravl.ResultsWriter;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.util.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestResultsWriter extends TestBase {
+
+    private static String[] lines(ByteArrayOutputStream out) {
+        String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text.endsWith("\n"));
+        return text.split("\n");
+    }
+
+    @Test
+    public void writesOneResultPerCall() throws IOException, UnRAVLException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultsWriter writer = new ResultsWriter(out, 4);
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        runtime.setResultsWriter(writer);
+        runtime.execute(Json.parse(("[ { 'name' : 'passes', 'env' : { 'x' : 1 }, 'assert' : 'x == 1' },"
+                + "  { 'name' : 'fails', 'assert' : [ 'true', { 'groovy' : 'false' } ] } ]")
+                .replace('\'', '"')));
+        writer.close();
+
+        String lines[] = lines(out);
+        assertEquals(2, lines.length);
+        assertEquals(2, writer.getWrittenCount());
+        ObjectMapper mapper = new ObjectMapper();
+        CallResult passes = CallResult.fromJson(mapper.readTree(lines[0]));
+        assertEquals("passes", passes.getName());
+        assertTrue(passes.isPassed());
+        assertEquals(1, passes.getPassed());
+        assertNull(passes.getMethod());
+        assertTrue(passes.getTime() > 0);
+        assertTrue(passes.getMicros(CallResult.Phase.ENV)
+                + passes.getMicros(CallResult.Phase.ASSERT) > 0);
+        assertEquals(0, passes.getMicros(CallResult.Phase.HTTP));
+
+        JsonNode fails = mapper.readTree(lines[1]);
+        assertEquals("fails", fails.get("name").textValue());
+        assertEquals(1, fails.get("passed").intValue());
+        assertEquals(1, fails.get("failed").intValue());
+        assertFalse(CallResult.fromJson(fails).isPassed());
+        assertArrayEquals(new String[] { "assert.groovy" }, CallResult
+                .fromJson(fails).getFailures());
+    }
+
+    @Test
+    public void writesResultsFromManyThreads() throws IOException,
+            InterruptedException, UnRAVLException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ResultsWriter writer = new ResultsWriter(out, 8);
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        runtime.execute(Json.parse("{ 'name' : 'result' }".replace('\'', '"')));
+        final CallResult result = CallResult.of(runtime.getApiCalls().get(0));
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++)
+                        writer.write(result);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        writer.close();
+
+        String lines[] = lines(out);
+        assertEquals(4000, lines.length);
+        assertEquals(4000, writer.getWrittenCount());
+        assertEquals(0, writer.getDroppedCount());
+        Set<String> distinct = new HashSet<String>();
+        for (String line : lines)
+            distinct.add(line);
+        assertEquals(1, distinct.size());
+        assertEquals("result", CallResult.fromJson(Json.parse(lines[0]))
+                .getName());
+    }
+
+    @Test
+    public void writesRacingCloseAreWrittenOrCounted() throws IOException,
+            InterruptedException, UnRAVLException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ResultsWriter writer = new ResultsWriter(out, 2);
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        runtime.execute(Json.parse("{ 'name' : 'result' }".replace('\'', '"')));
+        final CallResult result = CallResult.of(runtime.getApiCalls().get(0));
+        final AtomicLong accepted = new AtomicLong();
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            writer.write(result);
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException closed) {
+                        // expected once the writer is closed
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        Thread.sleep(50);
+        writer.close();
+        for (Thread t : threads) {
+            t.join(10000);
+            assertFalse(t.isAlive());
+        }
+        assertEquals(accepted.get(), writer.getWrittenCount()
+                + writer.getDroppedCount());
+        assertEquals(writer.getWrittenCount(), lines(out).length);
+    }
+}
@@ -0,0 +1,105 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.Method;
+import com.sas.unravl.ScriptPlan;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.assertions.StatusAssertion;
+import com.sas.unravl.assertions.UnRAVLAssertion;
+import com.sas.unravl.assertions.UnRAVLAssertion.Stage;
+import com.sas.unravl.util.Json;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+import org.junit.Test;
+
+public class TestScriptPlan extends TestBase {
+
+    private static ObjectNode script(String json) throws UnRAVLException {
+        return Json.object(Json.parse(json.replace('\'', '"')));
+    }
+
+    @Test
+    public void runtimesSharePlans() throws IOException, UnRAVLException {
+        ObjectNode script = script("{ 'name' : 'shared', 'env' : { 'x' : 1 }, 'assert' : 'x == 1' }");
+        UnRAVL first = new UnRAVL(new UnRAVLRuntime(), script);
+        UnRAVL second = new UnRAVL(new UnRAVLRuntime(), script);
+        assertSame(first.getPlan(), second.getPlan());
+        assertNotSame(first.getPlan(),
+                new UnRAVL(new UnRAVLRuntime(), script.deepCopy()).getPlan());
+
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        runtime.execute(script);
+        runtime.execute(script);
+        assertEquals(0, runtime.report());
+    }
+
+    @Test
+    public void runtimesDoNotShareCompiledScripts() throws UnRAVLException,
+            ScriptException {
+        UnRAVLRuntime one = new UnRAVLRuntime();
+        UnRAVLRuntime two = new UnRAVLRuntime();
+        CompiledScript compiled = one.compile(one.interpreter(), "1 + 1");
+        assertSame(compiled, one.compile(one.interpreter(), "1 + 1"));
+        CompiledScript other = two.compile(two.interpreter(), "1 + 1");
+        assertNotSame(compiled, other);
+        assertNotSame(compiled.getEngine(), other.getEngine());
+        assertEquals(2, ((Number) other.eval(two.interpreter().getContext()))
+                .intValue());
+    }
+
+    @Test
+    public void compilesOnce() throws IOException, UnRAVLException {
+        ScriptPlan plan = new ScriptPlan(
+                script("{ 'name' : 'plan', 'template' : 't', 'post' : 'http://example.com/{x}',"
+                        + " 'headers' : { 'Accept' : 'application/json' },"
+                        + " 'env' : { 'n' : 3, 'f' : false, 's' : 'abc', 'e' : '{n}' },"
+                        + " 'body' : 'plain text',"
+                        + " 'assert' : [ 'true', { 'status' : 201 } ] }"),
+                new UnRAVLRuntime().getPlugins());
+        assertEquals("plan", plan.getName());
+        assertEquals("t", plan.getTemplateName());
+        assertEquals(Method.POST, plan.getMethod());
+        assertEquals("http://example.com/{x}", plan.getURI());
+        assertEquals("application/json", plan.getHeaders().get(0).getValue());
+
+        List<ScriptPlan.Variable> env = plan.getEnv();
+        assertEquals(Long.valueOf(3), env.get(0).getValue());
+        assertEquals(Boolean.FALSE, env.get(1).getValue());
+        assertTrue(env.get(2).isConstant());
+        assertEquals(false, env.get(3).isConstant());
+
+        assertEquals("plain text", new String(plan.getTextBody(), "UTF-8"));
+
+        List<ScriptPlan.Step<UnRAVLAssertion>> asserts = plan
+                .getAssertions(Stage.ASSERT);
+        assertTrue(asserts.get(0).isExpression());
+        assertEquals("{\"groovy\":\"true\"}",
+                asserts.get(0).getScriptlet("groovy").toString());
+        assertEquals(StatusAssertion.class, asserts.get(1).getPluginClass());
+        assertEquals(201, plan.getStatusAssertion().get("status").intValue());
+        assertTrue(plan.getAssertions(Stage.PRECONDITIONS).isEmpty());
+        assertTrue(plan.getExtractors().isEmpty());
+    }
+
+    @Test(expected = UnRAVLException.class)
+    public void invalidPartsFailWhenUsed() throws UnRAVLException {
+        ScriptPlan plan = new ScriptPlan(script("{ 'assert' : 1 }"),
+                new UnRAVLPlugins());
+        assertNull(plan.getMethod());
+        plan.getAssertions(Stage.ASSERT);
+    }
+}
@@ -0,0 +1,173 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.ScriptDurations;
+import com.sas.unravl.ScriptScheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestScriptScheduler extends TestBase {
+
+    private static File historyFile() throws IOException {
+        File file = File.createTempFile("durations", ".json");
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + ".lock").deleteOnExit();
+        return file;
+    }
+
+    // scripts a through h take 100, 200, ... 800 ms
+    private static ScriptDurations history(File file) throws IOException {
+        ScriptDurations durations = new ScriptDurations(file);
+        for (int i = 0; i < 8; i++)
+            durations.record("scripts/" + (char) ('a' + i) + ".json",
+                    (i + 1) * 100L);
+        return durations;
+    }
+
+    private static List<String> scripts() {
+        List<String> scripts = new ArrayList<String>();
+        for (int i = 0; i < 8; i++)
+            scripts.add("scripts/" + (char) ('a' + i) + ".json");
+        return scripts;
+    }
+
+    @Test
+    public void movingAverageIsSavedAndMerged() throws IOException {
+        File file = historyFile();
+        ScriptDurations one = new ScriptDurations(file);
+        one.record("scripts/a.json", 1000L);
+        one.record("scripts/a.json", 2000L);
+        assertEquals(1300.0, one.getExpectedMillis("scripts/a.json"), 1e-9);
+        assertEquals(1300.0,
+                one.getExpectedMillis(new File("scripts/a.json")
+                        .getAbsolutePath()), 1e-9);
+        assertEquals(-1.0, one.getExpectedMillis("scripts/b.json"), 0.0);
+
+        // another process saves b in the meantime
+        ScriptDurations two = new ScriptDurations(file);
+        two.record("scripts/b.json", 500L);
+        two.save();
+        one.save();
+
+        ScriptDurations reloaded = new ScriptDurations(file);
+        assertEquals(2, reloaded.size());
+        assertEquals(1300.0, reloaded.getExpectedMillis("scripts/a.json"),
+                1e-9);
+        assertEquals(500.0, reloaded.getExpectedMillis("./scripts/b.json"),
+                1e-9);
+    }
+
+    @Test
+    public void ordersAndShardsLongestFirst() throws IOException {
+        ScriptScheduler scheduler = new ScriptScheduler(history(historyFile()));
+        List<String> scripts = scripts();
+        List<String> unknown = new ArrayList<String>(scripts);
+        unknown.add("scripts/new.json"); // expected to take the mean, 450 ms
+        assertEquals(Arrays.asList("scripts/h.json", "scripts/g.json",
+                "scripts/f.json", "scripts/e.json", "scripts/new.json",
+                "scripts/d.json", "scripts/c.json", "scripts/b.json",
+                "scripts/a.json"), scheduler.order(unknown));
+
+        // 3600 ms in two shards: h e d a and g f c b, 1800 ms each
+        List<List<String>> shards = scheduler.partition(scripts, 2);
+        assertEquals(Arrays.asList("scripts/h.json", "scripts/e.json",
+                "scripts/d.json", "scripts/a.json"), shards.get(0));
+        assertEquals(Arrays.asList("scripts/g.json", "scripts/f.json",
+                "scripts/c.json", "scripts/b.json"), shards.get(1));
+
+        // every shard agrees, whatever the order of the files
+        List<String> shuffled = new ArrayList<String>(scripts);
+        Collections.reverse(shuffled);
+        Set<String> all = new HashSet<String>();
+        for (int i = 1; i <= 3; i++) {
+            List<String> shard = scheduler.shard(shuffled, i + "/3");
+            assertEquals(scheduler.shard(scripts, i + "/3"), shard);
+            all.addAll(shard);
+        }
+        assertEquals(new HashSet<String>(scripts), all);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidShards() {
+        new ScriptScheduler(null).shard(scripts(), "4/3");
+    }
+
+    @Test
+    public void runsOnParallelWorkers() throws IOException {
+        File file = historyFile();
+        ScriptScheduler scheduler = new ScriptScheduler(new ScriptDurations(
+                file));
+        final Set<String> threads = Collections
+                .synchronizedSet(new HashSet<String>());
+        final List<String> ran = Collections
+                .synchronizedList(new ArrayList<String>());
+        List<Throwable> failures = scheduler.run(scripts(), 4,
+                new ScriptScheduler.Task() {
+                    @Override
+                    public void run(String scriptFile) throws Exception {
+                        threads.add(Thread.currentThread().getName());
+                        ran.add(scriptFile);
+                        Thread.sleep(50);
+                        if (scriptFile.endsWith("c.json"))
+                            throw new IllegalStateException(scriptFile);
+                    }
+                });
+        assertEquals(8, ran.size());
+        assertTrue(threads.size() > 1);
+        assertEquals(1, failures.size());
+        assertEquals("scripts/c.json", failures.get(0).getMessage());
+        // durations are recorded and saved, failed or not
+        ScriptDurations saved = new ScriptDurations(file);
+        assertEquals(8, saved.size());
+        assertTrue(saved.getExpectedMillis("scripts/c.json") >= 50.0);
+    }
+
+    @Test
+    public void shardsOfOneRunShareTheHistory() throws IOException {
+        File file = historyFile();
+        history(file).save();
+        final List<String> ran = Collections
+                .synchronizedList(new ArrayList<String>());
+        ScriptScheduler.Task task = new ScriptScheduler.Task() {
+            @Override
+            public void run(String scriptFile) {
+                // much faster than the history, so that an updated history
+                // would change the shards
+                ran.add(scriptFile);
+            }
+        };
+        // the shards run one after another, on one history file
+        for (int i = 1; i <= 2; i++) {
+            ScriptScheduler scheduler = new ScriptScheduler(
+                    new ScriptDurations(file));
+            scheduler.run(scheduler.shard(scripts(), i + "/2"), 2, task);
+        }
+        assertEquals(8, ran.size());
+        assertEquals(new HashSet<String>(scripts()), new HashSet<String>(ran));
+
+        // the history changes only when the shards are merged
+        ScriptDurations durations = new ScriptDurations(file);
+        assertEquals(800.0, durations.getExpectedMillis("scripts/h.json"),
+                1e-9);
+        assertTrue(durations.getShardFile(1, 2).exists());
+        assertEquals(2, durations.mergeShards());
+        assertTrue(!durations.getShardFile(1, 2).exists());
+        assertTrue(!durations.getShardFile(2, 2).exists());
+        ScriptDurations merged = new ScriptDurations(file);
+        assertEquals(8, merged.size());
+        assertTrue(merged.getExpectedMillis("scripts/h.json") < 800.0);
+        assertTrue(merged.getExpectedMillis("scripts/a.json") < 100.0);
+    }
+}
@@ -119,6 +119,21 @@ public class TestScriptsWithMockServer extends TestBase {
                 SRC_TEST_SCRIPTS_MOCK_FAIL, "binary.json");
     }
 
+    @Test
+    public void digest() throws UnRAVLException {
+        createBinaryMock();
+        JUnitWrapper.runScriptsInDirectory(runtime, SRC_TEST_SCRIPTS_MOCK,
+                "digest.json");
+        mockServer.verify();
+    }
+
+    @Test
+    public void digestFail() throws UnRAVLException {
+        createBinaryMock();
+        JUnitWrapper.tryScriptsInDirectory(runtime, null,
+                SRC_TEST_SCRIPTS_MOCK_FAIL, "digest.json");
+    }
+
     private void createBinaryMock() {
         mockServer.expect(requestTo("/binary.dat")).andRespond(
                 withSuccess(new String(new byte[] { 0, 1, 2, 3, 4, 5, 6 }),
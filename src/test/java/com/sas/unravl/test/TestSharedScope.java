@@ -0,0 +1,116 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.SharedScope;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.util.Json;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestSharedScope extends TestBase {
+
+    @Test
+    public void atomicOperations() {
+        SharedScope shared = new SharedScope();
+        assertEquals(1, shared.increment("n"));
+        assertEquals(11, shared.add("n", 10));
+        assertSame(shared.counter("n"), shared.counter("n"));
+
+        assertTrue(shared.compareAndSet("state", null, "started"));
+        assertFalse(shared.compareAndSet("state", null, "again"));
+        assertFalse(shared.compareAndSet("state", "stopped", "done"));
+        assertTrue(shared.compareAndSet("state", "started", "done"));
+        assertTrue(shared.compareAndSet("state", "done", null));
+        assertFalse(shared.contains("state"));
+        assertEquals("first", shared.setIfAbsent("once", "first"));
+        assertEquals("first", shared.setIfAbsent("once", "second"));
+
+        shared.queue("ids").add("a");
+        shared.queue("ids").add("b");
+        assertEquals("a", shared.queue("ids").poll());
+        shared.map("m").put("k", "v");
+        assertEquals("v", shared.map("m").get("k"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void typesAreChecked() {
+        SharedScope shared = new SharedScope();
+        shared.set("ids", "not a queue");
+        shared.queue("ids");
+    }
+
+    @Test
+    public void forksShareTheScope() throws IOException, UnRAVLException {
+        UnRAVLRuntime parent = new UnRAVLRuntime();
+        String script = "{ 'env' : { 'shared.label' : 'hits' },"
+                + " 'bind' : { 'groovy' : { 'n' : 'shared.increment(\\\"hits\\\")' } },"
+                + " 'assert' : [ 'n > 0', { 'bound' : 'shared.label' } ] }";
+        UnRAVLRuntime first = new UnRAVLRuntime(parent);
+        UnRAVLRuntime second = new UnRAVLRuntime(parent);
+        first.execute(Json.parse(script.replace('\'', '"')));
+        second.execute(Json.parse(script.replace('\'', '"')));
+        assertEquals(0, first.report() + second.report());
+
+        assertSame(parent.getSharedScope(), second.getSharedScope());
+        assertEquals(2L, parent.getSharedScope().counter("hits").get());
+        assertEquals("hits", parent.binding("shared.label"));
+        assertFalse(parent.getBindings().containsKey("shared.label"));
+        assertEquals("hits=2", parent.expand("{shared.label}={shared.hits}"));
+        assertEquals("none", parent.expand("{shared.missing|none}"));
+        assertFalse(new UnRAVLRuntime().bound("shared.label"));
+    }
+
+    @Test
+    public void sharedNamesAlwaysReferToTheScope() {
+        System.setProperty("shared.origin", "property");
+        try {
+            UnRAVLRuntime runtime = new UnRAVLRuntime();
+            assertFalse(runtime.getBindings().containsKey("shared.origin"));
+            assertEquals("property", runtime.binding("shared.origin"));
+            assertEquals("property", runtime.expand("{shared.origin}"));
+            runtime.bind("shared.origin", "bound");
+            assertEquals("bound", runtime.binding("shared.origin"));
+            assertEquals("bound", runtime.expand("{shared.origin}"));
+        } finally {
+            System.clearProperty("shared.origin");
+        }
+    }
+
+    @Test
+    public void parallelWorkers() throws InterruptedException {
+        UnRAVLRuntime parent = new UnRAVLRuntime();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread workers[] = new Thread[8];
+        for (int i = 0; i < workers.length; i++) {
+            final UnRAVLRuntime worker = new UnRAVLRuntime(parent);
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int n = 0; n < 1000; n++) {
+                        worker.getSharedScope().increment("calls");
+                        worker.getSharedScope().queue("ids").add(n);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+        assertEquals("8000", parent.expand("{shared.calls}"));
+        assertEquals(8000, parent.getSharedScope().queue("ids").size());
+    }
+}
@@ -0,0 +1,111 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.generators.Text;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.StreamingJsonPath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestStreamingJsonPath extends TestBase {
+
+    private static final String DOCUMENT = "{ 'store' : { 'book' : [ "
+            + "{ 'title' : 'A', 'price' : 8.95, 'category' : 'reference' }, "
+            + "{ 'title' : 'B', 'price' : 12.99, 'category' : 'fiction', 'isbn' : '1' }, "
+            + "{ 'title' : 'C', 'price' : 22.99, 'category' : 'fiction' } ], "
+            + "'bicycle' : { 'color' : 'red', 'price' : 19.95 } }, "
+            + "'count' : 3 }";
+
+    private static List<List<JsonNode>> evaluate(String... paths)
+            throws IOException {
+        List<StreamingJsonPath> compiled = new ArrayList<StreamingJsonPath>();
+        for (String path : paths)
+            compiled.add(StreamingJsonPath.compile(path));
+        return StreamingJsonPath.evaluate(
+                Text.utf8(DOCUMENT.replace("'", "\"")), compiled);
+    }
+
+    @Test
+    public void compile() {
+        assertTrue(StreamingJsonPath.compile("$.store.book[0].title")
+                .isDefinite());
+        assertTrue(StreamingJsonPath.compile("store['bicycle'].color")
+                .isDefinite());
+        assertFalse(StreamingJsonPath.compile("$.store.book[*].title")
+                .isDefinite());
+        assertFalse(StreamingJsonPath.compile("$.store.book[?(@.price < 10)]")
+                .isDefinite());
+        assertNull(StreamingJsonPath.compile("$..price"));
+        assertNull(StreamingJsonPath.compile("$.store.book[-1]"));
+        assertNull(StreamingJsonPath.compile("$.store.book[0,1]"));
+        assertNull(StreamingJsonPath.compile("$.store.book[0:2]"));
+        assertNull(StreamingJsonPath.compile("$.store.book.length()"));
+    }
+
+    @Test
+    public void singlePass() throws IOException, UnRAVLException {
+        List<List<JsonNode>> results = evaluate("$.store.book[1].title",
+                "$.store.book[*].price", "store.bicycle",
+                "$.store.book[?(@.category == 'fiction')].title",
+                "$.store.book[?(@.isbn)].title",
+                "$.store.book[?(@.price <= 12.99)].title", "$.count",
+                "$.missing", "$.store.*.color");
+        assertEquals(mockJson("['B']"), array(results.get(0)));
+        assertEquals(mockJson("[8.95, 12.99, 22.99]"), array(results.get(1)));
+        assertEquals(mockJson("[{ 'color' : 'red', 'price' : 19.95 }]"),
+                array(results.get(2)));
+        assertEquals(mockJson("['B', 'C']"), array(results.get(3)));
+        assertEquals(mockJson("['B']"), array(results.get(4)));
+        assertEquals(mockJson("['A', 'B']"), array(results.get(5)));
+        assertEquals(mockJson("[3]"), array(results.get(6)));
+        assertEquals(mockJson("[]"), array(results.get(7)));
+        assertEquals(mockJson("['red']"), array(results.get(8)));
+    }
+
+    @Test
+    public void stopsEarly() throws IOException, UnRAVLException {
+        // the document is truncated after the first book; parsing must stop
+        // before reaching the syntax error
+        byte[] truncated = Text
+                .utf8("{ \"book\" : [ { \"title\" : \"A\" }, { \"title\" : ");
+        List<StreamingJsonPath> paths = new ArrayList<StreamingJsonPath>();
+        paths.add(StreamingJsonPath.compile("$.book[0].title"));
+        List<List<JsonNode>> results = StreamingJsonPath.evaluate(truncated,
+                paths);
+        assertEquals(mockJson("['A']"), array(results.get(0)));
+    }
+
+    @Test
+    public void filtersStreamedArrays() throws IOException, UnRAVLException {
+        byte[] json = Text.utf8(("{ 'shelves' : [ "
+                + "{ 'open' : true, 'book' : [ { 'price' : 5, 'title' : 'A' }, { 'price' : 15, 'title' : 'B' } ] }, "
+                + "7, "
+                + "{ 'open' : false, 'book' : [ { 'price' : 1, 'title' : 'C' } ] }, "
+                + "{ 'open' : true, 'book' : [ { 'price' : 2, 'title' : 'D' } ] } ] }")
+                .replace('\'', '"'));
+        List<StreamingJsonPath> paths = new ArrayList<StreamingJsonPath>();
+        paths.add(StreamingJsonPath
+                .compile("$.shelves[?(@.open == true)].book[?(@.price < 10)].title"));
+        paths.add(StreamingJsonPath.compile("$.shelves[3].book[0].title"));
+        paths.add(StreamingJsonPath.compile("$.shelves[*].open"));
+        List<List<JsonNode>> results = StreamingJsonPath.evaluate(json, paths);
+        assertEquals(mockJson("['A', 'D']"), array(results.get(0)));
+        assertEquals(mockJson("['D']"), array(results.get(1)));
+        assertEquals(mockJson("[true, false, true]"), array(results.get(2)));
+    }
+
+    private static JsonNode array(List<JsonNode> nodes) {
+        return new ArrayNode(Json.jsonNodeFactory()).addAll(nodes);
+    }
+}
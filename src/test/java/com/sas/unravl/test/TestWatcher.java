@@ -0,0 +1,119 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.UnRAVLWatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestWatcher extends TestBase {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file(String name, String content) throws IOException {
+        File file = new File(tmp.getRoot(), name);
+        Files.write(file.toPath(),
+                content.replace('\'', '"').getBytes(StandardCharsets.UTF_8));
+        return file.getCanonicalFile();
+    }
+
+    private String ref(String name) throws IOException {
+        return "@" + new File(tmp.getRoot(), name).getCanonicalPath();
+    }
+
+    // templates.json defines a template; a.json includes b.json, which reads
+    // body.txt and writes out.json; c.json stands alone
+    private UnRAVLWatcher watcher() throws IOException {
+        file("templates.json", "{ 'name' : 'x.template', 'env' : { 'x' : 1 } }");
+        file("body.txt", "hello");
+        file("b.json", "{ 'name' : 'b', 'template' : 'x', 'env' : { 'y' : '"
+                + ref("body.txt") + "' }, 'bind' : [ { 'json' : '"
+                + ref("out.json") + "' } ] }");
+        file("a.json", "[ '" + ref("b.json") + "', { 'name' : 'a' } ]");
+        file("c.json", "{ 'name' : 'c', 'env' : { 'z' : 1 } }");
+        return new UnRAVLWatcher(new String[] { path("templates.json"),
+                path("a.json"), path("c.json") });
+    }
+
+    private File canonical(String name) throws IOException {
+        return new File(tmp.getRoot(), name).getCanonicalFile();
+    }
+
+    private String path(String name) {
+        return new File(tmp.getRoot(), name).getPath();
+    }
+
+    @Test
+    public void findsDependencies() throws IOException {
+        UnRAVLWatcher watcher = watcher();
+        Set<File> deps = watcher.getDependencies(path("a.json"));
+        assertTrue(deps.contains(canonical("a.json")));
+        assertTrue(deps.contains(canonical("b.json")));
+        assertTrue(deps.contains(canonical("body.txt")));
+        assertFalse(deps.contains(canonical("out.json")));
+        assertEquals(1, watcher.getDependencies(path("c.json")).size());
+    }
+
+    @Test
+    public void runsOnlyAffectedScripts() throws IOException {
+        UnRAVLWatcher watcher = watcher();
+        File root = tmp.getRoot();
+        assertEquals(
+                Arrays.asList(path("templates.json"), path("a.json")),
+                watcher.affected(Collections.singleton(new File(root,
+                        "body.txt"))));
+        assertEquals(
+                Arrays.asList(path("templates.json"), path("c.json")),
+                watcher.affected(Collections.singleton(new File(root,
+                        "c.json"))));
+        assertEquals(Arrays.asList(path("templates.json"), path("a.json"),
+                path("c.json")), watcher.affected(Collections
+                .singleton(new File(root, "templates.json"))));
+        assertEquals(Collections.emptyList(),
+                watcher.affected(Collections.singleton(new File(root,
+                        "out.json"))));
+    }
+
+    @Test
+    public void runsAgainWhenFilesChange() throws Exception {
+        file("c.json", "{ 'name' : 'c', 'env' : { 'z' : 1 } }");
+        final UnRAVLWatcher watcher = new UnRAVLWatcher(
+                new String[] { path("c.json") });
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    watcher.watch();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        try {
+            for (int i = 0; i < 100 && watcher.getRunCount() < 1; i++)
+                Thread.sleep(100);
+            assertEquals(1, watcher.getRunCount());
+            file("c.json", "{ 'name' : 'c', 'env' : { 'z' : 2 } }");
+            for (int i = 0; i < 100 && watcher.getRunCount() < 2; i++)
+                Thread.sleep(100);
+            assertEquals(2, watcher.getRunCount());
+        } finally {
+            watcher.stop();
+            thread.join(5000);
+        }
+    }
+}